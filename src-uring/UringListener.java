@@ -0,0 +1,747 @@
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Server UDP listener on Linux io_uring, called through the Foreign Function and
+ * Memory API without any native library of its own. The socket, the rings and all
+ * buffers are created with plain system calls and live in MemorySegments outside the
+ * Java heap.
+ *
+ * Receiving is one multishot recvmsg request that stays armed: the kernel picks a
+ * buffer from a ring of receive buffers registered with it and posts a completion per
+ * datagram, with the source address in front of the payload. The responses to all
+ * completions that are reaped together are queued as sendmsg requests and submitted
+ * by the same io_uring_enter call that waits for the next completions, so a busy
+ * listener makes about one system call per batch instead of two per request.
+ *
+ * Needs JDK 22 or later (or JDK 21 with --enable-preview) and Linux 6.0 or later. It is
+ * compiled separately from src-uring and created by Server.enableIoUring through
+ * reflection, which falls back to the DatagramSocket listeners when anything here
+ * isn't available.
+ * @author Frans
+ *
+ */
+class UringListener implements DatagramTransport {
+
+	private static final Logger logger = Logger.getLogger(UringListener.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	private static final long SYS_IO_URING_SETUP = 425;
+	private static final long SYS_IO_URING_ENTER = 426;
+	private static final long SYS_IO_URING_REGISTER = 427;
+
+	private static final int AF_INET = 2;
+	private static final int AF_INET6 = 10;
+	private static final int SOCK_DGRAM = 2;
+	private static final int SOCK_CLOEXEC = 02000000;
+	private static final int PROT_READ_WRITE = 3;
+	private static final int MAP_SHARED_POPULATE = 0x01 | 0x8000;
+	private static final int MSG_TRUNC = 0x20;
+
+	private static final int EINTR = 4;
+	private static final int ENOBUFS = 105;
+	private static final int ETIME = 62;
+	private static final int ECANCELED = 125;
+
+	private static final long IORING_OFF_SQ_RING = 0;
+	private static final long IORING_OFF_CQ_RING = 0x8000000L;
+	private static final long IORING_OFF_SQES = 0x10000000L;
+	private static final int IORING_FEAT_EXT_ARG = 1 << 8;
+	private static final int IORING_ENTER_GETEVENTS = 1;
+	private static final int IORING_ENTER_EXT_ARG = 1 << 3;
+	private static final int IORING_REGISTER_PBUF_RING = 22;
+
+	private static final byte IORING_OP_SENDMSG = 9;
+	private static final byte IORING_OP_RECVMSG = 10;
+	private static final byte IORING_OP_ASYNC_CANCEL = 14;
+	private static final byte IOSQE_BUFFER_SELECT = 1 << 5;
+	private static final short IORING_RECV_MULTISHOT = 1 << 1;
+	private static final int IORING_CQE_F_BUFFER = 1;
+	private static final int IORING_CQE_F_MORE = 2;
+	private static final int IORING_CQE_BUFFER_SHIFT = 16;
+
+	private static final int PARAMS_LENGTH = 120;
+	private static final int SQE_LENGTH = 64;
+	private static final int CQE_LENGTH = 16;
+	private static final int MSGHDR_LENGTH = 56;
+	private static final int RECVMSG_OUT_LENGTH = 16;
+	private static final int SOCKADDR_LENGTH = 28;
+
+	private static final int BUFFER_GROUP = 0;
+	private static final int RECEIVE_BUFFERS = 512;
+	private static final int PAYLOAD_LENGTH = 2048;
+	private static final int RECEIVE_BUFFER_LENGTH = RECVMSG_OUT_LENGTH + SOCKADDR_LENGTH + PAYLOAD_LENGTH;
+
+	/*
+	 * Send slot: msghdr, iovec, destination and payload
+	 */
+	private static final int SLOT_IOVEC = MSGHDR_LENGTH;
+	private static final int SLOT_ADDRESS = SLOT_IOVEC + 16;
+	private static final int SLOT_PAYLOAD = 128;
+	private static final int SLOT_LENGTH = SLOT_PAYLOAD + PAYLOAD_LENGTH;
+
+	private static final long RECEIVE = -1;
+	private static final long CANCEL = -2;
+
+	private static final long CLOSE_TIMEOUT = 2000;
+
+	private static final Linker LINKER = Linker.nativeLinker();
+	private static final long ERRNO_OFFSET = Linker.Option.captureStateLayout()
+			.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+	private static final MethodHandle SYSCALL = downcall("syscall", FunctionDescriptor.of(ValueLayout.JAVA_LONG,
+			ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG,
+			ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG), Linker.Option.firstVariadicArg(1));
+	private static final MethodHandle MMAP = downcall("mmap", FunctionDescriptor.of(ValueLayout.JAVA_LONG,
+			ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+			ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG));
+	private static final MethodHandle MUNMAP = downcall("munmap", FunctionDescriptor.of(ValueLayout.JAVA_INT,
+			ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG));
+	private static final MethodHandle SOCKET = downcall("socket", FunctionDescriptor.of(ValueLayout.JAVA_INT,
+			ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+	private static final MethodHandle BIND = downcall("bind", FunctionDescriptor.of(ValueLayout.JAVA_INT,
+			ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+	private static final MethodHandle CLOSE = downcall("close", FunctionDescriptor.of(ValueLayout.JAVA_INT,
+			ValueLayout.JAVA_INT));
+
+	private final Server server;
+	private final InetSocketAddress localAddress;
+	private final boolean ipv6;
+
+	private final Arena arena = Arena.ofShared();
+	private final MemorySegment errno;
+
+	private int socketFd = -1;
+	private int ringFd = -1;
+
+	private MemorySegment sqRing;
+	private MemorySegment cqRing;
+	private MemorySegment sqes;
+	private long sqRingLength;
+	private long cqRingLength;
+	private long sqesLength;
+
+	private int sqHead, sqTail, sqMask, sqEntries;
+	private int cqHead, cqTail, cqMask, cqEntriesOffset;
+	private int sqLocalTail;
+	private int pending;
+
+	private MemorySegment bufferRing;
+	private MemorySegment receiveBuffers;
+	private MemorySegment receiveHeader;
+	private int bufferTail;
+	private boolean receiving;
+
+	private MemorySegment sendSlots;
+	private int[] freeSlots;
+	private int freeCount;
+
+	private MemorySegment waitArgument;
+
+	private final byte[] request = new byte[PAYLOAD_LENGTH];
+	private final byte[] address4 = new byte[4];
+	private final byte[] address6 = new byte[16];
+
+	private long received;
+	private long sent;
+	private long dropped;
+	private long failed;
+
+	private final Object lock = new Object();
+	private boolean started;
+	private boolean released;
+	private volatile boolean closing;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * Binds the socket and sets up the rings
+	 * @param server Answers the requests
+	 * @param address Address to bind to, null for every address
+	 * @param port
+	 * @param entries Size of the submission queue, rounded up to a power of two
+	 * @throws IOException If the socket can't be bound or io_uring can't be used
+	 */
+	UringListener(Server server, InetAddress address, int port, int entries) throws IOException {
+		this.server = server;
+		this.ipv6 = address == null || address instanceof Inet6Address;
+		this.errno = arena.allocate(Linker.Option.captureStateLayout());
+
+		try {
+			this.localAddress = bind(address, port);
+			setupRing(entries);
+			setupReceiveBuffers();
+			setupSendSlots();
+			armReceive();
+			submitNow();
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+		logger.log(Level.FINE, "io_uring listener on " + localAddress + " with " + sqEntries + " entries");
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	@Override
+	public InetSocketAddress getLocalSocketAddress() {
+		return localAddress;
+	}
+
+	private static MethodHandle downcall(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+		Linker.Option[] withErrno = new Linker.Option[options.length + 1];
+		System.arraycopy(options, 0, withErrno, 0, options.length);
+		withErrno[options.length] = Linker.Option.captureCallState("errno");
+
+		MemorySegment symbol = LINKER.defaultLookup().find(name)
+				.orElseThrow(() -> new UnsatisfiedLinkError("No " + name + " in the C library"));
+		return LINKER.downcallHandle(symbol, descriptor, withErrno);
+	}
+
+	private int errno() {
+		return errno.get(ValueLayout.JAVA_INT, ERRNO_OFFSET);
+	}
+
+	/**
+	 * @return The result of the system call, or -errno if it failed
+	 */
+	private long syscall(long number, long a, long b, long c, long d, long e, long f) {
+		try {
+			long result = (long) SYSCALL.invokeExact(errno, number, a, b, c, d, e, f);
+			return (result == -1) ? -errno() : result;
+		} catch (Throwable t) {
+			throw new IllegalStateException("syscall " + number + " failed", t);
+		}
+	}
+
+	private InetSocketAddress bind(InetAddress address, int port) throws IOException {
+		try {
+			socketFd = (int) SOCKET.invokeExact(errno, ipv6 ? AF_INET6 : AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+			if (socketFd < 0) {
+				throw new IOException("Can't create UDP socket, errno " + errno());
+			}
+			MemorySegment sockaddr = arena.allocate(SOCKADDR_LENGTH, 8);
+			InetAddress bindAddress = (address != null) ? address : InetAddress.getByName("::");
+			putSockaddr(sockaddr, 0, bindAddress, port);
+
+			int result = (int) BIND.invokeExact(errno, socketFd, sockaddr.address(), ipv6 ? SOCKADDR_LENGTH : 16);
+			if (result < 0) {
+				throw new IOException("Can't bind " + bindAddress.getHostAddress() + ":" + port + ", errno " + errno());
+			}
+			return new InetSocketAddress(bindAddress, port);
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IOException("Can't create UDP socket: " + t);
+		}
+	}
+
+	private void setupRing(int entries) throws IOException {
+		MemorySegment params = arena.allocate(PARAMS_LENGTH, 8);
+
+		long fd = syscall(SYS_IO_URING_SETUP, entries, params.address(), 0, 0, 0, 0);
+		if (fd < 0) {
+			throw new IOException("io_uring_setup failed, errno " + -fd);
+		}
+		ringFd = (int) fd;
+
+		if ((params.get(ValueLayout.JAVA_INT, 20) & IORING_FEAT_EXT_ARG) == 0) {
+			throw new IOException("io_uring of this kernel can't wait with a timeout");
+		}
+		sqEntries = params.get(ValueLayout.JAVA_INT, 0);
+		int cqEntries = params.get(ValueLayout.JAVA_INT, 4);
+
+		sqHead = params.get(ValueLayout.JAVA_INT, 40);
+		sqTail = params.get(ValueLayout.JAVA_INT, 44);
+		sqMask = params.get(ValueLayout.JAVA_INT, 48);
+		int sqArray = params.get(ValueLayout.JAVA_INT, 64);
+		cqHead = params.get(ValueLayout.JAVA_INT, 80);
+		cqTail = params.get(ValueLayout.JAVA_INT, 84);
+		cqMask = params.get(ValueLayout.JAVA_INT, 88);
+		cqEntriesOffset = params.get(ValueLayout.JAVA_INT, 100);
+
+		sqRingLength = sqArray + 4L * sqEntries;
+		cqRingLength = cqEntriesOffset + (long) CQE_LENGTH * cqEntries;
+		sqesLength = (long) SQE_LENGTH * sqEntries;
+
+		sqRing = mmap(sqRingLength, IORING_OFF_SQ_RING);
+		cqRing = mmap(cqRingLength, IORING_OFF_CQ_RING);
+		sqes = mmap(sqesLength, IORING_OFF_SQES);
+
+		sqRing = sqRing.reinterpret(sqRingLength);
+		cqRing = cqRing.reinterpret(cqRingLength);
+		sqes = sqes.reinterpret(sqesLength);
+
+		// the masks are in the rings, the parameters only give their offsets
+		sqMask = sqRing.get(ValueLayout.JAVA_INT, sqMask);
+		cqMask = cqRing.get(ValueLayout.JAVA_INT, cqMask);
+
+		// entry i of the submission queue always uses sqe i
+		for (int i = 0; i < sqEntries; i++) {
+			sqRing.set(ValueLayout.JAVA_INT, sqArray + 4L * i, i);
+		}
+		sqLocalTail = sqRing.get(ValueLayout.JAVA_INT, sqTail);
+	}
+
+	private MemorySegment mmap(long length, long offset) throws IOException {
+		try {
+			long address = (long) MMAP.invokeExact(errno, 0L, length, PROT_READ_WRITE, MAP_SHARED_POPULATE, ringFd, offset);
+			if (address == -1) {
+				throw new IOException("Can't map io_uring ring, errno " + errno());
+			}
+			return MemorySegment.ofAddress(address);
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IOException("Can't map io_uring ring: " + t);
+		}
+	}
+
+	/**
+	 * Registers the ring of receive buffers that the multishot recvmsg picks from
+	 */
+	private void setupReceiveBuffers() throws IOException {
+		bufferRing = arena.allocate(16L * RECEIVE_BUFFERS, 4096);
+		receiveBuffers = arena.allocate((long) RECEIVE_BUFFER_LENGTH * RECEIVE_BUFFERS, 64);
+
+		MemorySegment registration = arena.allocate(40, 8);
+		registration.set(ValueLayout.JAVA_LONG, 0, bufferRing.address());
+		registration.set(ValueLayout.JAVA_INT, 8, RECEIVE_BUFFERS);
+		registration.set(ValueLayout.JAVA_SHORT, 12, (short) BUFFER_GROUP);
+
+		long result = syscall(SYS_IO_URING_REGISTER, ringFd, IORING_REGISTER_PBUF_RING, registration.address(), 1, 0, 0);
+		if (result < 0) {
+			throw new IOException("Can't register io_uring receive buffers, errno " + -result);
+		}
+		for (int i = 0; i < RECEIVE_BUFFERS; i++) {
+			addReceiveBuffer(i);
+		}
+		publishReceiveBuffers();
+
+		// the kernel only reads the name and control lengths of the template
+		receiveHeader = arena.allocate(MSGHDR_LENGTH, 8);
+		receiveHeader.set(ValueLayout.JAVA_INT, 8, SOCKADDR_LENGTH);
+	}
+
+	private void addReceiveBuffer(int id) {
+		long entry = 16L * (bufferTail & (RECEIVE_BUFFERS - 1));
+		bufferRing.set(ValueLayout.JAVA_LONG, entry, receiveBuffers.address() + (long) id * RECEIVE_BUFFER_LENGTH);
+		bufferRing.set(ValueLayout.JAVA_INT, entry + 8, RECEIVE_BUFFER_LENGTH);
+		bufferRing.set(ValueLayout.JAVA_SHORT, entry + 12, (short) id);
+		bufferTail++;
+	}
+
+	private void publishReceiveBuffers() {
+		VarHandle.releaseFence();
+		bufferRing.set(ValueLayout.JAVA_SHORT, 14, (short) bufferTail);
+	}
+
+	private void setupSendSlots() {
+		int slots = 2 * sqEntries;
+		sendSlots = arena.allocate((long) SLOT_LENGTH * slots, 64);
+		freeSlots = new int[slots];
+
+		for (int i = 0; i < slots; i++) {
+			long slot = (long) SLOT_LENGTH * i;
+			sendSlots.set(ValueLayout.JAVA_LONG, slot, sendSlots.address() + slot + SLOT_ADDRESS);
+			sendSlots.set(ValueLayout.JAVA_LONG, slot + 16, sendSlots.address() + slot + SLOT_IOVEC);
+			sendSlots.set(ValueLayout.JAVA_LONG, slot + 24, 1);
+			sendSlots.set(ValueLayout.JAVA_LONG, slot + SLOT_IOVEC, sendSlots.address() + slot + SLOT_PAYLOAD);
+			freeSlots[freeCount++] = i;
+		}
+
+		// io_uring_getevents_arg pointing at a timespec of one poll interval
+		waitArgument = arena.allocate(40, 8);
+		waitArgument.set(ValueLayout.JAVA_LONG, 16, waitArgument.address() + 24);
+		waitArgument.set(ValueLayout.JAVA_LONG, 32, Server.LISTENER_POLL_INTERVAL * 1000000L);
+	}
+
+	/**
+	 * @return Offset of the next free sqe, after submitting what is queued if the queue is full
+	 */
+	private long nextSqe() {
+		if (sqLocalTail - sqRing.get(ValueLayout.JAVA_INT, sqHead) >= sqEntries) {
+			submitNow();
+		}
+		long sqe = (long) SQE_LENGTH * (sqLocalTail & sqMask);
+		sqes.asSlice(sqe, SQE_LENGTH).fill((byte) 0);
+		sqLocalTail++;
+		pending++;
+		return sqe;
+	}
+
+	private void armReceive() {
+		long sqe = nextSqe();
+		sqes.set(ValueLayout.JAVA_BYTE, sqe, IORING_OP_RECVMSG);
+		sqes.set(ValueLayout.JAVA_BYTE, sqe + 1, IOSQE_BUFFER_SELECT);
+		sqes.set(ValueLayout.JAVA_SHORT, sqe + 2, IORING_RECV_MULTISHOT);
+		sqes.set(ValueLayout.JAVA_INT, sqe + 4, socketFd);
+		sqes.set(ValueLayout.JAVA_LONG, sqe + 16, receiveHeader.address());
+		sqes.set(ValueLayout.JAVA_LONG, sqe + 32, RECEIVE);
+		sqes.set(ValueLayout.JAVA_SHORT, sqe + 40, (short) BUFFER_GROUP);
+		receiving = true;
+	}
+
+	private void cancelReceive() {
+		long sqe = nextSqe();
+		sqes.set(ValueLayout.JAVA_BYTE, sqe, IORING_OP_ASYNC_CANCEL);
+		sqes.set(ValueLayout.JAVA_INT, sqe + 4, -1);
+		sqes.set(ValueLayout.JAVA_LONG, sqe + 16, RECEIVE);
+		sqes.set(ValueLayout.JAVA_LONG, sqe + 32, CANCEL);
+	}
+
+	private void publishSubmissions() {
+		VarHandle.releaseFence();
+		sqRing.set(ValueLayout.JAVA_INT, sqTail, sqLocalTail);
+	}
+
+	/**
+	 * Submits what is queued without waiting for completions
+	 */
+	private void submitNow() {
+		publishSubmissions();
+
+		while (pending > 0) {
+			long result = syscall(SYS_IO_URING_ENTER, ringFd, pending, 0, 0, 0, 0);
+
+			if (result < 0 && result != -EINTR) {
+				logger.log(Level.WARNING, "io_uring_enter failed, errno " + -result);
+				return;
+			}
+			pending -= Math.max(result, 0);
+		}
+	}
+
+	/**
+	 * Submits what is queued and waits up to a poll interval for a completion
+	 */
+	private void submitAndWait() {
+		publishSubmissions();
+
+		long result = syscall(SYS_IO_URING_ENTER, ringFd, pending, 1, IORING_ENTER_GETEVENTS | IORING_ENTER_EXT_ARG,
+				waitArgument.address(), 24);
+
+		if (result >= 0) {
+			pending -= (int) Math.min(result, pending);
+		} else if (result != -ETIME && result != -EINTR) {
+			logger.log(Level.WARNING, "io_uring_enter failed, errno " + -result);
+		}
+	}
+
+	/**
+	 * Receives and answers until closed or until the Server drains. What was received
+	 * before the drain started is still answered.
+	 */
+	@Override
+	public void run() {
+		synchronized (lock) {
+			if (released) {
+				stopped.countDown();
+				return;
+			}
+			started = true;
+		}
+		try {
+			while (!closing) {
+				submitAndWait();
+				reap();
+
+				if (server.isDraining()) {
+					break;
+				}
+			}
+			stopReceiving();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "io_uring listener on " + localAddress + " failed", e);
+		} finally {
+			release();
+			stopped.countDown();
+			logger.log(Level.FINE, "io_uring listener on " + localAddress + " out of running, " + received + " received, "
+					+ sent + " sent, " + dropped + " responses dropped, " + failed + " requests failed");
+		}
+	}
+
+	/**
+	 * Handles every completion there is
+	 * @return Number of datagrams received
+	 */
+	private int reap() {
+		int head = cqRing.get(ValueLayout.JAVA_INT, cqHead);
+		int tail = cqRing.get(ValueLayout.JAVA_INT, cqTail);
+		VarHandle.acquireFence();
+		int datagrams = 0;
+		boolean rearm = false;
+
+		while (head != tail) {
+			long cqe = cqEntriesOffset + (long) CQE_LENGTH * (head & cqMask);
+			long userData = cqRing.get(ValueLayout.JAVA_LONG, cqe);
+			int result = cqRing.get(ValueLayout.JAVA_INT, cqe + 8);
+			int flags = cqRing.get(ValueLayout.JAVA_INT, cqe + 12);
+
+			if (userData == RECEIVE) {
+				if ((flags & IORING_CQE_F_MORE) == 0) {
+					receiving = false;
+					rearm = true;
+				}
+				if (onReceive(result, flags)) {
+					datagrams++;
+				}
+			} else if (userData >= 0) {
+				if (result < 0) {
+					logger.log(Level.FINE, "sendmsg failed, errno " + -result);
+				}
+				freeSlots[freeCount++] = (int) userData;
+			}
+			head++;
+
+			if (head == tail) {
+				VarHandle.releaseFence();
+				cqRing.set(ValueLayout.JAVA_INT, cqHead, head);
+				tail = cqRing.get(ValueLayout.JAVA_INT, cqTail);
+				VarHandle.acquireFence();
+			}
+		}
+		publishReceiveBuffers();
+
+		if (rearm && !closing) {
+			armReceive();
+		}
+		return datagrams;
+	}
+
+	/**
+	 * @return true if a datagram was received
+	 */
+	private boolean onReceive(int result, int flags) {
+		if (result < 0) {
+			if (result != -ENOBUFS && result != -ECANCELED) {
+				logger.log(Level.FINE, "recvmsg failed, errno " + -result);
+			}
+			return false;
+		}
+		if ((flags & IORING_CQE_F_BUFFER) == 0) {
+			return false;
+		}
+		int id = flags >>> IORING_CQE_BUFFER_SHIFT;
+		long buffer = (long) id * RECEIVE_BUFFER_LENGTH;
+		int length = receiveBuffers.get(ValueLayout.JAVA_INT, buffer + 8);
+		int messageFlags = receiveBuffers.get(ValueLayout.JAVA_INT, buffer + 12);
+		long name = buffer + RECVMSG_OUT_LENGTH;
+		long payload = name + SOCKADDR_LENGTH;
+
+		received++;
+		long receivedNanos = System.nanoTime();
+
+		if ((messageFlags & MSG_TRUNC) != 0 || length == 0) {
+			addReceiveBuffer(id);
+			return true;
+		}
+		MemorySegment.copy(receiveBuffers, ValueLayout.JAVA_BYTE, payload, request, 0, length);
+		InetSocketAddress source = getSockaddr(receiveBuffers, name);
+
+		byte[] response = null;
+
+		// one bad datagram must not end the loop, that would close the ring and the socket
+		try {
+			response = (source != null) ? server.handleDatagram(localAddress, source, request, length, receivedNanos) : null;
+		} catch (RuntimeException e) {
+			failed++;
+			logger.log(Level.WARNING, "Request from " + source + " on " + localAddress + " failed", e);
+		}
+		if (response != null) {
+			send(name, response);
+		}
+		addReceiveBuffer(id);
+		return true;
+	}
+
+	/**
+	 * Queues a sendmsg of response to the address at name in the receive buffers
+	 */
+	private void send(long name, byte[] response) {
+		if (freeCount == 0 || response.length > PAYLOAD_LENGTH) {
+			dropped++;
+			return;
+		}
+		int id = freeSlots[--freeCount];
+		long slot = (long) SLOT_LENGTH * id;
+
+		MemorySegment.copy(receiveBuffers, name, sendSlots, slot + SLOT_ADDRESS, SOCKADDR_LENGTH);
+		sendSlots.set(ValueLayout.JAVA_INT, slot + 8, ipv6 ? SOCKADDR_LENGTH : 16);
+		MemorySegment.copy(response, 0, sendSlots, ValueLayout.JAVA_BYTE, slot + SLOT_PAYLOAD, response.length);
+		sendSlots.set(ValueLayout.JAVA_LONG, slot + SLOT_IOVEC + 8, response.length);
+
+		long sqe = nextSqe();
+		sqes.set(ValueLayout.JAVA_BYTE, sqe, IORING_OP_SENDMSG);
+		sqes.set(ValueLayout.JAVA_INT, sqe + 4, socketFd);
+		sqes.set(ValueLayout.JAVA_LONG, sqe + 16, sendSlots.address() + slot);
+		sqes.set(ValueLayout.JAVA_INT, sqe + 24, 1);
+		sqes.set(ValueLayout.JAVA_LONG, sqe + 32, id);
+		sent++;
+	}
+
+	private InetSocketAddress getSockaddr(MemorySegment segment, long offset) {
+		int family = segment.get(ValueLayout.JAVA_SHORT, offset);
+		int port = (segment.get(ValueLayout.JAVA_BYTE, offset + 2) & 0xff) << 8 | (segment.get(ValueLayout.JAVA_BYTE, offset + 3) & 0xff);
+		byte[] address;
+
+		if (family == AF_INET) {
+			MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + 4, address4, 0, 4);
+			address = address4;
+		} else if (family == AF_INET6) {
+			MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + 8, address6, 0, 16);
+			address = address6;
+		} else {
+			return null;
+		}
+		try {
+			// IPv4-mapped addresses come back as Inet4Address
+			return new InetSocketAddress(InetAddress.getByAddress(address), port);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a sockaddr_in, or a sockaddr_in6 with IPv4 addresses mapped if the socket is IPv6
+	 */
+	private void putSockaddr(MemorySegment segment, long offset, InetAddress address, int port) {
+		segment.asSlice(offset, SOCKADDR_LENGTH).fill((byte) 0);
+		segment.set(ValueLayout.JAVA_BYTE, offset + 2, (byte) (port >> 8));
+		segment.set(ValueLayout.JAVA_BYTE, offset + 3, (byte) port);
+		byte[] bytes = address.getAddress();
+
+		if (!ipv6) {
+			segment.set(ValueLayout.JAVA_SHORT, offset, (short) AF_INET);
+			MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, offset + 4, 4);
+			return;
+		}
+		segment.set(ValueLayout.JAVA_SHORT, offset, (short) AF_INET6);
+
+		if (address instanceof Inet4Address) {
+			segment.set(ValueLayout.JAVA_BYTE, offset + 18, (byte) 0xff);
+			segment.set(ValueLayout.JAVA_BYTE, offset + 19, (byte) 0xff);
+			MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, offset + 20, 4);
+		} else {
+			MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, offset + 8, 16);
+		}
+	}
+
+	/**
+	 * Cancels the multishot receive and waits until the kernel is done with every buffer,
+	 * so the memory can be freed
+	 */
+	private void stopReceiving() {
+		closing = true;
+		if (receiving) {
+			cancelReceive();
+		}
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+
+		while ((receiving || freeCount < freeSlots.length) && System.currentTimeMillis() < deadline) {
+			submitAndWait();
+			reap();
+		}
+	}
+
+	@Override
+	public void close() {
+		closing = true;
+
+		synchronized (lock) {
+			if (!started) {
+				// run() never started, nobody else uses the rings
+				if (receiving) {
+					stopReceiving();
+				}
+				release();
+				return;
+			}
+		}
+		try {
+			if (!stopped.await(CLOSE_TIMEOUT + Server.LISTENER_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+				logger.log(Level.WARNING, "io_uring listener on " + localAddress + " did not stop");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Closes the ring and the socket and frees the memory. If the kernel may still
+	 * use the buffers the memory is left allocated.
+	 */
+	private void release() {
+		synchronized (lock) {
+			if (released) {
+				return;
+			}
+			released = true;
+		}
+		boolean buffersInUse = receiving || (freeSlots != null && freeCount < freeSlots.length);
+		try {
+			if (sqRing != null) {
+				int ignored = (int) MUNMAP.invokeExact(errno, sqRing.address(), sqRingLength);
+			}
+			if (cqRing != null) {
+				int ignored = (int) MUNMAP.invokeExact(errno, cqRing.address(), cqRingLength);
+			}
+			if (sqes != null) {
+				int ignored = (int) MUNMAP.invokeExact(errno, sqes.address(), sqesLength);
+			}
+			if (ringFd >= 0) {
+				int ignored = (int) CLOSE.invokeExact(errno, ringFd);
+			}
+			if (socketFd >= 0) {
+				int ignored = (int) CLOSE.invokeExact(errno, socketFd);
+			}
+		} catch (Throwable t) {
+			logger.log(Level.WARNING, "Can't release io_uring listener: " + t);
+		}
+		if (!buffersInUse) {
+			arena.close();
+		} else {
+			logger.log(Level.WARNING, "io_uring listener on " + localAddress + " closed with requests in flight, buffers not freed");
+		}
+	}
+}
@@ -0,0 +1,92 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * PacketValidator with the Vector API. The first 8 bytes of every packet (type, length
+ * and magic cookie) are gathered into one long per packet, then every check is done
+ * on as many packets at once as there are long lanes in a vector register. Packets
+ * that don't fill a whole vector are checked one by one.
+ *
+ * Needs JDK 16 or later and --add-modules jdk.incubator.vector both to compile and to
+ * run. PacketValidator.create() loads it by name so the rest of the sources don't
+ * depend on it.
+ * @author Frans
+ *
+ */
+class VectorPacketValidator extends PacketValidator {
+
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+	private static final VarHandle HEADER = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final long LEADING_BITS = 0xc000000000000000L;
+	private static final long COOKIE_MASK = 0xffffffffL;
+
+	/*
+	 * Gathered headers and lengths, per thread since the workers share one validator
+	 */
+	private final ThreadLocal<long[][]> scratch = new ThreadLocal<long[][]>() {
+		@Override
+		protected long[][] initialValue() {
+			return new long[3][MAX_BATCH];
+		}
+	};
+
+	@Override
+	public String getName() {
+		return "vector " + SPECIES.length() + "x64";
+	}
+
+	@Override
+	public void validate(byte[][] packets, int[] lengths, int count, byte[] verdicts) {
+		long[][] arrays = scratch.get();
+
+		if (arrays[0].length < count) {
+			arrays = new long[3][count];
+			scratch.set(arrays);
+		}
+		long[] headers = arrays[0];
+		long[] limits = arrays[1];
+		long[] results = arrays[2];
+
+		int bound = SPECIES.loopBound(count);
+
+		for (int i = 0; i < bound; i++) {
+			headers[i] = (long) HEADER.get(packets[i], 0);
+			limits[i] = lengths[i];
+		}
+
+		for (int i = 0; i < bound; i += SPECIES.length()) {
+			LongVector header = LongVector.fromArray(SPECIES, headers, i);
+			LongVector length = LongVector.fromArray(SPECIES, limits, i);
+
+			VectorMask<Long> stun = header.and(LEADING_BITS).compare(VectorOperators.EQ, 0)
+					.and(header.and(COOKIE_MASK).compare(VectorOperators.EQ, MAGIC_COOKIE));
+
+			LongVector messageLength = header.lanewise(VectorOperators.LSHR, 32).and(0xffff);
+			VectorMask<Long> lengthOk = length.compare(VectorOperators.GE, Header.LENGTH)
+					.and(messageLength.and(3).compare(VectorOperators.EQ, 0))
+					.and(messageLength.add(Header.LENGTH).compare(VectorOperators.LE, length));
+
+			VectorMask<Long> binding = header.lanewise(VectorOperators.LSHR, 48).compare(VectorOperators.EQ, Header.BINDING_REQUEST);
+
+			VectorMask<Long> wellFormed = stun.and(lengthOk);
+
+			LongVector.broadcast(SPECIES, NOT_STUN)
+					.blend(BAD_LENGTH, stun)
+					.blend(NOT_BINDING, wellFormed)
+					.blend(VALID, wellFormed.and(binding))
+					.intoArray(results, i);
+		}
+		for (int i = 0; i < bound; i++) {
+			verdicts[i] = (byte) results[i];
+		}
+		validate(packets, lengths, bound, count, verdicts);
+	}
+}
@@ -0,0 +1,351 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A binary access log with one record for every request served. Every thread that logs
+ * writes fixed-size records into a memory-mapped segment file of its own, so logging a
+ * request takes no lock and makes no system call. The OS writes the pages to disk in
+ * the background.
+ *
+ * A segment is rotated when it is full or older than the rotation time. A maintenance
+ * thread keeps a few empty segments mapped and ready, so a listener thread that rotates
+ * only takes one from a queue. The maintenance thread also flushes full segments, cuts
+ * them to their length and closes them.
+ *
+ * Segment files are named access-&lt;start&gt;-&lt;sequence&gt;.seg. Each one starts
+ * with a SEGMENT_HEADER_LENGTH byte header: magic "STAL", version, record length,
+ * writer thread id and creation time in microseconds. After the header come records of
+ * RECORD_LENGTH bytes:
+ * <pre>
+ * 0  timestamp, microseconds since the epoch (8)
+ * 8  latency in microseconds (4)
+ * 12 request message type (2)
+ * 14 result: 200 success, the ERROR-CODE of an error response, 0 if nothing was sent (2)
+ * 16 transport, 17 UDP or 6 TCP (1)
+ * 17 address family, 4 or 6 (1)
+ * 18 source port (2)
+ * 20 source address, IPv4 as IPv4-mapped IPv6 (16)
+ * 36 reserved (4)
+ * </pre>
+ * A record with timestamp 0 marks the end of a segment that wasn't closed.
+ * AccessLogReader turns segments into text or statistics.
+ * @author Frans
+ *
+ */
+public class AccessLog implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final int SEGMENT_MAGIC = 0x5354414C;
+	public static final int VERSION = 1;
+	public static final int SEGMENT_HEADER_LENGTH = 32;
+	public static final int RECORD_LENGTH = 40;
+
+	public static final int RESULT_SUCCESS = 200;
+	public static final int RESULT_NO_RESPONSE = 0;
+
+	private static final int SPARE_SEGMENTS = 2;
+	private static final long MAINTENANCE_INTERVAL = 200;
+
+	private final File directory;
+	private final int segmentBytes;
+	private final long rotateMillis;
+	private final long prefix = System.currentTimeMillis();
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	private final long startMicros;
+	private final long startNanos;
+
+	private final ConcurrentLinkedQueue<Segment> spares = new ConcurrentLinkedQueue<Segment>();
+	private final ConcurrentLinkedQueue<Segment> live = new ConcurrentLinkedQueue<Segment>();
+	private final ConcurrentLinkedQueue<Segment> retired = new ConcurrentLinkedQueue<Segment>();
+
+	private final ThreadLocal<Segment> current = new ThreadLocal<Segment>();
+
+	private final LongAdder records = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * @param directory Where the segments are written, created if it doesn't exist
+	 * @param segmentBytes Size of a segment file
+	 * @param rotateMillis Maximum age of a segment, 0 to rotate on size only
+	 * @throws IOException If the directory can't be created
+	 */
+	public AccessLog(File directory, int segmentBytes, long rotateMillis) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create access log directory " + directory);
+		}
+		if (segmentBytes < SEGMENT_HEADER_LENGTH + RECORD_LENGTH) {
+			throw new IOException("Segment size must be at least " + (SEGMENT_HEADER_LENGTH + RECORD_LENGTH));
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.rotateMillis = rotateMillis;
+
+		startMicros = System.currentTimeMillis() * 1000;
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Maps the first spare segments and starts the maintenance thread
+	 * @throws IOException If a segment can't be created
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null) {
+			return;
+		}
+		for (int i = 0; i < SPARE_SEGMENTS; i++) {
+			spares.add(newSegment());
+		}
+		running = true;
+		thread = new Thread(this, "STUN access log");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops logging and flushes every segment. Segments still owned by a thread keep
+	 * their full size, readers stop at the first empty record.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while closing the access log");
+			}
+		}
+		closeRetired();
+
+		for (Segment segment : live) {
+			segment.buffer.force();
+			segment.file.close();
+		}
+		for (Segment segment : spares) {
+			segment.file.close();
+			segment.name.delete();
+		}
+		logger.log(Level.FINE, records.sum() + " access log records written, " + dropped.sum() + " dropped");
+	}
+
+	/**
+	 * Writes one record into the segment of the calling thread. No locks, no allocation
+	 * for IPv4 sources.
+	 * @param receivedNanos System.nanoTime() when the request was received
+	 * @param source
+	 * @param sourcePort
+	 * @param transport PacketCapture.PROTOCOL_UDP or PacketCapture.PROTOCOL_TCP
+	 * @param requestType Message type of the request
+	 * @param result RESULT_SUCCESS, an error code or RESULT_NO_RESPONSE
+	 */
+	public void log(long receivedNanos, InetAddress source, int sourcePort, int transport, int requestType, int result) {
+		if (!running) {
+			return;
+		}
+		long now = System.nanoTime();
+		Segment segment = current.get();
+
+		if (segment == null || segment.rotate || segment.position + RECORD_LENGTH > segmentBytes) {
+			segment = rotate(segment);
+
+			if (segment == null) {
+				dropped.increment();
+				return;
+			}
+		}
+		MappedByteBuffer out = segment.buffer;
+		int p = segment.position;
+
+		out.putInt(p + 8, (int) Math.min((now - receivedNanos) / 1000, Integer.MAX_VALUE));
+		out.putShort(p + 12, (short) requestType);
+		out.putShort(p + 14, (short) result);
+		out.put(p + 16, (byte) transport);
+		out.putShort(p + 18, (short) sourcePort);
+
+		if (source instanceof Inet4Address) {
+			out.put(p + 17, (byte) 4);
+			out.putLong(p + 20, 0);
+			out.putInt(p + 28, 0xFFFF);
+			// hashCode of an Inet4Address is the address itself, getAddress would allocate
+			out.putInt(p + 32, source.hashCode());
+		} else {
+			out.put(p + 17, (byte) 6);
+			byte[] address = source.getAddress();
+			for (int i = 0; i < address.length; i++) {
+				out.put(p + 20 + i, address[i]);
+			}
+		}
+		// the timestamp goes last, a record with a timestamp is complete
+		out.putLong(p, startMicros + (now - startNanos) / 1000);
+		segment.position = p + RECORD_LENGTH;
+		records.increment();
+	}
+
+	/**
+	 * @return Records written
+	 */
+	public long getRecords() {
+		return records.sum();
+	}
+
+	/**
+	 * @return Records lost because no segment could be created or the log was closed
+	 */
+	public long getDroppedRecords() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Hands the segment of the calling thread to the maintenance thread and takes a new one
+	 * @return The new segment or null if none could be created
+	 */
+	// Thread.threadId() replaces getId() from Java 19 on, this still builds for 11
+	@SuppressWarnings("deprecation")
+	private Segment rotate(Segment old) {
+		if (old != null) {
+			live.remove(old);
+			retired.add(old);
+		}
+		Segment segment = spares.poll();
+
+		if (segment == null) {
+			try {
+				segment = newSegment();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Can't create access log segment: " + e.getMessage());
+				current.remove();
+				return null;
+			}
+		}
+		segment.created = System.currentTimeMillis();
+		segment.buffer.putLong(8, Thread.currentThread().getId());
+		segment.buffer.putLong(16, startMicros + (System.nanoTime() - startNanos) / 1000);
+
+		live.add(segment);
+		current.set(segment);
+		return segment;
+	}
+
+	private Segment newSegment() throws IOException {
+		File name = new File(directory, "access-" + prefix + "-" + String.format("%06d", sequence.incrementAndGet()) + ".seg");
+		RandomAccessFile file = new RandomAccessFile(name, "rw");
+		MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+
+		buffer.putInt(0, SEGMENT_MAGIC);
+		buffer.putShort(4, (short) VERSION);
+		buffer.putShort(6, (short) RECORD_LENGTH);
+		return new Segment(name, file, buffer);
+	}
+
+	/**
+	 * Maintenance: keeps the spares filled, asks old segments to rotate and closes the
+	 * retired ones
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				while (spares.size() < SPARE_SEGMENTS) {
+					spares.add(newSegment());
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Can't create access log segment: " + e.getMessage());
+			}
+
+			if (rotateMillis > 0) {
+				long now = System.currentTimeMillis();
+
+				for (Segment segment : live) {
+					if (now - segment.created >= rotateMillis) {
+						segment.rotate = true;
+					}
+				}
+			}
+			closeRetired();
+
+			try {
+				Thread.sleep(MAINTENANCE_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void closeRetired() {
+		Segment segment;
+
+		while ((segment = retired.poll()) != null) {
+			try {
+				segment.buffer.force();
+				segment.file.setLength(segment.position);
+				segment.file.close();
+				logger.log(Level.FINE, "Closed access log segment " + segment.name);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Can't close access log segment " + segment.name + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A mapped segment file. Only the owning thread writes to it and moves position.
+	 */
+	static final class Segment {
+		final File name;
+		final RandomAccessFile file;
+		final MappedByteBuffer buffer;
+
+		int position = SEGMENT_HEADER_LENGTH;
+		volatile long created;
+		volatile boolean rotate;
+
+		Segment(File name, RandomAccessFile file, MappedByteBuffer buffer) {
+			this.name = name;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+}
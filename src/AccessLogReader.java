@@ -0,0 +1,177 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Offline reader for the segments written by AccessLog. Prints every record as a line
+ * of text, or with --stats the number of requests per transport and result, latency
+ * percentiles and the busiest sources. Segment files are memory-mapped read-only.
+ *
+ * Usage: AccessLogReader [--stats] file or directory...
+ * @author Frans
+ *
+ */
+public class AccessLogReader {
+
+	private static final int TOP_SOURCES = 10;
+
+	private final boolean stats;
+	private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+	private long records;
+	private final TreeMap<String, Long> transports = new TreeMap<String, Long>();
+	private final TreeMap<Integer, Long> results = new TreeMap<Integer, Long>();
+	private final HashMap<String, Long> sources = new HashMap<String, Long>();
+	private int[] latencies = new int[1024];
+
+	public AccessLogReader(boolean stats) {
+		this.stats = stats;
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Reads a segment file, or every segment in a directory in name order
+	 * @param file
+	 * @throws IOException If a file isn't an access log segment
+	 */
+	public void read(File file) throws IOException {
+		if (file.isDirectory()) {
+			File[] segments = file.listFiles();
+			Arrays.sort(segments);
+
+			for (File segment : segments) {
+				if (segment.getName().endsWith(".seg")) {
+					read(segment);
+				}
+			}
+			return;
+		}
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer in = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+
+			if (in.limit() < AccessLog.SEGMENT_HEADER_LENGTH || in.getInt(0) != AccessLog.SEGMENT_MAGIC) {
+				throw new IOException(file + " is not an access log segment");
+			}
+			int recordLength = in.getShort(6);
+
+			for (int p = AccessLog.SEGMENT_HEADER_LENGTH; p + recordLength <= in.limit(); p += recordLength) {
+				long timestamp = in.getLong(p);
+
+				if (timestamp == 0) {
+					break;
+				}
+				record(in, p, timestamp);
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private void record(ByteBuffer in, int p, long timestamp) throws IOException {
+		int latency = in.getInt(p + 8);
+		int requestType = in.getShort(p + 12) & 0xFFFF;
+		int result = in.getShort(p + 14) & 0xFFFF;
+		String transport = (in.get(p + 16) == PacketCapture.PROTOCOL_TCP) ? "tcp" : "udp";
+		int port = in.getShort(p + 18) & 0xFFFF;
+
+		byte[] address = new byte[(in.get(p + 17) == 4) ? 4 : 16];
+		for (int i = 0; i < address.length; i++) {
+			address[i] = in.get(p + 36 - address.length + i);
+		}
+		String source = InetAddress.getByAddress(address).getHostAddress();
+
+		if (!stats) {
+			System.out.println(String.format("%s.%06dZ %s %s:%d 0x%04x %d %dus", format.format(new Date(timestamp / 1000)),
+					timestamp % 1000000, transport, source, port, requestType, result, latency));
+			return;
+		}
+		add(transports, transport);
+		add(results, result);
+		add(sources, source);
+
+		if (records == latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[(int) records++] = latency;
+	}
+
+	private static <K> void add(Map<K, Long> counts, K key) {
+		Long count = counts.get(key);
+		counts.put(key, (count != null) ? count + 1 : 1);
+	}
+
+	/**
+	 * Prints the statistics of everything read
+	 */
+	public void printStats() {
+		System.out.println(records + " requests");
+		if (records == 0) {
+			return;
+		}
+		for (Map.Entry<String, Long> entry : transports.entrySet()) {
+			System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+		}
+		System.out.println("Results:");
+		for (Map.Entry<Integer, Long> entry : results.entrySet()) {
+			String name = (entry.getKey() == AccessLog.RESULT_NO_RESPONSE) ? "no response" : String.valueOf(entry.getKey());
+			System.out.println("  " + name + ": " + entry.getValue());
+		}
+
+		int[] sorted = Arrays.copyOf(latencies, (int) records);
+		Arrays.sort(sorted);
+		System.out.println(String.format("Latency: p50 %dus, p90 %dus, p99 %dus, p99.9 %dus, max %dus", percentile(sorted, 0.5),
+				percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999), sorted[sorted.length - 1]));
+
+		ArrayList<Map.Entry<String, Long>> busiest = new ArrayList<Map.Entry<String, Long>>(sources.entrySet());
+		Collections.sort(busiest, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		System.out.println("Busiest sources:");
+		for (int i = 0; i < Math.min(TOP_SOURCES, busiest.size()); i++) {
+			System.out.println("  " + busiest.get(i).getKey() + ": " + busiest.get(i).getValue());
+		}
+	}
+
+	private static int percentile(int[] sorted, double fraction) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+	}
+
+	public static void main(String[] args) {
+		boolean stats = args.length > 0 && args[0].equals("--stats");
+		int first = (stats) ? 1 : 0;
+
+		if (args.length <= first) {
+			System.out.println("Usage: AccessLogReader [--stats] file or directory...");
+			return;
+		}
+		AccessLogReader reader = new AccessLogReader(stats);
+
+		try {
+			for (int i = first; i < args.length; i++) {
+				reader.read(new File(args[i]));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (stats) {
+			reader.printStats();
+		}
+	}
+}
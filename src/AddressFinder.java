@@ -4,6 +4,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A Class that is made as an abstraction layer between the library and the application
@@ -12,10 +13,20 @@ import java.net.UnknownHostException;
  *
  */
 public class AddressFinder {
+
+	/*
+	 * UDP discoveries in progress, by client port and STUN server
+	 */
+	private static final ConcurrentHashMap<DiscoveryKey, Discovery> udpDiscoveries = new ConcurrentHashMap<DiscoveryKey, Discovery>();
 	
 	/**
 	 * Method that starts a stun client thread and sends a request to a STUN
 	 * server through UDP. Thread safe.
+	 * Threads that ask for the same client port and STUN server at the same time share
+	 * one socket and one transaction, the first one runs it and the others wait for its
+	 * result, or its IOException. The socket is closed again when the discovery is done
+	 * so the port can be used for the traffic the mapping was discovered for.
+	 * Client port 0 means any free port and is never shared.
 	 * @param stunServerAddress The IP address to the STUN server the request should be sent to
 	 * @param stunServerPort The port to the STUN server the request should be sent to
 	 * @param clientPort The port that the client will be using 
@@ -24,15 +35,44 @@ public class AddressFinder {
 	 */
 	public static InetSocketAddress discoverUDPAddress(String stunServerAddress, int stunServerPort, int clientPort) throws IOException {
 		InetSocketAddress serverAddress = new InetSocketAddress(stunServerAddress, stunServerPort);
+
+		if (clientPort == 0) {
+			return runUDPDiscovery(serverAddress, clientPort);
+		}
+		DiscoveryKey key = new DiscoveryKey(clientPort, serverAddress);
+		Discovery discovery = new Discovery();
+		Discovery inProgress = udpDiscoveries.putIfAbsent(key, discovery);
+
+		if (inProgress != null) {
+			return inProgress.getMappedAddress();
+		}
+		try {
+			InetSocketAddress mappedAddress = runUDPDiscovery(serverAddress, clientPort);
+			discovery.done(mappedAddress, null);
+			return mappedAddress;
+		} catch (IOException e) {
+			discovery.done(null, e);
+			throw e;
+		} catch (RuntimeException e) {
+			discovery.done(null, new IOException("Discovery failed: " + e));
+			throw e;
+		} finally {
+			udpDiscoveries.remove(key, discovery);
+		}
+	}
+
+	private static InetSocketAddress runUDPDiscovery(InetSocketAddress serverAddress, int clientPort) throws IOException {
 		DatagramSocket socket = new DatagramSocket(clientPort);
 		
-		UDPClient client = new UDPClient(serverAddress, socket);
-		
-		client.run();
-		
-		InetSocketAddress mappedAddress = client.getMappedAddress();
-		
-		return mappedAddress;
+		try {
+			UDPClient client = new UDPClient(serverAddress, socket);
+			
+			client.run();
+			
+			return client.getMappedAddress();
+		} finally {
+			socket.close();
+		}
 	}
 	
 	/**
@@ -59,4 +99,61 @@ public class AddressFinder {
 		return mappedAddress;
 	
 	}
+
+	/**
+	 * Identifies a UDP discovery: the local port and the STUN server
+	 */
+	private static final class DiscoveryKey {
+		private final int clientPort;
+		private final InetSocketAddress serverAddress;
+
+		DiscoveryKey(int clientPort, InetSocketAddress serverAddress) {
+			this.clientPort = clientPort;
+			this.serverAddress = serverAddress;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof DiscoveryKey)) {
+				return false;
+			}
+			DiscoveryKey other = (DiscoveryKey) o;
+			return clientPort == other.clientPort && serverAddress.equals(other.serverAddress);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * clientPort + serverAddress.hashCode();
+		}
+	}
+
+	/**
+	 * The result of a discovery in progress, waited for like UDPClient.getMappedAddress
+	 */
+	private static final class Discovery {
+		private InetSocketAddress mappedAddress;
+		private IOException failure;
+		private boolean done;
+
+		synchronized void done(InetSocketAddress mappedAddress, IOException failure) {
+			this.mappedAddress = mappedAddress;
+			this.failure = failure;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized InetSocketAddress getMappedAddress() throws IOException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Failed to retrieve mapped address: Interrupted.");
+				}
+			}
+			if (failure != null) {
+				throw new IOException(failure.getMessage(), failure);
+			}
+			return mappedAddress;
+		}
+	}
 }
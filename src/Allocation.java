@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A TURN allocation, i.e. a relayed transport address on the server together
+ * with the permissions and channel bindings installed by the client.
+ * 
+ * Channel bindings are kept in arrays indexed by channel number so that the
+ * ChannelData fast path can find the peer without boxing the channel number.
+ * @author Frans
+ *
+ */
+class Allocation {
+
+	static final long PERMISSION_LIFETIME = 300 * 1000;
+	static final long CHANNEL_LIFETIME = 600 * 1000;
+
+	private static final int CHANNELS = Header.MAX_CHANNEL_NUMBER - Header.MIN_CHANNEL_NUMBER + 1;
+
+	private final FiveTuple fiveTuple;
+	private final DatagramSocket serverSocket;
+	private final DatagramChannel relayChannel;
+	private final InetSocketAddress relayAddress;
+
+	private volatile long expiresAt;
+
+	private final ConcurrentHashMap<InetAddress, Long> permissions = new ConcurrentHashMap<InetAddress, Long>();
+	private final ConcurrentHashMap<InetSocketAddress, Integer> peerChannels = new ConcurrentHashMap<InetSocketAddress, Integer>();
+	private final AtomicReferenceArray<InetSocketAddress> channelPeers = new AtomicReferenceArray<InetSocketAddress>(CHANNELS);
+	private final AtomicLongArray channelExpiresAt = new AtomicLongArray(CHANNELS);
+
+	/**
+	 * @param fiveTuple The 5-tuple of the client, must not be a probe instance
+	 * @param serverSocket The server socket the client talks to, used to send data back
+	 * @param relayChannel The channel bound to the relayed transport address
+	 * @param lifetime Lifetime in milliseconds
+	 * @throws IOException If the relayed address can't be read from the channel
+	 */
+	Allocation(FiveTuple fiveTuple, DatagramSocket serverSocket, DatagramChannel relayChannel, long lifetime) throws IOException {
+		this.fiveTuple = fiveTuple;
+		this.serverSocket = serverSocket;
+		this.relayChannel = relayChannel;
+		this.relayAddress = (InetSocketAddress) relayChannel.socket().getLocalSocketAddress();
+		refresh(lifetime);
+	}
+
+	FiveTuple getFiveTuple() {
+		return fiveTuple;
+	}
+
+	DatagramSocket getServerSocket() {
+		return serverSocket;
+	}
+
+	DatagramChannel getRelayChannel() {
+		return relayChannel;
+	}
+
+	InetSocketAddress getRelayAddress() {
+		return relayAddress;
+	}
+
+	void refresh(long lifetime) {
+		expiresAt = System.currentTimeMillis() + lifetime;
+	}
+
+	boolean isExpired(long now) {
+		return now >= expiresAt;
+	}
+
+	void addPermission(InetAddress peer) {
+		permissions.put(peer, System.currentTimeMillis() + PERMISSION_LIFETIME);
+	}
+
+	boolean hasPermission(InetAddress peer, long now) {
+		Long permissionExpiresAt = permissions.get(peer);
+
+		return permissionExpiresAt != null && permissionExpiresAt > now;
+	}
+
+	/**
+	 * Binds a channel to a peer or refreshes an existing binding. It also installs
+	 * a permission for the peer as RFC5766 requires.
+	 * @param channelNumber A number in 0x4000 - 0x4FFF
+	 * @param peer The peer transport address
+	 * @return false if the channel or the peer is already bound to something else
+	 */
+	synchronized boolean bindChannel(int channelNumber, InetSocketAddress peer) {
+		int index = channelNumber - Header.MIN_CHANNEL_NUMBER;
+		long now = System.currentTimeMillis();
+		InetSocketAddress boundPeer = channelPeers.get(index);
+		Integer boundChannel = peerChannels.get(peer);
+
+		if (boundPeer != null && channelExpiresAt.get(index) > now && !boundPeer.equals(peer)) {
+			return false;
+		}
+		if (boundChannel != null && boundChannel != channelNumber 
+				&& channelExpiresAt.get(boundChannel - Header.MIN_CHANNEL_NUMBER) > now) {
+			return false;
+		}
+		if (boundPeer != null) {
+			peerChannels.remove(boundPeer);
+		}
+		channelPeers.set(index, peer);
+		channelExpiresAt.set(index, now + CHANNEL_LIFETIME);
+		peerChannels.put(peer, channelNumber);
+		addPermission(peer.getAddress());
+		return true;
+	}
+
+	/**
+	 * @param channelNumber The channel number from a ChannelData message
+	 * @param now Current time in milliseconds
+	 * @return The peer bound to the channel or null
+	 */
+	InetSocketAddress getChannelPeer(int channelNumber, long now) {
+		int index = channelNumber - Header.MIN_CHANNEL_NUMBER;
+
+		if (index < 0 || index >= CHANNELS || channelExpiresAt.get(index) <= now) {
+			return null;
+		}
+		return channelPeers.get(index);
+	}
+
+	/**
+	 * @param peer The peer that sent data to the relayed address
+	 * @param now Current time in milliseconds
+	 * @return The channel number bound to the peer or -1
+	 */
+	int getPeerChannel(InetSocketAddress peer, long now) {
+		Integer channelNumber = peerChannels.get(peer);
+
+		if (channelNumber == null || channelExpiresAt.get(channelNumber - Header.MIN_CHANNEL_NUMBER) <= now) {
+			return -1;
+		}
+		return channelNumber;
+	}
+
+	void close() {
+		try {
+			relayChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+/**
+ * Keeps the binding request path of Server free of garbage. An in-process Server on
+ * loopback answers a warmed up stream of binding requests while an AllocationProbe
+ * counts what its listener threads allocate in each stage. The bytes per request of
+ * every stage are printed, so a change that starts allocating shows up in the stage
+ * it touched. Top talkers are on so accounting is measured too.
+ *
+ * The stages the Server code owns (validate, build, account) must stay within the
+ * server budget, 0 bytes per request by default. Receive and send are mostly the
+ * DatagramSocket of the JDK, which allocates on some versions, so they have their own
+ * budget that is off unless given. Exits with status 1 when a budget is exceeded.
+ *
+ * Usage: AllocationGate [server budget] [socket budget] [requests] [port]
+ * @author Frans
+ *
+ */
+public class AllocationGate {
+
+	private static final int WINDOW = 16;
+	private static final int RECEIVE_TIMEOUT = 200;
+	private static final int[] SERVER_STAGES = { AllocationProbe.VALIDATE, AllocationProbe.BUILD, AllocationProbe.ACCOUNT };
+	private static final int[] SOCKET_STAGES = { AllocationProbe.RECEIVE, AllocationProbe.SEND };
+
+	private final InetAddress loopback = InetAddress.getLoopbackAddress();
+	private final double serverBudget;
+	private final double socketBudget;
+	private final long requests;
+	private final int port;
+
+	/**
+	 * @param serverBudget Bytes per request allowed in the stages of the Server code
+	 * @param socketBudget Bytes per request allowed in receive and send, negative for no limit
+	 */
+	public AllocationGate(double serverBudget, double socketBudget, long requests, int port) {
+		this.serverBudget = serverBudget;
+		this.socketBudget = socketBudget;
+		this.requests = requests;
+		this.port = port;
+	}
+
+	/**
+	 * @return true if every budget was kept
+	 */
+	public boolean run() throws IOException {
+		AllocationProbe probe = new AllocationProbe();
+		TopTalkers topTalkers = new TopTalkers(1024);
+		Server server = new Server(loopback, port);
+		server.setTopTalkers(topTalkers);
+		server.setAllocationProbe(probe);
+		server.startServer();
+
+		try {
+			// warm up the JIT and the lazily created state of the sockets
+			send(requests);
+			probe.reset();
+			long answered = send(requests);
+
+			if (probe.getRequests() == 0 || answered < requests / 2) {
+				System.out.println("FAIL: only " + answered + " of " + requests + " requests answered");
+				return false;
+			}
+			System.out.println(String.format("%d requests on %s %s, probe read cost %d bytes", probe.getRequests(),
+					System.getProperty("java.vm.name"), System.getProperty("java.version"), probe.getReadCost()));
+
+			for (int stage = 0; stage < AllocationProbe.STAGE_NAMES.length; stage++) {
+				if (stage == AllocationProbe.QUEUE) {
+					// there is no queue without a pipeline
+					continue;
+				}
+				System.out.println(String.format("  %-10s %10.2f bytes/request", AllocationProbe.STAGE_NAMES[stage],
+						perRequest(probe, stage)));
+			}
+			boolean passed = check(probe, "server", SERVER_STAGES, serverBudget);
+			if (socketBudget >= 0) {
+				passed &= check(probe, "socket", SOCKET_STAGES, socketBudget);
+			}
+			return passed;
+		} finally {
+			server.setAllocationProbe(null);
+			server.shutdown();
+		}
+	}
+
+	private static double perRequest(AllocationProbe probe, int stage) {
+		return (double) probe.getBytes(stage) / probe.getRequests();
+	}
+
+	private static boolean check(AllocationProbe probe, String name, int[] stages, double budget) {
+		double total = 0;
+		for (int stage : stages) {
+			total += perRequest(probe, stage);
+		}
+		boolean passed = total <= budget;
+
+		System.out.println(String.format("%s: %s stages %.2f bytes/request, budget %.2f", (passed) ? "PASS" : "FAIL", name,
+				total, budget));
+		return passed;
+	}
+
+	/**
+	 * Sends binding requests a window at a time
+	 * @return The number of responses
+	 */
+	private long send(long count) throws IOException {
+		DatagramSocket socket = new DatagramSocket(0, loopback);
+		socket.setSoTimeout(RECEIVE_TIMEOUT);
+
+		byte[] request = new byte[Header.LENGTH];
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+		DatagramPacket requestPacket = new DatagramPacket(request, request.length, new InetSocketAddress(loopback, port));
+		DatagramPacket response = new DatagramPacket(new byte[512], 512);
+
+		long answered = 0;
+		try {
+			for (long sent = 0; sent < count; sent += WINDOW) {
+				for (int i = 0; i < WINDOW; i++) {
+					socket.send(requestPacket);
+				}
+				try {
+					for (int i = 0; i < WINDOW; i++) {
+						socket.receive(response);
+						answered++;
+					}
+				} catch (SocketTimeoutException e) {
+					// lost on loopback, the next window goes on
+				}
+			}
+		} finally {
+			socket.close();
+		}
+		return answered;
+	}
+
+	public static void main(String[] args) {
+		double serverBudget = (args.length > 0) ? Double.parseDouble(args[0]) : 0;
+		double socketBudget = (args.length > 1) ? Double.parseDouble(args[1]) : -1;
+		long requests = (args.length > 2) ? Long.parseLong(args[2]) : 200000;
+		int port = (args.length > 3) ? Integer.parseInt(args[3]) : 3478;
+
+		boolean passed = false;
+		try {
+			passed = new AllocationGate(serverBudget, socketBudget, requests, port).run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		System.exit((passed) ? 0 : 1);
+	}
+}
@@ -0,0 +1,113 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the bytes that the UDP listener threads of a Server allocate in each stage
+ * of answering a request. The listener calls begin() before it receives and
+ * mark(stage) at the end of every stage, everything the thread allocated since the
+ * previous mark is added to that stage. The counts come from
+ * com.sun.management.ThreadMXBean, which HotSpot keeps exact per thread. Pipeline
+ * mode moves requests between threads and isn't measured.
+ *
+ * On some JDKs reading the counter allocates by itself, that cost is measured once
+ * and subtracted from every mark.
+ * @author Frans
+ *
+ */
+class AllocationProbe implements StageProbe {
+
+	private final com.sun.management.ThreadMXBean threads;
+	private final long readCost;
+
+	private final AtomicLongArray bytes = new AtomicLongArray(STAGE_NAMES.length);
+	private final AtomicLong requests = new AtomicLong();
+
+	private final ThreadLocal<long[]> lastMark = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * @throws UnsupportedOperationException If the JVM can't count allocations per thread
+	 */
+	AllocationProbe() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			throw new UnsupportedOperationException("No com.sun.management.ThreadMXBean in this JVM");
+		}
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			throw new UnsupportedOperationException("Thread allocated memory not supported");
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		long cost = Long.MAX_VALUE;
+		for (int i = 0; i < 1000; i++) {
+			long before = allocated();
+			cost = Math.min(cost, allocated() - before);
+		}
+		readCost = cost;
+	}
+
+	// Thread.threadId() replaces getId() from Java 19 on, this still builds for 11
+	@SuppressWarnings("deprecation")
+	private long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Starts counting on the current thread
+	 */
+	void begin() {
+		lastMark.get()[0] = allocated();
+	}
+
+	/**
+	 * Adds what the current thread allocated since begin or the previous mark to stage
+	 */
+	public void mark(int stage) {
+		long[] mark = lastMark.get();
+		long now = allocated();
+		long allocated = now - mark[0] - readCost;
+
+		if (allocated > 0) {
+			bytes.addAndGet(stage, allocated);
+		}
+		mark[0] = now;
+	}
+
+	/**
+	 * Called by the listener once a request has been through all stages
+	 */
+	void countRequest() {
+		requests.incrementAndGet();
+	}
+
+	long getRequests() {
+		return requests.get();
+	}
+
+	long getBytes(int stage) {
+		return bytes.get(stage);
+	}
+
+	/**
+	 * @return What the counter itself allocates per read, subtracted from every mark
+	 */
+	long getReadCost() {
+		return readCost;
+	}
+
+	/**
+	 * Starts over, for instance after warming up
+	 */
+	void reset() {
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			bytes.set(i, 0);
+		}
+		requests.set(0);
+	}
+}
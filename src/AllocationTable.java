@@ -0,0 +1,98 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent table of TURN allocations keyed by the client 5-tuple.
+ * Lookups never lock so listener threads and the relay thread can share it.
+ * @author Frans
+ *
+ */
+class AllocationTable {
+
+	private final ConcurrentHashMap<FiveTuple, Allocation> allocations = new ConcurrentHashMap<FiveTuple, Allocation>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int maxAllocations;
+
+	AllocationTable(int maxAllocations) {
+		this.maxAllocations = maxAllocations;
+	}
+
+	/**
+	 * @param fiveTuple A key, probe instances are fine
+	 * @return The allocation or null
+	 */
+	Allocation get(FiveTuple fiveTuple) {
+		return allocations.get(fiveTuple);
+	}
+
+	/**
+	 * Reserves room for a new allocation. Must be followed by add() or release().
+	 * @return false if the table is full
+	 */
+	boolean reserve() {
+		while (true) {
+			int current = size.get();
+
+			if (current >= maxAllocations) {
+				return false;
+			}
+			if (size.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		size.decrementAndGet();
+	}
+
+	/**
+	 * Adds a reserved allocation
+	 * @return false if there already is an allocation for the same 5-tuple
+	 */
+	boolean add(Allocation allocation) {
+		if (allocations.putIfAbsent(allocation.getFiveTuple(), allocation) != null) {
+			release();
+			return false;
+		}
+		return true;
+	}
+
+	void remove(Allocation allocation) {
+		if (allocations.remove(allocation.getFiveTuple(), allocation)) {
+			release();
+			allocation.close();
+		}
+	}
+
+	/**
+	 * Removes and closes all allocations whose lifetime has passed
+	 * @param now Current time in milliseconds
+	 * @return Number of removed allocations
+	 */
+	int expire(long now) {
+		int removed = 0;
+		Iterator<Allocation> it = allocations.values().iterator();
+
+		while (it.hasNext()) {
+			Allocation allocation = it.next();
+
+			if (allocation.isExpired(now)) {
+				remove(allocation);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	void clear() {
+		for (Allocation allocation : allocations.values()) {
+			remove(allocation);
+		}
+	}
+
+	int size() {
+		return allocations.size();
+	}
+}
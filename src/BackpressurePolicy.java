@@ -0,0 +1,19 @@
+/**
+ * What the Server pipeline does with a received packet when the queue to the
+ * worker threads is full.
+ * @author Frans
+ *
+ */
+public enum BackpressurePolicy {
+
+	/**
+	 * Drop the packet that just arrived, queued requests are answered first
+	 */
+	DROP_NEW,
+
+	/**
+	 * Drop the oldest queued request to make room, its client has probably
+	 * retransmitted already
+	 */
+	DROP_OLDEST
+}
@@ -0,0 +1,134 @@
+import java.net.InetSocketAddress;
+
+/**
+ * A pair of a local and a remote ICE candidate and the result of its
+ * connectivity check.
+ * @author Frans
+ *
+ */
+public class CandidatePair implements Comparable<CandidatePair> {
+
+	public enum State {
+		WAITING, IN_PROGRESS, SUCCEEDED, FAILED
+	}
+
+	private static final int PEER_REFLEXIVE_TYPE_PREFERENCE = 110;
+
+	private final InetSocketAddress local;
+	private final InetSocketAddress remote;
+	private final long priority;
+	private final int peerReflexivePriority;
+	private final boolean nominate;
+
+	private volatile State state = State.WAITING;
+	private volatile InetSocketAddress mappedAddress;
+	private volatile long roundTripNanos;
+	private volatile int errorCode;
+
+	/**
+	 * @param local The local candidate
+	 * @param remote The remote candidate
+	 * @param localPriority Priority of the local candidate
+	 * @param remotePriority Priority of the remote candidate
+	 * @param controlling true if the local agent is controlling
+	 * @param nominate true if the check should carry USE-CANDIDATE, only used when controlling
+	 */
+	public CandidatePair(InetSocketAddress local, InetSocketAddress remote, int localPriority, int remotePriority, 
+			boolean controlling, boolean nominate) {
+		this.local = local;
+		this.remote = remote;
+		this.priority = controlling ? pairPriority(localPriority, remotePriority) : pairPriority(remotePriority, localPriority);
+		this.peerReflexivePriority = (PEER_REFLEXIVE_TYPE_PREFERENCE << 24) | (localPriority & 0x00ffffff);
+		this.nominate = nominate;
+	}
+
+	/**
+	 * Pair priority from RFC8445 section 6.1.2.3
+	 * @param controllingPriority Priority of the controlling agent's candidate
+	 * @param controlledPriority Priority of the controlled agent's candidate
+	 * @return 2^32*MIN(G,D) + 2*MAX(G,D) + (G>D?1:0)
+	 */
+	public static long pairPriority(int controllingPriority, int controlledPriority) {
+		long g = controllingPriority & 0xffffffffL;
+		long d = controlledPriority & 0xffffffffL;
+
+		return (Math.min(g, d) << 32) + 2 * Math.max(g, d) + ((g > d) ? 1 : 0);
+	}
+
+	public InetSocketAddress getLocal() {
+		return local;
+	}
+
+	public InetSocketAddress getRemote() {
+		return remote;
+	}
+
+	public long getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return The value of the PRIORITY attribute, the local candidate priority with
+	 * the peer reflexive type preference
+	 */
+	public int getPeerReflexivePriority() {
+		return peerReflexivePriority;
+	}
+
+	public boolean isNominated() {
+		return nominate;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return The address the remote agent saw the check come from, null unless SUCCEEDED
+	 */
+	public InetSocketAddress getMappedAddress() {
+		return mappedAddress;
+	}
+
+	/**
+	 * @return Time from the first request to the response in nanoseconds
+	 */
+	public long getRoundTripNanos() {
+		return roundTripNanos;
+	}
+
+	/**
+	 * @return The STUN error code if the remote agent answered with an error, 0 otherwise
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	void inProgress() {
+		state = State.IN_PROGRESS;
+	}
+
+	void succeeded(InetSocketAddress mappedAddress, long roundTripNanos) {
+		this.mappedAddress = mappedAddress;
+		this.roundTripNanos = roundTripNanos;
+		state = State.SUCCEEDED;
+	}
+
+	void failed(int errorCode) {
+		this.errorCode = errorCode;
+		state = State.FAILED;
+	}
+
+	/**
+	 * Highest priority first
+	 */
+	public int compareTo(CandidatePair other) {
+		return Long.compare(other.priority, priority);
+	}
+
+	@Override
+	public String toString() {
+		return local + " -> " + remote + " " + state + ((mappedAddress != null) ? " mapped " + mappedAddress : "")
+				+ ((errorCode != 0) ? " error " + errorCode : "");
+	}
+}
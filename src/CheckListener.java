@@ -0,0 +1,13 @@
+/**
+ * Gets the result of each ICE connectivity check as soon as it is known.
+ * Called on the TransactionLoop thread.
+ * @author Frans
+ *
+ */
+public interface CheckListener {
+
+	/**
+	 * @param pair The pair that was checked, its state is SUCCEEDED or FAILED
+	 */
+	void onCheckCompleted(CandidatePair pair);
+}
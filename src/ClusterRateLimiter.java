@@ -0,0 +1,460 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Limits the number of requests per source address across a fleet of Servers without a
+ * central store. Every node counts the requests it sees in a CountMinSketch per time window
+ * and gossips the sketch to its peers over UDP a few times per window. A request is
+ * allowed as long as the count of its source on this node plus the counts received from
+ * the peers stay within the limit, so a client rotating over N nodes gets the same limit
+ * as one talking to a single node.
+ *
+ * Windows are fixed and numbered by System.currentTimeMillis() / windowMillis, so the
+ * clocks of the nodes should be synchronized to well within a window. Counts that arrive
+ * from a peer are at most one gossip interval old.
+ *
+ * Sources are counted by a SipHash-2-4 of the address under a key derived from the
+ * cluster secret, so nobody can pick an address that collides with someone else's.
+ * IPv6 sources are counted by their /64 prefix, the smallest block a host usually
+ * gets, so a host can't get more requests by spreading them over its addresses.
+ *
+ * Gossip packets: "CMSG", node id (8 bytes), window (8 bytes), depth (2 bytes),
+ * width (2 bytes), depth * width counters as unsigned shorts and an HMAC-SHA256 of
+ * all that with the secret the fleet shares. Gossip is only accepted from the peers
+ * that were added and only with a valid HMAC, so nobody else can inject counts and
+ * get clients limited.
+ * @author Frans
+ *
+ */
+public class ClusterRateLimiter implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(ClusterRateLimiter.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final int DEFAULT_WIDTH = 128;
+	public static final int GOSSIPS_PER_WINDOW = 10;
+
+	private static final int GOSSIP_MAGIC = 0x434D5347;
+	private static final int GOSSIP_HEADER_LENGTH = 24;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int MAC_LENGTH = 32;
+	private static final String SOURCE_KEY_LABEL = "CMSG source key";
+
+	private final DatagramSocket socket;
+	private final ArrayList<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+	private final long nodeId = new SecureRandom().nextLong();
+	private final int limit;
+	private final long windowMillis;
+	private final int width;
+
+	/*
+	 * The SipHash key of the sources, the same on every node of the fleet
+	 */
+	private final long sourceKey0;
+	private final long sourceKey1;
+
+	/*
+	 * Gossip thread only, it signs and checks every packet
+	 */
+	private final Mac mac;
+	private final byte[] expectedMac = new byte[MAC_LENGTH];
+
+	private final AtomicReference<CountMinSketch> local = new AtomicReference<CountMinSketch>();
+	private volatile CountMinSketch remote;
+
+	/*
+	 * Gossip thread only: the last counters received from each peer in the window of remote,
+	 * by peer address so there are never more entries than peers
+	 */
+	private final HashMap<InetSocketAddress, int[]> peerCells = new HashMap<InetSocketAddress, int[]>();
+
+	private final LongAdder denied = new LongAdder();
+	private final LongAdder gossipReceived = new LongAdder();
+
+	private long gossipInterval;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * @param gossipAddress Local address and port that peers send their gossip to
+	 * @param clusterSecret Secret shared by all nodes of the fleet, gossip is signed with it
+	 * @param limit Requests allowed per source address and window across the fleet
+	 * @param windowMillis Length of a window
+	 * @throws IOException If the gossip socket can't be bound
+	 */
+	public ClusterRateLimiter(InetSocketAddress gossipAddress, byte[] clusterSecret, int limit, long windowMillis)
+			throws IOException {
+		this(gossipAddress, clusterSecret, limit, windowMillis, DEFAULT_WIDTH);
+	}
+
+	/**
+	 * @param width Counters per sketch row, rounded up to a power of two. Wider sketches
+	 * overestimate less but make the gossip packets larger (8 * width bytes).
+	 */
+	public ClusterRateLimiter(InetSocketAddress gossipAddress, byte[] clusterSecret, int limit, long windowMillis, int width)
+			throws IOException {
+		if (clusterSecret == null || clusterSecret.length == 0) {
+			throw new IllegalArgumentException("Gossip needs a cluster secret");
+		}
+		try {
+			this.mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(clusterSecret, ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " not available: " + e.getMessage());
+		}
+		ByteBuffer sourceKey = ByteBuffer.wrap(mac.doFinal(SOURCE_KEY_LABEL.getBytes(StandardCharsets.US_ASCII)));
+		this.sourceKey0 = sourceKey.getLong(0);
+		this.sourceKey1 = sourceKey.getLong(8);
+		this.limit = limit;
+		this.windowMillis = windowMillis;
+		this.width = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+		this.socket = new DatagramSocket(gossipAddress);
+		this.gossipInterval = Math.max(windowMillis / GOSSIPS_PER_WINDOW, 1);
+		socket.setSoTimeout((int) gossipInterval);
+
+		long window = currentWindow();
+		local.set(new CountMinSketch(window, this.width));
+		remote = new CountMinSketch(window, this.width);
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Adds a node that this node gossips to and accepts gossip from. All nodes of the
+	 * fleet should know each other. Must be called before start.
+	 * @param peer The gossip address of the other node, which must be bound to this
+	 * address rather than a wildcard address so its gossip comes from it
+	 */
+	public void addPeer(InetSocketAddress peer) {
+		peers.add(peer);
+	}
+
+	/**
+	 * Changes how often the counters are sent to the peers, by default GOSSIPS_PER_WINDOW
+	 * times per window. More frequent gossip lets less traffic through before a limit is
+	 * noticed across the fleet. Must be called before start.
+	 * @param intervalMillis
+	 * @throws IOException If the socket timeout can't be set
+	 */
+	public void setGossipInterval(long intervalMillis) throws IOException {
+		this.gossipInterval = Math.max(intervalMillis, 1);
+		socket.setSoTimeout((int) gossipInterval);
+	}
+
+	/**
+	 * @return The address that peers should send gossip to
+	 */
+	public InetSocketAddress getGossipAddress() {
+		return (InetSocketAddress) socket.getLocalSocketAddress();
+	}
+
+	/**
+	 * Starts the gossip thread
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "STUN rate limit gossip");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the gossip thread and closes the gossip socket
+	 */
+	public void close() {
+		running = false;
+		socket.close();
+	}
+
+	/**
+	 * Counts a request and decides if it may be answered. Lock-free, and allocation
+	 * free for IPv4 sources, called by the listener threads for every request.
+	 * @param source Address the request came from
+	 * @return false if the source is over the fleet-wide limit
+	 */
+	public boolean allow(InetAddress source) {
+		CountMinSketch sketch = localSketch(currentWindow());
+		int key = key(source);
+		sketch.add(key);
+
+		CountMinSketch peerSketch = remote;
+		int count = sketch.estimate(key, (peerSketch.getWindow() == sketch.getWindow()) ? peerSketch : null);
+
+		if (count > limit) {
+			denied.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Estimated requests from source in the current window, on this node and its peers
+	 */
+	public int estimate(InetAddress source) {
+		CountMinSketch sketch = localSketch(currentWindow());
+		CountMinSketch peerSketch = remote;
+		return sketch.estimate(key(source), (peerSketch.getWindow() == sketch.getWindow()) ? peerSketch : null);
+	}
+
+	/**
+	 * @return The sketch key of a source: a keyed hash of an IPv4 address or of the
+	 * /64 prefix of an IPv6 address
+	 */
+	int key(InetAddress source) {
+		if (source instanceof Inet4Address) {
+			// hashCode of an Inet4Address is the address itself, getAddress would allocate
+			return (int) sipHash(source.hashCode() & 0xFFFFFFFFL, 4);
+		}
+		return (int) sipHash(ByteBuffer.wrap(source.getAddress()).getLong(0), 8);
+	}
+
+	/**
+	 * SipHash-2-4 of a message of up to 8 bytes, given as a long
+	 * @param length Bytes in the message, part of the hash so a 4 byte IPv4 address
+	 * and an 8 byte prefix never collide on purpose
+	 */
+	private long sipHash(long message, int length) {
+		long v0 = sourceKey0 ^ 0x736f6d6570736575L;
+		long v1 = sourceKey1 ^ 0x646f72616e646f6dL;
+		long v2 = sourceKey0 ^ 0x6c7967656e657261L;
+		long v3 = sourceKey1 ^ 0x7465646279746573L;
+		// an 8 byte message is a block of its own, the length goes in a last block
+		int compressionRounds = (length == 8) ? 4 : 2;
+		long last = (long) length << 56;
+		long block = (length == 8) ? message : last | message;
+		v3 ^= block;
+
+		for (int round = 0; round < compressionRounds + 4; round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+
+			if (round < compressionRounds && (round & 1) == 1) {
+				v0 ^= block;
+
+				if (round + 1 < compressionRounds) {
+					block = last;
+					v3 ^= block;
+				} else {
+					v2 ^= 0xff;
+				}
+			}
+		}
+		long hash = v0 ^ v1 ^ v2 ^ v3;
+		return hash ^ (hash >>> 32);
+	}
+
+	/**
+	 * @return Requests that allow has turned down
+	 */
+	public long getDeniedRequests() {
+		return denied.sum();
+	}
+
+	/**
+	 * @return Gossip packets received from peers
+	 */
+	public long getGossipReceived() {
+		return gossipReceived.sum();
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[GOSSIP_HEADER_LENGTH + 2 * CountMinSketch.DEPTH * width + MAC_LENGTH];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		int[] cells = new int[CountMinSketch.DEPTH * width];
+		long nextGossip = 0;
+
+		while (running) {
+			long now = System.currentTimeMillis();
+			if (now >= nextGossip) {
+				sendGossip(buffer);
+				nextGossip = now + gossipInterval;
+			}
+
+			try {
+				packet.setData(buffer);
+				socket.receive(packet);
+				receiveGossip((InetSocketAddress) packet.getSocketAddress(), buffer, packet.getLength(), cells);
+			} catch (SocketTimeoutException e) {
+				// time to gossip
+			} catch (IOException e) {
+				if (running) {
+					logger.log(Level.WARNING, "Gossip socket failed: " + e.getMessage());
+				}
+				break;
+			}
+		}
+	}
+
+	private void sendGossip(byte[] buffer) {
+		long window = currentWindow();
+		CountMinSketch sketch = localSketch(window);
+		ByteBuffer out = ByteBuffer.wrap(buffer);
+
+		out.putInt(GOSSIP_MAGIC);
+		out.putLong(nodeId);
+		out.putLong(window);
+		out.putShort((short) CountMinSketch.DEPTH);
+		out.putShort((short) width);
+		sketch.writeTo(out);
+
+		try {
+			mac.update(buffer, 0, out.position());
+			mac.doFinal(buffer, out.position());
+		} catch (GeneralSecurityException e) {
+			logger.log(Level.WARNING, "Could not sign gossip: " + e.getMessage());
+			return;
+		}
+		out.position(out.position() + MAC_LENGTH);
+
+		DatagramPacket packet = new DatagramPacket(buffer, out.position());
+		for (InetSocketAddress peer : peers) {
+			try {
+				packet.setSocketAddress(peer);
+				socket.send(packet);
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Could not gossip to " + peer + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Replaces the counters of the sending peer in the aggregate of the peers.
+	 */
+	private void receiveGossip(InetSocketAddress source, byte[] buffer, int length, int[] cells) {
+		if (!peers.contains(source)) {
+			logger.log(Level.FINE, "Gossip from " + source + " ignored, it isn't a peer");
+			return;
+		}
+		if (length < GOSSIP_HEADER_LENGTH + MAC_LENGTH || !checkMac(buffer, length - MAC_LENGTH)) {
+			logger.log(Level.FINE, "Gossip from " + source + " ignored, bad HMAC");
+			return;
+		}
+		ByteBuffer in = ByteBuffer.wrap(buffer, 0, length - MAC_LENGTH);
+
+		if (in.getInt() != GOSSIP_MAGIC) {
+			logger.log(Level.FINE, "Not a gossip packet");
+			return;
+		}
+		long peerId = in.getLong();
+		long window = in.getLong();
+		int depth = in.getShort();
+		int peerWidth = in.getShort();
+
+		if (peerId == nodeId || depth != CountMinSketch.DEPTH || peerWidth != width
+				|| in.remaining() < 2 * cells.length) {
+			logger.log(Level.FINE, "Gossip from node " + peerId + " ignored, sketch size doesn't match");
+			return;
+		}
+		if (window != currentWindow()) {
+			return;
+		}
+		CountMinSketch aggregate = remote;
+
+		if (aggregate.getWindow() != window) {
+			aggregate = new CountMinSketch(window, width);
+			peerCells.clear();
+			remote = aggregate;
+		}
+		CountMinSketch.readFrom(in, cells);
+		int[] previous = peerCells.get(source);
+
+		if (previous == null) {
+			previous = new int[cells.length];
+			peerCells.put(source, previous);
+		}
+		for (int i = 0; i < cells.length; i++) {
+			aggregate.addCell(i, cells[i] - previous[i]);
+			previous[i] = cells[i];
+		}
+		gossipReceived.increment();
+	}
+
+	/**
+	 * Compares the HMAC after the first length bytes in constant time
+	 */
+	private boolean checkMac(byte[] buffer, int length) {
+		try {
+			mac.update(buffer, 0, length);
+			mac.doFinal(expectedMac, 0);
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+		int difference = 0;
+
+		for (int i = 0; i < MAC_LENGTH; i++) {
+			difference |= expectedMac[i] ^ buffer[length + i];
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * @return The sketch of window, the first caller in a new window replaces the old one
+	 */
+	private CountMinSketch localSketch(long window) {
+		CountMinSketch sketch = local.get();
+
+		while (sketch.getWindow() < window) {
+			CountMinSketch next = new CountMinSketch(window, width);
+
+			if (local.compareAndSet(sketch, next)) {
+				return next;
+			}
+			sketch = local.get();
+		}
+		return sketch;
+	}
+
+	private long currentWindow() {
+		return System.currentTimeMillis() / windowMillis;
+	}
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Runs ICE connectivity checks (RFC8445) for a checklist of candidate pairs.
+ * Checks are binding requests with PRIORITY, ICE-CONTROLLING or ICE-CONTROLLED
+ * and, for nominated pairs, USE-CANDIDATE. One check is started every Ta
+ * milliseconds in pair priority order, all of them on the thread and timer of one
+ * TransactionLoop, and each result is handed to the CheckListener when it arrives.
+ * 
+ * Pairs with the same local candidate share one socket.
+ * @author Frans
+ *
+ */
+public class ConnectivityChecker {
+
+	private static final Logger logger = Logger.getLogger(ConnectivityChecker.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final int DEFAULT_TA = 50;
+
+	private static final int MAX_REQUEST_LENGTH = 512;
+
+	private final TransactionLoop loop;
+	private final boolean controlling;
+	private final long tieBreaker;
+	private final int ta;
+
+	private final PriorityQueue<CandidatePair> waiting = new PriorityQueue<CandidatePair>();
+	private final HashMap<InetSocketAddress, DatagramChannel> localChannels = new HashMap<InetSocketAddress, DatagramChannel>();
+
+	private byte[] username;
+	private Mac mac;
+	private CheckListener listener;
+
+	private int unfinished;
+	private boolean started;
+
+	/**
+	 * @param loop The loop that runs the checks, it is started if it isn't already
+	 * @param controlling true if this agent is in the controlling role
+	 * @param tieBreaker The random tie breaker of this agent
+	 * @param ta Pacing interval in milliseconds
+	 */
+	public ConnectivityChecker(TransactionLoop loop, boolean controlling, long tieBreaker, int ta) {
+		this.loop = loop;
+		this.controlling = controlling;
+		this.tieBreaker = tieBreaker;
+		this.ta = ta;
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons 
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Short-term credentials for the checks. When set, requests carry USERNAME
+	 * ("remote ufrag:local ufrag") and MESSAGE-INTEGRITY keyed with the remote password.
+	 * Must be called before start.
+	 * @param username The USERNAME value
+	 * @param password The remote password
+	 * @throws GeneralSecurityException If HMAC-SHA1 isn't available
+	 */
+	public synchronized void setCredentials(String username, String password) throws GeneralSecurityException {
+		this.username = username.getBytes();
+		this.mac = Mac.getInstance("HmacSHA1");
+		mac.init(new SecretKeySpec(password.getBytes(), "HmacSHA1"));
+	}
+
+	/**
+	 * Adds a pair to the checklist. Must be called before start.
+	 * @param local The local candidate, port 0 for any port
+	 * @param remote The remote candidate
+	 * @param localPriority Priority of the local candidate
+	 * @param remotePriority Priority of the remote candidate
+	 * @param nominate true if the check should carry USE-CANDIDATE
+	 * @return The pair, its state is updated as the check runs
+	 */
+	public synchronized CandidatePair addPair(InetSocketAddress local, InetSocketAddress remote, int localPriority, 
+			int remotePriority, boolean nominate) {
+		if (started) {
+			throw new IllegalStateException("Checks already started");
+		}
+		CandidatePair pair = new CandidatePair(local, remote, localPriority, remotePriority, controlling, nominate);
+		waiting.add(pair);
+		unfinished++;
+		return pair;
+	}
+
+	/**
+	 * Starts pacing the checks
+	 * @param listener Gets every result as it arrives
+	 */
+	public synchronized void start(CheckListener listener) {
+		this.listener = listener;
+		started = true;
+		loop.start();
+		loop.execute(new Runnable() {
+			public void run() {
+				pace();
+			}
+		});
+	}
+
+	/**
+	 * Waits until every check has succeeded or failed
+	 * @param timeoutMillis How long to wait at most
+	 * @return true if all checks are done
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		while (unfinished > 0) {
+			long left = deadline - System.currentTimeMillis();
+
+			if (left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the local sockets of the checklist
+	 */
+	public void close() {
+		loop.execute(new Runnable() {
+			public void run() {
+				for (DatagramChannel channel : localChannels.values()) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				localChannels.clear();
+			}
+		});
+	}
+
+	/**
+	 * Starts the next check and schedules itself Ta later. Runs on the loop thread.
+	 */
+	private void pace() {
+		CandidatePair pair;
+
+		synchronized (this) {
+			pair = waiting.poll();
+		}
+		if (pair == null) {
+			return;
+		}
+		check(pair);
+
+		loop.schedule(new Runnable() {
+			public void run() {
+				pace();
+			}
+		}, ta);
+	}
+
+	private void check(final CandidatePair pair) {
+		DatagramChannel channel = localChannels.get(pair.getLocal());
+
+		if (channel == null) {
+			try {
+				channel = loop.openChannel(pair.getLocal());
+				localChannels.put(pair.getLocal(), channel);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, e.getMessage());
+				complete(pair, null, 0, Header.GLOBAL_ERROR);
+				return;
+			}
+		}
+		byte[] request = buildRequest(pair);
+		final long sent = System.nanoTime();
+
+		pair.inProgress();
+		logger.log(Level.FINE, "Checking " + pair);
+
+		loop.sendRequest(channel, pair.getRemote(), request, Header.LENGTH + Header.getMessageLength(request), new TransactionListener() {
+			public void onResponse(byte[] response, int length, InetSocketAddress from) {
+				if (!from.equals(pair.getRemote())) {
+					logger.log(Level.FINE, "Response from " + from + " instead of " + pair.getRemote());
+					complete(pair, null, 0, Header.GLOBAL_ERROR);
+				} else if (Header.getMessageType(response) == Header.BINDING_RESPONSE) {
+					complete(pair, Header.getMappedAddress(response, length), System.nanoTime() - sent, 0);
+				} else {
+					int errorOffset = Header.findAttribute(response, length, Header.ERROR_CODE);
+					complete(pair, null, 0, (errorOffset != -1) ? Header.getErrorCode(response, errorOffset) : Header.GLOBAL_ERROR);
+				}
+			}
+
+			public void onTimeout() {
+				complete(pair, null, 0, 0);
+			}
+		});
+	}
+
+	private byte[] buildRequest(CandidatePair pair) {
+		byte[] request = new byte[MAX_REQUEST_LENGTH];
+
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+
+		int offset = Header.LENGTH;
+
+		if (username != null) {
+			offset = Header.putBytesAttribute(request, offset, Header.USERNAME, username);
+		}
+		offset = Header.putIntAttribute(request, offset, Header.PRIORITY, pair.getPeerReflexivePriority());
+
+		if (controlling && pair.isNominated()) {
+			offset = Header.putAttributeHeader(request, offset, Header.USE_CANDIDATE, 0);
+		}
+		offset = Header.putLongAttribute(request, offset, controlling ? Header.ICE_CONTROLLING : Header.ICE_CONTROLLED, tieBreaker);
+
+		if (mac != null) {
+			offset = Header.putMessageIntegrity(request, offset, mac);
+		}
+		Header.putFingerprint(request, offset);
+
+		return request;
+	}
+
+	private void complete(CandidatePair pair, InetSocketAddress mappedAddress, long roundTripNanos, int errorCode) {
+		if (mappedAddress != null) {
+			pair.succeeded(mappedAddress, roundTripNanos);
+		} else {
+			pair.failed(errorCode);
+		}
+		logger.log(Level.FINE, "Check completed " + pair);
+
+		try {
+			listener.onCheckCompleted(pair);
+		} finally {
+			synchronized (this) {
+				unfinished--;
+				notifyAll();
+			}
+		}
+	}
+}
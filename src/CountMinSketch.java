@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A count-min sketch of request counts per source for one time window. Counting and
+ * estimating are lock-free so that every listener thread can count into the same sketch.
+ * Estimates are never too low, they are too high by at most 2 * total / width with a
+ * probability of 1 - (1/2)^DEPTH.
+ * The counters can be written to and read from a ByteBuffer as unsigned shorts, which
+ * is what ClusterRateLimiter gossips to its peers.
+ * @author Frans
+ *
+ */
+class CountMinSketch {
+
+	static final int DEPTH = 4;
+
+	private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+	private static final int MAX_WIRE_COUNT = 0xFFFF;
+
+	private final long window;
+	private final int width;
+	private final AtomicIntegerArray counts;
+
+	/**
+	 * @param window The time window that is counted
+	 * @param width Counters per row, must be a power of two
+	 */
+	CountMinSketch(long window, int width) {
+		this.window = window;
+		this.width = width;
+		this.counts = new AtomicIntegerArray(DEPTH * width);
+	}
+
+	long getWindow() {
+		return window;
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Counts one request
+	 * @param key A hash of the source, see ClusterRateLimiter.key
+	 * @return The estimate for key including this request
+	 */
+	int add(int key) {
+		int estimate = Integer.MAX_VALUE;
+
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counts.incrementAndGet(index(row, key)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * @return The estimate for key in this sketch and other added together, estimated
+	 * per cell so it is tighter than adding the two estimates
+	 */
+	int estimate(int key, CountMinSketch other) {
+		int estimate = Integer.MAX_VALUE;
+
+		for (int row = 0; row < DEPTH; row++) {
+			int i = index(row, key);
+			estimate = Math.min(estimate, counts.get(i) + ((other != null) ? other.counts.get(i) : 0));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Adds delta to a single counter, used when merging counters received from a peer
+	 */
+	void addCell(int cell, int delta) {
+		if (delta != 0) {
+			counts.addAndGet(cell, delta);
+		}
+	}
+
+	int size() {
+		return counts.length();
+	}
+
+	/**
+	 * Writes all counters as unsigned shorts, larger counts are saturated
+	 */
+	void writeTo(ByteBuffer buffer) {
+		for (int i = 0; i < counts.length(); i++) {
+			buffer.putShort((short) Math.min(counts.get(i), MAX_WIRE_COUNT));
+		}
+	}
+
+	/**
+	 * Reads counters written by writeTo into an int array
+	 */
+	static void readFrom(ByteBuffer buffer, int[] cells) {
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = buffer.getShort() & MAX_WIRE_COUNT;
+		}
+	}
+
+	private int index(int row, int key) {
+		int h = key ^ SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return row * width + (h & (width - 1));
+	}
+}
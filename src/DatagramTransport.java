@@ -0,0 +1,22 @@
+import java.net.InetSocketAddress;
+
+/**
+ * A UDP listener of a Server that doesn't use a DatagramSocket, see
+ * Server.enableIoUring. It is bound when it is created. run() receives requests,
+ * has them answered by Server.handleDatagram and sends the responses until it is
+ * closed or the Server drains.
+ * @author Frans
+ *
+ */
+interface DatagramTransport extends Runnable {
+
+	/**
+	 * @return The address and port the listener is bound to
+	 */
+	InetSocketAddress getLocalSocketAddress();
+
+	/**
+	 * Stops run() and releases the socket. Waits briefly for run() to let go of it.
+	 */
+	void close();
+}
@@ -0,0 +1,78 @@
+/**
+ * What happened while a Server was drained or handed over to a new instance.
+ * @author Frans
+ *
+ */
+public class DrainStatistics {
+
+	private final long inFlightAtStart;
+	private final long completed;
+	private final long abandoned;
+	private final int udpSocketsHandedOver;
+	private final int tcpSocketsHandedOver;
+	private final long elapsedMillis;
+
+	DrainStatistics(long inFlightAtStart, long completed, long abandoned, int udpSocketsHandedOver, int tcpSocketsHandedOver,
+			long elapsedMillis) {
+		this.inFlightAtStart = inFlightAtStart;
+		this.completed = completed;
+		this.abandoned = abandoned;
+		this.udpSocketsHandedOver = udpSocketsHandedOver;
+		this.tcpSocketsHandedOver = tcpSocketsHandedOver;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return Requests that were being processed when the drain started
+	 */
+	public long getInFlightAtStart() {
+		return inFlightAtStart;
+	}
+
+	/**
+	 * @return Requests the old listeners finished after the drain started,
+	 * including packets that were queued in the UDP sockets
+	 */
+	public long getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return Requests still being processed when the deadline passed
+	 */
+	public long getAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * @return UDP sockets that a new Server took over, 0 for a drain
+	 */
+	public int getUdpSocketsHandedOver() {
+		return udpSocketsHandedOver;
+	}
+
+	/**
+	 * @return TCP server sockets that a new Server took over, 0 for a drain
+	 */
+	public int getTcpSocketsHandedOver() {
+		return tcpSocketsHandedOver;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return true if every listener finished before the deadline
+	 */
+	public boolean isComplete() {
+		return abandoned == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "in flight " + inFlightAtStart + ", completed " + completed + ", abandoned " + abandoned 
+				+ ", handed over " + udpSocketsHandedOver + " UDP / " + tcpSocketsHandedOver + " TCP sockets in " 
+				+ elapsedMillis + "ms";
+	}
+}
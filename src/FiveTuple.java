@@ -0,0 +1,84 @@
+import java.net.InetAddress;
+
+/**
+ * The 5-tuple (client address, client port, server address, server port, transport)
+ * that identifies a TURN allocation according to RFC5766.
+ * The fields are mutable so that a listener thread can keep one instance as a probe
+ * and look up allocations without creating a new key for every packet.
+ * Instances stored as keys in a map must never be changed, use copy() for that.
+ * @author Frans
+ *
+ */
+class FiveTuple {
+
+	private InetAddress clientAddress;
+	private int clientPort;
+	private InetAddress serverAddress;
+	private int serverPort;
+	private int transport;
+
+	FiveTuple() {
+
+	}
+
+	FiveTuple(InetAddress clientAddress, int clientPort, InetAddress serverAddress, int serverPort, int transport) {
+		set(clientAddress, clientPort, serverAddress, serverPort, transport);
+	}
+
+	/**
+	 * Overwrites all fields, used on probe instances only
+	 * @return this
+	 */
+	FiveTuple set(InetAddress clientAddress, int clientPort, InetAddress serverAddress, int serverPort, int transport) {
+		this.clientAddress = clientAddress;
+		this.clientPort = clientPort;
+		this.serverAddress = serverAddress;
+		this.serverPort = serverPort;
+		this.transport = transport;
+		return this;
+	}
+
+	/**
+	 * @return An immutable copy that is safe to use as a map key
+	 */
+	FiveTuple copy() {
+		return new FiveTuple(clientAddress, clientPort, serverAddress, serverPort, transport);
+	}
+
+	InetAddress getClientAddress() {
+		return clientAddress;
+	}
+
+	int getClientPort() {
+		return clientPort;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = clientAddress.hashCode();
+		hash = hash * 31 + clientPort;
+		hash = hash * 31 + serverAddress.hashCode();
+		hash = hash * 31 + serverPort;
+		return hash * 31 + transport;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof FiveTuple)) {
+			return false;
+		}
+		FiveTuple other = (FiveTuple) o;
+
+		return clientPort == other.clientPort && serverPort == other.serverPort && transport == other.transport
+				&& clientAddress.equals(other.clientAddress) && serverAddress.equals(other.serverAddress);
+	}
+
+	@Override
+	public String toString() {
+		return clientAddress.getHostAddress() + ":" + clientPort + " -> " + serverAddress.getHostAddress() 
+				+ ":" + serverPort + " (" + transport + ")";
+	}
+}
@@ -1,7 +1,11 @@
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.zip.CRC32;
+
+import javax.crypto.Mac;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,6 +22,8 @@ public class Header {
 	private static final Logger logger = Logger.getLogger(Header.class.getName());
 	private static ConsoleHandler consoleHandler = new ConsoleHandler();
 
+	private static final SecureRandom random = new SecureRandom();
+
 	public static final int LENGTH = 20;
 
 	public static final int TYPE_LENGTH_VALUE = 4;
@@ -46,6 +52,88 @@ public class Header {
 	public static final int BAD_REQUEST = 400;
 	public static final int GLOBAL_ERROR = 600;
 
+	public static final int MAGIC_COOKIE = 0x2112A442;
+	public static final int TRANSACTION_ID_LENGTH = 12;
+
+	/*
+	 * Message class bits from RFC5389, a method ORed with one of these
+	 * gives the message type of the response.
+	 */
+	public static final int REQUEST_CLASS = 0;
+	public static final int SUCCESS_RESPONSE_CLASS = 0x100;
+	public static final int ERROR_RESPONSE_CLASS = 0x110;
+	public static final int INDICATION_CLASS = 0x010;
+
+	/*
+	 * Message types are 14 bits
+	 */
+	public static final int MESSAGE_TYPES = 0x4000;
+	public static final int MAX_METHOD = 0xFFF;
+
+	/*
+	 * TURN methods and attributes from RFC5766/RFC8656
+	 */
+	public static final int ALLOCATE_REQUEST = 0x003;
+	public static final int REFRESH_REQUEST = 0x004;
+	public static final int SEND_INDICATION = 0x016;
+	public static final int DATA_INDICATION = 0x017;
+	public static final int CREATE_PERMISSION_REQUEST = 0x008;
+	public static final int CHANNEL_BIND_REQUEST = 0x009;
+
+	public static final int ERROR_CODE = 0x0009;
+	public static final int CHANNEL_NUMBER = 0x000C;
+	public static final int LIFETIME = 0x000D;
+	public static final int XOR_PEER_ADDRESS = 0x0012;
+	public static final int DATA = 0x0013;
+	public static final int XOR_RELAYED_ADDRESS = 0x0016;
+	public static final int REQUESTED_TRANSPORT = 0x0019;
+	public static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+	/*
+	 * NAT behavior discovery attributes from RFC5780
+	 */
+	public static final int RESPONSE_ORIGIN = 0x802B;
+	public static final int OTHER_ADDRESS = 0x802C;
+
+	public static final int CHANNEL_DATA_HEADER_LENGTH = 4;
+	public static final int MIN_CHANNEL_NUMBER = 0x4000;
+	public static final int MAX_CHANNEL_NUMBER = 0x4FFF;
+	public static final int TRANSPORT_UDP = 17;
+
+	/*
+	 * Attributes used by ICE connectivity checks, RFC5389 and RFC8445
+	 */
+	public static final int USERNAME = 0x0006;
+	public static final int MESSAGE_INTEGRITY = 0x0008;
+	public static final int MESSAGE_INTEGRITY_LENGTH = 20;
+	public static final int PRIORITY = 0x0024;
+	public static final int USE_CANDIDATE = 0x0025;
+	public static final int FINGERPRINT = 0x8028;
+	public static final int FINGERPRINT_XOR = 0x5354554e;
+	public static final int ICE_CONTROLLED = 0x8029;
+	public static final int ICE_CONTROLLING = 0x802A;
+
+	public static final int ROLE_CONFLICT = 487;
+
+	/*
+	 * Long-term credentials, RFC5389 section 10.2
+	 */
+	public static final int REALM = 0x0014;
+	public static final int NONCE = 0x0015;
+	public static final int UNAUTHORIZED = 401;
+	public static final int STALE_NONCE = 438;
+
+	/*
+	 * Redirecting a client to another server, RFC5389 section 11
+	 */
+	public static final int ALTERNATE_SERVER = 0x8023;
+	public static final int TRY_ALTERNATE = 300;
+
+	public static final int FORBIDDEN = 403;
+	public static final int ALLOCATION_MISMATCH = 437;
+	public static final int UNSUPPORTED_TRANSPORT_PROTOCOL = 442;
+	public static final int INSUFFICIENT_CAPACITY = 508;
+
 	/**
 	 * For debugging reasons.
 	 * Connect Handler to Logger in order to see Level.FINE messages
@@ -102,12 +190,11 @@ public class Header {
 	 * @param request A STUN request
 	 */
 	public static void addTransactionIDTo(byte[] request) {
-		SecureRandom rnd = new SecureRandom();
 		byte rndBytes[] = new byte[12];
-		rnd.nextBytes(rndBytes);
+		random.nextBytes(rndBytes);
 
 		for (int i = 0; i < 12; i++) {
-			request[i+8] = rndBytes[0];
+			request[i+8] = rndBytes[i];
 		}
 	}
 	
@@ -123,7 +210,8 @@ public class Header {
 		int extractedCookie = (int) ((request[4] << 24 & 0xff000000) | (request[5] << 16 & 0xff0000) 
 				| (request[6] << 8 & 0xff00) | (request[7] & 0xff));
 
-		logger.log(Level.FINE, "magic cookie = incoming cookie "+ magicCookie + " = " + extractedCookie);
+		if (logger.isLoggable(Level.FINE))
+			logger.log(Level.FINE, "magic cookie = incoming cookie "+ magicCookie + " = " + extractedCookie);
 
 		return (magicCookie == extractedCookie) ? true : false;
 	}
@@ -139,27 +227,41 @@ public class Header {
 	 * @return Global IP address and Global Port number
 	 */
 	public static InetSocketAddress getAddress(byte[] request, int desiredType) {
+		return getAddress(request, request.length, desiredType);
+	}
+
+	/**
+	 * Like getAddress(request, desiredType) for a request of length bytes, the
+	 * attributes are never read beyond it whatever the lengths in the message say
+	 * @return The address or null if it isn't there or the message is truncated
+	 */
+	public static InetSocketAddress getAddress(byte[] request, int messageLength, int desiredType) {
 
 		InetSocketAddress isa = null;
 
-		int length = (int) (((request[2] << 8) & 0xff00) | (request[3] & 0xff));
+		int length = attributesLength(request, messageLength);
 		logger.log(Level.FINE, "Length in Header: " + length);
 		int offset = LENGTH;
 
 		logger.log(Level.FINER, "Searching for type " + Integer.toHexString(desiredType));
 
-		while (length > 0) {
+		while (length >= TYPE_LENGTH_VALUE) {
 			int type = (int) request[offset +1];
 			logger.log(Level.FINE, "Type: " + type + "desiredType: " + desiredType);
 
 			int attributeLength = (int) (((request[offset + 2] << 8) & 0xff00) | (request[offset + 3] & 0xff));
 			logger.log(Level.FINE, "Attribute length in Header:" + attributeLength);
 
+			if (TYPE_LENGTH_VALUE + attributeLength > length) {
+				logger.log(Level.FINE, "Attribute runs past the end of the message");
+				return null;
+			}
 			if (type != desiredType) {
-				logger.log(Level.FINE, "Skipping type " + type);
+				if (logger.isLoggable(Level.FINE))
+					logger.log(Level.FINE, "Skipping type " + type);
 
-				offset += (TYPE_LENGTH_VALUE + attributeLength);
-				length -= (TYPE_LENGTH_VALUE + attributeLength);
+				offset += (TYPE_LENGTH_VALUE + padded(attributeLength));
+				length -= (TYPE_LENGTH_VALUE + padded(attributeLength));
 				continue;
 			}
 
@@ -173,7 +275,8 @@ public class Header {
 			InetAddress inetAddress;
 
 			try {
-				byte [] address = new byte[4];
+				// 4 bytes for IPv4, 16 for IPv6
+				byte [] address = new byte[attributeLength - 4];
 				
 				for (int i = 0; i < address.length; i++) {
 					address[i] = request[offset + 8 + i];
@@ -204,25 +307,39 @@ public class Header {
 	 * @return The STUN value of a change request
 	 */
 	public static int getChangeRequest(byte[] request) {
+		return getChangeRequest(request, request.length);
+	}
+
+	/**
+	 * Like getChangeRequest(request) for a request of messageLength bytes, the
+	 * attributes are never read beyond it whatever the lengths in the message say
+	 * @return The change request or 0 if there is none or the message is truncated
+	 */
+	public static int getChangeRequest(byte[] request, int messageLength) {
 
 		int changeRequest = 0;
 
-		int length = (int) (((request[2] << 8) & 0xff00) | (request[3] & 0xff));
+		int length = attributesLength(request, messageLength);
 
 		int offset = LENGTH;
 
 		logger.log(Level.FINE ,"Searching for change request attribute");
 
-		while (length > 0) {
+		while (length >= TYPE_LENGTH_VALUE) {
 
 			int type = (int) request[offset + 1];
 
 			int attributeLength = (int) (((request[offset + 2] << 8) & 0xff00)) | (request[offset + 3] & 0xff);
 
+			if (TYPE_LENGTH_VALUE + attributeLength > length) {
+				logger.log(Level.FINE, "Attribute runs past the end of the message");
+				return 0;
+			}
 			if (type != CHANGE_REQUEST) {
-				logger.log(Level.FINE, "Skipping type " + type);
-				offset += (TYPE_LENGTH_VALUE + attributeLength);
-				length -= (TYPE_LENGTH_VALUE + attributeLength);
+				if (logger.isLoggable(Level.FINE))
+					logger.log(Level.FINE, "Skipping type " + type);
+				offset += (TYPE_LENGTH_VALUE + padded(attributeLength));
+				length -= (TYPE_LENGTH_VALUE + padded(attributeLength));
 				continue;
 			}
 
@@ -231,9 +348,522 @@ public class Header {
 				return 0;
 			}
 			changeRequest = (int) request[offset + 7];
-			logger.log(Level.FINE, "Found change request " + changeRequest);
+			if (logger.isLoggable(Level.FINE))
+				logger.log(Level.FINE, "Found change request " + changeRequest);
 			break;
 		}
 		return changeRequest;
 	}
+
+	/**
+	 * @return The length of the attributes in the header, cut to what was received
+	 * of a message of messageLength bytes
+	 */
+	private static int attributesLength(byte[] message, int messageLength) {
+		if (messageLength < LENGTH) {
+			return 0;
+		}
+		int length = ((message[2] << 8) & 0xff00) | (message[3] & 0xff);
+
+		return Math.min(length, Math.min(messageLength, message.length) - LENGTH);
+	}
+
+	/**
+	 * ChannelData messages from RFC5766 start with the bits 01, which never
+	 * happens for STUN messages since they always start with 00.
+	 * @param message A received message
+	 * @param length The number of valid bytes in message
+	 * @return true if message is a TURN ChannelData message
+	 */
+	public static boolean isChannelData(byte[] message, int length) {
+		return length >= CHANNEL_DATA_HEADER_LENGTH && (message[0] & 0xc0) == 0x40;
+	}
+
+	/**
+	 * Reads the 14 bit message type (method and class) from the header
+	 * @param message A STUN message
+	 * @return The message type
+	 */
+	public static int getMessageType(byte[] message) {
+		return ((message[0] << 8) & 0x3f00) | (message[1] & 0xff);
+	}
+
+	/**
+	 * Puts a method and a class together, RFC5389 interleaves the two class bits
+	 * with the method bits
+	 * @param method The 12 bit method, e.g. 1 for Binding
+	 * @param messageClass REQUEST_CLASS, INDICATION_CLASS, SUCCESS_RESPONSE_CLASS or
+	 * ERROR_RESPONSE_CLASS
+	 * @return The message type
+	 */
+	public static int messageType(int method, int messageClass) {
+		if (method < 0 || method > MAX_METHOD) {
+			throw new IllegalArgumentException("Method " + method + " is not 12 bits");
+		}
+		if ((messageClass & ~ERROR_RESPONSE_CLASS) != 0) {
+			throw new IllegalArgumentException("Not a message class: " + messageClass);
+		}
+		return ((method & 0xF80) << 2) | ((method & 0x070) << 1) | (method & 0x00F) | messageClass;
+	}
+
+	/**
+	 * Writes an error response with ERROR-CODE to a request
+	 * @param response At least LENGTH + 8 + the length of reason bytes
+	 * @param request The request, its method and transaction ID are used
+	 * @param errorCode The STUN error code, e.g. 400
+	 * @param reason Reason phrase
+	 * @return The length of the response
+	 */
+	public static int putErrorResponse(byte[] response, byte[] request, int errorCode, String reason) {
+		System.arraycopy(request, 0, response, 0, LENGTH);
+		int offset = putErrorCode(response, LENGTH, errorCode, reason);
+		setMessageTypeAndLength(response, getMessageType(request) | ERROR_RESPONSE_CLASS, offset - LENGTH);
+
+		return offset;
+	}
+
+	/**
+	 * Reads the length field of the header, which does not include the header itself
+	 * @param message A STUN message
+	 * @return Length of the attributes in bytes
+	 */
+	public static int getMessageLength(byte[] message) {
+		return ((message[2] << 8) & 0xff00) | (message[3] & 0xff);
+	}
+
+	/**
+	 * Writes message type and length into the header. Magic cookie and
+	 * transaction ID are left untouched.
+	 * @param message A STUN message
+	 * @param type The message type
+	 * @param attributesLength The length of all attributes in bytes
+	 */
+	public static void setMessageTypeAndLength(byte[] message, int type, int attributesLength) {
+		message[0] = (byte) (type >> 8 & 0x3f);
+		message[1] = (byte) (type & 0xff);
+		message[2] = (byte) (attributesLength >> 8);
+		message[3] = (byte) (attributesLength & 0xff);
+	}
+
+	/**
+	 * Walks through the attributes of a message and finds the first one with the
+	 * given type. Unlike getAddress it compares all 16 bits of the type and
+	 * honours the 4 byte padding of attribute values.
+	 * @param message A STUN message
+	 * @param length The number of valid bytes in message
+	 * @param desiredType The attribute type to search for
+	 * @return Offset of the attribute header or -1 if it isn't there
+	 */
+	public static int findAttribute(byte[] message, int length, int desiredType) {
+		int end = LENGTH + getMessageLength(message);
+
+		if (end > length) {
+			return -1;
+		}
+		int offset = LENGTH;
+
+		while (offset + TYPE_LENGTH_VALUE <= end) {
+			int type = ((message[offset] << 8) & 0xff00) | (message[offset + 1] & 0xff);
+			int attributeLength = getAttributeLength(message, offset);
+
+			if (offset + TYPE_LENGTH_VALUE + attributeLength > end) {
+				return -1;
+			}
+			if (type == desiredType) {
+				return offset;
+			}
+			offset += TYPE_LENGTH_VALUE + padded(attributeLength);
+		}
+		return -1;
+	}
+
+	/**
+	 * @param message A STUN message
+	 * @param offset Offset of an attribute header
+	 * @return Length of the attribute value, without padding
+	 */
+	public static int getAttributeLength(byte[] message, int offset) {
+		return ((message[offset + 2] << 8) & 0xff00) | (message[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Attribute values are padded to a multiple of 4 bytes
+	 * @param length Unpadded length
+	 * @return Padded length
+	 */
+	public static int padded(int length) {
+		return (length + 3) & ~3;
+	}
+
+	/**
+	 * Writes an attribute header
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param type Attribute type
+	 * @param length Attribute value length, without padding
+	 * @return Offset of the attribute value
+	 */
+	public static int putAttributeHeader(byte[] message, int offset, int type, int length) {
+		message[offset] = (byte) (type >> 8);
+		message[offset + 1] = (byte) (type & 0xff);
+		message[offset + 2] = (byte) (length >> 8);
+		message[offset + 3] = (byte) (length & 0xff);
+		return offset + TYPE_LENGTH_VALUE;
+	}
+
+	/**
+	 * Writes a 32 bit attribute such as LIFETIME
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param type Attribute type
+	 * @param value The value
+	 * @return Offset after the attribute
+	 */
+	public static int putIntAttribute(byte[] message, int offset, int type, int value) {
+		offset = putAttributeHeader(message, offset, type, 4);
+		message[offset] = (byte) (value >> 24);
+		message[offset + 1] = (byte) (value >> 16);
+		message[offset + 2] = (byte) (value >> 8);
+		message[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	/**
+	 * Reads the 32 bit value of an attribute such as LIFETIME
+	 * @param message A STUN message
+	 * @param offset Offset of the attribute header
+	 * @return The value
+	 */
+	public static int getIntAttribute(byte[] message, int offset) {
+		offset += TYPE_LENGTH_VALUE;
+		return ((message[offset] & 0xff) << 24) | ((message[offset + 1] & 0xff) << 16)
+				| ((message[offset + 2] & 0xff) << 8) | (message[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Writes an ERROR-CODE attribute with class, number and reason phrase
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param errorCode The STUN error code, e.g. 437
+	 * @param reason Reason phrase
+	 * @return Offset after the attribute including padding
+	 */
+	public static int putErrorCode(byte[] message, int offset, int errorCode, String reason) {
+		byte[] reasonBytes = reason.getBytes();
+		int valueOffset = putAttributeHeader(message, offset, ERROR_CODE, 4 + reasonBytes.length);
+
+		message[valueOffset] = 0;
+		message[valueOffset + 1] = 0;
+		message[valueOffset + 2] = (byte) (errorCode / 100);
+		message[valueOffset + 3] = (byte) (errorCode % 100);
+		System.arraycopy(reasonBytes, 0, message, valueOffset + 4, reasonBytes.length);
+
+		return offset + TYPE_LENGTH_VALUE + padded(4 + reasonBytes.length);
+	}
+
+	/**
+	 * Reads the error code, class * 100 + number, of an ERROR-CODE attribute
+	 * @param message A STUN message
+	 * @param offset Offset of the attribute header
+	 * @return The STUN error code
+	 */
+	public static int getErrorCode(byte[] message, int offset) {
+		return (message[offset + 6] & 0x07) * 100 + (message[offset + 7] & 0xff);
+	}
+
+	/**
+	 * Writes an address attribute in the XOR-MAPPED-ADDRESS format of RFC5389, such as
+	 * XOR-MAPPED-ADDRESS or XOR-PEER-ADDRESS. The transaction ID must already be in
+	 * the message. Doesn't allocate for IPv4 addresses.
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param type Attribute type
+	 * @param address The address to write
+	 * @param port The port to write
+	 * @return Offset after the attribute
+	 */
+	public static int putXorAddress(byte[] message, int offset, int type, InetAddress address, int port) {
+		int end = putAddress(message, offset, type, address, port);
+		xorAddress(message, offset);
+
+		return end;
+	}
+
+	/**
+	 * XORs the port and address of an address attribute in place with the magic
+	 * cookie and, for IPv6, the transaction ID. This turns the MAPPED-ADDRESS format
+	 * into the XOR-MAPPED-ADDRESS format and back again.
+	 * @param message A STUN message with its magic cookie and transaction ID
+	 * @param offset Offset of the attribute header
+	 */
+	public static void xorAddress(byte[] message, int offset) {
+		int valueOffset = offset + TYPE_LENGTH_VALUE;
+		int addressLength = getAttributeLength(message, offset) - 4;
+
+		// the port with the most significant half of the magic cookie
+		message[valueOffset + 2] ^= message[4];
+		message[valueOffset + 3] ^= message[5];
+
+		for (int i = 0; i < addressLength; i++) {
+			message[valueOffset + 4 + i] ^= message[4 + i];
+		}
+	}
+
+	/**
+	 * Writes an address attribute in the MAPPED-ADDRESS format, as used by
+	 * MAPPED-ADDRESS, RESPONSE-ORIGIN and OTHER-ADDRESS. Doesn't allocate for IPv4
+	 * addresses.
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param type Attribute type
+	 * @param address The address to write
+	 * @param port The port to write
+	 * @return Offset after the attribute
+	 */
+	public static int putAddress(byte[] message, int offset, int type, InetAddress address, int port) {
+		boolean ipv4 = address instanceof Inet4Address;
+		int addressLength = ipv4 ? 4 : 16;
+		int valueOffset = putAttributeHeader(message, offset, type, 4 + addressLength);
+
+		message[valueOffset] = 0;
+		message[valueOffset + 1] = (byte) (ipv4 ? 1 : 2);
+		message[valueOffset + 2] = (byte) (port >> 8);
+		message[valueOffset + 3] = (byte) (port & 0xff);
+
+		if (ipv4) {
+			// hashCode of an Inet4Address is the address itself, getAddress would allocate
+			int bits = address.hashCode();
+
+			for (int i = 0; i < 4; i++) {
+				message[valueOffset + 4 + i] = (byte) (bits >> (24 - 8 * i));
+			}
+		} else {
+			System.arraycopy(address.getAddress(), 0, message, valueOffset + 4, addressLength);
+		}
+		return valueOffset + 4 + addressLength;
+	}
+
+	/**
+	 * Decodes an address attribute in the MAPPED-ADDRESS format of either family
+	 * @param message A STUN message
+	 * @param offset Offset of the attribute header
+	 * @return The address or null if the attribute is malformed
+	 */
+	public static InetSocketAddress getAddressAttribute(byte[] message, int offset) {
+		int attributeLength = getAttributeLength(message, offset);
+		int valueOffset = offset + TYPE_LENGTH_VALUE;
+		int addressLength = (message[valueOffset + 1] == 1) ? 4 : 16;
+
+		if (attributeLength != 4 + addressLength) {
+			logger.log(Level.WARNING, "Invalid address length " + attributeLength);
+			return null;
+		}
+		int port = ((message[valueOffset + 2] << 8) & 0xff00) | (message[valueOffset + 3] & 0xff);
+		byte[] address = new byte[addressLength];
+		System.arraycopy(message, valueOffset + 4, address, 0, addressLength);
+
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(address), port);
+		} catch (UnknownHostException e) {
+			logger.warning("Invalid address: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes an XOR address attribute of either family
+	 * @param message A STUN message
+	 * @param offset Offset of the attribute header
+	 * @return The address or null if the attribute is malformed
+	 */
+	public static InetSocketAddress getXorAddress(byte[] message, int offset) {
+		int attributeLength = getAttributeLength(message, offset);
+		int valueOffset = offset + TYPE_LENGTH_VALUE;
+		int family = message[valueOffset + 1];
+		int addressLength = (family == 1) ? 4 : 16;
+
+		if (attributeLength != 4 + addressLength) {
+			logger.log(Level.WARNING, "Invalid XOR address length " + attributeLength);
+			return null;
+		}
+		int port = (((message[valueOffset + 2] << 8) & 0xff00) | (message[valueOffset + 3] & 0xff))
+				^ (MAGIC_COOKIE >>> 16);
+		byte[] address = new byte[addressLength];
+
+		for (int i = 0; i < addressLength; i++) {
+			address[i] = (byte) (message[valueOffset + 4 + i] ^ message[4 + i]);
+		}
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(address), port);
+		} catch (UnknownHostException e) {
+			logger.warning("Invalid XOR address: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a 64 bit attribute such as ICE-CONTROLLING
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param type Attribute type
+	 * @param value The value
+	 * @return Offset after the attribute
+	 */
+	public static int putLongAttribute(byte[] message, int offset, int type, long value) {
+		offset = putAttributeHeader(message, offset, type, 8);
+
+		for (int i = 0; i < 8; i++) {
+			message[offset + i] = (byte) (value >> (56 - 8 * i));
+		}
+		return offset + 8;
+	}
+
+	/**
+	 * Writes an attribute with an arbitrary value such as USERNAME, padded with zeros
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param type Attribute type
+	 * @param value The value
+	 * @return Offset after the attribute including padding
+	 */
+	public static int putBytesAttribute(byte[] message, int offset, int type, byte[] value) {
+		int valueOffset = putAttributeHeader(message, offset, type, value.length);
+		int end = valueOffset + padded(value.length);
+
+		System.arraycopy(value, 0, message, valueOffset, value.length);
+		for (int i = valueOffset + value.length; i < end; i++) {
+			message[i] = 0;
+		}
+		return end;
+	}
+
+	/**
+	 * Writes MESSAGE-INTEGRITY. The header length is first set to cover the attribute,
+	 * as RFC5389 requires, and the HMAC-SHA1 is computed over everything before it.
+	 * It must be the last attribute except FINGERPRINT.
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @param mac An HMAC-SHA1 Mac initialized with the key
+	 * @return Offset after the attribute
+	 */
+	public static int putMessageIntegrity(byte[] message, int offset, Mac mac) {
+		setMessageTypeAndLength(message, getMessageType(message), offset + TYPE_LENGTH_VALUE + MESSAGE_INTEGRITY_LENGTH - LENGTH);
+		int valueOffset = putAttributeHeader(message, offset, MESSAGE_INTEGRITY, MESSAGE_INTEGRITY_LENGTH);
+
+		mac.update(message, 0, offset);
+		try {
+			mac.doFinal(message, valueOffset);
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't compute MESSAGE-INTEGRITY: " + e.getMessage());
+		}
+		return valueOffset + MESSAGE_INTEGRITY_LENGTH;
+	}
+
+	/**
+	 * Checks the MESSAGE-INTEGRITY of a received message. The HMAC-SHA1 is computed
+	 * with the header length covering the attribute, as it was when it was sent, the
+	 * header is restored afterwards.
+	 * @param message A STUN message
+	 * @param length The number of valid bytes in message
+	 * @param mac An HMAC-SHA1 Mac initialized with the key
+	 * @return true if the message has MESSAGE-INTEGRITY and it matches
+	 */
+	public static boolean checkMessageIntegrity(byte[] message, int length, Mac mac) {
+		return checkMessageIntegrity(message, length, mac, new byte[MESSAGE_INTEGRITY_LENGTH]);
+	}
+
+	/**
+	 * Like checkMessageIntegrity(message, length, mac) but computes the HMAC into
+	 * expected, so a caller with a buffer per thread allocates nothing. The comparison
+	 * takes the same time wherever the first difference is.
+	 * @param expected At least MESSAGE_INTEGRITY_LENGTH bytes, overwritten
+	 */
+	public static boolean checkMessageIntegrity(byte[] message, int length, Mac mac, byte[] expected) {
+		int offset = findAttribute(message, length, MESSAGE_INTEGRITY);
+
+		if (offset == -1 || getAttributeLength(message, offset) != MESSAGE_INTEGRITY_LENGTH) {
+			return false;
+		}
+		int messageLength = getMessageLength(message);
+		setMessageTypeAndLength(message, getMessageType(message), offset + TYPE_LENGTH_VALUE + MESSAGE_INTEGRITY_LENGTH - LENGTH);
+
+		mac.update(message, 0, offset);
+		try {
+			mac.doFinal(expected, 0);
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't compute MESSAGE-INTEGRITY: " + e.getMessage());
+		} finally {
+			setMessageTypeAndLength(message, getMessageType(message), messageLength);
+		}
+
+		int difference = 0;
+		for (int i = 0; i < MESSAGE_INTEGRITY_LENGTH; i++) {
+			difference |= expected[i] ^ message[offset + TYPE_LENGTH_VALUE + i];
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * Reads the value of an attribute such as USERNAME, REALM or NONCE
+	 * @param message A STUN message
+	 * @param offset Offset of the attribute header
+	 * @return The value without padding
+	 */
+	public static byte[] getBytesAttribute(byte[] message, int offset) {
+		byte[] value = new byte[getAttributeLength(message, offset)];
+		System.arraycopy(message, offset + TYPE_LENGTH_VALUE, value, 0, value.length);
+
+		return value;
+	}
+
+	/**
+	 * Writes FINGERPRINT, the CRC-32 of everything before it XORed with 0x5354554e.
+	 * It must be the last attribute and it sets the header length.
+	 * @param message A STUN message
+	 * @param offset Where the attribute starts
+	 * @return Offset after the attribute, which is the length of the message
+	 */
+	public static int putFingerprint(byte[] message, int offset) {
+		setMessageTypeAndLength(message, getMessageType(message), offset + TYPE_LENGTH_VALUE + 4 - LENGTH);
+		CRC32 crc = new CRC32();
+		crc.update(message, 0, offset);
+
+		return putIntAttribute(message, offset, FINGERPRINT, (int) crc.getValue() ^ FINGERPRINT_XOR);
+	}
+
+	/**
+	 * Gets the address a client is seen from in a binding response, from
+	 * XOR-MAPPED-ADDRESS if the server sent it, otherwise from MAPPED-ADDRESS.
+	 * @param response A binding response
+	 * @param length The number of valid bytes in response
+	 * @return The mapped address or null
+	 */
+	public static InetSocketAddress getMappedAddress(byte[] response, int length) {
+		int offset = findAttribute(response, length, XOR_MAPPED_ADDRESS);
+
+		if (offset != -1) {
+			return getXorAddress(response, offset);
+		}
+		return getAddress(response, MAPPED_ADDRESS);
+	}
+
+	/**
+	 * Gets where a server redirects the client with a 300 (Try Alternate) error
+	 * @param response A response
+	 * @param length The number of valid bytes in response
+	 * @return The ALTERNATE-SERVER or null if the response isn't a redirect
+	 */
+	public static InetSocketAddress getAlternateServer(byte[] response, int length) {
+		if (length < LENGTH || (getMessageType(response) & ERROR_RESPONSE_CLASS) != ERROR_RESPONSE_CLASS) {
+			return null;
+		}
+		int errorOffset = findAttribute(response, length, ERROR_CODE);
+
+		if (errorOffset == -1 || getErrorCode(response, errorOffset) != TRY_ALTERNATE) {
+			return null;
+		}
+		int offset = findAttribute(response, length, ALTERNATE_SERVER);
+
+		return (offset != -1) ? getAddressAttribute(response, offset) : null;
+	}
 }
@@ -0,0 +1,246 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the UDP counters of the Linux kernel. /proc/net/udp and /proc/net/udp6 list
+ * every UDP socket of the host with the bytes in its receive queue and the packets it
+ * dropped. Only the sockets of this process are reported, found by the inodes that
+ * /proc/self/fd links to. /proc/net/snmp has the host wide totals such as RcvbufErrors, the packets dropped
+ * because a receive buffer was full. Every call reads the files again, so polling
+ * is up to the caller. On other systems the files don't exist and nothing is found.
+ * @author Frans
+ *
+ */
+public class KernelUdpCounters {
+	private static final Logger logger = Logger.getLogger(KernelUdpCounters.class.getName());
+
+	public static final String UDP_TABLE = "/proc/net/udp";
+	public static final String UDP6_TABLE = "/proc/net/udp6";
+	public static final String SNMP = "/proc/net/snmp";
+	public static final String OWN_FDS = "/proc/self/fd";
+
+	/*
+	 * Names of counters in the Udp lines of SNMP
+	 */
+	public static final String IN_DATAGRAMS = "InDatagrams";
+	public static final String IN_ERRORS = "InErrors";
+	public static final String RCVBUF_ERRORS = "RcvbufErrors";
+	public static final String SNDBUF_ERRORS = "SndbufErrors";
+
+	/*
+	 * Columns of the socket tables, after splitting on white space
+	 */
+	private static final int LOCAL_ADDRESS_COLUMN = 1;
+	private static final int QUEUES_COLUMN = 4;
+	private static final int INODE_COLUMN = 9;
+	private static final int DROPS_COLUMN = 12;
+
+	private static final String SOCKET_LINK = "socket:[";
+
+	private KernelUdpCounters() {
+	}
+
+	/**
+	 * Reads the receive queue and drops of every UDP socket of this process
+	 * @return {queued bytes, drops, inode} by key(address, port), empty if the tables can't be read
+	 */
+	static Map<String, long[]> readSockets() {
+		Map<String, long[]> sockets = new HashMap<String, long[]>();
+		Set<Long> inodes = readOwnSocketInodes();
+
+		readSocketTable(UDP_TABLE, inodes, sockets);
+		readSocketTable(UDP6_TABLE, inodes, sockets);
+		return sockets;
+	}
+
+	/**
+	 * Reads the receive queues of some sockets. Cheaper than readSockets, the file
+	 * descriptors aren't listed and only the rows of the sockets are parsed.
+	 * @param inodes From readSockets
+	 * @return Bytes in the receive queue by inode, the sockets that weren't found are missing
+	 */
+	static Map<Long, Long> readQueuedBytes(Set<Long> inodes) {
+		Map<Long, Long> queues = new HashMap<Long, Long>();
+
+		readQueuedBytes(UDP_TABLE, inodes, queues);
+		readQueuedBytes(UDP6_TABLE, inodes, queues);
+		return queues;
+	}
+
+	/**
+	 * The key of a socket in what readSockets returns. IPv4-mapped addresses count as
+	 * IPv4 and all wildcard addresses are the same.
+	 */
+	static String key(InetAddress address, int port) {
+		return key(address.getAddress(), port);
+	}
+
+	/**
+	 * Reads the Udp counters of SNMP
+	 * @return The counters by name, e.g. RCVBUF_ERRORS, empty if the file can't be read
+	 */
+	public static Map<String, Long> readSnmp() {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(SNMP))) {
+			String names = null;
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("Udp: ")) {
+					continue;
+				}
+				if (names == null) {
+					names = line;
+					continue;
+				}
+				String[] keys = names.split("\\s+");
+				String[] values = line.split("\\s+");
+
+				for (int i = 1; i < keys.length && i < values.length; i++) {
+					counters.put(keys[i], Long.parseLong(values[i]));
+				}
+				break;
+			}
+		} catch (IOException | NumberFormatException e) {
+			logger.log(Level.FINE, "Can't read " + SNMP + ": " + e.getMessage());
+		}
+		return counters;
+	}
+
+	/**
+	 * @return The inodes of the sockets this process has open, empty if they can't be listed
+	 */
+	private static Set<Long> readOwnSocketInodes() {
+		Set<Long> inodes = new HashSet<Long>();
+		File[] fds = new File(OWN_FDS).listFiles();
+
+		if (fds == null) {
+			logger.log(Level.FINE, "Can't list " + OWN_FDS);
+			return inodes;
+		}
+		for (File fd : fds) {
+			try {
+				String link = Files.readSymbolicLink(fd.toPath()).toString();
+
+				if (link.startsWith(SOCKET_LINK)) {
+					inodes.add(Long.parseLong(link.substring(SOCKET_LINK.length(), link.length() - 1)));
+				}
+			} catch (IOException | RuntimeException e) {
+				// closed while listing
+			}
+		}
+		return inodes;
+	}
+
+	private static void readQueuedBytes(String path, Set<Long> inodes, Map<Long, Long> queues) {
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line = reader.readLine();
+
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.trim().split("\\s+");
+
+				if (columns.length <= INODE_COLUMN) {
+					continue;
+				}
+				Long inode = Long.valueOf(columns[INODE_COLUMN]);
+
+				if (inodes.contains(inode)) {
+					String queued = columns[QUEUES_COLUMN];
+					queues.put(inode, Long.parseLong(queued.substring(queued.indexOf(':') + 1), 16));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.FINE, "Can't read " + path + ": " + e.getMessage());
+		}
+	}
+
+	private static void readSocketTable(String path, Set<Long> inodes, Map<String, long[]> sockets) {
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			// column names
+			String line = reader.readLine();
+
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.trim().split("\\s+");
+
+				if (columns.length <= DROPS_COLUMN || !inodes.contains(Long.parseLong(columns[INODE_COLUMN]))) {
+					continue;
+				}
+				String local = columns[LOCAL_ADDRESS_COLUMN];
+				int colon = local.indexOf(':');
+				byte[] address = parseAddress(local.substring(0, colon));
+				int port = Integer.parseInt(local.substring(colon + 1), 16);
+
+				String queues = columns[QUEUES_COLUMN];
+				long queued = Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16);
+				long drops = Long.parseLong(columns[DROPS_COLUMN]);
+				long inode = Long.parseLong(columns[INODE_COLUMN]);
+
+				// one socket per address and port, unless it was bound twice with SO_REUSEPORT
+				long[] counters = sockets.get(key(address, port));
+				if (counters == null) {
+					sockets.put(key(address, port), new long[] {queued, drops, inode});
+				} else {
+					counters[0] += queued;
+					counters[1] += drops;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.FINE, "Can't read " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The kernel prints an address as 32 bit words in host byte order
+	 */
+	private static byte[] parseAddress(String hex) {
+		byte[] address = new byte[hex.length() / 2];
+		boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+		for (int word = 0; word < address.length; word += 4) {
+			for (int i = 0; i < 4; i++) {
+				int position = littleEndian ? word + 3 - i : word + i;
+				address[position] = (byte) Integer.parseInt(hex.substring(2 * (word + i), 2 * (word + i) + 2), 16);
+			}
+		}
+		return address;
+	}
+
+	private static String key(byte[] address, int port) {
+		boolean mapped = address.length == 16;
+		boolean wildcard = true;
+
+		for (int i = 0; i < address.length; i++) {
+			if (i < 10 && address[i] != 0 || i >= 10 && i < 12 && address[i] != (byte) 0xff) {
+				mapped = false;
+			}
+			if (address[i] != 0) {
+				wildcard = false;
+			}
+		}
+		if (wildcard) {
+			return "*:" + port;
+		}
+		if (mapped) {
+			address = new byte[] {address[12], address[13], address[14], address[15]};
+		}
+		try {
+			return InetAddress.getByAddress(address).getHostAddress() + ":" + port;
+		} catch (UnknownHostException e) {
+			return "?:" + port;
+		}
+	}
+}
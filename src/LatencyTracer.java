@@ -0,0 +1,244 @@
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Samples where the time goes when a Server answers UDP requests. One in every
+ * sampleInterval requests per listener gets a System.nanoTime() stamp at the end of
+ * each stage (see StageProbe), and the time spent in every stage is written to a
+ * preallocated ring of the thread that finishes the request. Rings are only written
+ * by their own thread, so tracing needs no locks and, once every thread has its
+ * ring, doesn't allocate. When the Server has no tracer the listeners pay one null
+ * check per request.
+ *
+ * Time spent waiting in the socket receive buffer can't be seen from a
+ * DatagramSocket, in pipeline mode the wait for a worker is the queue stage. The
+ * io_uring listeners are not traced.
+ *
+ * dump() turns the samples of all threads into a per stage breakdown with
+ * percentiles, it can be called at any time. A ring that wraps while it is dumped
+ * may mix in a few newer samples.
+ * @author Frans
+ *
+ */
+public class LatencyTracer {
+
+	private static final int STAGES = StageProbe.STAGE_NAMES.length;
+
+	/*
+	 * A sample in a ring: the nanoseconds of each stage, -1 if the request didn't go
+	 * through it, then the total
+	 */
+	private static final int SAMPLE_SIZE = STAGES + 1;
+
+	private final int sampleInterval;
+	private final int ringSize;
+
+	private final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<Ring>();
+
+	private final ThreadLocal<Ring> ring = new ThreadLocal<Ring>() {
+		@Override
+		protected Ring initialValue() {
+			Ring ring = new Ring(ringSize);
+			rings.add(ring);
+			return ring;
+		}
+	};
+
+	/**
+	 * @param sampleInterval Trace one in this many requests per listener, 1 traces all
+	 * @param ringSize Number of samples kept per thread, older samples are overwritten
+	 */
+	public LatencyTracer(int sampleInterval, int ringSize) {
+		if (sampleInterval < 1 || ringSize < 1) {
+			throw new IllegalArgumentException("Sample interval and ring size must be positive");
+		}
+		this.sampleInterval = sampleInterval;
+		this.ringSize = ringSize;
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	public int getRingSize() {
+		return ringSize;
+	}
+
+	/**
+	 * Counts a request on the current thread
+	 * @return true if this one should be traced
+	 */
+	boolean sample() {
+		Ring ring = this.ring.get();
+
+		if (++ring.requests < sampleInterval) {
+			return false;
+		}
+		ring.requests = 0;
+		return true;
+	}
+
+	/**
+	 * Writes a finished sample to the ring of the current thread
+	 */
+	void record(Sample sample) {
+		Ring ring = this.ring.get();
+		long written = ring.written;
+		int offset = (int) (written % ringSize) * SAMPLE_SIZE;
+
+		System.arraycopy(sample.nanos, 0, ring.samples, offset, STAGES);
+		ring.samples[offset + STAGES] = sample.last - sample.start;
+		ring.written = written + 1;
+	}
+
+	/**
+	 * @return Number of samples recorded by all threads, including overwritten ones
+	 */
+	public long getSamplesRecorded() {
+		long recorded = 0;
+
+		for (Ring ring : rings) {
+			recorded += ring.written;
+		}
+		return recorded;
+	}
+
+	/**
+	 * Forgets all samples
+	 */
+	public void clear() {
+		for (Ring ring : rings) {
+			ring.written = 0;
+		}
+	}
+
+	/**
+	 * Copies the samples in the rings
+	 * @return For each sample the nanoseconds of every stage in the order of
+	 * StageProbe.STAGE_NAMES, -1 if the request didn't go through it, and then the total
+	 */
+	long[][] getSamples() {
+		/*
+		 * The recording threads keep going, so this works on one snapshot of the rings
+		 * and of how much each of them held
+		 */
+		Ring[] snapshot = rings.toArray(new Ring[0]);
+		int[] available = new int[snapshot.length];
+		int total = 0;
+
+		for (int r = 0; r < snapshot.length; r++) {
+			available[r] = (int) Math.min(snapshot[r].written, ringSize);
+			total += available[r];
+		}
+		long[][] samples = new long[total][];
+		int copied = 0;
+
+		for (int r = 0; r < snapshot.length; r++) {
+			for (int i = 0; i < available[r]; i++) {
+				samples[copied++] = Arrays.copyOfRange(snapshot[r].samples, i * SAMPLE_SIZE, (i + 1) * SAMPLE_SIZE);
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Breaks the samples in the rings down per stage
+	 * @return One line per stage with the number of samples, the mean, median, 99th
+	 * and 99.9th percentile and the maximum in microseconds
+	 */
+	public String dump() {
+		long[][] samples = getSamples();
+		long[][] values = new long[SAMPLE_SIZE][samples.length];
+		int[] counts = new int[SAMPLE_SIZE];
+
+		for (long[] sample : samples) {
+			for (int stage = 0; stage < SAMPLE_SIZE; stage++) {
+				if (sample[stage] >= 0) {
+					values[stage][counts[stage]++] = sample[stage];
+				}
+			}
+		}
+
+		StringBuilder dump = new StringBuilder(String.format("%-10s %8s %10s %10s %10s %10s %10s%n", "stage", "samples",
+				"mean us", "p50 us", "p99 us", "p99.9 us", "max us"));
+
+		for (int stage = 0; stage < SAMPLE_SIZE; stage++) {
+			int count = counts[stage];
+
+			if (count == 0) {
+				continue;
+			}
+			long[] sorted = values[stage];
+			Arrays.sort(sorted, 0, count);
+
+			long sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += sorted[i];
+			}
+			dump.append(String.format("%-10s %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					(stage < STAGES) ? StageProbe.STAGE_NAMES[stage] : "total", count, sum / 1000.0 / count,
+					percentile(sorted, count, 0.5), percentile(sorted, count, 0.99), percentile(sorted, count, 0.999),
+					sorted[count - 1] / 1000.0));
+		}
+		return dump.toString();
+	}
+
+	/**
+	 * @return The percentile in microseconds, nearest rank
+	 */
+	private static double percentile(long[] sorted, int count, double fraction) {
+		int rank = (int) Math.ceil(fraction * count) - 1;
+
+		return sorted[Math.max(rank, 0)] / 1000.0;
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+
+	/**
+	 * The samples of one thread
+	 */
+	private static class Ring {
+		final long[] samples;
+
+		/*
+		 * Requests since the last sample, used by sample() on the same thread
+		 */
+		int requests;
+
+		volatile long written;
+
+		Ring(int size) {
+			samples = new long[size * SAMPLE_SIZE];
+			Arrays.fill(samples, -1);
+		}
+	}
+
+	/**
+	 * The stage times of one request on its way through the Server. A listener
+	 * without a pipeline keeps one, in pipeline mode every slot has one.
+	 */
+	static class Sample implements StageProbe {
+		final long[] nanos = new long[STAGES];
+		long start;
+		long last;
+
+		/**
+		 * The request was received just now
+		 */
+		void start() {
+			Arrays.fill(nanos, -1);
+			start = System.nanoTime();
+			last = start;
+		}
+
+		public void mark(int stage) {
+			long now = System.nanoTime();
+
+			nanos[stage] = (nanos[stage] < 0) ? now - last : nanos[stage] + now - last;
+			last = now;
+		}
+	}
+}
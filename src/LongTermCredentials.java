@@ -0,0 +1,315 @@
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The long-term credential mechanism of RFC5389 section 10.2 for a Server. Requests
+ * without MESSAGE-INTEGRITY are challenged with 401 (Unauthorized), REALM and a
+ * NONCE. Requests with a nonce that isn't valid for their source get 438 (Stale
+ * Nonce) and a new one. A request is authentic when its USERNAME is known, its REALM
+ * matches and its MESSAGE-INTEGRITY was made with the key MD5(username ":" realm ":"
+ * password). The Server then adds MESSAGE-INTEGRITY with the same key to the response.
+ *
+ * Nonces come from a NonceIssuer, so no state is kept per client. Memory only grows
+ * with the number of users, and checking a request takes one HMAC for the nonce and
+ * one for the message. Both are computed into buffers per thread, users are looked up
+ * by the bytes of USERNAME and every thread keeps Macs initialized with the keys of
+ * the users it saw last, so an authentic request allocates nothing here.
+ * @author Frans
+ *
+ */
+public class LongTermCredentials {
+	private static final Logger logger = Logger.getLogger(LongTermCredentials.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	private static final String ALGORITHM = "HmacSHA1";
+
+	/*
+	 * Macs each thread keeps initialized, a power of two
+	 */
+	private static final int CACHED_MACS = 16;
+
+	private final byte[] realm;
+	private final NonceIssuer nonces;
+	private final ConcurrentHashMap<Username, byte[]> keys = new ConcurrentHashMap<Username, byte[]>();
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * @param realm The REALM sent to clients, less than 128 characters
+	 * @param nonces Issues and checks the nonces
+	 */
+	public LongTermCredentials(String realm, NonceIssuer nonces) {
+		if (realm.length() >= 128) {
+			throw new IllegalArgumentException("REALM must be less than 128 characters");
+		}
+		this.realm = realm.getBytes(StandardCharsets.UTF_8);
+		this.nonces = nonces;
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	public String getRealm() {
+		return new String(realm, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Adds a user or changes the password of one
+	 */
+	public void addUser(String username, String password) {
+		keys.put(new Username(username), key(username, getRealm(), password));
+	}
+
+	public void removeUser(String username) {
+		keys.remove(new Username(username));
+	}
+
+	/**
+	 * The long-term key of RFC5389 section 15.4
+	 * @return MD5(username ":" realm ":" password)
+	 */
+	public static byte[] key(String username, String realm, String password) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			return md5.digest((username + ":" + realm + ":" + password).getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("MD5 not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks a request
+	 * @param request A STUN request
+	 * @param length The number of valid bytes in request
+	 * @param source Where the request came from
+	 * @return 0 if the request is authentic, otherwise the error code to answer with:
+	 * 400, 401 or 438
+	 */
+	int check(byte[] request, int length, InetAddress source) {
+		if (Header.findAttribute(request, length, Header.MESSAGE_INTEGRITY) == -1) {
+			return Header.UNAUTHORIZED;
+		}
+		int usernameOffset = Header.findAttribute(request, length, Header.USERNAME);
+		int realmOffset = Header.findAttribute(request, length, Header.REALM);
+		int nonceOffset = Header.findAttribute(request, length, Header.NONCE);
+
+		if (usernameOffset == -1 || realmOffset == -1 || nonceOffset == -1) {
+			return Header.BAD_REQUEST;
+		}
+		if (!nonces.isValid(request, nonceOffset + Header.TYPE_LENGTH_VALUE, Header.getAttributeLength(request, nonceOffset),
+				source)) {
+			logger.log(Level.FINE, "Stale nonce from " + source);
+			return Header.STALE_NONCE;
+		}
+		byte[] key = getKey(request, length);
+
+		if (key == null || !isRealm(request, realmOffset)
+				|| !Header.checkMessageIntegrity(request, length, mac(key), scratch.get().expected)) {
+			logger.log(Level.FINE, "Wrong credentials from " + source);
+			return Header.UNAUTHORIZED;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The key of the USERNAME in request or null if there is no such user
+	 */
+	byte[] getKey(byte[] request, int length) {
+		int offset = Header.findAttribute(request, length, Header.USERNAME);
+
+		if (offset == -1) {
+			return null;
+		}
+		Username probe = scratch.get().username;
+		probe.set(request, offset + Header.TYPE_LENGTH_VALUE, Header.getAttributeLength(request, offset));
+
+		return keys.get(probe);
+	}
+
+	/**
+	 * @return true if the REALM attribute at offset is the realm of these credentials
+	 */
+	private boolean isRealm(byte[] request, int offset) {
+		if (Header.getAttributeLength(request, offset) != realm.length) {
+			return false;
+		}
+		for (int i = 0; i < realm.length; i++) {
+			if (request[offset + Header.TYPE_LENGTH_VALUE + i] != realm[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the error response for a request that check turned down. 401 and 438
+	 * come with REALM and a new NONCE.
+	 * @param response At least Server.RESPONSE_BUFFER_SIZE bytes
+	 * @param request The request
+	 * @param errorCode What check returned
+	 * @param source Where the request came from
+	 * @return The length of the response
+	 */
+	int putChallenge(byte[] response, byte[] request, int errorCode, InetAddress source) {
+		System.arraycopy(request, 0, response, 0, Header.LENGTH);
+
+		String reason = (errorCode == Header.UNAUTHORIZED) ? "Unauthorized"
+				: (errorCode == Header.STALE_NONCE) ? "Stale Nonce" : "Bad Request";
+		int offset = Header.putErrorCode(response, Header.LENGTH, errorCode, reason);
+
+		if (errorCode != Header.BAD_REQUEST) {
+			offset = Header.putBytesAttribute(response, offset, Header.REALM, realm);
+			offset = Header.putBytesAttribute(response, offset, Header.NONCE, nonces.issue(source));
+		}
+		Header.setMessageTypeAndLength(response, Header.getMessageType(request) | Header.ERROR_RESPONSE_CLASS, offset - Header.LENGTH);
+
+		return offset;
+	}
+
+	/**
+	 * Appends MESSAGE-INTEGRITY to a response
+	 * @param response The response, with room for Header.TYPE_LENGTH_VALUE +
+	 * Header.MESSAGE_INTEGRITY_LENGTH more bytes
+	 * @param length The length of the response
+	 * @param key From getKey
+	 * @return The new length
+	 */
+	int sign(byte[] response, int length, byte[] key) {
+		return Header.putMessageIntegrity(response, length, mac(key));
+	}
+
+	/**
+	 * Like sign but for a response that fills its array
+	 * @return A new array with the signed response
+	 */
+	byte[] sign(byte[] response, byte[] key) {
+		byte[] signed = Arrays.copyOf(response, response.length + Header.TYPE_LENGTH_VALUE + Header.MESSAGE_INTEGRITY_LENGTH);
+		sign(signed, response.length, key);
+
+		return signed;
+	}
+
+	/**
+	 * @return A Mac of this thread initialized with key, which must come from getKey
+	 */
+	private Mac mac(byte[] key) {
+		Scratch scratch = this.scratch.get();
+
+		// the keys are the arrays in the map, so a user keeps its slot until its password changes
+		int slot = System.identityHashCode(key) & (CACHED_MACS - 1);
+		Mac mac = scratch.macs[slot];
+
+		if (scratch.keys[slot] != key) {
+			try {
+				if (mac == null) {
+					mac = Mac.getInstance(ALGORITHM);
+					scratch.macs[slot] = mac;
+				}
+				mac.init(new SecretKeySpec(key, ALGORITHM));
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Can't initialize " + ALGORITHM + ": " + e.getMessage());
+			}
+			scratch.keys[slot] = key;
+		}
+		return mac;
+	}
+
+	/**
+	 * A USERNAME as UTF-8 bytes. The keys of the map own their bytes, the one of each
+	 * thread is pointed at the attribute of the request being looked up.
+	 */
+	private static class Username {
+		private byte[] bytes;
+		private int offset;
+		private int length;
+		private int hash;
+
+		Username() {
+		}
+
+		Username(String username) {
+			byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+			set(bytes, 0, bytes.length);
+		}
+
+		void set(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+
+			int hash = 1;
+			for (int i = offset; i < offset + length; i++) {
+				hash = 31 * hash + bytes[i];
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Username)) {
+				return false;
+			}
+			Username other = (Username) o;
+
+			if (other.length != length || other.hash != hash) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (bytes[offset + i] != other.bytes[other.offset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class Scratch {
+		final Username username = new Username();
+		final byte[] expected = new byte[Header.MESSAGE_INTEGRITY_LENGTH];
+		final Mac[] macs = new Mac[CACHED_MACS];
+		final byte[][] keys = new byte[CACHED_MACS][];
+	}
+}
@@ -0,0 +1,72 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Published by MappingMonitor when what a STUN server sees as the public address of a
+ * monitored socket is learned, changes, or can't be learned any more.
+ * @author Frans
+ *
+ */
+public class MappingEvent {
+
+	public enum Type {
+		/** The first mapped address of the socket */
+		DISCOVERED,
+		/** The mapped address is different from the last one */
+		CHANGED,
+		/** The keepalive timed out, the mapping may be gone */
+		LOST,
+		/** A response arrived after LOST, with the same address as before */
+		RESTORED
+	}
+
+	private final Type type;
+	private final MappingMonitor.Mapping mapping;
+	private final InetSocketAddress previousAddress;
+	private final InetSocketAddress mappedAddress;
+	private final long time;
+
+	MappingEvent(Type type, MappingMonitor.Mapping mapping, InetSocketAddress previousAddress, InetSocketAddress mappedAddress) {
+		this.type = type;
+		this.mapping = mapping;
+		this.previousAddress = previousAddress;
+		this.mappedAddress = mappedAddress;
+		this.time = System.currentTimeMillis();
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return The monitored socket and server
+	 */
+	public MappingMonitor.Mapping getMapping() {
+		return mapping;
+	}
+
+	/**
+	 * @return The last known mapped address before this event, null for DISCOVERED
+	 */
+	public InetSocketAddress getPreviousAddress() {
+		return previousAddress;
+	}
+
+	/**
+	 * @return The mapped address now, null for LOST
+	 */
+	public InetSocketAddress getMappedAddress() {
+		return mappedAddress;
+	}
+
+	/**
+	 * @return When the event happened, System.currentTimeMillis()
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + mapping.getLocalAddress() + " via " + mapping.getServer() + ": " + previousAddress + " -> " + mappedAddress;
+	}
+}
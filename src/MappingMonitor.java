@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps NAT bindings open and watches them for changes, for any number of (local socket,
+ * STUN server) pairs on the one thread of a TransactionLoop. Each monitored socket sends
+ * a binding request every interval, varied randomly by the jitter so that thousands of
+ * sockets don't send at the same moment. When the mapped address in the response is new,
+ * different from the last one, or no response arrives, a MappingEvent is published to the
+ * subscribers.
+ *
+ * Every mapping reuses its request buffer and is its own timer task and transaction
+ * listener, so a keepalive allocates nothing in the monitor itself.
+ *
+ * Events are delivered through a SubmissionPublisher on the given Executor, by default
+ * directly on the loop thread, so subscribers must return quickly then. A subscriber
+ * that falls more than its buffer behind loses events, they are counted in
+ * getDroppedEvents.
+ * @author Frans
+ *
+ */
+public class MappingMonitor implements Flow.Publisher<MappingEvent> {
+
+	private static final Logger logger = Logger.getLogger(MappingMonitor.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final long DEFAULT_INTERVAL = 15000;
+	public static final double DEFAULT_JITTER = 0.2;
+	public static final int DEFAULT_RTO = 500;
+	public static final int DEFAULT_MAX_SENDS = 3;
+
+	private static final int REQUEST_LENGTH = Header.LENGTH;
+
+	private final TransactionLoop loop;
+	private final long interval;
+	private final double jitter;
+	private final SubmissionPublisher<MappingEvent> publisher;
+
+	private volatile int rto = DEFAULT_RTO;
+	private volatile int maxSends = DEFAULT_MAX_SENDS;
+
+	private final Set<Mapping> mappings = ConcurrentHashMap.newKeySet();
+	private final LongAdder keepalives = new LongAdder();
+	private final LongAdder droppedEvents = new LongAdder();
+
+	/*
+	 * Loop thread only
+	 */
+	private long random = System.nanoTime() | 1;
+
+	/**
+	 * A monitor that delivers events on the loop thread
+	 * @param loop The loop that runs the keepalives, it is started if it isn't already
+	 * @param interval Milliseconds between keepalives of one socket
+	 * @param jitter How much each interval is varied, 0.2 means +-20%
+	 */
+	public MappingMonitor(TransactionLoop loop, long interval, double jitter) {
+		this(loop, interval, jitter, new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+
+	/**
+	 * @param executor Where subscribers are called
+	 */
+	public MappingMonitor(TransactionLoop loop, long interval, double jitter, Executor executor) {
+		this.loop = loop;
+		this.interval = interval;
+		this.jitter = Math.min(Math.max(jitter, 0), 1);
+		this.publisher = new SubmissionPublisher<MappingEvent>(executor, Flow.defaultBufferSize());
+		loop.start();
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Retransmission of each keepalive request. A mapping is LOST when all sends of
+	 * one keepalive go unanswered.
+	 * @param rto Initial retransmission timeout in milliseconds
+	 * @param maxSends How many times a keepalive is sent before it times out
+	 */
+	public void setRetransmission(int rto, int maxSends) {
+		this.rto = rto;
+		this.maxSends = maxSends;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super MappingEvent> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	/**
+	 * Opens a socket on the loop and starts monitoring its mapping
+	 * @param localAddress Address to bind to, port 0 for any port
+	 * @param server The STUN server
+	 * @return The monitored mapping
+	 * @throws IOException If the socket can't be bound
+	 */
+	public Mapping monitor(InetSocketAddress localAddress, InetSocketAddress server) throws IOException {
+		return monitor(loop.openChannel(localAddress), server, true);
+	}
+
+	/**
+	 * Starts monitoring the mapping of a socket that is already registered with the loop.
+	 * The channel is left open when the mapping is cancelled.
+	 * @param channel A channel from TransactionLoop.openChannel
+	 * @param server The STUN server
+	 * @return The monitored mapping
+	 */
+	public Mapping monitor(DatagramChannel channel, InetSocketAddress server) {
+		return monitor(channel, server, false);
+	}
+
+	private Mapping monitor(DatagramChannel channel, InetSocketAddress server, boolean ownsChannel) {
+		final Mapping mapping = new Mapping(channel, server, ownsChannel);
+		mappings.add(mapping);
+
+		loop.execute(new Runnable() {
+			public void run() {
+				// the first keepalives are spread over an interval so they don't all go at once
+				mapping.timer = loop.schedule(mapping, (long) (interval * nextRandom()));
+			}
+		});
+		return mapping;
+	}
+
+	/**
+	 * Cancels every mapping and completes the subscriptions. The loop is left running.
+	 */
+	public void close() {
+		for (Mapping mapping : mappings) {
+			mapping.cancel();
+		}
+		publisher.close();
+	}
+
+	/**
+	 * @return Number of mappings monitored
+	 */
+	public int getMonitoredCount() {
+		return mappings.size();
+	}
+
+	/**
+	 * @return Keepalive requests started, retransmissions not counted
+	 */
+	public long getKeepalivesSent() {
+		return keepalives.sum();
+	}
+
+	/**
+	 * @return Events that a subscriber didn't take in time
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.sum();
+	}
+
+	private void publish(MappingEvent event) {
+		logger.log(Level.FINE, "Mapping event: " + event);
+
+		if (publisher.isClosed()) {
+			return;
+		}
+		int lag = publisher.offer(event, null);
+
+		if (lag < 0) {
+			droppedEvents.add(-lag);
+		}
+	}
+
+	/**
+	 * @return Uniform in [0, 1), xorshift on the loop thread
+	 */
+	private double nextRandom() {
+		random ^= random << 13;
+		random ^= random >>> 7;
+		random ^= random << 17;
+		return (random >>> 11) * 0x1.0p-53;
+	}
+
+	private long nextDelay() {
+		return (long) (interval * (1 - jitter + 2 * jitter * nextRandom()));
+	}
+
+	/**
+	 * One monitored (local socket, server) pair. It is the timer task that sends the
+	 * keepalive and the listener of the transaction, both run on the loop thread.
+	 */
+	public class Mapping implements Runnable, TransactionListener {
+		private final DatagramChannel channel;
+		private final InetSocketAddress server;
+		private final boolean ownsChannel;
+		private final InetSocketAddress localAddress;
+		private final byte[] request = new byte[REQUEST_LENGTH];
+
+		private volatile InetSocketAddress mappedAddress;
+		private InetSocketAddress lastKnownAddress;
+		private boolean lost;
+		private volatile boolean cancelled;
+		private TransactionLoop.Task timer;
+
+		Mapping(DatagramChannel channel, InetSocketAddress server, boolean ownsChannel) {
+			this.channel = channel;
+			this.server = server;
+			this.ownsChannel = ownsChannel;
+			this.localAddress = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+		}
+
+		public InetSocketAddress getLocalAddress() {
+			return localAddress;
+		}
+
+		public InetSocketAddress getServer() {
+			return server;
+		}
+
+		/**
+		 * @return The last mapped address, null before the first response and while LOST
+		 */
+		public InetSocketAddress getMappedAddress() {
+			return mappedAddress;
+		}
+
+		/**
+		 * Stops the keepalives of this mapping and closes its socket if the monitor opened it
+		 */
+		public void cancel() {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			mappings.remove(this);
+
+			loop.execute(new Runnable() {
+				public void run() {
+					if (timer != null) {
+						timer.cancel();
+					}
+					if (ownsChannel) {
+						try {
+							channel.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+		}
+
+		/**
+		 * Timer task: sends the keepalive
+		 */
+		public void run() {
+			if (cancelled || publisher.isClosed()) {
+				return;
+			}
+			Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+			Header.addMagicCookieTo(request);
+			Header.addTransactionIDTo(request);
+			keepalives.increment();
+			loop.sendRequest(channel, server, request, REQUEST_LENGTH, rto, maxSends, this);
+		}
+
+		public void onResponse(byte[] response, int length, InetSocketAddress from) {
+			InetSocketAddress address = Header.getMappedAddress(response, length);
+
+			if (address != null) {
+				if (lastKnownAddress == null) {
+					publish(new MappingEvent(MappingEvent.Type.DISCOVERED, this, null, address));
+				} else if (!address.equals(lastKnownAddress)) {
+					publish(new MappingEvent(MappingEvent.Type.CHANGED, this, lastKnownAddress, address));
+				} else if (lost) {
+					publish(new MappingEvent(MappingEvent.Type.RESTORED, this, lastKnownAddress, address));
+				}
+				lastKnownAddress = address;
+				mappedAddress = address;
+				lost = false;
+			}
+			next();
+		}
+
+		public void onTimeout() {
+			if (!lost && !cancelled) {
+				lost = true;
+				mappedAddress = null;
+				publish(new MappingEvent(MappingEvent.Type.LOST, this, lastKnownAddress, null));
+			}
+			next();
+		}
+
+		private void next() {
+			if (!cancelled) {
+				timer = loop.schedule(this, nextDelay());
+			}
+		}
+	}
+}
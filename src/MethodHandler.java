@@ -0,0 +1,29 @@
+import java.net.InetAddress;
+
+/**
+ * Answers one STUN message type for a Server, see Server.setMethodHandler. The Server
+ * looks handlers up in a table indexed by message type, so a handler costs one
+ * array load per request no matter how many are registered.
+ *
+ * A handler writes its response into a buffer owned by the listener and returns
+ * the length, the Server then adds MESSAGE-INTEGRITY if the request was
+ * authenticated and sends it. The buffer holds an older response, so every byte up
+ * to the returned length has to be written. Handlers are called from all listener
+ * threads at once and must be thread safe.
+ * @author Frans
+ *
+ */
+public interface MethodHandler {
+
+	/**
+	 * @param request The message, magic cookie checked and at least Header.LENGTH bytes
+	 * @param length The number of valid bytes in request
+	 * @param source Where the message came from
+	 * @param sourcePort
+	 * @param response Where the response is written, Server.RESPONSE_BUFFER_SIZE bytes
+	 * with room left for MESSAGE-INTEGRITY after the first
+	 * Server.RESPONSE_BUFFER_SIZE - 24 bytes
+	 * @return The length of the response or 0 to send nothing
+	 */
+	int handle(byte[] request, int length, InetAddress source, int sourcePort, byte[] response);
+}
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * NAT mapping and filtering behavior discovery from RFC5780, against a server that
+ * sends OTHER-ADDRESS and honours CHANGE-REQUEST.
+ * 
+ * The classic procedure runs the tests one after another and waits for a timeout
+ * in several of them. Here the tests that don't depend on each other run at the same
+ * time from separate local sockets on one TransactionLoop:
+ * <ul>
+ * <li>mapping test I from socket M, followed by tests II and III from M as soon as
+ * OTHER-ADDRESS is known</li>
+ * <li>filtering test II (change IP and port) from socket F2</li>
+ * <li>filtering test III (change port) from socket F3</li>
+ * </ul>
+ * F2 and F3 only ever talk to the primary address so their filters are not opened
+ * by the other tests. A classification takes about two round trips or one filtering
+ * timeout, whichever is longer.
+ * @author Frans
+ *
+ */
+public class NatBehaviorDiscovery {
+
+	private static final Logger logger = Logger.getLogger(NatBehaviorDiscovery.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public enum Behavior {
+		NO_NAT, ENDPOINT_INDEPENDENT, ADDRESS_DEPENDENT, ADDRESS_AND_PORT_DEPENDENT, UNKNOWN
+	}
+
+	private static final int MAX_REQUEST_LENGTH = 64;
+
+	private final TransactionLoop loop;
+	private final InetSocketAddress server;
+	private final InetAddress localAddress;
+
+	private int rto = 100;
+	private int maxSends = 3;
+
+	/**
+	 * @param loop The loop that runs the tests, it is started if it isn't already
+	 * @param server Primary address and port of an RFC5780 server
+	 * @param localAddress The local address to test from, null for the wildcard address
+	 */
+	public NatBehaviorDiscovery(TransactionLoop loop, InetSocketAddress server, InetAddress localAddress) {
+		this.loop = loop;
+		this.server = server;
+		this.localAddress = localAddress;
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons 
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Sets how long a test waits for a response. An unanswered filtering test takes
+	 * rto * (2^(maxSends-1) - 1) + 16 * rto milliseconds.
+	 * @param rto Initial retransmission timeout in milliseconds
+	 * @param maxSends Number of requests per test
+	 */
+	public void setTimeout(int rto, int maxSends) {
+		this.rto = rto;
+		this.maxSends = maxSends;
+	}
+
+	/**
+	 * Runs the tests and waits for the classification
+	 * @return The result
+	 * @throws IOException If the local sockets can't be opened or the thread is interrupted
+	 */
+	public Result discover() throws IOException {
+		Result result = new Result();
+		InetSocketAddress local = new InetSocketAddress(localAddress, 0);
+
+		loop.start();
+		DatagramChannel mapping = loop.openChannel(local);
+		DatagramChannel filteringAddressAndPort = loop.openChannel(local);
+		DatagramChannel filteringPort = loop.openChannel(local);
+
+		try {
+			mappingTestOne(result, mapping);
+			filteringTest(result, filteringAddressAndPort, Header.CHANGE_IP_MASK | Header.CHANGE_PORT_MASK);
+			filteringTest(result, filteringPort, Header.CHANGE_PORT_MASK);
+
+			result.await();
+		} catch (InterruptedException e) {
+			throw new IOException("NAT behavior discovery interrupted");
+		} finally {
+			mapping.close();
+			filteringAddressAndPort.close();
+			filteringPort.close();
+		}
+		logger.log(Level.FINE, "NAT behavior " + result);
+		return result;
+	}
+
+	private byte[] newRequest(int changeRequest) {
+		byte[] request = new byte[MAX_REQUEST_LENGTH];
+
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+
+		int offset = Header.LENGTH;
+		if (changeRequest != 0) {
+			offset = Header.putIntAttribute(request, offset, Header.CHANGE_REQUEST, changeRequest);
+		}
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, offset - Header.LENGTH);
+		return request;
+	}
+
+	private void mappingTestOne(final Result result, final DatagramChannel channel) {
+		byte[] request = newRequest(0);
+		result.started();
+
+		loop.sendRequest(channel, server, request, Header.LENGTH + Header.getMessageLength(request), rto, maxSends, new TransactionListener() {
+			public void onResponse(byte[] response, int length, InetSocketAddress from) {
+				InetSocketAddress mapped = Header.getMappedAddress(response, length);
+				int otherOffset = Header.findAttribute(response, length, Header.OTHER_ADDRESS);
+				InetSocketAddress other = (otherOffset != -1) ? Header.getAddressAttribute(response, otherOffset) : null;
+
+				result.mappedAddress = mapped;
+				result.otherAddress = other;
+
+				if (mapped == null || other == null) {
+					logger.log(Level.WARNING, "Server " + server + " doesn't support RFC5780");
+				} else if (isLocal(mapped, channel)) {
+					result.mapping = Behavior.NO_NAT;
+				} else {
+					mappingTestsTwoAndThree(result, channel, mapped, other);
+				}
+				result.finished();
+			}
+
+			public void onTimeout() {
+				logger.log(Level.WARNING, "No response from " + server);
+				result.finished();
+			}
+		});
+	}
+
+	/**
+	 * Test II to the alternate address and primary port and test III to the
+	 * alternate address and port, both at once.
+	 */
+	private void mappingTestsTwoAndThree(final Result result, DatagramChannel channel, final InetSocketAddress first, 
+			InetSocketAddress other) {
+		final InetSocketAddress[] mapped = new InetSocketAddress[2];
+		final int[] outstanding = {2};
+
+		InetSocketAddress[] targets = {new InetSocketAddress(other.getAddress(), server.getPort()), other};
+
+		for (int i = 0; i < 2; i++) {
+			final int test = i;
+			byte[] request = newRequest(0);
+			result.started();
+
+			loop.sendRequest(channel, targets[i], request, Header.LENGTH + Header.getMessageLength(request), rto, maxSends, new TransactionListener() {
+				public void onResponse(byte[] response, int length, InetSocketAddress from) {
+					mapped[test] = Header.getMappedAddress(response, length);
+					done();
+				}
+
+				public void onTimeout() {
+					done();
+				}
+
+				private void done() {
+					if (--outstanding[0] == 0) {
+						if (mapped[0] == null) {
+							result.mapping = Behavior.UNKNOWN;
+						} else if (mapped[0].equals(first)) {
+							result.mapping = Behavior.ENDPOINT_INDEPENDENT;
+						} else if (mapped[0].equals(mapped[1])) {
+							result.mapping = Behavior.ADDRESS_DEPENDENT;
+						} else {
+							result.mapping = Behavior.ADDRESS_AND_PORT_DEPENDENT;
+						}
+					}
+					result.finished();
+				}
+			});
+		}
+	}
+
+	/**
+	 * A filtering test passes if the response arrives from where it was asked to come from
+	 */
+	private void filteringTest(final Result result, DatagramChannel channel, final int changeRequest) {
+		byte[] request = newRequest(changeRequest);
+		result.started();
+
+		loop.sendRequest(channel, server, request, Header.LENGTH + Header.getMessageLength(request), rto, maxSends, new TransactionListener() {
+			public void onResponse(byte[] response, int length, InetSocketAddress from) {
+				boolean changedAddress = !from.getAddress().equals(server.getAddress());
+				boolean changedPort = from.getPort() != server.getPort();
+
+				if ((changeRequest & Header.CHANGE_IP_MASK) != 0) {
+					result.addressAndPortFilterPassed = changedAddress && changedPort;
+				} else {
+					result.portFilterPassed = !changedAddress && changedPort;
+				}
+				result.finished();
+			}
+
+			public void onTimeout() {
+				result.finished();
+			}
+		});
+	}
+
+	private boolean isLocal(InetSocketAddress mapped, DatagramChannel channel) {
+		if (mapped.getPort() != channel.socket().getLocalPort()) {
+			return false;
+		}
+		try {
+			return NetworkInterface.getByInetAddress(mapped.getAddress()) != null;
+		} catch (SocketException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The outcome of a discovery
+	 */
+	public static class Result {
+		private volatile Behavior mapping = Behavior.UNKNOWN;
+		private volatile InetSocketAddress mappedAddress;
+		private volatile InetSocketAddress otherAddress;
+		private volatile boolean addressAndPortFilterPassed;
+		private volatile boolean portFilterPassed;
+
+		private final long start = System.nanoTime();
+		private long elapsedNanos;
+		private int outstanding;
+
+		private synchronized void started() {
+			outstanding++;
+		}
+
+		private synchronized void finished() {
+			if (--outstanding == 0) {
+				elapsedNanos = System.nanoTime() - start;
+				notifyAll();
+			}
+		}
+
+		private synchronized void await() throws InterruptedException {
+			while (outstanding > 0) {
+				wait();
+			}
+		}
+
+		public Behavior getMappingBehavior() {
+			return mapping;
+		}
+
+		/**
+		 * @return The filtering behavior, UNKNOWN if the server didn't answer test I
+		 */
+		public Behavior getFilteringBehavior() {
+			if (otherAddress == null) {
+				return Behavior.UNKNOWN;
+			}
+			if (addressAndPortFilterPassed) {
+				return Behavior.ENDPOINT_INDEPENDENT;
+			}
+			return portFilterPassed ? Behavior.ADDRESS_DEPENDENT : Behavior.ADDRESS_AND_PORT_DEPENDENT;
+		}
+
+		/**
+		 * @return The mapped address from mapping test I
+		 */
+		public InetSocketAddress getMappedAddress() {
+			return mappedAddress;
+		}
+
+		/**
+		 * @return OTHER-ADDRESS of the server or null if it didn't send one
+		 */
+		public InetSocketAddress getOtherAddress() {
+			return otherAddress;
+		}
+
+		public synchronized long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		@Override
+		public String toString() {
+			return "mapping " + getMappingBehavior() + ", filtering " + getFilteringBehavior() + ", mapped address " 
+					+ mappedAddress + " in " + getElapsedMillis() + "ms";
+		}
+	}
+}
@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Surveys how a NAT allocates external ports, so that the port of the next mapping
+ * can be predicted for traversing symmetric NATs. Many local sockets send a binding
+ * request to every server at once from one TransactionLoop, so hundreds of mappings
+ * are learnt in about one round trip.
+ *
+ * The requests go out in a fixed order: socket by socket, to the servers in the
+ * order given. The NAT sees them in that order, so the ports of the new mappings, in
+ * that order, show its allocation pattern:
+ * <ul>
+ * <li>PRESERVING: the external port is the local port</li>
+ * <li>SEQUENTIAL: most new mappings are a fixed delta after the previous one, other
+ * hosts behind the NAT may take some ports in between</li>
+ * <li>RANDOM: no delta stands out</li>
+ * </ul>
+ * With one server, a NAT that only maps per destination looks like a cone NAT. Two
+ * servers also show whether the NAT maps per destination.
+ * @author Frans
+ *
+ */
+public class NatPortSurvey {
+
+	private static final Logger logger = Logger.getLogger(NatPortSurvey.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public enum Allocation {
+		PRESERVING, SEQUENTIAL, RANDOM, UNKNOWN
+	}
+
+	/*
+	 * Share of the answered probes that must keep their local port for PRESERVING,
+	 * and of the deltas that must be the same for SEQUENTIAL
+	 */
+	private static final double PRESERVING_SHARE = 0.9;
+	private static final double SEQUENTIAL_SHARE = 0.5;
+
+	/*
+	 * NATs give out ports above the well known ones and wrap around to there
+	 */
+	private static final int FIRST_PORT = 1024;
+	private static final int PORTS = 65536 - FIRST_PORT;
+
+	private final TransactionLoop loop;
+	private final List<InetSocketAddress> servers;
+	private final InetAddress localAddress;
+
+	private int rto = 200;
+	private int maxSends = 3;
+
+	/**
+	 * @param loop The loop that sends the probes, it is started if it isn't already
+	 * @param servers STUN servers to probe, each socket asks all of them
+	 * @param localAddress The local address to probe from, null for the wildcard address
+	 */
+	public NatPortSurvey(TransactionLoop loop, List<InetSocketAddress> servers, InetAddress localAddress) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No servers to survey with");
+		}
+		this.loop = loop;
+		this.servers = new ArrayList<InetSocketAddress>(servers);
+		this.localAddress = localAddress;
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Retransmission timing of the probes, a lost probe leaves a gap in the sequence
+	 * @param rto Initial retransmission timeout in milliseconds
+	 * @param maxSends How many times a probe is sent
+	 */
+	public void setTimeout(int rto, int maxSends) {
+		this.rto = rto;
+		this.maxSends = maxSends;
+	}
+
+	/**
+	 * Probes from new sockets and waits for the analysis
+	 * @param sockets Number of local sockets to open, each probes every server
+	 * @return The mappings and the allocation pattern
+	 * @throws IOException If the sockets can't be opened or the thread is interrupted
+	 */
+	public Result survey(int sockets) throws IOException {
+		Result result = new Result(sockets * servers.size());
+		DatagramChannel[] channels = new DatagramChannel[sockets];
+		InetSocketAddress local = new InetSocketAddress(localAddress, 0);
+
+		loop.start();
+		try {
+			for (int i = 0; i < sockets; i++) {
+				channels[i] = loop.openChannel(local);
+			}
+			int probe = 0;
+			for (int i = 0; i < sockets; i++) {
+				for (InetSocketAddress server : servers) {
+					probe(result, probe++, channels[i], server);
+				}
+			}
+			result.await();
+		} catch (InterruptedException e) {
+			throw new IOException("NAT port survey interrupted");
+		} finally {
+			for (DatagramChannel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+		}
+		result.analyze();
+		logger.log(Level.FINE, "NAT port allocation " + result);
+		return result;
+	}
+
+	private void probe(final Result result, final int probe, DatagramChannel channel, InetSocketAddress server) {
+		byte[] request = new byte[Header.LENGTH];
+
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+		result.localPorts[probe] = channel.socket().getLocalPort();
+		result.servers[probe] = server;
+
+		loop.sendRequest(channel, server, request, request.length, rto, maxSends, new TransactionListener() {
+			public void onResponse(byte[] response, int length, InetSocketAddress from) {
+				result.mapped[probe] = Header.getMappedAddress(response, length);
+				result.finished();
+			}
+
+			public void onTimeout() {
+				result.finished();
+			}
+		});
+	}
+
+	/**
+	 * The outcome of a survey. The probes are numbered in the order they were sent.
+	 */
+	public static class Result {
+		private final int[] localPorts;
+		private final InetSocketAddress[] servers;
+		private final InetSocketAddress[] mapped;
+
+		private final long start = System.nanoTime();
+		private long elapsedNanos;
+		private int outstanding;
+
+		private Allocation allocation = Allocation.UNKNOWN;
+		private int answered;
+		private double preservedShare;
+		private int[] ports = new int[0];
+		private int delta;
+		private double deltaShare;
+		private double deltaDeviation;
+
+		Result(int probes) {
+			localPorts = new int[probes];
+			servers = new InetSocketAddress[probes];
+			mapped = new InetSocketAddress[probes];
+			outstanding = probes;
+		}
+
+		private synchronized void finished() {
+			if (--outstanding == 0) {
+				elapsedNanos = System.nanoTime() - start;
+				notifyAll();
+			}
+		}
+
+		private synchronized void await() throws InterruptedException {
+			while (outstanding > 0) {
+				wait();
+			}
+		}
+
+		/**
+		 * Finds the allocation pattern in the mappings
+		 */
+		synchronized void analyze() {
+			HashSet<InetSocketAddress> seen = new HashSet<InetSocketAddress>();
+			int[] newPorts = new int[mapped.length];
+			int preserved = 0;
+			int count = 0;
+			answered = 0;
+
+			for (int i = 0; i < mapped.length; i++) {
+				if (mapped[i] == null) {
+					continue;
+				}
+				answered++;
+				if (mapped[i].getPort() == localPorts[i]) {
+					preserved++;
+				}
+				if (seen.add(mapped[i])) {
+					newPorts[count++] = mapped[i].getPort();
+				}
+			}
+			ports = Arrays.copyOf(newPorts, count);
+			preservedShare = (answered > 0) ? (double) preserved / answered : 0;
+
+			HashMap<Integer, Integer> deltas = new HashMap<Integer, Integer>();
+			int deltaCount = 0;
+			double sum = 0;
+			double squares = 0;
+
+			for (int i = 1; i < ports.length; i++) {
+				int d = ports[i] - ports[i - 1];
+				Integer seenBefore = deltas.get(d);
+				int times = (seenBefore != null) ? seenBefore + 1 : 1;
+				deltas.put(d, times);
+
+				if (times > deltaCount || times == deltaCount && Math.abs(d) < Math.abs(delta)) {
+					delta = d;
+					deltaCount = times;
+				}
+				sum += d;
+				squares += (double) d * d;
+			}
+			int n = ports.length - 1;
+			deltaShare = (n > 0) ? (double) deltaCount / n : 0;
+			deltaDeviation = (n > 0) ? Math.sqrt(Math.max(squares / n - (sum / n) * (sum / n), 0)) : 0;
+
+			if (answered == 0) {
+				allocation = Allocation.UNKNOWN;
+			} else if (preservedShare >= PRESERVING_SHARE) {
+				allocation = Allocation.PRESERVING;
+			} else if (n == 0) {
+				allocation = Allocation.UNKNOWN;
+			} else if (delta != 0 && deltaShare >= SEQUENTIAL_SHARE) {
+				allocation = Allocation.SEQUENTIAL;
+			} else {
+				allocation = Allocation.RANDOM;
+			}
+		}
+
+		/**
+		 * Stores a probe, for analyzing mappings found some other way
+		 */
+		synchronized void setProbe(int probe, int localPort, InetSocketAddress server, InetSocketAddress mappedAddress) {
+			localPorts[probe] = localPort;
+			servers[probe] = server;
+			mapped[probe] = mappedAddress;
+		}
+
+		public synchronized Allocation getAllocation() {
+			return allocation;
+		}
+
+		public int getProbes() {
+			return mapped.length;
+		}
+
+		/**
+		 * @return Probes that got a response
+		 */
+		public synchronized int getAnswered() {
+			return answered;
+		}
+
+		/**
+		 * @return The mapped address of a probe or null if it wasn't answered
+		 */
+		public synchronized InetSocketAddress getMappedAddress(int probe) {
+			return mapped[probe];
+		}
+
+		public synchronized int getLocalPort(int probe) {
+			return localPorts[probe];
+		}
+
+		public synchronized InetSocketAddress getServer(int probe) {
+			return servers[probe];
+		}
+
+		/**
+		 * @return The external ports of the distinct mappings in the order they were made
+		 */
+		public synchronized int[] getPorts() {
+			return ports.clone();
+		}
+
+		/**
+		 * @return Share of the answered probes whose external port was their local port
+		 */
+		public synchronized double getPreservedShare() {
+			return preservedShare;
+		}
+
+		/**
+		 * @return The most common difference between the ports of consecutive mappings
+		 */
+		public synchronized int getDelta() {
+			return delta;
+		}
+
+		/**
+		 * @return Share of the differences that are getDelta(), 1 for a NAT that nothing
+		 * else used during the survey
+		 */
+		public synchronized double getDeltaShare() {
+			return deltaShare;
+		}
+
+		/**
+		 * @return Standard deviation of the differences, a measure of randomness: small
+		 * for sequential allocation, thousands for random allocation
+		 */
+		public synchronized double getDeltaDeviation() {
+			return deltaDeviation;
+		}
+
+		/**
+		 * Predicts the external port of the next mapping the NAT makes
+		 * @param localPort The local port the mapping will be made for
+		 * @return The port or -1 if the allocation is random or unknown
+		 */
+		public synchronized int predictNextPort(int localPort) {
+			if (allocation == Allocation.PRESERVING) {
+				return localPort;
+			} else if (allocation == Allocation.SEQUENTIAL) {
+				return wrap(ports[ports.length - 1] + delta);
+			}
+			return -1;
+		}
+
+		/**
+		 * Candidates for the ports of the next mappings, for when other hosts behind
+		 * the NAT may take ports first
+		 * @param count Number of candidates
+		 * @return The next count ports of a sequential NAT, most likely first, or no
+		 * ports for other allocations
+		 */
+		public synchronized int[] predictPorts(int count) {
+			if (allocation != Allocation.SEQUENTIAL) {
+				return new int[0];
+			}
+			int[] candidates = new int[count];
+			int last = ports[ports.length - 1];
+
+			for (int i = 0; i < count; i++) {
+				candidates[i] = wrap(last + (i + 1) * delta);
+			}
+			return candidates;
+		}
+
+		public synchronized long getElapsedMillis() {
+			return elapsedNanos / 1000000;
+		}
+
+		private static int wrap(int port) {
+			return FIRST_PORT + Math.floorMod(port - FIRST_PORT, PORTS);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return allocation + ", " + answered + " of " + mapped.length + " probes answered, " + ports.length
+					+ " mappings, preserved " + String.format("%.2f", preservedShare) + ", delta " + delta + " ("
+					+ String.format("%.2f", deltaShare) + "), deviation " + String.format("%.1f", deltaDeviation) + " in "
+					+ getElapsedMillis() + "ms";
+		}
+	}
+
+	/**
+	 * Surveys the NAT in front of this host
+	 * @param args host:port[,host:port...] [sockets]
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: NatPortSurvey host:port[,host:port...] [sockets]");
+			System.exit(2);
+		}
+		List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+
+		for (String server : args[0].split(",")) {
+			int colon = server.lastIndexOf(':');
+			servers.add(new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))));
+		}
+		int sockets = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+
+		try {
+			TransactionLoop loop = new TransactionLoop();
+			Result result = new NatPortSurvey(loop, servers, null).survey(sockets);
+			loop.close();
+
+			System.out.println(result);
+			System.out.println("Next port for local port 40000: " + result.predictNextPort(40000) + ", candidates "
+					+ Arrays.toString(result.predictPorts(5)));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
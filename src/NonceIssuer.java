@@ -0,0 +1,260 @@
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues NONCE values for long-term credentials that validate themselves, so the
+ * server doesn't have to remember which nonce it gave to which client. A nonce is
+ * the time it was issued followed by a truncated HMAC-SHA256 of the client address
+ * and that time, encoded in URL-safe base64. Checking one takes a single MAC and
+ * no lookups, so a flood of made up nonces costs CPU but never memory.
+ *
+ * The HMAC key is random and replaced every lifetime. The previous key is kept for
+ * one more lifetime, older nonces are stale anyway. Nonces from another server or
+ * from before a restart are stale too, the client gets a new one with 438.
+ * @author Frans
+ *
+ */
+public class NonceIssuer {
+
+	/*
+	 * 10 minutes, a client needs a new nonce that often
+	 */
+	public static final long DEFAULT_LIFETIME = 600000;
+
+	private static final int TIME_LENGTH = 8;
+	private static final int MAC_LENGTH = 12;
+	private static final int RAW_LENGTH = TIME_LENGTH + MAC_LENGTH;
+	private static final int ENCODED_LENGTH = (RAW_LENGTH * 4 + 2) / 3;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int HMAC_LENGTH = 32;
+
+	/*
+	 * The values of the URL-safe base64 alphabet, -1 for everything else
+	 */
+	private static final byte[] DECODE = new byte[128];
+
+	static {
+		Arrays.fill(DECODE, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		for (int i = 0; i < alphabet.length(); i++) {
+			DECODE[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	private final long lifetime;
+	private final SecureRandom random = new SecureRandom();
+
+	private volatile Keys keys;
+
+	/*
+	 * Macs per thread for the current and the previous key, initialized again when
+	 * the keys rotate, and the buffers isValid decodes and computes into
+	 */
+	private final ThreadLocal<Macs> macs = new ThreadLocal<Macs>() {
+		@Override
+		protected Macs initialValue() {
+			return new Macs();
+		}
+	};
+
+	/**
+	 * @param lifetime How long a nonce is valid in milliseconds, see DEFAULT_LIFETIME
+	 */
+	public NonceIssuer(long lifetime) {
+		if (lifetime <= 0) {
+			throw new IllegalArgumentException("Nonce lifetime must be positive");
+		}
+		this.lifetime = lifetime;
+		long epoch = System.currentTimeMillis() / lifetime;
+		keys = new Keys(epoch, newKey(), newKey());
+	}
+
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * @return A nonce for a client at address
+	 */
+	public byte[] issue(InetAddress address) {
+		long now = System.currentTimeMillis();
+		byte[] raw = new byte[RAW_LENGTH];
+
+		for (int i = 0; i < TIME_LENGTH; i++) {
+			raw[i] = (byte) (now >> (56 - 8 * i));
+		}
+		Mac mac = mac(now / lifetime);
+		mac.update(address.getAddress());
+		mac.update(raw, 0, TIME_LENGTH);
+		System.arraycopy(mac.doFinal(), 0, raw, TIME_LENGTH, MAC_LENGTH);
+
+		return Base64.getUrlEncoder().withoutPadding().encode(raw);
+	}
+
+	/**
+	 * @param nonce A NONCE from a request
+	 * @param address Where the request came from
+	 * @return true if this issuer gave the nonce to address less than a lifetime ago
+	 */
+	public boolean isValid(byte[] nonce, InetAddress address) {
+		return isValid(nonce, 0, nonce.length, address);
+	}
+
+	/**
+	 * Like isValid(nonce, address) for a nonce inside a message. Decodes and computes
+	 * into buffers of the calling thread, so it allocates nothing but the copy
+	 * InetAddress makes of the address.
+	 * @param message Holds the nonce, a NONCE attribute for instance
+	 * @param offset Where the nonce starts
+	 * @param length The length of the nonce
+	 */
+	public boolean isValid(byte[] message, int offset, int length, InetAddress address) {
+		Macs macs = this.macs.get();
+		byte[] raw = macs.raw;
+
+		if (length != ENCODED_LENGTH || !decode(message, offset, raw)) {
+			return false;
+		}
+		long issued = 0;
+		for (int i = 0; i < TIME_LENGTH; i++) {
+			issued = (issued << 8) | (raw[i] & 0xff);
+		}
+		long age = System.currentTimeMillis() - issued;
+
+		if (age < 0 || age > lifetime) {
+			return false;
+		}
+		Mac mac = mac(issued / lifetime);
+		if (mac == null) {
+			return false;
+		}
+		mac.update(address.getAddress());
+		mac.update(raw, 0, TIME_LENGTH);
+		try {
+			mac.doFinal(macs.expected, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Can't compute " + ALGORITHM + ": " + e.getMessage());
+		}
+
+		// takes as long whichever byte differs
+		int difference = 0;
+		for (int i = 0; i < MAC_LENGTH; i++) {
+			difference |= macs.expected[i] ^ raw[TIME_LENGTH + i];
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * Decodes ENCODED_LENGTH characters of URL-safe base64 without padding
+	 * @param raw Gets the RAW_LENGTH bytes
+	 * @return false if there is a character outside the alphabet
+	 */
+	private static boolean decode(byte[] encoded, int offset, byte[] raw) {
+		int bits = 0;
+		int count = 0;
+		int written = 0;
+
+		for (int i = offset; i < offset + ENCODED_LENGTH; i++) {
+			int c = encoded[i];
+			int value = (c >= 0) ? DECODE[c] : -1;
+
+			if (value < 0) {
+				return false;
+			}
+			bits = (bits << 6) | value;
+			count += 6;
+
+			if (count >= 8) {
+				count -= 8;
+				raw[written++] = (byte) (bits >> count);
+			}
+		}
+		return written == RAW_LENGTH;
+	}
+
+	/**
+	 * @return A Mac with the key of epoch or null if that key is gone or not there yet
+	 */
+	private Mac mac(long epoch) {
+		Keys keys = rotate();
+		Macs macs = this.macs.get();
+
+		if (macs.epoch != keys.epoch) {
+			try {
+				macs.current.init(new SecretKeySpec(keys.current, ALGORITHM));
+				macs.previous.init(new SecretKeySpec(keys.previous, ALGORITHM));
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Can't initialize " + ALGORITHM + ": " + e.getMessage());
+			}
+			macs.epoch = keys.epoch;
+		}
+		if (epoch == keys.epoch) {
+			return macs.current;
+		} else if (epoch == keys.epoch - 1) {
+			return macs.previous;
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the keys when a new lifetime has started
+	 */
+	private Keys rotate() {
+		Keys keys = this.keys;
+		long epoch = System.currentTimeMillis() / lifetime;
+
+		if (epoch <= keys.epoch) {
+			return keys;
+		}
+		synchronized (this) {
+			keys = this.keys;
+
+			if (epoch > keys.epoch) {
+				keys = new Keys(epoch, newKey(), (epoch == keys.epoch + 1) ? keys.current : newKey());
+				this.keys = keys;
+			}
+			return keys;
+		}
+	}
+
+	private byte[] newKey() {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		return key;
+	}
+
+	private static class Keys {
+		final long epoch;
+		final byte[] current;
+		final byte[] previous;
+
+		Keys(long epoch, byte[] current, byte[] previous) {
+			this.epoch = epoch;
+			this.current = current;
+			this.previous = previous;
+		}
+	}
+
+	private static class Macs {
+		long epoch = Long.MIN_VALUE;
+		final Mac current;
+		final Mac previous;
+		final byte[] raw = new byte[RAW_LENGTH];
+		final byte[] expected = new byte[HMAC_LENGTH];
+
+		Macs() {
+			try {
+				current = Mac.getInstance(ALGORITHM);
+				previous = Mac.getInstance(ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(ALGORITHM + " not available: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,277 @@
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sheds load from a saturated Server by redirecting clients. When a UDP listener is
+ * overloaded, binding requests are answered right away with a 300 (Try Alternate)
+ * error whose ALTERNATE-SERVER points at a less loaded peer, instead of queueing
+ * until the kernel drops them and the clients time out.
+ *
+ * A listener counts as overloaded when its queue is too long or when the moving
+ * average of the time from receiving a request to sending its response is above
+ * maxLatencyMicros. In pipeline mode the queue is the pipeline queues, with a limit
+ * of maxQueueDepth packets. Without a pipeline it is the receive buffer of the socket
+ * in the kernel, with a limit of half of SO_RCVBUF. On Linux one thread of the shedder
+ * reads it for every listener from /proc/net/udp every QUEUE_READ_MILLIS, so the
+ * listeners never wait for the file. A listener stays overloaded until both are below
+ * half their limit, so it doesn't flap.
+ *
+ * Redirects don't count in the average, they would bring it down while the listener
+ * is still saturated. Instead one in PROBE_INTERVAL requests is answered while
+ * overloaded, so the average follows the real load and shedding stops when it falls.
+ *
+ * The response only differs from a template in the transaction ID, so shedding is
+ * cheap and doesn't allocate. One shedder can be shared by all listeners.
+ * @author Frans
+ *
+ */
+public class OverloadShedder {
+
+	private static final String REASON = "Try Alternate";
+
+	/*
+	 * Weight of a new latency sample in the moving average, as a shift: 1/16
+	 */
+	private static final int AVERAGE_SHIFT = 4;
+
+	/*
+	 * While overloaded one in this many requests is answered to measure the latency
+	 */
+	public static final int PROBE_INTERVAL = 16;
+
+	/*
+	 * How often the kernel receive queues are read for the listeners without a pipeline
+	 */
+	public static final long QUEUE_READ_MILLIS = 10;
+
+	private final InetSocketAddress alternateServer;
+	private final int maxQueueDepth;
+	private final long maxLatencyNanos;
+
+	private final byte[] template;
+	private final LongAdder shed = new LongAdder();
+
+	/*
+	 * The gauges whose kernel queue the poller reads, and the poller while there are any
+	 */
+	private final ArrayList<Gauge> watched = new ArrayList<Gauge>();
+	private Thread poller;
+
+	/**
+	 * @param alternateServer Where clients are sent when overloaded
+	 * @param maxQueueDepth Packets waiting in the pipeline queues of a listener, 0 to ignore
+	 * the queues. Without a pipeline any value above 0 makes the kernel receive queue count.
+	 * @param maxLatencyMicros Average time to answer a request, 0 to ignore
+	 */
+	public OverloadShedder(InetSocketAddress alternateServer, int maxQueueDepth, long maxLatencyMicros) {
+		if (alternateServer.isUnresolved()) {
+			throw new IllegalArgumentException("Unresolved alternate server " + alternateServer);
+		}
+		this.alternateServer = alternateServer;
+		this.maxQueueDepth = maxQueueDepth;
+		this.maxLatencyNanos = maxLatencyMicros * 1000;
+
+		byte[] response = new byte[Server.RESPONSE_BUFFER_SIZE];
+		int offset = Header.putErrorCode(response, Header.LENGTH, Header.TRY_ALTERNATE, REASON);
+		offset = Header.putAddress(response, offset, Header.ALTERNATE_SERVER, alternateServer.getAddress(),
+				alternateServer.getPort());
+		Header.setMessageTypeAndLength(response, Header.BINDING_REQUEST | Header.ERROR_RESPONSE_CLASS, offset - Header.LENGTH);
+
+		template = new byte[offset];
+		System.arraycopy(response, 0, template, 0, offset);
+	}
+
+	public InetSocketAddress getAlternateServer() {
+		return alternateServer;
+	}
+
+	/**
+	 * @return Number of requests redirected
+	 */
+	public long getShedRequests() {
+		return shed.sum();
+	}
+
+	/**
+	 * Decides if a pipeline listener should shed the request it just received
+	 * @param gauge The load of the listener
+	 * @param queueDepth Packets waiting in its pipeline
+	 */
+	boolean isOverloaded(Gauge gauge, int queueDepth) {
+		return isOverloaded(gauge, queueDepth, maxQueueDepth);
+	}
+
+	/**
+	 * Decides if a listener without a pipeline should shed the request it just received
+	 * @param gauge The load of the listener
+	 * @param socket The socket of the listener, its kernel receive queue is the queue
+	 */
+	boolean isOverloaded(Gauge gauge, DatagramSocket socket) {
+		if (maxQueueDepth == 0) {
+			return isOverloaded(gauge, 0, 0);
+		}
+		if (gauge.socket == null) {
+			watch(gauge, socket);
+		}
+		long queuedBytes = gauge.queuedBytes;
+
+		return isOverloaded(gauge, queuedBytes, (queuedBytes >= 0) ? gauge.maxQueuedBytes : 0);
+	}
+
+	private boolean isOverloaded(Gauge gauge, long queue, long maxQueue) {
+		long latency = gauge.averageNanos;
+		boolean queueFull = maxQueue > 0 && queue > maxQueue;
+		boolean slow = maxLatencyNanos > 0 && latency > maxLatencyNanos;
+
+		if (queueFull || slow) {
+			gauge.overloaded = true;
+		} else if (gauge.overloaded) {
+			gauge.overloaded = (maxQueue > 0 && queue > maxQueue / 2)
+					|| (maxLatencyNanos > 0 && latency > maxLatencyNanos / 2);
+		}
+		if (gauge.overloaded && ++gauge.sinceProbe >= PROBE_INTERVAL) {
+			gauge.sinceProbe = 0;
+			return false;
+		}
+		return gauge.overloaded;
+	}
+
+	/**
+	 * Has the poller read the kernel receive queue of socket for gauge from now on
+	 */
+	private synchronized void watch(Gauge gauge, DatagramSocket socket) {
+		gauge.socket = socket;
+		watched.add(gauge);
+
+		if (poller == null) {
+			poller = new Thread(new Runnable() {
+				public void run() {
+					pollQueues();
+				}
+			}, "STUN shedder queue poller");
+			poller.setDaemon(true);
+			poller.start();
+		}
+	}
+
+	/**
+	 * The poller. Looks up the inodes of new sockets, then reads the queues of all
+	 * of them in one pass over the tables. Stops when no socket is left to read,
+	 * closed ones and the ones the kernel doesn't list are let go.
+	 */
+	private void pollQueues() {
+		Set<Long> inodes = new HashSet<Long>();
+
+		while (true) {
+			Gauge[] gauges;
+			synchronized (this) {
+				for (int i = watched.size() - 1; i >= 0; i--) {
+					Gauge gauge = watched.get(i);
+
+					if (gauge.inode == -1 || gauge.socket.isClosed()) {
+						gauge.queuedBytes = -1;
+						watched.remove(i);
+					}
+				}
+				if (watched.isEmpty()) {
+					poller = null;
+					return;
+				}
+				gauges = watched.toArray(new Gauge[0]);
+			}
+			Map<String, long[]> sockets = null;
+			inodes.clear();
+
+			for (Gauge gauge : gauges) {
+				if (gauge.inode == 0) {
+					sockets = (sockets != null) ? sockets : KernelUdpCounters.readSockets();
+					gauge.lookUp(sockets);
+				}
+				if (gauge.inode > 0) {
+					inodes.add(gauge.inode);
+				}
+			}
+			Map<Long, Long> queues = KernelUdpCounters.readQueuedBytes(inodes);
+
+			for (Gauge gauge : gauges) {
+				Long queued = (gauge.inode > 0) ? queues.get(gauge.inode) : null;
+				gauge.queuedBytes = (queued != null) ? queued : -1;
+			}
+			try {
+				Thread.sleep(QUEUE_READ_MILLIS);
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					poller = null;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the redirect for a binding request
+	 * @param response At least Server.RESPONSE_BUFFER_SIZE bytes
+	 * @param request The binding request
+	 * @return The length of the response
+	 */
+	int putResponse(byte[] response, byte[] request) {
+		System.arraycopy(template, 0, response, 0, template.length);
+		// magic cookie and transaction ID
+		System.arraycopy(request, 4, response, 4, Header.LENGTH - 4);
+		shed.increment();
+
+		return template.length;
+	}
+
+	/**
+	 * The load of one listener. In pipeline mode the latency is written by the sender,
+	 * everything else only by the thread that receives.
+	 */
+	static class Gauge {
+		private volatile long averageNanos;
+		private boolean overloaded;
+		private int sinceProbe;
+
+		/*
+		 * The kernel receive queue without a pipeline. socket is set by the listener
+		 * when the poller starts reading it, the rest is written by the poller. inode
+		 * is 0 until the socket has been looked up and -1 if the kernel doesn't tell.
+		 */
+		private DatagramSocket socket;
+		private long inode;
+		private volatile long queuedBytes = -1;
+		private volatile long maxQueuedBytes;
+
+		/**
+		 * Adds a request that took nanos from receiving to sending
+		 */
+		void record(long nanos) {
+			long average = averageNanos;
+			averageNanos = average + ((nanos - average) >> AVERAGE_SHIFT);
+		}
+
+		long getAverageNanos() {
+			return averageNanos;
+		}
+
+		/**
+		 * Finds the inode and the receive buffer of the socket
+		 * @param sockets From KernelUdpCounters.readSockets
+		 */
+		private void lookUp(Map<String, long[]> sockets) {
+			long[] counters = sockets.get(KernelUdpCounters.key(socket.getLocalAddress(), socket.getLocalPort()));
+			try {
+				maxQueuedBytes = socket.getReceiveBufferSize() / 2;
+				inode = (counters != null) ? counters[2] : -1;
+			} catch (SocketException e) {
+				inode = -1;
+			}
+		}
+	}
+}
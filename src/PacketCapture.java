@@ -0,0 +1,279 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes received packets to a pcap file that is memory-mapped, so capturing a packet
+ * is a copy into memory and never a system call. Any number of listener threads can
+ * capture at the same time. Each one reserves the space for its record with a CAS on
+ * the file position and then writes the record without holding a lock.
+ *
+ * The file uses LINKTYPE_RAW. Every record starts with an IPv4 or IPv6 header and a UDP
+ * or TCP header that are synthesized from the addresses, so Wireshark and tcpdump can
+ * dissect the STUN messages. TCP headers carry no sequence numbers, each record is the
+ * data of one read. When the file is full further packets are counted as dropped.
+ * close() cuts the file at the end of the last record.
+ * @author Frans
+ *
+ */
+public class PacketCapture {
+
+	private static final Logger logger = Logger.getLogger(PacketCapture.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final int PCAP_MAGIC = 0xA1B2C3D4;
+	public static final int LINKTYPE_RAW = 101;
+	public static final int PROTOCOL_TCP = 6;
+	public static final int PROTOCOL_UDP = 17;
+	public static final int SNAPLEN = 65535;
+
+	public static final int FILE_HEADER_LENGTH = 24;
+	public static final int RECORD_HEADER_LENGTH = 16;
+	public static final int IPV4_HEADER_LENGTH = 20;
+	public static final int IPV6_HEADER_LENGTH = 40;
+	public static final int UDP_HEADER_LENGTH = 8;
+	public static final int TCP_HEADER_LENGTH = 20;
+
+	private static final long CLOSED = Long.MIN_VALUE;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer mapped;
+	private final int capacity;
+
+	/*
+	 * position: end of the space reserved so far, CLOSED is or-ed in by close.
+	 * committed: bytes of records that are completely written.
+	 */
+	private final AtomicLong position = new AtomicLong(FILE_HEADER_LENGTH);
+	private final AtomicLong committed = new AtomicLong(FILE_HEADER_LENGTH);
+
+	private final LongAdder captured = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private final long startMicros;
+	private final long startNanos;
+
+	private final ThreadLocal<ByteBuffer> views = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return mapped.duplicate();
+		}
+	};
+
+	/**
+	 * Creates the capture file, or overwrites it, and maps it
+	 * @param captureFile
+	 * @param maxBytes Size of the mapping, at most Integer.MAX_VALUE
+	 * @throws IOException If the file can't be created or mapped
+	 */
+	public PacketCapture(File captureFile, long maxBytes) throws IOException {
+		if (maxBytes <= FILE_HEADER_LENGTH || maxBytes > Integer.MAX_VALUE) {
+			throw new IOException("Capture size must be between " + FILE_HEADER_LENGTH + " and " + Integer.MAX_VALUE);
+		}
+		this.capacity = (int) maxBytes;
+		this.file = new RandomAccessFile(captureFile, "rw");
+		file.setLength(0);
+		this.mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+		mapped.putInt(0, PCAP_MAGIC);
+		mapped.putShort(4, (short) 2);
+		mapped.putShort(6, (short) 4);
+		mapped.putInt(8, 0);
+		mapped.putInt(12, 0);
+		mapped.putInt(16, SNAPLEN);
+		mapped.putInt(20, LINKTYPE_RAW);
+
+		startMicros = System.currentTimeMillis() * 1000;
+		startNanos = System.nanoTime();
+		logger.log(Level.FINE, "Capturing to " + captureFile + ", " + capacity + " bytes mapped");
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Appends one packet. Thread safe and lock-free.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param source Address the packet came from
+	 * @param sourcePort
+	 * @param destination Local address the packet arrived on
+	 * @param destinationPort
+	 * @param protocol PROTOCOL_UDP or PROTOCOL_TCP
+	 * @return false if the file is full or closed
+	 */
+	public boolean capture(byte[] data, int offset, int length, InetAddress source, int sourcePort,
+			InetAddress destination, int destinationPort, int protocol) {
+		boolean ipv4 = source instanceof Inet4Address && destination instanceof Inet4Address;
+		int transportLength = ((protocol == PROTOCOL_TCP) ? TCP_HEADER_LENGTH : UDP_HEADER_LENGTH) + length;
+		int packetLength = ((ipv4) ? IPV4_HEADER_LENGTH : IPV6_HEADER_LENGTH) + transportLength;
+		int recordLength = RECORD_HEADER_LENGTH + packetLength;
+
+		long start;
+		do {
+			start = position.get();
+
+			if ((start & CLOSED) != 0 || start + recordLength > capacity) {
+				dropped.increment();
+				return false;
+			}
+		} while (!position.compareAndSet(start, start + recordLength));
+
+		ByteBuffer out = views.get();
+		out.clear();
+		out.position((int) start);
+
+		long micros = startMicros + (System.nanoTime() - startNanos) / 1000;
+		out.putInt((int) (micros / 1000000));
+		out.putInt((int) (micros % 1000000));
+		out.putInt(packetLength);
+		out.putInt(packetLength);
+
+		if (ipv4) {
+			putIPv4Header(out, packetLength, protocol, source, destination);
+		} else {
+			putIPv6Header(out, transportLength, protocol, source, destination);
+		}
+
+		out.putShort((short) sourcePort);
+		out.putShort((short) destinationPort);
+		if (protocol == PROTOCOL_TCP) {
+			out.putInt(0);
+			out.putInt(0);
+			out.putShort((short) 0x5018); // data offset 5, PSH ACK
+			out.putShort((short) 0xFFFF);
+			out.putInt(0);
+		} else {
+			out.putShort((short) transportLength);
+			out.putShort((short) 0);
+		}
+		out.put(data, offset, length);
+
+		committed.addAndGet(recordLength);
+		captured.increment();
+		return true;
+	}
+
+	private void putIPv4Header(ByteBuffer out, int totalLength, int protocol, InetAddress source, InetAddress destination) {
+		int header = out.position();
+
+		out.putShort((short) 0x4500);
+		out.putShort((short) totalLength);
+		out.putInt(0x4000); // id 0, don't fragment
+		out.put((byte) 64);
+		out.put((byte) protocol);
+		out.putShort((short) 0);
+		// hashCode of an Inet4Address is the address itself, getAddress would allocate
+		out.putInt(source.hashCode());
+		out.putInt(destination.hashCode());
+
+		int sum = 0;
+		for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2) {
+			sum += out.getShort(header + i) & 0xFFFF;
+		}
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum += sum >>> 16;
+		out.putShort(header + 10, (short) ~sum);
+	}
+
+	private void putIPv6Header(ByteBuffer out, int payloadLength, int protocol, InetAddress source, InetAddress destination) {
+		out.putInt(0x60000000);
+		out.putShort((short) payloadLength);
+		out.put((byte) protocol);
+		out.put((byte) 64);
+		putIPv6Address(out, source);
+		putIPv6Address(out, destination);
+	}
+
+	/**
+	 * IPv4 addresses are written as IPv4-mapped IPv6 addresses
+	 */
+	private void putIPv6Address(ByteBuffer out, InetAddress address) {
+		if (address instanceof Inet4Address) {
+			out.putLong(0);
+			out.putInt(0xFFFF);
+			out.putInt(address.hashCode());
+		} else {
+			out.put(address.getAddress());
+		}
+	}
+
+	/**
+	 * @return Packets written to the file
+	 */
+	public long getCapturedPackets() {
+		return captured.sum();
+	}
+
+	/**
+	 * @return Packets not written because the file was full or closed
+	 */
+	public long getDroppedPackets() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return Bytes of the file used so far, including the file header
+	 */
+	public long getBytesWritten() {
+		return committed.get();
+	}
+
+	/**
+	 * Stops capturing, waits for records that are being written, flushes the mapping
+	 * and cuts the file after the last record.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		long end;
+		do {
+			end = position.get();
+
+			if ((end & CLOSED) != 0) {
+				return;
+			}
+		} while (!position.compareAndSet(end, end | CLOSED));
+
+		while (committed.get() < end) {
+			Thread.yield();
+		}
+		mapped.force();
+		file.setLength(end);
+		file.close();
+		logger.log(Level.FINE, captured.sum() + " packets captured, " + dropped.sum() + " dropped");
+	}
+}
@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * What UDPClient sends and receives datagrams with: a DatagramSocket, see
+ * SocketPacketTransport, or an endpoint of a SimulatedNetwork. The methods behave
+ * like the ones of DatagramSocket with the same names.
+ * @author Frans
+ *
+ */
+public interface PacketTransport {
+
+	void send(DatagramPacket packet) throws IOException;
+
+	/**
+	 * Waits for a datagram
+	 * @throws java.net.SocketTimeoutException When nothing arrived within the timeout
+	 */
+	void receive(DatagramPacket packet) throws IOException;
+
+	/**
+	 * @param timeout Milliseconds receive waits, 0 for ever
+	 */
+	void setSoTimeout(int timeout) throws SocketException;
+
+	InetAddress getLocalAddress();
+
+	int getLocalPort();
+
+	void close();
+}
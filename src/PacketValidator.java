@@ -0,0 +1,127 @@
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the STUN header of a whole batch of received packets at once: the two leading
+ * zero bits, the magic cookie, the message length (a multiple of 4 that fits in the
+ * packet) and whether the message is a binding request. The Server pipeline workers use
+ * it to throw away what isn't STUN before building any responses.
+ *
+ * This class checks one packet after the other. create() returns the subclass
+ * VectorPacketValidator instead when it is on the class path and the JVM runs with
+ * --add-modules jdk.incubator.vector. It checks as many packets per instruction as fit
+ * in a vector register. Both give the same verdicts.
+ * @author Frans
+ *
+ */
+public class PacketValidator {
+
+	private static final Logger logger = Logger.getLogger(PacketValidator.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	/** A binding request with a good header */
+	public static final byte VALID = 0;
+	/** Leading bits set or no magic cookie, ChannelData for example */
+	public static final byte NOT_STUN = 1;
+	/** STUN, but shorter than a header or the message length is wrong */
+	public static final byte BAD_LENGTH = 2;
+	/** A STUN message with a good header but not a binding request */
+	public static final byte NOT_BINDING = 3;
+
+	/** Largest batch the pipeline workers validate at once */
+	public static final int MAX_BATCH = 64;
+
+	static final int MAGIC_COOKIE = 0x2112A442;
+
+	private static final String VECTOR_VALIDATOR = "VectorPacketValidator";
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * @return The vector validator if the Vector API can be used, else the scalar one
+	 */
+	public static PacketValidator create() {
+		try {
+			return (PacketValidator) Class.forName(VECTOR_VALIDATOR).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			logger.log(Level.FINE, "Vector API not available, validating packets one by one: " + e);
+			return new PacketValidator();
+		}
+	}
+
+	/**
+	 * @return The validator that checks one packet after the other
+	 */
+	public static PacketValidator scalar() {
+		return new PacketValidator();
+	}
+
+	/**
+	 * @return A short name for logs and benchmarks
+	 */
+	public String getName() {
+		return "scalar";
+	}
+
+	/**
+	 * Validates the first count packets. Safe to call from many threads at once.
+	 * @param packets Packet buffers, each at least 8 bytes long even if less was received
+	 * @param lengths Number of bytes received in each buffer
+	 * @param count Number of packets
+	 * @param verdicts Gets VALID, NOT_STUN, BAD_LENGTH or NOT_BINDING for each packet
+	 */
+	public void validate(byte[][] packets, int[] lengths, int count, byte[] verdicts) {
+		validate(packets, lengths, 0, count, verdicts);
+	}
+
+	/**
+	 * The scalar checks for packets from up to count, also used by subclasses for the
+	 * packets that don't fill a whole vector
+	 */
+	void validate(byte[][] packets, int[] lengths, int from, int count, byte[] verdicts) {
+		for (int i = from; i < count; i++) {
+			verdicts[i] = validate(packets[i], lengths[i]);
+		}
+	}
+
+	static byte validate(byte[] packet, int length) {
+		int cookie = (packet[4] & 0xff) << 24 | (packet[5] & 0xff) << 16 | (packet[6] & 0xff) << 8 | (packet[7] & 0xff);
+
+		if ((packet[0] & 0xc0) != 0 || cookie != MAGIC_COOKIE) {
+			return NOT_STUN;
+		}
+		int messageLength = (packet[2] & 0xff) << 8 | (packet[3] & 0xff);
+
+		if (length < Header.LENGTH || (messageLength & 3) != 0 || Header.LENGTH + messageLength > length) {
+			return BAD_LENGTH;
+		}
+		int messageType = (packet[0] & 0xff) << 8 | (packet[1] & 0xff);
+
+		return (messageType == Header.BINDING_REQUEST) ? VALID : NOT_BINDING;
+	}
+}
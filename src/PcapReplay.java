@@ -0,0 +1,249 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a pcap file at a Server, for driving benchmarks with real traffic shapes.
+ * The file is memory-mapped and UDP payloads are sent straight from the mapping.
+ * Packets keep their original spacing divided by the speed factor, speed 0 sends
+ * as fast as possible. TCP records are sent on a new connection each, to the port
+ * after the UDP port like the Server lays them out. All packets leave from one local
+ * socket, the original source addresses are not reproduced.
+ *
+ * Reads files written by PacketCapture (LINKTYPE_RAW) and ordinary Ethernet captures
+ * from tcpdump, in either byte order and with micro or nanosecond timestamps.
+ *
+ * Usage: PcapReplay file host [port] [speed] [loops]
+ * @author Frans
+ *
+ */
+public class PcapReplay {
+
+	private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int ETHERNET_HEADER_LENGTH = 14;
+	private static final long SPIN_NANOS = 50000;
+
+	private final File file;
+	private final InetSocketAddress udpTarget;
+	private final InetSocketAddress tcpTarget;
+	private final double speed;
+
+	private long udpSent;
+	private long tcpSent;
+	private long bytesSent;
+	private long skipped;
+	private long maxLagNanos;
+	private final AtomicLong responses = new AtomicLong();
+
+	public PcapReplay(File file, InetAddress host, int port, double speed) {
+		this.file = file;
+		this.udpTarget = new InetSocketAddress(host, port);
+		this.tcpTarget = new InetSocketAddress(host, port + 1);
+		this.speed = speed;
+	}
+
+	/**
+	 * Replays the file loops times and prints what was sent and received
+	 * @param loops
+	 * @throws IOException If the file isn't a pcap file or can't be mapped
+	 * @throws InterruptedException
+	 */
+	public void run(int loops) throws IOException, InterruptedException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		final DatagramChannel channel = DatagramChannel.open();
+
+		try {
+			MappedByteBuffer mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+			channel.bind(null);
+
+			Thread counter = new Thread(new Runnable() {
+				public void run() {
+					ByteBuffer response = ByteBuffer.allocate(65536);
+					try {
+						while (true) {
+							response.clear();
+							channel.receive(response);
+							responses.incrementAndGet();
+						}
+					} catch (IOException e) {
+						// channel closed
+					}
+				}
+			}, "Replay responses");
+			counter.setDaemon(true);
+			counter.start();
+
+			long start = System.nanoTime();
+			for (int i = 0; i < loops; i++) {
+				replay(mapped, channel);
+			}
+			long elapsed = System.nanoTime() - start;
+			Thread.sleep(500);
+
+			long sent = udpSent + tcpSent;
+			System.out.println(String.format("Sent %d UDP and %d TCP packets (%d skipped) in %.1f ms: %.0f packets/s, %.1f Mbit/s",
+					udpSent, tcpSent, skipped, elapsed / 1e6, sent * 1e9 / elapsed, bytesSent * 8e3 / elapsed));
+			System.out.println(String.format("%d UDP responses, at most %.2f ms behind schedule", responses.get(), maxLagNanos / 1e6));
+		} finally {
+			channel.close();
+			input.close();
+		}
+	}
+
+	private void replay(MappedByteBuffer mapped, DatagramChannel channel) throws IOException {
+		ByteBuffer in = mapped.duplicate();
+		int magic = in.getInt(0);
+
+		if (magic == Integer.reverseBytes(PacketCapture.PCAP_MAGIC) || magic == Integer.reverseBytes(PCAP_MAGIC_NANOS)) {
+			in.order(ByteOrder.LITTLE_ENDIAN);
+			magic = Integer.reverseBytes(magic);
+		}
+		if (magic != PacketCapture.PCAP_MAGIC && magic != PCAP_MAGIC_NANOS) {
+			throw new IOException(file + " is not a pcap file");
+		}
+		long fractionNanos = (magic == PCAP_MAGIC_NANOS) ? 1 : 1000;
+		int linkType = in.getInt(20);
+
+		if (linkType != PacketCapture.LINKTYPE_RAW && linkType != LINKTYPE_ETHERNET) {
+			throw new IOException("Link type " + linkType + " is not supported");
+		}
+		int linkHeader = (linkType == LINKTYPE_ETHERNET) ? ETHERNET_HEADER_LENGTH : 0;
+
+		int position = PacketCapture.FILE_HEADER_LENGTH;
+		long firstTimestamp = -1;
+		long start = System.nanoTime();
+
+		while (position + PacketCapture.RECORD_HEADER_LENGTH <= in.limit()) {
+			long timestamp = (in.getInt(position) & 0xFFFFFFFFL) * 1000000000L + (in.getInt(position + 4) & 0xFFFFFFFFL) * fractionNanos;
+			int capturedLength = in.getInt(position + 8);
+			int packet = position + PacketCapture.RECORD_HEADER_LENGTH;
+			position = packet + capturedLength;
+
+			if (position > in.limit()) {
+				break;
+			}
+			if (firstTimestamp < 0) {
+				firstTimestamp = timestamp;
+			}
+			if (speed > 0) {
+				pace(start + (long) ((timestamp - firstTimestamp) / speed));
+			}
+			send(in, packet + linkHeader, position, channel);
+		}
+	}
+
+	/**
+	 * Waits until the deadline, parking for long waits and spinning for the last bit
+	 */
+	private void pace(long deadline) {
+		long wait = deadline - System.nanoTime();
+
+		if (wait > SPIN_NANOS) {
+			LockSupport.parkNanos(wait - SPIN_NANOS);
+		}
+		while (System.nanoTime() < deadline) {
+			// spin
+		}
+		maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - deadline);
+	}
+
+	/**
+	 * Sends the payload of the IP packet between ip and end
+	 */
+	private void send(ByteBuffer in, int ip, int end, DatagramChannel channel) throws IOException {
+		if (ip >= end) {
+			skipped++;
+			return;
+		}
+		int version = (in.get(ip) & 0xFF) >> 4;
+		int protocol;
+		int transport;
+
+		if (version == 4) {
+			protocol = in.get(ip + 9) & 0xFF;
+			transport = ip + (in.get(ip) & 0x0F) * 4;
+		} else if (version == 6) {
+			protocol = in.get(ip + 6) & 0xFF;
+			transport = ip + PacketCapture.IPV6_HEADER_LENGTH;
+		} else {
+			skipped++;
+			return;
+		}
+
+		ByteBuffer payload = in.duplicate();
+		if (protocol == PacketCapture.PROTOCOL_UDP && transport + PacketCapture.UDP_HEADER_LENGTH <= end) {
+			payload.limit(end).position(transport + PacketCapture.UDP_HEADER_LENGTH);
+			bytesSent += payload.remaining();
+			channel.send(payload, udpTarget);
+			udpSent++;
+
+		} else if (protocol == PacketCapture.PROTOCOL_TCP && transport + PacketCapture.TCP_HEADER_LENGTH <= end) {
+			int data = transport + ((in.get(transport + 12) & 0xF0) >> 2);
+
+			if (data < end) {
+				byte[] bytes = new byte[end - data];
+				payload.position(data);
+				payload.get(bytes);
+				sendTCP(bytes);
+			}
+		} else {
+			skipped++;
+		}
+	}
+
+	private void sendTCP(byte[] data) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(tcpTarget, 1000);
+			socket.setSoTimeout(1000);
+
+			OutputStream output = socket.getOutputStream();
+			output.write(data);
+			output.flush();
+			bytesSent += data.length;
+			tcpSent++;
+
+			InputStream input = socket.getInputStream();
+			input.read(new byte[2048]);
+		} catch (IOException e) {
+			skipped++;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: PcapReplay file host [port] [speed] [loops]");
+			return;
+		}
+		int port = (args.length > 2) ? Integer.parseInt(args[2]) : 3478;
+		double speed = (args.length > 3) ? Double.parseDouble(args[3]) : 1.0;
+		int loops = (args.length > 4) ? Integer.parseInt(args[4]) : 1;
+
+		try {
+			new PcapReplay(new File(args[0]), InetAddress.getByName(args[1]), port, speed).run(loops);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * A preallocated packet buffer that travels through the Server pipeline:
+ * receiver, worker, sender and back to the receiver. Only one thread owns a slot
+ * at a time, the SPSC queues hand it over.
+ * @author Frans
+ *
+ */
+class PipelineSlot {
+
+	final byte[] buffer;
+	final byte[] response = new byte[Server.RESPONSE_BUFFER_SIZE];
+	final ByteBuffer view;
+	final DatagramPacket packet;
+
+	/*
+	 * Set by the worker, null if nothing should be sent
+	 */
+	DatagramSocket responseSocket;
+
+	/*
+	 * Set by the receiver when access logging is on, 0 otherwise
+	 */
+	long receivedNanos;
+
+	/*
+	 * Set by the worker when the packet was a request and not relayed data
+	 */
+	boolean request;
+
+	/*
+	 * Set by the receiver when the LatencyTracer picked this packet
+	 */
+	boolean traced;
+	final LatencyTracer.Sample sample = new LatencyTracer.Sample();
+
+	PipelineSlot(int size) {
+		buffer = new byte[size];
+		view = ByteBuffer.wrap(buffer);
+		packet = new DatagramPacket(buffer, size);
+	}
+
+	/**
+	 * Makes the slot ready for the next receive, the worker may have
+	 * replaced the packet data with a response
+	 */
+	void reset() {
+		packet.setData(buffer);
+		responseSocket = null;
+		request = false;
+		traced = false;
+	}
+}
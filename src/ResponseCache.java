@@ -0,0 +1,237 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the responses a Server sent so that retransmitted requests are answered
+ * with the same bytes instead of being processed again, as RFC5389 section 7.3.1
+ * recommends. That matters for requests that aren't idempotent, such as a TURN
+ * Allocate whose retransmission would otherwise get 437 (Allocation Mismatch), and
+ * for responses that are expensive to compute.
+ *
+ * Entries are keyed by transaction ID, client address and port and the local port
+ * the request arrived on, and expire after a fixed lifetime. The table is open
+ * addressing with a fixed number of slots: a key can only live in the group of
+ * PROBE_LENGTH slots its hash points at. A new entry takes a slot that is empty or
+ * expired and otherwise replaces the one that expires first. Responses longer than
+ * Server.RESPONSE_BUFFER_SIZE are not cached. Every group is guarded by one of a few
+ * locks, lookups and updates copy bytes and don't allocate for IPv4 clients.
+ * @author Frans
+ *
+ */
+public class ResponseCache {
+
+	/*
+	 * 39.5 seconds in RFC5389, the time a client keeps retransmitting
+	 */
+	public static final long DEFAULT_LIFETIME = 40000;
+
+	public static final int PROBE_LENGTH = 8;
+
+	private static final int LOCKS = 64;
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+	private static final int SLOT_BYTES = Server.RESPONSE_BUFFER_SIZE;
+
+	private final int mask;
+	private final long lifetimeNanos;
+
+	/*
+	 * Key: transaction ID bytes 0-7, transaction ID bytes 8-11 with client and local
+	 * port, client address. expires is 0 for empty slots.
+	 */
+	private final long[] transactionHigh;
+	private final long[] transactionLowAndPorts;
+	private final long[] addressHigh;
+	private final long[] addressLow;
+	private final long[] expires;
+	private final int[] lengths;
+	private final byte[] responses;
+
+	private final Object[] locks = new Object[LOCKS];
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity Number of responses kept, rounded up to a power of two. Uses
+	 * about Server.RESPONSE_BUFFER_SIZE + 44 bytes per response.
+	 * @param lifetime How long a response is kept in milliseconds, see DEFAULT_LIFETIME
+	 */
+	public ResponseCache(int capacity, long lifetime) {
+		int slots = Integer.highestOneBit(Math.max(capacity - 1, PROBE_LENGTH)) << 1;
+		this.mask = slots - 1;
+		this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetime);
+
+		transactionHigh = new long[slots];
+		transactionLowAndPorts = new long[slots];
+		addressHigh = new long[slots];
+		addressLow = new long[slots];
+		expires = new long[slots];
+		lengths = new int[slots];
+		responses = new byte[slots * SLOT_BYTES];
+
+		for (int i = 0; i < LOCKS; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return Number of responses the table can hold
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return Number of retransmissions answered from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return Number of responses replaced before they expired
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Looks for the response to an earlier copy of request
+	 * @param request A STUN request, the transaction ID is in bytes 8 to 19
+	 * @param client Where the request came from
+	 * @param clientPort
+	 * @param localPort The port the request arrived on
+	 * @param response Where the cached response is copied to, at least
+	 * Server.RESPONSE_BUFFER_SIZE bytes
+	 * @return The length of the response or 0 if there is none
+	 */
+	int get(byte[] request, InetAddress client, int clientPort, int localPort, byte[] response) {
+		long high = transactionHigh(request);
+		long lowAndPorts = transactionLowAndPorts(request, clientPort, localPort);
+		long addressHigh = addressHigh(client);
+		long addressLow = addressLow(client);
+		int group = group(high, lowAndPorts, addressLow);
+		long now = System.nanoTime();
+
+		synchronized (locks[(group / PROBE_LENGTH) & (LOCKS - 1)]) {
+			int slot = find(group, high, lowAndPorts, addressHigh, addressLow, now);
+
+			if (slot == -1) {
+				return 0;
+			}
+			int length = lengths[slot];
+			System.arraycopy(responses, slot * SLOT_BYTES, response, 0, length);
+			hits.increment();
+			return length;
+		}
+	}
+
+	/**
+	 * Stores the response to a request, replacing an older response to it
+	 * @param response
+	 * @param length The length of the response, longer ones than
+	 * Server.RESPONSE_BUFFER_SIZE are not stored
+	 */
+	void put(byte[] request, InetAddress client, int clientPort, int localPort, byte[] response, int length) {
+		if (length > SLOT_BYTES) {
+			return;
+		}
+		long high = transactionHigh(request);
+		long lowAndPorts = transactionLowAndPorts(request, clientPort, localPort);
+		long addressHigh = addressHigh(client);
+		long addressLow = addressLow(client);
+		int group = group(high, lowAndPorts, addressLow);
+		long now = System.nanoTime();
+
+		synchronized (locks[(group / PROBE_LENGTH) & (LOCKS - 1)]) {
+			int slot = find(group, high, lowAndPorts, addressHigh, addressLow, now);
+
+			if (slot == -1) {
+				slot = group;
+				for (int i = 0; i < PROBE_LENGTH; i++) {
+					if (expires[group + i] - now < expires[slot] - now) {
+						slot = group + i;
+					}
+				}
+				if (expires[slot] != 0 && expires[slot] - now > 0) {
+					evictions.increment();
+				}
+			}
+			transactionHigh[slot] = high;
+			transactionLowAndPorts[slot] = lowAndPorts;
+			this.addressHigh[slot] = addressHigh;
+			this.addressLow[slot] = addressLow;
+			expires[slot] = now + lifetimeNanos;
+			lengths[slot] = length;
+			System.arraycopy(response, 0, responses, slot * SLOT_BYTES, length);
+		}
+	}
+
+	/**
+	 * Forgets all responses
+	 */
+	public void clear() {
+		for (int group = 0; group <= mask; group += PROBE_LENGTH) {
+			synchronized (locks[(group / PROBE_LENGTH) & (LOCKS - 1)]) {
+				for (int i = 0; i < PROBE_LENGTH; i++) {
+					expires[group + i] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The slot with the key that hasn't expired or -1
+	 */
+	private int find(int group, long high, long lowAndPorts, long addressHigh, long addressLow, long now) {
+		for (int slot = group; slot < group + PROBE_LENGTH; slot++) {
+			if (expires[slot] != 0 && expires[slot] - now > 0 && transactionHigh[slot] == high
+					&& transactionLowAndPorts[slot] == lowAndPorts && this.addressLow[slot] == addressLow
+					&& this.addressHigh[slot] == addressHigh) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The first slot of the group the key belongs in
+	 */
+	private int group(long high, long lowAndPorts, long addressLow) {
+		long hash = (high * 0x9E3779B97F4A7C15L) ^ (lowAndPorts * 0xC2B2AE3D27D4EB4FL) ^ addressLow;
+		hash ^= hash >>> 29;
+
+		return (int) hash & mask & ~(PROBE_LENGTH - 1);
+	}
+
+	private static long transactionHigh(byte[] request) {
+		long high = 0;
+		for (int i = 8; i < 16; i++) {
+			high = (high << 8) | (request[i] & 0xff);
+		}
+		return high;
+	}
+
+	private static long transactionLowAndPorts(byte[] request, int clientPort, int localPort) {
+		long low = 0;
+		for (int i = 16; i < Header.LENGTH; i++) {
+			low = (low << 8) | (request[i] & 0xff);
+		}
+		return (low << 32) | ((long) clientPort << 16) | localPort;
+	}
+
+	private static long addressHigh(InetAddress address) {
+		return (address instanceof Inet4Address) ? 0 : ByteBuffer.wrap(address.getAddress()).getLong(0);
+	}
+
+	private static long addressLow(InetAddress address) {
+		if (address instanceof Inet4Address) {
+			// hashCode of an Inet4Address is the address itself, getAddress would allocate
+			return IPV4_MAPPED_PREFIX | (address.hashCode() & 0xFFFFFFFFL);
+		}
+		return ByteBuffer.wrap(address.getAddress()).getLong(8);
+	}
+}
@@ -1,6 +1,7 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet6Address;
@@ -10,18 +11,30 @@ import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A STUN server that accepts STUN binding requests on default port 3478 and 
- * responds with a binding response
+ * responds with a binding response. TURN relaying can be turned on with enableTurn.
  * @author Frans
  *
  */
@@ -29,15 +42,124 @@ public class Server {
 	private static Logger logger = Logger.getLogger(Server.class.getName());
 	private static ConsoleHandler consoleHandler = new ConsoleHandler();
 
+	private static final int UDP_BUFFER_SIZE = 2048;
+
+	/*
+	 * The listeners write binding responses, redirects and cached responses into
+	 * buffers of this size
+	 */
+	public static final int RESPONSE_BUFFER_SIZE = 256;
+
+	/*
+	 * Listener sockets time out this often so that the threads notice a drain or a
+	 * handoff without the socket being closed under them.
+	 */
+	static final int LISTENER_POLL_INTERVAL = 250;
+
 	private int serverPort = 3478;
 	private InetAddress serverAddress;
+	private InetAddress alternateAddress;
+
+	/*
+	 * Bind to the IPv6 wildcard so one socket serves both IPv4 and IPv6 clients
+	 */
+	private boolean dualStack;
+
+	private TurnHandler turnHandler;
+	private ClusterRateLimiter rateLimiter;
+	private volatile PacketCapture capture;
+	private volatile AccessLog accessLog;
+	private volatile TopTalkers topTalkers;
+	private volatile PacketValidator packetValidator;
+
+	/*
+	 * The verdict for packets that no PacketValidator has looked at
+	 */
+	private static final byte UNVALIDATED = -1;
+	private volatile AllocationProbe allocationProbe;
+	private volatile LatencyTracer latencyTracer;
+	private volatile OverloadShedder overloadShedder;
+	private volatile ResponseCache responseCache;
+	private volatile LongTermCredentials credentials;
+
+	/*
+	 * What authenticate looks up cached responses and writes challenges in, per
+	 * handleDatagram thread
+	 */
+	private final ThreadLocal<byte[]> authenticationBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[RESPONSE_BUFFER_SIZE];
+		}
+	};
+
+	/*
+	 * The MethodHandler of every message type, null where there is none. Shared with
+	 * the interface groups.
+	 */
+	private MethodHandler[] handlers = new MethodHandler[Header.MESSAGE_TYPES];
+
+	{
+		handlers[Header.BINDING_REQUEST] = new BindingHandler();
+	}
+
+	private final LongAdder inFlight = new LongAdder();
+	private final LongAdder processed = new LongAdder();
+
+	/*
+	 * draining: UDP listeners stop receiving, what they have received is still answered.
+	 * released: listeners stop after the current request, the sockets belong to another Server.
+	 */
+	private volatile boolean draining;
+	private volatile boolean released;
+
+	/*
+	 * Pipeline mode, off when pipelineWorkers is 0
+	 */
+	private static final long IDLE_PARK_NANOS = 50000;
+	private static final int IDLE_SPINS = 100;
+
+	private int pipelineWorkers;
+	private int pipelineQueueCapacity;
+	private BackpressurePolicy backpressurePolicy;
+	private final LongAdder pipelineDrops = new LongAdder();
+
+	/*
+	 * Per-interface mode, one listener group per local address. A group is a Server of
+	 * its own bound to that address, with its own thread pool of listenerThreads threads.
+	 */
+	private boolean allInterfaces;
+	private int interfaceDefaultThreads;
+	private final HashMap<String, Integer> interfaceThreads = new HashMap<String, Integer>();
+	private ArrayList<Server> interfaceGroups;
+	private int listenerThreads;
+	private boolean ownsTurnHandler = true;
 
 	private int nrOfThreads;
 	private ExecutorService executorService;
 
+	/*
+	 * SO_RCVBUF and SO_SNDBUF of the UDP listeners, 0 leaves the system default
+	 */
+	private int receiveBufferSize;
+	private int sendBufferSize;
+
+	/*
+	 * Submission queue size of the io_uring listeners, 0 when they are off
+	 */
+	private int ioUringEntries;
+	private DatagramTransport[] uringListeners;
+
 	private UDPListener[] udpListeners;
 	private TCPListener[] tcpListeners;
 
+	/*
+	 * The four sockets of RFC5780, [address][port] where address 0 is serverAddress,
+	 * 1 is alternateAddress, port 0 is serverPort and 1 is serverPort + 2.
+	 */
+	private UDPListener[] alternateListeners;
+	private DatagramSocket[][] changeSockets;
+
 	/**
 	 * Empty constructor if you want to use default InetAddress and STUN port 3478
 	 */
@@ -57,262 +179,1982 @@ public class Server {
 	}
 
 	/**
-	 * This method starts the STUN server. It starts a thread pool with more than 4 threads
-	 * and creates nrOfThreads/2 TCP listeners and nrOfThreads/2 UDP listeners
-	 * It will by default use port 3478 + nrOfThreads ports and if specific port is 
-	 * requested port+nrOfThreads. 
-	 * @throws IOException for Sockets
+	 * Makes the server support NAT behavior discovery (RFC5780). UDP listeners are
+	 * also started on the alternate address, on the server port and the port of the second
+	 * UDP listener (server port + 2). CHANGE-REQUEST is then honoured between these
+	 * four sockets and binding responses carry RESPONSE-ORIGIN and OTHER-ADDRESS.
+	 * Must be called before startServer and needs a server started with a specific address.
+	 * @param alternateAddress A second address of this host
 	 */
-	public void startServer() throws IOException {
-		this.nrOfThreads = nrOfThreads();
-		executorService = Executors.newFixedThreadPool(nrOfThreads);
+	public void setAlternateAddress(InetAddress alternateAddress) {
+		this.alternateAddress = alternateAddress;
+	}
 
-		udpListeners = new UDPListener[nrOfThreads];
-		tcpListeners = new TCPListener[nrOfThreads];
-		
-		for (int i = 0; i < nrOfThreads; i++) {
-			
-			if ((i % 2) == 0) {
-				if (serverAddress != null)
-					udpListeners[i] = new UDPListener(serverPort+i, serverAddress);
-				else
-					udpListeners[i] = new UDPListener(serverPort+i);
-				
-			} else {
-				if (serverAddress != null) 
-					tcpListeners[i] = new TCPListener(serverPort+i, serverAddress);
-				else	
-					tcpListeners[i] = new TCPListener(serverPort+i);
-				
+	/**
+	 * @return The address set with setAlternateAddress or null
+	 */
+	public InetAddress getAlternateAddress() {
+		return alternateAddress;
+	}
+
+	/**
+	 * Makes the server listen on every address of every local network interface that is up,
+	 * IPv4 as well as IPv6, instead of on one address. Each address gets a listener group
+	 * of its own with a thread pool that only serves traffic arriving on that address, so a
+	 * busy NIC can't starve the others. The sockets are bound to the specific address which
+	 * means responses always leave from the address the request arrived on.
+	 * Link-local IPv6 addresses are skipped. Every group uses the server port and the
+	 * ports above it like a single Server does. Must be called before startServer and
+	 * can't be combined with a specific server address or an alternate address.
+	 * @param defaultThreads Listener threads for each address, at least 2
+	 */
+	public void listenOnAllInterfaces(int defaultThreads) {
+		this.allInterfaces = true;
+		this.interfaceDefaultThreads = Math.max(defaultThreads, 2);
+	}
+
+	/**
+	 * Makes every listener a single dual-stack socket bound to the IPv6 wildcard
+	 * address, which serves IPv4 clients as IPv4-mapped addresses as well as IPv6
+	 * clients. They get their address back in XOR-MAPPED-ADDRESS in their own family.
+	 * Compared to a listener group per address family this halves the sockets and
+	 * threads. Needs IPv6 and net.ipv6.bindv6only=0, the Linux default. Without IPv6
+	 * the server listens on the IPv4 wildcard address. Must be called before
+	 * startServer and can't be combined with a specific, alternate or per-interface address.
+	 */
+	public void enableDualStack() {
+		this.dualStack = true;
+	}
+
+	/**
+	 * Sizes the listener groups of one network interface independently of the others.
+	 * Only used together with listenOnAllInterfaces.
+	 * @param interfaceName Name of the interface, as in NetworkInterface.getName(), e.g. "eth0"
+	 * @param threads Listener threads for each address of the interface, at least 2
+	 */
+	public void setInterfaceThreads(String interfaceName, int threads) {
+		interfaceThreads.put(interfaceName, Math.max(threads, 2));
+	}
+
+	/**
+	 * @return The addresses that listener groups are bound to, empty unless the
+	 * server was started with listenOnAllInterfaces
+	 */
+	public ArrayList<InetAddress> getListenerGroupAddresses() {
+		ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				addresses.add(group.serverAddress);
 			}
 		}
-		
-		for (int i = 0; i < nrOfThreads; i++) {
-			
-			if ((i % 2) == 0) {
-				executorService.execute(udpListeners[i]);
-			} else {
-				executorService.execute(tcpListeners[i]);
+		return addresses;
+	}
+
+	/**
+	 * Turns on pipeline mode for the UDP listeners. Each UDP socket then gets a receiver
+	 * thread that only receives, a number of worker threads that parse and build the
+	 * responses and a sender thread that only sends. They are connected by bounded
+	 * lock-free single producer/single consumer queues, so slow processing or a blocking
+	 * send never stops the socket from being read. When the queue to a worker is full
+	 * the packet is dropped according to the policy. TCP listeners are not affected.
+	 * Must be called before startServer.
+	 * @param workers Worker threads per UDP socket
+	 * @param queueCapacity Capacity of each queue, rounded up to a power of two
+	 * @param policy What to drop when a worker queue is full
+	 */
+	public void enablePipeline(int workers, int queueCapacity, BackpressurePolicy policy) {
+		this.pipelineWorkers = workers;
+		this.pipelineQueueCapacity = queueCapacity;
+		this.backpressurePolicy = policy;
+	}
+
+	/**
+	 * @return The number of requests waiting in the worker queues of each UDP
+	 * listener, in listener order, or an empty array if pipeline mode is off
+	 */
+	public int[] getPipelineQueueDepths() {
+		if (interfaceGroups != null) {
+			int[] depths = new int[0];
+
+			for (Server group : interfaceGroups) {
+				int[] groupDepths = group.getPipelineQueueDepths();
+				depths = Arrays.copyOf(depths, depths.length + groupDepths.length);
+				System.arraycopy(groupDepths, 0, depths, depths.length - groupDepths.length, groupDepths.length);
 			}
+			return depths;
+		}
+		if (pipelineWorkers == 0 || udpListeners == null) {
+			return new int[0];
 		}
+		int[] depths = new int[(nrOfThreads + 1) / 2];
+
+		for (int i = 0; i < nrOfThreads; i += 2) {
+			UDPPipeline pipeline = udpListeners[i].pipeline;
+			depths[i / 2] = (pipeline != null) ? pipeline.queueDepth() : 0;
+		}
+		return depths;
 	}
 
 	/**
-	 * For debugging reasons.
-	 * Connect Handler to Logger in order to see Level.FINE messages
+	 * @return Packets dropped because a worker queue was full
 	 */
-	public static void connectConsoleHandler() {
-		logger.addHandler(consoleHandler);
+	public long getPipelineDrops() {
+		long drops = pipelineDrops.sum();
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				drops += group.getPipelineDrops();
+			}
+		}
+		return drops;
 	}
 
 	/**
-	 * For debugging reasons
-	 * Setting the Level on the Logger
-	 * @param newLevel
+	 * Sets SO_RCVBUF and SO_SNDBUF of every UDP listener. A bigger receive buffer
+	 * absorbs bursts that the listeners can't keep up with, instead of the kernel
+	 * dropping them. Linux caps the sizes at net.core.rmem_max and wmem_max, see
+	 * getSocketStatistics for what was granted. Sockets taken over from another
+	 * Server keep their sizes. Must be called before startServer.
+	 * @param receiveBufferSize Bytes, 0 for the system default
+	 * @param sendBufferSize Bytes, 0 for the system default
 	 */
-	public static void setLogLevel(Level newLevel) {
-		logger.setLevel(newLevel);
+	public void setSocketBufferSizes(int receiveBufferSize, int sendBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+		this.sendBufferSize = sendBufferSize;
 	}
-	
+
 	/**
-	 * For debugging reasons 
-	 * Setting the Level on the ConsoleHandler
-	 * @param newLevel
+	 * Reports the kernel side of every UDP listener, including the drops counted in
+	 * /proc/net/udp on Linux. The io_uring listeners are not included.
+	 * @return One entry per listener socket
 	 */
-	public static void setConsoleHandlerLevel(Level newLevel) {
-		consoleHandler.setLevel(newLevel);
+	public List<SocketStatistics> getSocketStatistics() {
+		List<SocketStatistics> statistics = new ArrayList<SocketStatistics>();
+		addSocketStatistics(statistics, KernelUdpCounters.readSockets());
+
+		return statistics;
+	}
+
+	private void addSocketStatistics(List<SocketStatistics> statistics, Map<String, long[]> kernel) {
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.addSocketStatistics(statistics, kernel);
+			}
+		}
+		if (udpListeners == null) {
+			return;
+		}
+		for (UDPListener listener : udpListeners) {
+			if (listener == null || listener.socket.isClosed()) {
+				continue;
+			}
+			DatagramSocket socket = listener.socket;
+			try {
+				long[] counters = kernel.get(KernelUdpCounters.key(socket.getLocalAddress(), socket.getLocalPort()));
+
+				statistics.add(new SocketStatistics(socket.getLocalAddress(), socket.getLocalPort(),
+						socket.getReceiveBufferSize(), socket.getSendBufferSize(), (counters != null) ? counters[0] : -1,
+						(counters != null) ? counters[1] : -1));
+			} catch (SocketException e) {
+				logger.log(Level.FINE, "Can't read buffer sizes of " + socket.getLocalSocketAddress() + ": " + e.getMessage());
+			}
+		}
 	}
 
 	/**
-	 * Fills an ArrayList with the available network interfaces and returns it
-	 * @return ArrayList with available network interfaces
+	 * @return Packets the kernel dropped for the UDP listener sockets because their
+	 * receive buffers were full, 0 where the kernel doesn't tell. Compare with
+	 * getProcessedRequests and getPipelineDrops, which are counted by the Server.
 	 */
-	public static ArrayList<InetAddress> getInetList() {
-		return fillInetList();
+	public long getKernelDrops() {
+		long drops = 0;
+
+		for (SocketStatistics socket : getSocketStatistics()) {
+			drops += Math.max(socket.getDrops(), 0);
+		}
+		return drops;
 	}
 
-	private static ArrayList<InetAddress> fillInetList() {
-		ArrayList<InetAddress> inetList = new ArrayList<InetAddress>();
+	/**
+	 * @return The UDP counters of the whole host by name, such as
+	 * KernelUdpCounters.RCVBUF_ERRORS, empty where the kernel doesn't tell. Unlike
+	 * getKernelDrops they include the sockets of other processes, so they show whether
+	 * the host as a whole drops datagrams.
+	 */
+	public Map<String, Long> getKernelUdpCounters() {
+		return KernelUdpCounters.readSnmp();
+	}
 
-		Enumeration<NetworkInterface> nets;
-		try {
-			nets = NetworkInterface.getNetworkInterfaces();
+	/**
+	 * Makes the server answer only the requests that the rate limiter allows, others are
+	 * dropped without a response. The limiter is shared with other nodes by gossip and is
+	 * started and closed by the caller. Applies to STUN and TURN requests on UDP and TCP,
+	 * not to relayed data. Must be called before startServer.
+	 * @param rateLimiter
+	 */
+	public void setRateLimiter(ClusterRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
 
-			for(NetworkInterface netInt: Collections.list(nets)) {
-				for(InetAddress iAdd: Collections.list(netInt.getInetAddresses())) {
-					inetList.add(iAdd);
-					logger.log(Level.FINE, iAdd.getHostAddress() + " added to inetList");
+	/**
+	 * Starts or stops writing every packet the listeners receive, UDP and TCP, to a
+	 * capture file. Can be called while the server is running. The capture is closed by
+	 * the caller, after it has been removed again with null.
+	 * @param capture The capture to write to, null to stop capturing
+	 */
+	public void setPacketCapture(PacketCapture capture) {
+		this.capture = capture;
 
-				}
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setPacketCapture(capture);
+			}
+		}
+	}
+
+	/**
+	 * Starts or stops writing a record of every STUN and TURN request to an access log,
+	 * with the source, transport, result and latency. Relayed data isn't logged. Can be
+	 * called while the server is running. The log is started and closed by the caller.
+	 * @param accessLog The log to write to, null to stop logging
+	 */
+	public void setAccessLog(AccessLog accessLog) {
+		this.accessLog = accessLog;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setAccessLog(accessLog);
+			}
+		}
+	}
+
+	/**
+	 * Starts or stops counting requests and error responses per source (address and
+	 * port) in a top talkers table, which can be queried while the server runs. Can be
+	 * called while the server is running.
+	 * @param topTalkers The table to count in, null to stop counting
+	 */
+	public void setTopTalkers(TopTalkers topTalkers) {
+		this.topTalkers = topTalkers;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setTopTalkers(topTalkers);
+			}
+		}
+	}
+
+	/**
+	 * Makes the pipeline workers take up to PacketValidator.MAX_BATCH packets from their
+	 * queue at a time and check all their headers at once. Packets that aren't STUN are
+	 * then dropped without being parsed again, ChannelData is still relayed. Messages with
+	 * a bad length get a 400 at once, and the rest skip the header checks that
+	 * prepareResponse would otherwise make one by one. Only used in pipeline mode.
+	 * Can be called while the server is running.
+	 * @param validator From PacketValidator.create(), null to handle packets one by one
+	 */
+	public void setPacketValidator(PacketValidator validator) {
+		this.packetValidator = validator;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setPacketValidator(validator);
+			}
+		}
+	}
+
+	/**
+	 * Lets the UDP listeners report what they allocate in each stage of answering a
+	 * request, see AllocationGate. Only the listeners without a pipeline are measured.
+	 * @param probe The probe or null to stop measuring
+	 */
+	void setAllocationProbe(AllocationProbe probe) {
+		this.allocationProbe = probe;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setAllocationProbe(probe);
+			}
+		}
+	}
+
+	/**
+	 * Makes UDP requests authenticate with long-term credentials, see
+	 * LongTermCredentials. Unauthenticated requests are challenged with 401, responses
+	 * to authentic ones carry MESSAGE-INTEGRITY. This holds for all listeners, the
+	 * io_uring and the TCP ones too. Can't be combined with
+	 * an OverloadShedder, see setOverloadShedder.
+	 * @param credentials The users and realm or null to answer everyone
+	 * @throws IllegalStateException If an OverloadShedder is set
+	 */
+	public void setLongTermCredentials(LongTermCredentials credentials) {
+		if (credentials != null && overloadShedder != null) {
+			throw new IllegalStateException("Long-term credentials can't be used with an OverloadShedder");
+		}
+		this.credentials = credentials;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setLongTermCredentials(credentials);
+			}
+		}
+	}
+
+	/**
+	 * Lets an application answer a STUN method of its own, or replace the built-in
+	 * handler of binding requests. Requests without a handler get 600 (Global Failure),
+	 * other classes without one are dropped. TURN requests go to the TURN relay when it
+	 * is enabled. Must be called before startServer.
+	 * @param method The 12 bit STUN method
+	 * @param messageClass Header.REQUEST_CLASS, INDICATION_CLASS, SUCCESS_RESPONSE_CLASS
+	 * or ERROR_RESPONSE_CLASS
+	 * @param handler The handler or null to remove it
+	 */
+	public void setMethodHandler(int method, int messageClass, MethodHandler handler) {
+		handlers[Header.messageType(method, messageClass)] = handler;
+	}
+
+	/**
+	 * @return The handler of a method and class or null if there is none
+	 */
+	public MethodHandler getMethodHandler(int method, int messageClass) {
+		return handlers[Header.messageType(method, messageClass)];
+	}
+
+	/**
+	 * Answers retransmitted UDP requests with the response to the first copy, see
+	 * ResponseCache. Used for TURN requests, which aren't idempotent, and for all
+	 * requests with long-term credentials, whose responses take an HMAC. The cache can
+	 * be shared by several Servers.
+	 * @param cache The cache or null to process every retransmission again
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.responseCache = cache;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setResponseCache(cache);
+			}
+		}
+	}
+
+	/**
+	 * Redirects UDP binding requests to another server with 300 (Try Alternate) while
+	 * a listener is overloaded, see OverloadShedder. TURN requests, TCP and the
+	 * io_uring listeners are never shed. Can't be combined with long-term credentials:
+	 * the redirect is sent before a request is authenticated and isn't signed, so
+	 * anyone could send the clients to the alternate server.
+	 * @param shedder The shedder or null to answer everything
+	 * @throws IllegalStateException If long-term credentials are set
+	 */
+	public void setOverloadShedder(OverloadShedder shedder) {
+		if (shedder != null && credentials != null) {
+			throw new IllegalStateException("An OverloadShedder can't be used with long-term credentials");
+		}
+		this.overloadShedder = shedder;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setOverloadShedder(shedder);
+			}
+		}
+	}
+
+	/**
+	 * Samples how long UDP requests spend in each stage of being answered, see
+	 * LatencyTracer. Not used while an allocation probe is set.
+	 * @param tracer The tracer or null to stop tracing
+	 */
+	public void setLatencyTracer(LatencyTracer tracer) {
+		this.latencyTracer = tracer;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				group.setLatencyTracer(tracer);
+			}
+		}
+	}
+
+	/**
+	 * Receives and answers UDP with io_uring on Linux instead of with DatagramSockets.
+	 * Each UDP listener then waits for many requests at once and sends the responses
+	 * in batches. The io_uring listener is compiled separately from src-uring and needs
+	 * JDK 22 and Linux 6.0. Whenever it can't be used the standard listeners are used
+	 * instead, and so they are with TURN, an alternate address or pipeline mode, which
+	 * need DatagramSockets. Servers with io_uring listeners can't be taken over.
+	 * Must be called before startServer.
+	 * @param entries Submission queue size of each listener, 256 is plenty
+	 */
+	public void enableIoUring(int entries) {
+		this.ioUringEntries = entries;
+	}
+
+	/**
+	 * @return Number of UDP listeners that use io_uring
+	 */
+	public int getIoUringListenerCount() {
+		int count = 0;
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				count += group.getIoUringListenerCount();
+			}
+		}
+		if (uringListeners != null) {
+			for (DatagramTransport listener : uringListeners) {
+				count += (listener != null) ? 1 : 0;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Turns on the TURN relay (RFC5766) on the UDP listeners. Must be called before startServer.
+	 * Allocate, Refresh, CreatePermission and ChannelBind requests are then answered and
+	 * ChannelData and Send indications are relayed to peers.
+	 * @param relayAddress The local address that relayed transport addresses are bound to.
+	 * It is sent to clients in XOR-RELAYED-ADDRESS so it must be reachable for them.
+	 * @param maxAllocations Maximum number of simultaneous allocations
+	 * @throws IOException If the relay Selector can't be opened
+	 */
+	public void enableTurn(InetAddress relayAddress, int maxAllocations) throws IOException {
+		turnHandler = new TurnHandler(relayAddress, maxAllocations);
+	}
+
+	/**
+	 * @return Number of active TURN allocations, 0 if TURN is off
+	 */
+	public int getAllocationCount() {
+		return (turnHandler != null) ? turnHandler.getAllocationCount() : 0;
+	}
+
+	/**
+	 * @return Number of packets relayed in both directions, 0 if TURN is off
+	 */
+	public long getRelayedPackets() {
+		return (turnHandler != null) ? turnHandler.getRelayedPackets() : 0;
+	}
+
+	/**
+	 * @return Number of payload bytes relayed in both directions, 0 if TURN is off
+	 */
+	public long getRelayedBytes() {
+		return (turnHandler != null) ? turnHandler.getRelayedBytes() : 0;
+	}
+
+	/**
+	 * This method starts the STUN server. It starts a thread pool with more than 4 threads
+	 * and creates nrOfThreads/2 TCP listeners and nrOfThreads/2 UDP listeners
+	 * It will by default use port 3478 + nrOfThreads ports and if specific port is 
+	 * requested port+nrOfThreads. 
+	 * The sockets are bound in parallel on the thread pool. If any of them can't be bound
+	 * all of them are closed again before the IOException is thrown, so a failed start
+	 * leaves nothing open.
+	 * @throws IOException for Sockets
+	 */
+	public void startServer() throws IOException {
+		if (alternateAddress != null && serverAddress == null) {
+			throw new IOException("An alternate address needs a specific server address");
+		}
+		if (dualStack) {
+			if (allInterfaces || alternateAddress != null || serverAddress != null && !serverAddress.isAnyLocalAddress()) {
+				throw new IOException("A dual-stack server can't be combined with a specific, alternate or per-interface address");
+			}
+			serverAddress = dualStackAddress();
+		}
+		if (allInterfaces) {
+			startInterfaceGroups();
+			return;
+		}
+		this.nrOfThreads = nrOfThreads();
+		executorService = Executors.newFixedThreadPool(nrOfThreads + ((alternateAddress != null) ? 2 : 0));
+
+		bindListeners();
+
+		if (alternateAddress != null) {
+			changeSockets = new DatagramSocket[][] {{udpListeners[0].socket, udpListeners[2].socket},
+				{alternateListeners[0].socket, alternateListeners[1].socket}};
+
+			executorService.execute(alternateListeners[0]);
+			executorService.execute(alternateListeners[1]);
+		}
+
+		if (turnHandler != null && ownsTurnHandler) {
+			turnHandler.start();
+		}
+
+		executeListeners();
+	}
+
+	/**
+	 * The IPv6 wildcard address if this host has IPv6, otherwise null which binds
+	 * the IPv4 wildcard address
+	 * @throws IOException If the network interfaces can't be listed
+	 */
+	private InetAddress dualStackAddress() throws IOException {
+		if (!Boolean.getBoolean("java.net.preferIPv4Stack")) {
+			for (NetworkInterface netInt : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				for (InetAddress address : Collections.list(netInt.getInetAddresses())) {
+					if (address instanceof Inet6Address) {
+						return InetAddress.getByAddress(new byte[16]);
+					}
+				}
+			}
+		}
+		logger.log(Level.WARNING, "IPv6 is not available, the dual-stack server only serves IPv4");
+		return null;
+	}
+
+	/**
+	 * Starts one listener group per interface address. If a group can't be started the
+	 * groups that were started are shut down again before the IOException is thrown.
+	 * @throws IOException The first group that failed
+	 */
+	private void startInterfaceGroups() throws IOException {
+		if (serverAddress != null || alternateAddress != null) {
+			throw new IOException("Listening on all interfaces can't be combined with a specific or alternate address");
+		}
+		interfaceGroups = new ArrayList<Server>();
+
+		try {
+			for (NetworkInterface netInt : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				if (!netInt.isUp()) {
+					continue;
+				}
+				Integer threads = interfaceThreads.get(netInt.getName());
+
+				for (InetAddress address : Collections.list(netInt.getInetAddresses())) {
+					if (address instanceof Inet6Address && address.isLinkLocalAddress()) {
+						continue;
+					}
+					Server group = interfaceGroup(address, (threads != null) ? threads : interfaceDefaultThreads);
+					group.startServer();
+					interfaceGroups.add(group);
+					logger.log(Level.INFO, "Listening on " + address.getHostAddress() + " (" + netInt.getName() + ") with "
+							+ group.nrOfThreads + " threads");
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not start all listener groups, shutting down the ones that were started");
+			for (Server group : interfaceGroups) {
+				group.shutdown();
+			}
+			interfaceGroups = null;
+			throw e;
+		}
+		if (interfaceGroups.isEmpty()) {
+			interfaceGroups = null;
+			throw new IOException("No network interface is up");
+		}
+
+		if (turnHandler != null) {
+			turnHandler.start();
+		}
+	}
+
+	/**
+	 * A listener group bound to one address with the settings of this Server. The groups
+	 * share the TURN relay of this Server, which starts and stops it.
+	 */
+	private Server interfaceGroup(InetAddress address, int threads) {
+		Server group = new Server(address, serverPort);
+		group.listenerThreads = threads;
+		group.turnHandler = turnHandler;
+		group.ownsTurnHandler = false;
+		group.rateLimiter = rateLimiter;
+		group.capture = capture;
+		group.accessLog = accessLog;
+		group.topTalkers = topTalkers;
+		group.packetValidator = packetValidator;
+		group.allocationProbe = allocationProbe;
+		group.latencyTracer = latencyTracer;
+		group.overloadShedder = overloadShedder;
+		group.responseCache = responseCache;
+		group.credentials = credentials;
+		group.handlers = handlers;
+		group.receiveBufferSize = receiveBufferSize;
+		group.sendBufferSize = sendBufferSize;
+		group.ioUringEntries = ioUringEntries;
+		group.enablePipeline(pipelineWorkers, pipelineQueueCapacity, backpressurePolicy);
+		return group;
+	}
+
+	/**
+	 * Creates all listeners at once on the listener thread pool and waits for them.
+	 * Rolls back on the first failure.
+	 * @throws IOException The first bind failure
+	 */
+	private void bindListeners() throws IOException {
+		udpListeners = new UDPListener[nrOfThreads];
+		tcpListeners = new TCPListener[nrOfThreads];
+		uringListeners = new DatagramTransport[nrOfThreads];
+
+		Future<?>[] binds = new Future<?>[nrOfThreads];
+		Future<?>[] alternateBinds = new Future<?>[(alternateAddress != null) ? 2 : 0];
+
+		for (int i = 0; i < nrOfThreads; i++) {
+			binds[i] = executorService.submit(bindTask(serverPort + i, serverAddress, (i % 2) == 0));
+		}
+		for (int i = 0; i < alternateBinds.length; i++) {
+			alternateBinds[i] = executorService.submit(bindTask(serverPort + 2 * i, alternateAddress, true));
+		}
+		alternateListeners = new UDPListener[alternateBinds.length];
+		IOException failure = null;
+
+		for (int i = 0; i < nrOfThreads; i++) {
+			try {
+				Object listener = binds[i].get();
+
+				if (listener instanceof DatagramTransport) {
+					uringListeners[i] = (DatagramTransport) listener;
+				} else if ((i % 2) == 0) {
+					udpListeners[i] = (UDPListener) listener;
+				} else {
+					tcpListeners[i] = (TCPListener) listener;
+				}
+			} catch (ExecutionException e) {
+				failure = (failure != null) ? failure : bindFailure(e);
+			} catch (InterruptedException e) {
+				failure = (failure != null) ? failure : new IOException("Interrupted while binding listeners");
+			}
+		}
+		for (int i = 0; i < alternateBinds.length; i++) {
+			try {
+				alternateListeners[i] = (UDPListener) alternateBinds[i].get();
+			} catch (ExecutionException e) {
+				failure = (failure != null) ? failure : bindFailure(e);
+			} catch (InterruptedException e) {
+				failure = (failure != null) ? failure : new IOException("Interrupted while binding listeners");
+			}
+		}
+
+		if (failure != null) {
+			logger.log(Level.WARNING, "Could not bind all listeners, closing the ones that were bound");
+			closeListeners();
+			executorService.shutdown();
+			executorService = null;
+			throw failure;
+		}
+		logger.log(Level.FINE, "All listeners bound");
+	}
+
+	private Callable<Object> bindTask(final int port, final InetAddress address, final boolean udp) {
+		return new Callable<Object>() {
+			public Object call() throws IOException {
+				if (udp && useIoUring()) {
+					DatagramTransport listener = openUringListener(port, address);
+
+					if (listener != null) {
+						return listener;
+					}
+				}
+				if (udp) {
+					return (address != null) ? new UDPListener(port, address) : new UDPListener(port);
+				}
+				return (address != null) ? new TCPListener(port, address) : new TCPListener(port);
+			}
+		};
+	}
+
+	private boolean useIoUring() {
+		return ioUringEntries > 0 && turnHandler == null && alternateAddress == null && pipelineWorkers == 0;
+	}
+
+	/**
+	 * Loads the io_uring listener by name, it isn't compiled with the other sources
+	 * @return The bound listener, or null if io_uring can't be used here
+	 * @throws IOException If the port can't be bound
+	 */
+	private DatagramTransport openUringListener(int port, InetAddress address) throws IOException {
+		try {
+			return (DatagramTransport) Class.forName("UringListener")
+					.getDeclaredConstructor(Server.class, InetAddress.class, int.class, int.class)
+					.newInstance(this, address, port, ioUringEntries);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException && e.getCause().getMessage().startsWith("Can't bind")) {
+				throw (IOException) e.getCause();
+			}
+			logger.log(Level.INFO, "io_uring can't be used, using DatagramSocket on port " + port + ": " + e.getCause());
+		} catch (ReflectiveOperationException | LinkageError e) {
+			logger.log(Level.INFO, "io_uring listener not available, using DatagramSocket on port " + port + ": " + e);
+		}
+		return null;
+	}
+
+	private IOException bindFailure(ExecutionException e) {
+		if (e.getCause() instanceof IOException) {
+			return (IOException) e.getCause();
+		}
+		return new IOException("Can't bind listener: " + e.getCause());
+	}
+
+	/**
+	 * Closes every socket that has been bound, used by shutdown and when startServer fails
+	 */
+	private void closeListeners() throws IOException {
+		for (int i = 0; i < nrOfThreads; i++) {
+			
+			if (udpListeners[i] != null) 
+				udpListeners[i].socket.close();
+
+			if (uringListeners != null && uringListeners[i] != null)
+				uringListeners[i].close();
+			
+			if (tcpListeners[i] != null)
+				tcpListeners[i].serverSocket.close();
+		}
+
+		if (alternateListeners != null) {
+			for (UDPListener listener : alternateListeners) {
+				if (listener != null)
+					listener.socket.close();
+			}
+		}
+	}
+
+	private void executeListeners() {
+		for (int i = 0; i < nrOfThreads; i++) {
+			
+			if (uringListeners != null && uringListeners[i] != null) {
+				executorService.execute(uringListeners[i]);
+			} else if ((i % 2) == 0) {
+				executorService.execute(udpListeners[i]);
+			} else {
+				executorService.execute(tcpListeners[i]);
+			}
+		}
+	}
+
+	/**
+	 * Starts this Server on the sockets of a running Server in the same JVM, for
+	 * restarts without a gap in service. The new listeners start receiving on the
+	 * bound sockets before the old ones are told to stop, so there is always someone
+	 * listening. The previous Server then finishes what it is processing and its threads
+	 * exit, but its sockets are left open. TURN allocations are taken over as well.
+	 * Addresses and ports are taken from the previous Server, while settings such as
+	 * pipeline mode are those of this Server.
+	 * @param previous A started Server
+	 * @param timeoutMillis How long to wait for the previous Server's threads
+	 * @return What the previous Server finished during the handoff
+	 * @throws IOException If previous isn't running or the wait is interrupted
+	 */
+	public DrainStatistics takeOver(Server previous, long timeoutMillis) throws IOException {
+		if (previous.interfaceGroups != null && !previous.released) {
+			return takeOverInterfaceGroups(previous, timeoutMillis);
+		}
+		if (previous.executorService == null || previous.released) {
+			throw new IOException("Can't take over a server that isn't running");
+		}
+		if (previous.getIoUringListenerCount() > 0) {
+			throw new IOException("Can't take over io_uring listeners");
+		}
+		long start = System.currentTimeMillis();
+
+		serverPort = previous.serverPort;
+		serverAddress = previous.serverAddress;
+		alternateAddress = previous.alternateAddress;
+		turnHandler = previous.turnHandler;
+		rateLimiter = (rateLimiter != null) ? rateLimiter : previous.rateLimiter;
+		nrOfThreads = previous.nrOfThreads;
+		executorService = Executors.newFixedThreadPool(nrOfThreads + ((alternateAddress != null) ? 2 : 0));
+
+		udpListeners = new UDPListener[nrOfThreads];
+		tcpListeners = new TCPListener[nrOfThreads];
+		int udpSockets = 0;
+		int tcpSockets = 0;
+
+		for (int i = 0; i < nrOfThreads; i++) {
+			if ((i % 2) == 0) {
+				udpListeners[i] = new UDPListener(previous.udpListeners[i].socket);
+				udpSockets++;
+			} else {
+				tcpListeners[i] = new TCPListener(previous.tcpListeners[i].serverSocket);
+				tcpSockets++;
+			}
+		}
+		if (alternateAddress != null) {
+			alternateListeners = new UDPListener[] {new UDPListener(previous.alternateListeners[0].socket),
+					new UDPListener(previous.alternateListeners[1].socket)};
+			changeSockets = new DatagramSocket[][] {{udpListeners[0].socket, udpListeners[2].socket},
+				{alternateListeners[0].socket, alternateListeners[1].socket}};
+			udpSockets += 2;
+
+			executorService.execute(alternateListeners[0]);
+			executorService.execute(alternateListeners[1]);
+		}
+		executeListeners();
+		logger.log(Level.INFO, "Took over " + udpSockets + " UDP and " + tcpSockets + " TCP sockets");
+
+		long inFlightAtStart = previous.inFlight.sum();
+		long processedAtStart = previous.processed.sum();
+
+		previous.released = true;
+		previous.executorService.shutdown();
+		awaitTermination(previous.executorService, timeoutMillis);
+
+		return new DrainStatistics(inFlightAtStart, previous.processed.sum() - processedAtStart, previous.inFlight.sum(),
+				udpSockets, tcpSockets, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * takeOver for a Server listening on all interfaces, each listener group takes over
+	 * the sockets of the corresponding group of the previous Server.
+	 */
+	private DrainStatistics takeOverInterfaceGroups(Server previous, long timeoutMillis) throws IOException {
+		long start = System.currentTimeMillis();
+		long inFlightAtStart = 0, completed = 0, abandoned = 0;
+		int udpSockets = 0, tcpSockets = 0;
+
+		serverPort = previous.serverPort;
+		turnHandler = previous.turnHandler;
+		rateLimiter = (rateLimiter != null) ? rateLimiter : previous.rateLimiter;
+		interfaceGroups = new ArrayList<Server>();
+
+		for (Server previousGroup : previous.interfaceGroups) {
+			Server group = interfaceGroup(previousGroup.serverAddress, previousGroup.nrOfThreads);
+			long remaining = Math.max(timeoutMillis - (System.currentTimeMillis() - start), 0);
+			DrainStatistics statistics = group.takeOver(previousGroup, remaining);
+			interfaceGroups.add(group);
+
+			inFlightAtStart += statistics.getInFlightAtStart();
+			completed += statistics.getCompleted();
+			abandoned += statistics.getAbandoned();
+			udpSockets += statistics.getUdpSocketsHandedOver();
+			tcpSockets += statistics.getTcpSocketsHandedOver();
+		}
+		previous.released = true;
+
+		return new DrainStatistics(inFlightAtStart, completed, abandoned, udpSockets, tcpSockets,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Shuts the Server down gracefully. TCP server sockets are closed at once so no new
+	 * connections are accepted, and UDP listeners stop receiving after the request they
+	 * are on, or once their receive times out when there is no traffic. Requests that are
+	 * being processed, and in pipeline mode those queued for the workers, are finished.
+	 * Whatever is left when the deadline passes is closed like in shutdown.
+	 * @param timeoutMillis Deadline for the drain
+	 * @return What was finished and what was abandoned
+	 * @throws IOException If the wait is interrupted
+	 */
+	public DrainStatistics drain(long timeoutMillis) throws IOException {
+		if (interfaceGroups != null && !released) {
+			return drainInterfaceGroups(timeoutMillis);
+		}
+		long start = System.currentTimeMillis();
+		long inFlightAtStart = inFlight.sum();
+		long processedAtStart = processed.sum();
+
+		if (executorService == null || released) {
+			return new DrainStatistics(0, 0, 0, 0, 0, 0);
+		}
+		logger.log(Level.INFO, "Draining, " + inFlightAtStart + " requests in flight");
+		draining = true;
+
+		for (int i = 1; i < nrOfThreads; i += 2) {
+			tcpListeners[i].serverSocket.close();
+		}
+		executorService.shutdown();
+		awaitTermination(executorService, timeoutMillis);
+
+		long abandoned = inFlight.sum() + queuedRequests();
+		long completed = processed.sum() - processedAtStart;
+		shutdown();
+
+		return new DrainStatistics(inFlightAtStart, completed, abandoned, 0, 0, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * drain for a Server listening on all interfaces, the groups are drained one after
+	 * the other within the same deadline.
+	 */
+	private DrainStatistics drainInterfaceGroups(long timeoutMillis) throws IOException {
+		long start = System.currentTimeMillis();
+		long inFlightAtStart = 0, completed = 0, abandoned = 0;
+
+		for (Server group : interfaceGroups) {
+			long remaining = Math.max(timeoutMillis - (System.currentTimeMillis() - start), 0);
+			DrainStatistics statistics = group.drain(remaining);
+
+			inFlightAtStart += statistics.getInFlightAtStart();
+			completed += statistics.getCompleted();
+			abandoned += statistics.getAbandoned();
+		}
+		shutdown();
+
+		return new DrainStatistics(inFlightAtStart, completed, abandoned, 0, 0, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return Requests waiting in the worker queues of the pipelines, they aren't in flight yet
+	 */
+	private long queuedRequests() {
+		long queued = 0;
+
+		for (int i = 0; i < nrOfThreads; i += 2) {
+			UDPPipeline pipeline = (udpListeners[i] != null) ? udpListeners[i].pipeline : null;
+			queued += (pipeline != null) ? pipeline.queueDepth() : 0;
+		}
+		return queued;
+	}
+
+	private void awaitTermination(ExecutorService executor, long timeoutMillis) throws IOException {
+		try {
+			if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				logger.log(Level.WARNING, "Listeners still running after " + timeoutMillis + "ms");
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for listeners");
+		}
+	}
+
+	/**
+	 * @return Number of requests being processed right now
+	 */
+	public long getInFlightRequests() {
+		long requests = inFlight.sum();
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				requests += group.getInFlightRequests();
+			}
+		}
+		return requests;
+	}
+
+	/**
+	 * @return Number of requests processed since the Server started
+	 */
+	public long getProcessedRequests() {
+		long requests = processed.sum();
+
+		if (interfaceGroups != null) {
+			for (Server group : interfaceGroups) {
+				requests += group.getProcessedRequests();
+			}
+		}
+		return requests;
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+	
+	/**
+	 * For debugging reasons 
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Fills an ArrayList with the available network interfaces and returns it
+	 * @return ArrayList with available network interfaces
+	 */
+	public static ArrayList<InetAddress> getInetList() {
+		return fillInetList();
+	}
+
+	private static ArrayList<InetAddress> fillInetList() {
+		ArrayList<InetAddress> inetList = new ArrayList<InetAddress>();
+
+		Enumeration<NetworkInterface> nets;
+		try {
+			nets = NetworkInterface.getNetworkInterfaces();
+
+			for(NetworkInterface netInt: Collections.list(nets)) {
+				for(InetAddress iAdd: Collections.list(netInt.getInetAddresses())) {
+					inetList.add(iAdd);
+					logger.log(Level.FINE, iAdd.getHostAddress() + " added to inetList");
+
+				}
+			}
+		} catch (SocketException e) { 
+			logger.log(Level.WARNING, "Socket exception while adding local network addresses to list " + e.getMessage()); 
+		}
+		return inetList;
+
+	}
+
+	/**
+	 * Method that decides the number of threads that the server should use
+	 * @return > 4, or the size given to a listener group
+	 */
+	private int nrOfThreads() {
+		if (listenerThreads > 0) {
+			return listenerThreads;
+		}
+		int availableCPUS = Runtime.getRuntime().availableProcessors();
+
+		return (availableCPUS > 4) ? availableCPUS : 4;
+	}
+
+	class TCPListener implements Runnable {
+		private ServerSocket serverSocket;
+		
+		/**
+		 * Default constructor for TCP listener
+		 * @param serverPort
+		 * @throws IOException
+		 */
+		public TCPListener(int serverPort) throws IOException {
+			logger.log(Level.FINE, "Starting ServerSocket listener nr "+ ((serverPort - 3478)/2) + " on port " + serverPort);
+
+			try {
+				serverSocket = new ServerSocket(serverPort);
+				serverSocket.setSoTimeout(LISTENER_POLL_INTERVAL);
+
+			} catch (SocketException e) {
+				throw new IOException("Can't create ServerSocket: " + e.getMessage());
+			}
+
+		}
+
+		/**
+		 * Alternative constructor if you want to specify which of your addresses you want to use
+		 * @param port
+		 * @param serverAddress
+		 * @throws IOException
+		 */
+		public TCPListener(int serverPort, InetAddress serverAddress) throws IOException {
+			logger.log(Level.FINE, "Starting TCP listener nr " + ((serverPort - 3478)/2) + "on address " + serverAddress + ":" + serverPort);
+
+			try {
+				serverSocket = new ServerSocket(serverPort, 50, serverAddress);
+				serverSocket.setSoTimeout(LISTENER_POLL_INTERVAL);
+
+			} catch (SocketException e) {
+				throw new IOException("Can't create ServerSocket: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Constructor for a listener on a socket taken over from another Server
+		 * @param serverSocket A bound ServerSocket
+		 */
+		public TCPListener(ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+		}
+		
+		/**
+		 * Server run loops that listens after TCP messages. Exits when IOException is thrown
+		 */
+		public void run() {
+			boolean running = true;
+
+			while (running && !released) {
+				try {
+					logger.log(Level.FINE, "Waiting for requests on address "+ serverSocket.getInetAddress() + ":" + serverSocket.getLocalPort() +" in run");
+
+					Socket socket = serverSocket.accept();
+					logger.log(Level.FINE, "Connection recieved");
+
+					inFlight.increment();
+					try {
+						processRequest(socket);
+					} finally {
+						inFlight.decrement();
+						processed.increment();
+					}
+
+				} catch (SocketTimeoutException e) {
+					continue;
+				} catch (IOException e) {
+					running = false;
+					logger.log(Level.FINE, "IOException for ServerSocket - " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the buffer sizes of setSocketBufferSizes and warns when the kernel
+	 * granted less
+	 */
+	private void setBufferSizes(DatagramSocket socket) throws SocketException {
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+
+			if (socket.getReceiveBufferSize() < receiveBufferSize) {
+				logger.log(Level.WARNING, "SO_RCVBUF is " + socket.getReceiveBufferSize() + " instead of " + receiveBufferSize
+						+ ", raise net.core.rmem_max");
+			}
+		}
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+
+			if (socket.getSendBufferSize() < sendBufferSize) {
+				logger.log(Level.WARNING, "SO_SNDBUF is " + socket.getSendBufferSize() + " instead of " + sendBufferSize
+						+ ", raise net.core.wmem_max");
+			}
+		}
+	}
+
+	class UDPListener implements Runnable {
+
+		private DatagramSocket socket;
+		private InetAddress localAddress;
+
+		private final byte[] buffer = new byte[UDP_BUFFER_SIZE];
+		private final byte[] responseBuffer = new byte[RESPONSE_BUFFER_SIZE];
+		private final LatencyTracer.Sample sample = new LatencyTracer.Sample();
+		private final OverloadShedder.Gauge gauge = new OverloadShedder.Gauge();
+		private final ByteBuffer view = ByteBuffer.wrap(buffer);
+		private final FiveTuple probe = new FiveTuple();
+
+		private volatile UDPPipeline pipeline;
+
+		/**
+		 * Default constructor for UDP listener
+		 * @param serverPort
+		 * @throws IOException
+		 */
+		public UDPListener(int serverPort) throws IOException {
+			logger.log(Level.FINE, "Starting UDP listener nr "+ ((serverPort - 3478)/2) + " on port " + serverPort);
+
+			try {
+				socket = new DatagramSocket(serverPort);
+				socket.setSoTimeout(LISTENER_POLL_INTERVAL);
+				setBufferSizes(socket);
+
+			} catch (SocketException e) {
+				throw new IOException("Can't create DatagramSocket: " + e.getMessage());
+			}
+			localAddress = socket.getLocalAddress();
+		}
+
+		/**
+		 * Alternative constructor if you want to specify which of your addresses you want to use
+		 * @param port
+		 * @param serverAddress
+		 * @throws IOException
+		 */
+		public UDPListener(int serverPort, InetAddress serverAddress) throws IOException {
+			logger.log(Level.FINE, "Starting UDP listener nr " + ((serverPort - 3478)/2) + "on address " + serverAddress + ":" + serverPort);
+
+			try {
+
+				socket = new DatagramSocket(serverPort, serverAddress);
+				socket.setSoTimeout(LISTENER_POLL_INTERVAL);
+				setBufferSizes(socket);
+			} catch (SocketException e) {
+				throw new IOException("Can't create DatagramSocket: " + e.getMessage());
+			}
+			localAddress = socket.getLocalAddress();
+		}
+
+		/**
+		 * Constructor for a listener on a socket taken over from another Server
+		 * @param socket A bound DatagramSocket
+		 */
+		public UDPListener(DatagramSocket socket) {
+			this.socket = socket;
+			localAddress = socket.getLocalAddress();
+		}
+		
+		/**
+		 * Server run loops that listens after TCP messages. Exits when IOException is thrown
+		 */
+		public void run() {
+			if (pipelineWorkers > 0) {
+				pipeline = new UDPPipeline(this);
+				pipeline.run();
+				return;
+			}
+			boolean running = true;
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+			while (running && !released && !draining) {
+				try {
+					/*
+					 * The buffer is reused for every packet, processRequest replaces the
+					 * packet data with the response so it has to be reset here.
+					 */
+					packet.setData(buffer);
+					if (logger.isLoggable(Level.FINE))
+						logger.log(Level.FINE, "Waiting for requests on address "+ socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort() +" in run");
+
+					AllocationProbe allocationProbe = Server.this.allocationProbe;
+					if (allocationProbe != null) {
+						allocationProbe.begin();
+					}
+
+					socket.receive(packet);
+
+					/*
+					 * Nothing to answer, and a socket closed by shutdown can hand back
+					 * an empty packet instead of throwing
+					 */
+					if (packet.getLength() == 0) {
+						continue;
+					}
+					handle(packet, allocationProbe);
+				} catch (SocketTimeoutException e) {
+					continue;
+				} catch (IOException e) {
+					running = false;
+					logger.log(Level.FINE, "IOException for UDP Socket - " + e.getMessage());
+				}
+			}
+			logger.log(Level.FINE,"Thread " + (serverPort - 3478) + " out of running");
+		}
+
+		/**
+		 * Answers a datagram that a SimulatedNetwork received for socket
+		 * @param request Copied to the buffer of the listener
+		 * @param source Where it came from
+		 */
+		void handle(byte[] request, int length, InetSocketAddress source) {
+			length = Math.min(length, buffer.length);
+
+			if (length == 0) {
+				return;
+			}
+			System.arraycopy(request, 0, buffer, 0, length);
+			handle(new DatagramPacket(buffer, length, source), null);
+		}
+
+		/**
+		 * Answers a datagram that was received on socket
+		 * @param packet The request, processRequest replaces its data with the response
+		 * @param allocationProbe The probe of AllocationGate or null
+		 */
+		void handle(DatagramPacket packet, AllocationProbe allocationProbe) {
+			LatencyTracer tracer = null;
+			StageProbe stageProbe = null;
+
+			if (allocationProbe != null) {
+				allocationProbe.mark(StageProbe.RECEIVE);
+				stageProbe = allocationProbe;
+			} else if ((tracer = latencyTracer) != null && tracer.sample()) {
+				sample.start();
+				stageProbe = sample;
+			}
+			capture(socket, localAddress, packet);
+
+			if (turnHandler != null && turnHandler.relay(socket, localAddress, packet, view, probe)) {
+				return;
+			}
+			logger.log(Level.FINE, "Packet recieved.");
+
+			AccessLog accessLog = Server.this.accessLog;
+			TopTalkers topTalkers = Server.this.topTalkers;
+			OverloadShedder shedder = overloadShedder;
+			long received = (accessLog != null || shedder != null) ? System.nanoTime() : 0;
+
+			boolean shed = false;
+
+			inFlight.increment();
+			try {
+				shed = shedder != null && shed(shedder, gauge, -1, socket, packet, responseBuffer);
+
+				if (!shed) {
+					processRequest(socket, packet, responseBuffer, stageProbe);
+				}
+			} finally {
+				inFlight.decrement();
+				processed.increment();
+			}
+			// redirects are fast and would hide the overload
+			if (shedder != null && !shed) {
+				gauge.record(System.nanoTime() - received);
+			}
+			if (accessLog != null || topTalkers != null) {
+				byte[] response = packet.getData();
+				account(accessLog, topTalkers, received, packet.getAddress(), packet.getPort(), PacketCapture.PROTOCOL_UDP,
+						buffer, (response != buffer) ? response : null, packet.getLength());
+			}
+			if (stageProbe == allocationProbe && allocationProbe != null) {
+				allocationProbe.mark(StageProbe.ACCOUNT);
+				allocationProbe.countRequest();
+			} else if (stageProbe == sample) {
+				sample.mark(StageProbe.ACCOUNT);
+				tracer.record(sample);
+			}
+		}
+	}
+
+	/**
+	 * Pipeline mode for one UDP socket. The listener thread becomes the receiver,
+	 * it hands packets round robin to the workers, which hand them to one sender.
+	 * The packet buffers are preallocated slots that the sender returns to the
+	 * receiver, every queue between two threads is an SpscRingBuffer.
+	 */
+	class UDPPipeline {
+		private final DatagramSocket socket;
+		private final InetAddress localAddress;
+
+		private final SpscRingBuffer<PipelineSlot>[] workQueues;
+		private final SpscRingBuffer<PipelineSlot>[] sendQueues;
+		private final SpscRingBuffer<PipelineSlot> freeSlots;
+		private final PipelineSlot overflow = new PipelineSlot(UDP_BUFFER_SIZE);
+		private final OverloadShedder.Gauge gauge = new OverloadShedder.Gauge();
+
+		private final Thread[] workers;
+		private final Thread sender;
+
+		private volatile boolean receiving = true;
+		private volatile boolean workersDone;
+
+		UDPPipeline(UDPListener listener) {
+			this.socket = listener.socket;
+			this.localAddress = listener.localAddress;
+
+			workQueues = newQueues(pipelineWorkers);
+			sendQueues = newQueues(pipelineWorkers);
+			workers = new Thread[pipelineWorkers];
+
+			for (int i = 0; i < pipelineWorkers; i++) {
+				workQueues[i] = new SpscRingBuffer<PipelineSlot>(pipelineQueueCapacity);
+				sendQueues[i] = new SpscRingBuffer<PipelineSlot>(pipelineQueueCapacity);
+
+				final int worker = i;
+				workers[i] = new Thread(new Runnable() {
+					public void run() {
+						work(workQueues[worker], sendQueues[worker]);
+					}
+				}, "STUN worker " + socket.getLocalPort() + "-" + i);
+			}
+
+			/*
+			 * Enough slots to fill every queue, so the free list only runs dry
+			 * when the workers or the sender can't keep up
+			 */
+			int slots = 2 * pipelineWorkers * workQueues[0].capacity();
+			freeSlots = new SpscRingBuffer<PipelineSlot>(slots);
+
+			for (int i = 0; i < slots; i++) {
+				freeSlots.offer(new PipelineSlot(UDP_BUFFER_SIZE));
+			}
+			sender = new Thread(new Runnable() {
+				public void run() {
+					send();
+				}
+			}, "STUN sender " + socket.getLocalPort());
+		}
+
+		/**
+		 * Generic arrays can't be created directly, the queues are filled in by the caller
+		 */
+		@SuppressWarnings("unchecked")
+		private SpscRingBuffer<PipelineSlot>[] newQueues(int count) {
+			return (SpscRingBuffer<PipelineSlot>[]) new SpscRingBuffer<?>[count];
+		}
+
+		int queueDepth() {
+			int depth = 0;
+
+			for (SpscRingBuffer<PipelineSlot> queue : workQueues) {
+				depth += queue.size();
+			}
+			return depth;
+		}
+
+		/**
+		 * The receiver, runs on the listener thread until the socket is closed,
+		 * drained or released and then waits for the workers to empty their queues
+		 */
+		void run() {
+			for (Thread worker : workers) {
+				worker.start();
+			}
+			sender.start();
+
+			boolean running = true;
+			int nextWorker = 0;
+			PipelineSlot spare = null;
+
+			while (running && !released && !draining) {
+				SpscRingBuffer<PipelineSlot> queue = workQueues[nextWorker];
+				PipelineSlot slot = (spare != null) ? spare : freeSlots.poll();
+				spare = null;
+
+				if (slot == null && backpressurePolicy == BackpressurePolicy.DROP_OLDEST) {
+					slot = queue.poll();
+
+					if (slot != null) {
+						pipelineDrops.increment();
+					}
+				}
+				if (slot == null) {
+					slot = overflow;
+				}
+				slot.reset();
+
+				try {
+					socket.receive(slot.packet);
+				} catch (SocketTimeoutException e) {
+					spare = (slot != overflow) ? slot : null;
+					continue;
+				} catch (IOException e) {
+					running = false;
+					logger.log(Level.FINE, "IOException for UDP Socket - " + e.getMessage());
+					continue;
+				}
+
+				if (slot.packet.getLength() == 0) {
+					spare = (slot != overflow) ? slot : null;
+					continue;
+				}
+				LatencyTracer tracer = latencyTracer;
+				if (tracer != null && tracer.sample()) {
+					slot.sample.start();
+					slot.traced = true;
+				}
+				capture(socket, localAddress, slot.packet);
+				OverloadShedder shedder = overloadShedder;
+				slot.receivedNanos = (accessLog != null || shedder != null) ? System.nanoTime() : 0;
+
+				if (slot == overflow) {
+					pipelineDrops.increment();
+					continue;
+				}
+				if (shedder != null && shed(shedder, gauge, queueDepth(), socket, slot.packet, slot.response)) {
+					AccessLog accessLog = Server.this.accessLog;
+					TopTalkers topTalkers = Server.this.topTalkers;
+					if (accessLog != null || topTalkers != null) {
+						account(accessLog, topTalkers, slot.receivedNanos, slot.packet.getAddress(), slot.packet.getPort(),
+								PacketCapture.PROTOCOL_UDP, slot.buffer, (slot.packet.getData() != slot.buffer) ? slot.packet.getData() : null,
+								slot.packet.getLength());
+					}
+					spare = slot;
+					continue;
+				}
+				if (!queue.offer(slot)) {
+					PipelineSlot dropped = slot;
+
+					if (backpressurePolicy == BackpressurePolicy.DROP_OLDEST) {
+						PipelineSlot oldest = queue.poll();
+
+						if (queue.offer(slot)) {
+							dropped = oldest;
+						}
+					}
+					if (dropped != null) {
+						pipelineDrops.increment();
+						spare = dropped;
+					}
+				}
+				nextWorker = (nextWorker + 1) % workQueues.length;
+			}
+
+			receiving = false;
+			try {
+				for (Thread worker : workers) {
+					worker.join();
+				}
+				workersDone = true;
+				sender.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			logger.log(Level.FINE, "Pipeline on port " + socket.getLocalPort() + " out of running");
+		}
+
+		private void work(SpscRingBuffer<PipelineSlot> workQueue, SpscRingBuffer<PipelineSlot> sendQueue) {
+			FiveTuple probe = new FiveTuple();
+			PipelineSlot[] batch = new PipelineSlot[PacketValidator.MAX_BATCH];
+			byte[][] buffers = new byte[PacketValidator.MAX_BATCH][];
+			int[] lengths = new int[PacketValidator.MAX_BATCH];
+			byte[] verdicts = new byte[PacketValidator.MAX_BATCH];
+			int idle = 0;
+
+			while (true) {
+				PacketValidator validator = packetValidator;
+				int maxBatch = (validator != null) ? PacketValidator.MAX_BATCH : 1;
+				int count = 0;
+				PipelineSlot slot;
+
+				while (count < maxBatch && (slot = workQueue.poll()) != null) {
+					batch[count] = slot;
+					buffers[count] = slot.buffer;
+					lengths[count] = slot.packet.getLength();
+					count++;
+				}
+
+				if (count == 0) {
+					if (!receiving && workQueue.size() == 0) {
+						return;
+					}
+					idle(idle++);
+					continue;
+				}
+				idle = 0;
+
+				if (validator != null) {
+					validator.validate(buffers, lengths, count, verdicts);
+				}
+
+				for (int i = 0; i < count; i++) {
+					slot = batch[i];
+					batch[i] = null;
+					process(slot, (validator != null) ? verdicts[i] : UNVALIDATED, probe);
+
+					while (!sendQueue.offer(slot)) {
+						idle(idle++);
+					}
+					idle = 0;
+				}
+			}
+		}
+
+		/**
+		 * Relays the packet or builds the response to it
+		 * @param verdict What the PacketValidator found, UNVALIDATED without one
+		 */
+		private void process(PipelineSlot slot, byte verdict, FiveTuple probe) {
+			StageProbe stageProbe = null;
+			if (slot.traced) {
+				slot.sample.mark(StageProbe.QUEUE);
+				stageProbe = slot.sample;
+			}
+			try {
+				if (turnHandler == null || !turnHandler.relay(socket, localAddress, slot.packet, slot.view, probe)) {
+					slot.request = true;
+					inFlight.increment();
+					try {
+						slot.responseSocket = (verdict == PacketValidator.NOT_STUN) ? null
+								: prepareResponse(socket, slot.packet, slot.response, stageProbe, verdict);
+					} finally {
+						inFlight.decrement();
+						processed.increment();
+					}
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Could not process request", e);
+				slot.responseSocket = null;
+			}
+		}
+
+		private void send() {
+			int idle = 0;
+
+			while (true) {
+				boolean sent = false;
+
+				for (SpscRingBuffer<PipelineSlot> sendQueue : sendQueues) {
+					PipelineSlot slot = sendQueue.poll();
+
+					if (slot != null) {
+						sent = true;
+
+						if (slot.responseSocket != null) {
+							sendData(slot.responseSocket, slot.packet);
+						}
+						if (slot.traced) {
+							slot.sample.mark(StageProbe.SEND);
+						}
+						if (slot.request && slot.receivedNanos != 0 && overloadShedder != null) {
+							gauge.record(System.nanoTime() - slot.receivedNanos);
+						}
+						AccessLog accessLog = Server.this.accessLog;
+						TopTalkers topTalkers = Server.this.topTalkers;
+
+						if (slot.request && ((slot.receivedNanos != 0 && accessLog != null) || topTalkers != null)) {
+							account((slot.receivedNanos != 0) ? accessLog : null, topTalkers, slot.receivedNanos,
+									slot.packet.getAddress(), slot.packet.getPort(),
+									PacketCapture.PROTOCOL_UDP, slot.buffer, (slot.responseSocket != null) ? slot.packet.getData() : null,
+									slot.packet.getLength());
+						}
+						LatencyTracer tracer = latencyTracer;
+						if (slot.traced && slot.request && tracer != null) {
+							slot.sample.mark(StageProbe.ACCOUNT);
+							tracer.record(slot.sample);
+						}
+						freeSlots.offer(slot);
+					}
+				}
+
+				if (sent) {
+					idle = 0;
+				} else if (workersDone && isEmpty(sendQueues)) {
+					return;
+				} else {
+					idle(idle++);
+				}
+			}
+		}
+
+		private boolean isEmpty(SpscRingBuffer<PipelineSlot>[] queues) {
+			for (SpscRingBuffer<PipelineSlot> queue : queues) {
+				if (queue.size() > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Yield for a while, then park briefly so idle pipelines don't burn a core
+		 */
+		private void idle(int idleCount) {
+			if (idleCount < IDLE_SPINS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
 			}
-		} catch (SocketException e) { 
-			logger.log(Level.WARNING, "Socket exception while adding local network addresses to list " + e.getMessage()); 
 		}
-		return inetList;
-
 	}
 
 	/**
-	 * Method that decides the number of threads that the server should use
-	 * @return > 4
+	 * Redirects a binding request to the alternate server of the shedder while the
+	 * listener is overloaded. The redirect is sent right away from socket.
+	 * @param gauge The load of the listener
+	 * @param queueDepth Packets waiting in its pipeline, -1 without one
+	 * @param packet The request, replaced by the redirect
+	 * @param responseBuffer Where the redirect is written
+	 * @return true if the request was redirected or dropped by the rate limiter
 	 */
-	private int nrOfThreads() {
-		int availableCPUS = Runtime.getRuntime().availableProcessors();
+	private boolean shed(OverloadShedder shedder, OverloadShedder.Gauge gauge, int queueDepth, DatagramSocket socket,
+			DatagramPacket packet, byte[] responseBuffer) {
+		byte[] request = packet.getData();
 
-		return (availableCPUS > 4) ? availableCPUS : 4;
+		boolean overloaded = (queueDepth >= 0) ? shedder.isOverloaded(gauge, queueDepth) : shedder.isOverloaded(gauge, socket);
+
+		if (!overloaded || packet.getLength() < Header.LENGTH
+				|| !Header.compareMagicCookieIn(request) || Header.getMessageType(request) != Header.BINDING_REQUEST) {
+			return false;
+		}
+		if (rateLimiter == null || rateLimiter.allow(packet.getAddress())) {
+			packet.setData(responseBuffer, 0, shedder.putResponse(responseBuffer, request));
+			sendData(socket, packet);
+		}
+		return true;
 	}
 
-	class TCPListener implements Runnable {
-		private ServerSocket serverSocket;
-		
-		/**
-		 * Default constructor for TCP listener
-		 * @param serverPort
-		 * @throws IOException
-		 */
-		public TCPListener(int serverPort) throws IOException {
-			logger.log(Level.FINE, "Starting ServerSocket listener nr "+ ((serverPort - 3478)/2) + " on port " + serverPort);
+	private void processRequest(DatagramSocket socket, DatagramPacket packet, byte[] responseBuffer, StageProbe probe) {
+		DatagramSocket responseSocket = prepareResponse(socket, packet, responseBuffer, probe, UNVALIDATED);
 
-			try {
-				serverSocket = new ServerSocket(serverPort);
+		if (responseSocket != null) {
+			sendData(responseSocket, packet);
+		}
+		if (probe != null) {
+			probe.mark(StageProbe.SEND);
+		}
+	}
 
-			} catch (SocketException e) {
-				throw new IOException("Can't create ServerSocket: " + e.getMessage());
-			}
+	/**
+	 * Writes a received packet to the capture file, if capturing is on
+	 */
+	private void capture(DatagramSocket socket, InetAddress localAddress, DatagramPacket packet) {
+		PacketCapture capture = this.capture;
 
+		if (capture != null) {
+			capture.capture(packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress(), packet.getPort(),
+					localAddress, socket.getLocalPort(), PacketCapture.PROTOCOL_UDP);
 		}
+	}
 
-		/**
-		 * Alternative constructor if you want to specify which of your addresses you want to use
-		 * @param port
-		 * @param serverAddress
-		 * @throws IOException
-		 */
-		public TCPListener(int serverPort, InetAddress serverAddress) throws IOException {
-			logger.log(Level.FINE, "Starting TCP listener nr " + ((serverPort - 3478)/2) + "on address " + serverAddress + ":" + serverPort);
+	/**
+	 * Writes an access log record and counts the source in the top talkers for a request
+	 * that has been answered or turned down. Either accessLog or topTalkers may be null.
+	 * @param response The response that was sent, null if there was none
+	 */
+	private static void account(AccessLog accessLog, TopTalkers topTalkers, long receivedNanos, InetAddress source,
+			int sourcePort, int transport, byte[] request, byte[] response, int responseLength) {
+		int result = AccessLog.RESULT_NO_RESPONSE;
+
+		if (response != null && responseLength >= Header.LENGTH) {
+			if ((Header.getMessageType(response) & Header.ERROR_RESPONSE_CLASS) == Header.ERROR_RESPONSE_CLASS) {
+				int offset = Header.findAttribute(response, responseLength, Header.ERROR_CODE);
+				result = (offset >= 0) ? Header.getErrorCode(response, offset) : Header.BAD_REQUEST;
+			} else {
+				result = AccessLog.RESULT_SUCCESS;
+			}
+		}
+		if (accessLog != null) {
+			accessLog.log(receivedNanos, source, sourcePort, transport, Header.getMessageType(request), result);
+		}
+		if (topTalkers != null) {
+			topTalkers.add(source, sourcePort, result >= Header.BAD_REQUEST);
+		}
+	}
 
-			try {
-				serverSocket = new ServerSocket(serverPort, 50, serverAddress);
+	/**
+	 * Makes the UDP listeners of a SimulatedNetwork. They aren't started, the network
+	 * hands them every datagram with UDPListener.handle and they answer like the
+	 * listeners of a started Server in direct mode.
+	 * @param sockets The socket on the server port and the one two ports up
+	 * @param alternateSockets The same two on the alternate address, null without one
+	 * @return Listeners for sockets and then alternateSockets
+	 */
+	UDPListener[] simulatedListeners(DatagramSocket[] sockets, DatagramSocket[] alternateSockets) {
+		if (alternateSockets != null) {
+			changeSockets = new DatagramSocket[][] {sockets, alternateSockets};
+		}
+		UDPListener[] listeners = new UDPListener[sockets.length + ((alternateSockets != null) ? alternateSockets.length : 0)];
 
-			} catch (SocketException e) {
-				throw new IOException("Can't create ServerSocket: " + e.getMessage());
-			}
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i] = new UDPListener((i < sockets.length) ? sockets[i] : alternateSockets[i - sockets.length]);
 		}
-		
-		/**
-		 * Server run loops that listens after TCP messages. Exits when IOException is thrown
-		 */
-		public void run() {
-			boolean running = true;
+		return listeners;
+	}
 
-			while (running) {
-				try {
-					logger.log(Level.FINE, "Waiting for requests on address "+ serverSocket.getInetAddress() + ":" + serverSocket.getLocalPort() +" in run");
+	/**
+	 * Answers a UDP request that an io_uring listener received, like processRequest
+	 * does for a DatagramSocket
+	 * @param localAddress The address the listener is bound to
+	 * @param isa Where the request came from
+	 * @param request
+	 * @param length
+	 * @param receivedNanos System.nanoTime() when the request was received
+	 * @return The response to send back from the listener, or null if there is none
+	 */
+	byte[] handleDatagram(InetSocketAddress localAddress, InetSocketAddress isa, byte[] request, int length, long receivedNanos) {
+		PacketCapture capture = this.capture;
+		if (capture != null) {
+			capture.capture(request, 0, length, isa.getAddress(), isa.getPort(), localAddress.getAddress(),
+					localAddress.getPort(), PacketCapture.PROTOCOL_UDP);
+		}
+		byte[] response = null;
+		byte[] sent = null;
 
-					Socket socket = serverSocket.accept();
-					logger.log(Level.FINE, "Connection recieved");
+		inFlight.increment();
+		try {
+			if (!Header.compareMagicCookieIn(request)) {
+				logger.log(Level.FINE, "magic cookie not ok, Probably not a STUN request. Not much to do");
 
-					processRequest(socket);
+			} else if (rateLimiter != null && !rateLimiter.allow(isa.getAddress())) {
+				logger.log(Level.FINE, "Rate limit exceeded by " + isa);
 
-				} catch (IOException e) {
-					running = false;
-					logger.log(Level.FINE, "IOException for ServerSocket - " + e.getMessage());
-				}
-			}
-		}
-	}
+			} else if (PacketValidator.validate(request, length) == PacketValidator.BAD_LENGTH) {
+				// the attributes are found by the lengths in the message, they must fit in the datagram
+				sent = buildErrorResponse(request, Header.BAD_REQUEST, "BAD REQUEST - Wrong message length");
+				response = sent;
 
-	class UDPListener implements Runnable {
+			} else if ((sent = authenticate(localAddress, isa, request, length)) != null) {
+				response = sent;
 
-		private DatagramSocket socket;
+			} else {
+				sent = buildResponse(isa, request, length);
+				int changeRequest = Header.getChangeRequest(request, length);
 
-		/**
-		 * Default constructor for UDP listener
-		 * @param serverPort
-		 * @throws IOException
-		 */
-		public UDPListener(int serverPort) throws IOException {
-			logger.log(Level.FINE, "Starting UDP listener nr "+ ((serverPort - 3478)/2) + " on port " + serverPort);
+				LongTermCredentials credentials = this.credentials;
+				if (sent != null && credentials != null && length >= Header.LENGTH) {
+					sent = credentials.sign(sent, credentials.getKey(request, length));
 
-			try {
-				socket = new DatagramSocket(serverPort);
+					ResponseCache cache = responseCache;
+					if (cache != null) {
+						cache.put(request, isa.getAddress(), isa.getPort(), localAddress.getPort(), sent, sent.length);
+					}
+				}
 
-			} catch (SocketException e) {
-				throw new IOException("Can't create DatagramSocket: " + e.getMessage());
+				if (sent == null || changeIP(changeRequest)) {
+					sent = null;
+				} else if ((changeRequest & Header.CHANGE_PORT_MASK) != 0) {
+					DatagramSocket responseSocket = setSocket(null, changeRequest, request, sent);
+
+					if (responseSocket != null) {
+						sendData(responseSocket, new DatagramPacket(sent, sent.length, isa));
+					}
+				} else {
+					response = sent;
+				}
 			}
+		} finally {
+			inFlight.decrement();
+			processed.increment();
 		}
 
-		/**
-		 * Alternative constructor if you want to specify which of your addresses you want to use
-		 * @param port
-		 * @param serverAddress
-		 * @throws IOException
-		 */
-		public UDPListener(int serverPort, InetAddress serverAddress) throws IOException {
-			logger.log(Level.FINE, "Starting UDP listener nr " + ((serverPort - 3478)/2) + "on address " + serverAddress + ":" + serverPort);
+		AccessLog accessLog = this.accessLog;
+		TopTalkers topTalkers = this.topTalkers;
+		if (accessLog != null || topTalkers != null) {
+			account(accessLog, topTalkers, receivedNanos, isa.getAddress(), isa.getPort(), PacketCapture.PROTOCOL_UDP, request,
+					sent, (sent != null) ? sent.length : 0);
+		}
+		return response;
+	}
 
-			try {
+	/**
+	 * The long-term credential steps of prepareResponse for handleDatagram
+	 * @return A 401 or 438 challenge, a cached response to a retransmission, or null
+	 * if the request is authentic or there are no credentials
+	 */
+	private byte[] authenticate(InetSocketAddress localAddress, InetSocketAddress isa, byte[] request, int length) {
+		LongTermCredentials credentials = this.credentials;
 
-				socket = new DatagramSocket(serverPort, serverAddress);
-			} catch (SocketException e) {
-				throw new IOException("Can't create DatagramSocket: " + e.getMessage());
-			}
+		if (credentials == null || length < Header.LENGTH) {
+			return null;
 		}
-		
-		/**
-		 * Server run loops that listens after TCP messages. Exits when IOException is thrown
-		 */
-		public void run() {
-			boolean running = true;
-			while (running) {
-				try {
-					byte[] buffer = new byte[1024];
-					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-					logger.log(Level.FINE, "Waiting for requests on address "+ socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort() +" in run");
+		byte[] response = authenticationBuffers.get();
+		ResponseCache cache = responseCache;
 
-					socket.receive(packet);
-					logger.log(Level.FINE, "Packet recieved.");
+		if (cache != null) {
+			int cachedLength = cache.get(request, isa.getAddress(), isa.getPort(), localAddress.getPort(), response);
 
-					processRequest(socket, packet);
-				} catch (IOException e) {
-					running = false;
-					logger.log(Level.FINE, "IOException for UDP Socket - " + e.getMessage());
-				}
+			if (cachedLength > 0) {
+				return Arrays.copyOf(response, cachedLength);
 			}
-			logger.log(Level.FINE,"Thread " + (serverPort - 3478) + " out of running");
 		}
+		int error = credentials.check(request, length, isa.getAddress());
+
+		if (error == 0) {
+			return null;
+		}
+		return Arrays.copyOf(response, credentials.putChallenge(response, request, error, isa.getAddress()));
+	}
+
+	/**
+	 * For the io_uring listeners, which stop receiving once this is true
+	 */
+	boolean isDraining() {
+		return draining;
 	}
 
-	private void processRequest(DatagramSocket socket, DatagramPacket packet) {
+	/**
+	 * Builds the response to a UDP request and puts it in the packet
+	 * @param socket The socket the request arrived on
+	 * @param packet The request, replaced by the response
+	 * @param responseBuffer Where binding responses are written so they don't allocate,
+	 * at least RESPONSE_BUFFER_SIZE bytes
+	 * @param probe Told when the validate and build stages end, null when not measuring
+	 * @param verdict What a PacketValidator found, the header checks it made aren't made
+	 * again. UNVALIDATED if there was no validator, the scalar checks of
+	 * PacketValidator are then made here.
+	 * @return The socket to send the response from or null if there is no response
+	 */
+	private DatagramSocket prepareResponse(DatagramSocket socket, DatagramPacket packet, byte[] responseBuffer, StageProbe probe,
+			byte verdict) {
 		logger.log(Level.FINE, "Processing request.");
 		byte[] request = packet.getData();
 		int length = packet.getLength();
+		boolean validated = verdict != UNVALIDATED;
 
-		if (Header.compareMagicCookieIn(request)) {
+		if (validated || Header.compareMagicCookieIn(request)) {
+
+			// getSocketAddress would create a new InetSocketAddress for every request
+			InetAddress source = packet.getAddress();
+			int sourcePort = packet.getPort();
+
+			if (logger.isLoggable(Level.FINE))
+				logger.log(Level.FINE, "Got UDP Stun request on socket "
+						+ socket.getLocalAddress() + ":" + socket.getLocalPort()
+						+ " length " + length + " bytes " + " from " + source + ":" + sourcePort);
+
+			if (rateLimiter != null && !rateLimiter.allow(source)) {
+				if (logger.isLoggable(Level.FINE))
+					logger.log(Level.FINE, "Rate limit exceeded by " + source + ":" + sourcePort);
+				return null;
+			}
+
+			// the attributes are found by the lengths in the message, they must fit in the datagram
+			if (!validated) {
+				verdict = PacketValidator.validate(request, length);
+			}
+			if (verdict == PacketValidator.BAD_LENGTH) {
+				packet.setData(responseBuffer, 0, Header.putErrorResponse(responseBuffer, request, Header.BAD_REQUEST,
+						"BAD REQUEST - Wrong message length"));
+				return socket;
+			}
+			boolean turnRequest = turnHandler != null && verdict != PacketValidator.VALID
+					&& TurnHandler.isTurnRequest(Header.getMessageType(request));
+			LongTermCredentials credentials = this.credentials;
+			ResponseCache cache = (turnRequest || credentials != null) ? responseCache : null;
+			int localPort = (cache != null) ? socket.getLocalPort() : 0;
+
+			if (cache != null) {
+				int cachedLength = cache.get(request, source, sourcePort, localPort, responseBuffer);
+
+				if (cachedLength > 0) {
+					logger.log(Level.FINE, "Retransmission answered from the response cache");
+					packet.setData(responseBuffer, 0, cachedLength);
+					return socket;
+				}
+			}
 
-			InetSocketAddress isa = (InetSocketAddress) packet.getSocketAddress();
+			byte[] key = null;
+			if (credentials != null) {
+				int error = credentials.check(request, length, source);
 
-			logger.log(Level.FINE, "Got UDP Stun request on socket "
-					+ socket.getLocalAddress() + ":" + socket.getLocalPort()
-					+ " length " + length + " bytes " + " from " + isa);
+				if (error != 0) {
+					packet.setData(responseBuffer, 0, credentials.putChallenge(responseBuffer, request, error, source));
+					return socket;
+				}
+				key = credentials.getKey(request, length);
+			}
 
-			byte[] response = buildResponse(isa, request, length);
+			if (turnRequest) {
+				byte[] response = turnHandler.handleRequest(socket, new InetSocketAddress(source, sourcePort), request, length);
+
+				if (key != null) {
+					response = credentials.sign(response, key);
+				}
+				if (cache != null) {
+					cache.put(request, source, sourcePort, localPort, response, response.length);
+				}
+				packet.setData(response);
+				return socket;
+			}
 
 			/*
 			 * ChangeRequest - For alternating between servers in order to validate if the user
 			 * is behind a Symmetric NAT. Will try implementing this. 
 			 */
-			int changeRequest = Header.getChangeRequest(request);
+			int changeRequest = Header.getChangeRequest(request, length);
+
+			if (probe != null) {
+				probe.mark(StageProbe.VALIDATE);
+			}
+
+			if (changeRequest == 0 && changeSockets == null) {
+				int responseLength = dispatch(request, length, source, sourcePort, responseBuffer);
+
+				if (responseLength == 0) {
+					return null;
+				}
+				if (key != null) {
+					responseLength = credentials.sign(responseBuffer, responseLength, key);
+
+					if (cache != null) {
+						cache.put(request, source, sourcePort, localPort, responseBuffer, responseLength);
+					}
+				}
+				packet.setData(responseBuffer, 0, responseLength);
+
+				if (probe != null) {
+					probe.mark(StageProbe.BUILD);
+				}
+				return socket;
+			}
 
-			if (!changeIP(changeRequest)) {
+			byte[] response = buildResponse(new InetSocketAddress(source, sourcePort), request, length);
+			DatagramSocket changeSocket = changeSocket(socket, changeRequest);
 
-				DatagramSocket responseSocket = setSocket(socket, changeRequest, request, response);
-				packAndSendData(responseSocket, packet, response);
+			if (response == null) {
+				return null;
+
+			} else if (changeSocket != null) {
+				response = addBehaviorDiscoveryAttributes(response, socket, changeSocket);
+				packet.setData((key != null) ? credentials.sign(response, key) : response);
+				return changeSocket;
+
+			} else if (!changeIP(changeRequest)) {
+
+				packet.setData((key != null) ? credentials.sign(response, key) : response);
+				return setSocket(socket, changeRequest, request, response);
 
 			}
 		} else {
 			logger.log(Level.FINE, "magic cookie not ok, Probably not a STUN request. Not much to do");
 		}
+		return null;
 	}
 
 	private void processRequest(Socket socket) throws IOException {
@@ -322,26 +2164,128 @@ public class Server {
 		byte[] request = new byte[1024];
 		
 		int length = input.read(request);
+		long received = System.nanoTime();
 		
 		if (length == -1) {
 			logger.log(Level.WARNING, "TCP Connection closed");
 			return;
 		}
-		
+
+		byte[] response = handleSegment(socket.getLocalAddress(), socket.getLocalPort(),
+				new InetSocketAddress(socket.getInetAddress(), socket.getPort()), request, length, received);
+
+		if (response != null) {
+			output.write(response);
+			logger.log(Level.FINE, "Message sent to " + socket.getRemoteSocketAddress());
+		}
+	}
+
+	/**
+	 * Answers a request that arrived on a TCP connection, for a TCPListener or a
+	 * SimulatedNetwork
+	 * @param localAddress The local end of the connection
+	 * @param localPort
+	 * @param isa The client
+	 * @param request
+	 * @param length
+	 * @param received System.nanoTime() when the request was received
+	 * @return The response to write back or null if there is none
+	 */
+	byte[] handleSegment(InetAddress localAddress, int localPort, InetSocketAddress isa, byte[] request, int length,
+			long received) {
+		PacketCapture capture = this.capture;
+		if (capture != null) {
+			capture.capture(request, 0, length, isa.getAddress(), isa.getPort(), localAddress, localPort,
+					PacketCapture.PROTOCOL_TCP);
+		}
+		byte[] response = null;
+
 		if (Header.compareMagicCookieIn(request)) {
 
-			InetSocketAddress isa = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
 			logger.log(Level.FINE, "Message received from " + isa);
 
-			byte[] response = buildResponse(isa, request, request.length);
+			LongTermCredentials credentials = this.credentials;
+			int error = 0;
 
-			output.write(response);
-			logger.log(Level.FINE, "Message sent to " + isa);
+			if (rateLimiter != null && !rateLimiter.allow(isa.getAddress())) {
+				logger.log(Level.FINE, "Rate limit exceeded by " + isa);
+
+			} else if (PacketValidator.validate(request, length) == PacketValidator.BAD_LENGTH) {
+				response = buildErrorResponse(request, Header.BAD_REQUEST, "BAD REQUEST - Wrong message length");
+
+			} else if (credentials != null && (error = credentials.check(request, length, isa.getAddress())) != 0) {
+				byte[] challenge = new byte[RESPONSE_BUFFER_SIZE];
+				response = Arrays.copyOf(challenge, credentials.putChallenge(challenge, request, error, isa.getAddress()));
+
+			} else {
+				response = buildResponse(isa, request, length);
+
+				if (response != null && credentials != null) {
+					response = credentials.sign(response, credentials.getKey(request, length));
+				}
+			}
+
+			AccessLog accessLog = this.accessLog;
+			TopTalkers topTalkers = this.topTalkers;
+			if (accessLog != null || topTalkers != null) {
+				account(accessLog, topTalkers, received, isa.getAddress(), isa.getPort(), PacketCapture.PROTOCOL_TCP, request,
+						response, (response != null) ? response.length : 0);
+			}
 		
 		} else {
 			logger.log(Level.FINE, "magic cookie not ok, Probably not a STUN request. Not much to do");
 		}
+		return response;
+	}
+
+	/**
+	 * Finds the socket to respond from when the request arrived on one of the
+	 * four RFC5780 sockets
+	 * @return The socket or null if NAT behavior discovery is off or socket isn't one of them
+	 */
+	private DatagramSocket changeSocket(DatagramSocket socket, int changeRequest) {
+		if (changeSockets == null) {
+			return null;
+		}
+		for (int address = 0; address < 2; address++) {
+			for (int port = 0; port < 2; port++) {
+
+				if (changeSockets[address][port] == socket) {
+					int changeAddress = ((changeRequest & Header.CHANGE_IP_MASK) != 0) ? 1 : 0;
+					int changePort = ((changeRequest & Header.CHANGE_PORT_MASK) != 0) ? 1 : 0;
+
+					return changeSockets[address ^ changeAddress][port ^ changePort];
+				}
+			}
+		}
+		return null;
+	}
 
+	/**
+	 * Appends RESPONSE-ORIGIN and OTHER-ADDRESS to a binding response. OTHER-ADDRESS
+	 * is the socket with the other address and the other port than the one the
+	 * request arrived on, so it is the primary socket for requests to the alternate one.
+	 * @param response A response from buildResponse
+	 * @param socket The socket the request arrived on
+	 * @param responseSocket The socket the response will be sent from
+	 * @return A new response with the attributes or response itself if it's an error
+	 */
+	private byte[] addBehaviorDiscoveryAttributes(byte[] response, DatagramSocket socket, DatagramSocket responseSocket) {
+		if (Header.getMessageType(response) != Header.BINDING_RESPONSE) {
+			return response;
+		}
+		int attributesLength = 2 * (Header.TYPE_LENGTH_VALUE + Header.MAPPED_IPV6_ADDRESS_LENGTH);
+		byte[] extended = new byte[response.length + attributesLength];
+		System.arraycopy(response, 0, extended, 0, response.length);
+
+		int offset = Header.putAddress(extended, response.length, Header.RESPONSE_ORIGIN, 
+				responseSocket.getLocalAddress(), responseSocket.getLocalPort());
+		DatagramSocket otherSocket = changeSocket(socket, Header.CHANGE_IP_MASK | Header.CHANGE_PORT_MASK);
+		offset = Header.putAddress(extended, offset, Header.OTHER_ADDRESS, otherSocket.getLocalAddress(),
+				otherSocket.getLocalPort());
+		Header.setMessageTypeAndLength(extended, Header.BINDING_RESPONSE, offset - Header.LENGTH);
+
+		return Arrays.copyOf(extended, offset);
 	}
 
 	private boolean changeIP(int changeRequest) {
@@ -373,9 +2317,8 @@ public class Server {
 		return socket;
 	}
 
-	private void packAndSendData(DatagramSocket socket, DatagramPacket packet, byte[] response) {
+	private void sendData(DatagramSocket socket, DatagramPacket packet) {
 		try {
-			packet.setData(response);
 			socket.send(packet);
 
 		} catch (IOException e) {
@@ -384,148 +2327,107 @@ public class Server {
 	}
 
 	/**
-	 * checks if the STUN Header is okay
-	 * @param request
-	 * @param length
-	 * @return 1 if okay, otherwise STUN error code
+	 * Answers a request with the handler registered for its message type
+	 * @param response At least RESPONSE_BUFFER_SIZE bytes
+	 * @return The length of the response or 0 if there is none
 	 */
-	private int checkHeaderErrors(byte[] request, int length) {
+	private int dispatch(byte[] request, int length, InetAddress source, int sourcePort, byte[] response) {
 
 		if (length < Header.LENGTH) {
 
-			return Header.BAD_REQUEST;
+			return Header.putErrorResponse(response, request, Header.BAD_REQUEST, "BAD REQUEST - Header to small");
 		}
-		int messageType = (int) (((request[0] << 8) & 0xff00) | (request[1] & 0xff));
+		int messageType = Header.getMessageType(request);
+		MethodHandler handler = handlers[messageType];
 
-		if (messageType != Header.BINDING_REQUEST) {
+		if (handler != null) {
 
-			return Header.GLOBAL_ERROR;
+			return handler.handle(request, length, source, sourcePort, response);
 		}
+		if ((messageType & Header.ERROR_RESPONSE_CLASS) == Header.REQUEST_CLASS) {
 
-		return 1;
-	}
-
-	private byte[] buildResponse(InetSocketAddress isa, byte[] request, int length) {
-
-		int messageType = checkHeaderErrors(request, length);
-
-		if (messageType == 1) {
-			return buildBindingResponse(isa, request);
-		} else {
-			if (messageType == 400) 
-				return buildErrorResponse(request, messageType, "BAD REQUEST - Header to small");
-			else 
-				return buildErrorResponse(request, messageType, "GLOBAL ERROR - Only Binding Requests accepted");
+			return Header.putErrorResponse(response, request, Header.GLOBAL_ERROR, "GLOBAL ERROR - Unknown method");
 		}
-	}
-
-	private byte[] buildBindingResponse(InetSocketAddress isa, byte[] request) {
-		logger.log(Level.FINE, "Building Binding Response");
-
-		int ipFamily = ipFamilyChecker(isa);
-		int mappedAttributeLength = ((ipFamily == 2)? Header.MAPPED_IPV6_ADDRESS_LENGTH: Header.MAPPED_IPV4_ADDRESS_LENGTH);
-		byte[] response = new byte[Header.LENGTH + Header.TYPE_LENGTH_VALUE + mappedAttributeLength];
-
-		System.arraycopy(request, 0, response, 0, Header.LENGTH);
-
-		setHeaderTo(response, mappedAttributeLength);
-		setMappedTypeAndValueTo(response, mappedAttributeLength, ipFamily);
-
-		logger.log(Level.FINE, "responding with " + isa);
-
-		addAttributesTo(response, isa, ipFamily);
-		addSourceAddressTo(response, isa);
-
-		return response;
+		if (logger.isLoggable(Level.FINE))
+			logger.log(Level.FINE, "No handler for message type " + Integer.toHexString(messageType));
+		return 0;
 	}
 
 	/**
-	 * Method to determine if the address is an instance of IPv4 or IPv6
-	 * @param isa
-	 * @return 2 if isa == IPv6, 1 if isa == IPv4 
+	 * Like dispatch but the response gets an array of its own
+	 * @return The response or null if there is none
 	 */
-	private int ipFamilyChecker(InetSocketAddress isa) {
-		InetAddress ia = isa.getAddress();
+	private byte[] buildResponse(InetSocketAddress isa, byte[] request, int length) {
+		byte[] response = new byte[RESPONSE_BUFFER_SIZE];
+		int responseLength = dispatch(request, length, isa.getAddress(), isa.getPort(), response);
 
-		return (ia instanceof Inet6Address) ? 2 : 1;
+		return (responseLength > 0) ? Arrays.copyOf(response, responseLength) : null;
 	}
 
+	/**
+	 * Writes a binding response without allocating. Every byte up to the returned
+	 * length is written, so response may hold an older response. The address goes
+	 * in XOR-MAPPED-ADDRESS and, for RFC3489 clients, in MAPPED-ADDRESS.
+	 * @param response At least RESPONSE_BUFFER_SIZE bytes
+	 * @return The length of the response
+	 */
+	private int putBindingResponse(byte[] response, byte[] request, InetAddress address, int port) {
+		logger.log(Level.FINE, "Building Binding Response");
 
-	private void setHeaderTo(byte[] response, int attributeLength) {
-		response[0] = 1;
-		response[3] = (byte) (Header.TYPE_LENGTH_VALUE + attributeLength);
-	}
+		System.arraycopy(request, 0, response, 0, Header.LENGTH);
 
-	private void setMappedTypeAndValueTo(byte[] response, int attributeLength, int ipFamily) {
-		response[Header.LENGTH + 1] = Header.MAPPED_ADDRESS;
+		if (logger.isLoggable(Level.FINE))
+			logger.log(Level.FINE, "responding with " + address + ":" + port);
 
-		response[Header.LENGTH + 3] = (byte) attributeLength;
+		int offset = Header.putXorAddress(response, Header.LENGTH, Header.XOR_MAPPED_ADDRESS, address, port);
+		offset = Header.putAddress(response, offset, Header.MAPPED_ADDRESS, address, port);
+		Header.setMessageTypeAndLength(response, Header.BINDING_RESPONSE, offset - Header.LENGTH);
 
+		return offset;
 	}
 
-	private void addAttributesTo(byte[] response, InetSocketAddress isa, int ipFamily) {
-		int sourcePort = isa.getPort();
-
-		response[Header.LENGTH + 5] = (byte) ipFamily;
-
-		response[Header.LENGTH + 6] = (byte) (sourcePort >> 8);
-		response[Header.LENGTH + 7] = (byte) (sourcePort & 0xff);
+	private byte[] buildErrorResponse(byte[] request, int responseCode, String reason) {
+		byte[] response = new byte[Header.LENGTH + Header.TYPE_LENGTH_VALUE + Header.ERROR_CODE_LENGTH + reason.length() + 3];
 
+		return Arrays.copyOf(response, Header.putErrorResponse(response, request, responseCode, reason));
 	}
 
-	private void addSourceAddressTo(byte[] response, InetSocketAddress isa) {
-		byte[] sourceAddress = isa.getAddress().getAddress();
-
-		for (int i = 0; i < sourceAddress.length; i++) {
-			response[Header.LENGTH + 8 + i] = sourceAddress[i];
+	/**
+	 * The built-in handler of binding requests
+	 */
+	private class BindingHandler implements MethodHandler {
+		public int handle(byte[] request, int length, InetAddress source, int sourcePort, byte[] response) {
+			return putBindingResponse(response, request, source, sourcePort);
 		}
 	}
 
-	private byte[] buildErrorResponse(byte[] request, int responseCode, String reason) {
-
-		byte[] response = new byte[Header.LENGTH + Header.ERROR_CODE_LENGTH + reason.length()];
-
-		System.arraycopy(request, 0, response, 0, Header.LENGTH);
-
-		response[0] = 1;
-		response[1] = 0x11;
-
-		response[Header.LENGTH + 2] = (byte) (responseCode >> 8);
-
-		response[Header.LENGTH + 3] = (byte) (responseCode & 0xff);
-
-		byte[] reasonBytes = reason.getBytes();
-
-		System.arraycopy(reasonBytes, 0, response, 24, reasonBytes.length);
-
-		int length = Header.LENGTH + Header.ERROR_CODE_LENGTH + reasonBytes.length;
-
-		response[2] = (byte) (length >> 8);
-		response[3] = (byte) (length & 0xff);
-
-		return response;
-	}
-
 	/**
 	 * This method shuts down the Server immediately. It closes all sockets
 	 * which makes it possible for the ThreadPool to close.
-	 * All requests that are processes during shutdown will be lost.
+	 * All requests that are processes during shutdown will be lost, use drain to avoid that.
+	 * A Server whose sockets have been taken over by another Server leaves them open.
 	 * @throws IOException for Socket
 	 */
 	public void shutdown() throws IOException {
 		logger.log(Level.FINE, "Shutting down thread pool.");
 
-		if (executorService != null) {
+		if (interfaceGroups != null && !released) {
+			for (Server group : interfaceGroups) {
+				group.shutdown();
+			}
+			if (turnHandler != null) {
+				turnHandler.stop();
+			}
+			return;
+		}
+		if (executorService != null && !released) {
 			executorService.shutdown();
 
-			for (int i = 0; i < nrOfThreads; i++) {
-				
-				if ((i % 2 ) == 0) 
-					udpListeners[i].socket.close();
-				
-				else
-					tcpListeners[i].serverSocket.close();
+			if (turnHandler != null && ownsTurnHandler) {
+				turnHandler.stop();
 			}
+
+			closeListeners();
 		}
 	}
 
@@ -0,0 +1,735 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A network in memory for testing Servers and clients without sockets. Servers are
+ * attached with attach, clients get a PacketTransport for UDPClient from open and a
+ * StreamTransport for TCPClient from connect. Packets can be delayed, lost and
+ * reordered, and hosts can be put behind NATs with the mapping and filtering
+ * behaviors of RFC4787.
+ *
+ * Time is simulated. Packets in flight wait in a queue ordered by delivery time, and
+ * nothing is delivered until a client waits for a packet or advance is called. That
+ * thread then delivers packets one by one, moving the clock to each delivery time,
+ * until the client has something to read or its timeout has passed on the simulated
+ * clock. A Server answers on the delivering thread at the same instant, with the
+ * same UDPListener code as on real sockets. So a timeout of seconds takes no real
+ * time, and a scenario driven by one thread with the same seed always delivers, loses
+ * and reorders the same packets. Several threads may use one network, it is then
+ * correct but the order depends on the threads.
+ *
+ * Streams are delivered in order and never lost. UDP and TCP share the port numbers of
+ * a host. NAT mappings never expire. The TURN relay and the threads of pipeline mode
+ * are not simulated.
+ * @author Frans
+ *
+ */
+public class SimulatedNetwork {
+	private static final Logger logger = Logger.getLogger(SimulatedNetwork.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final int FIRST_EPHEMERAL_PORT = 49152;
+	public static final int FIRST_NAT_PORT = 20000;
+
+	private final SplittableRandom random;
+	private final PriorityQueue<Packet> inFlight = new PriorityQueue<Packet>();
+	private final HashMap<InetSocketAddress, Endpoint> endpoints = new HashMap<InetSocketAddress, Endpoint>();
+
+	/*
+	 * NATs by public address and by the addresses of the hosts behind them
+	 */
+	private final HashMap<InetAddress, Nat> nats = new HashMap<InetAddress, Nat>();
+	private final HashMap<InetAddress, Nat> natsByHost = new HashMap<InetAddress, Nat>();
+
+	private long now;
+	private long sequence;
+	private int nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+
+	private long latencyNanos;
+	private long jitterNanos;
+	private double loss;
+	private double reorderProbability;
+	private long reorderDelayNanos;
+
+	private long sent;
+	private long delivered;
+	private long lost;
+	private long filtered;
+	private long unreachable;
+
+	/**
+	 * @param seed Seed of the random numbers that decide loss, jitter and reordering
+	 */
+	public SimulatedNetwork(long seed) {
+		random = new SplittableRandom(seed);
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * @param micros One way delay of every packet
+	 * @param jitterMicros Datagrams get up to this much more, at random, which reorders
+	 * packets sent less than this apart
+	 */
+	public synchronized void setLatency(long micros, long jitterMicros) {
+		latencyNanos = micros * 1000;
+		jitterNanos = jitterMicros * 1000;
+	}
+
+	/**
+	 * @param probability Of losing a datagram, 0 to 1
+	 */
+	public synchronized void setLoss(double probability) {
+		loss = probability;
+	}
+
+	/**
+	 * @param probability Of holding a datagram back so that later ones overtake it
+	 * @param delayMicros How long it is held back
+	 */
+	public synchronized void setReordering(double probability, long delayMicros) {
+		reorderProbability = probability;
+		reorderDelayNanos = delayMicros * 1000;
+	}
+
+	/**
+	 * Puts hosts behind a NAT. Their packets to hosts outside get publicAddress and a
+	 * port of the NAT as source, packets from outside only reach them through a
+	 * mapping that the filtering lets through. Ports are given out in order from
+	 * FIRST_NAT_PORT.
+	 * @param publicAddress The outside address of the NAT
+	 * @param mapping When a new mapping is made: ENDPOINT_INDEPENDENT,
+	 * ADDRESS_DEPENDENT or ADDRESS_AND_PORT_DEPENDENT
+	 * @param filtering Who may send through a mapping, the same choices
+	 * @param hosts Addresses behind the NAT
+	 */
+	public synchronized void addNat(InetAddress publicAddress, NatBehaviorDiscovery.Behavior mapping,
+			NatBehaviorDiscovery.Behavior filtering, InetAddress... hosts) {
+		checkBehavior(mapping);
+		checkBehavior(filtering);
+		Nat nat = new Nat(publicAddress, mapping, filtering);
+		nats.put(publicAddress, nat);
+
+		for (InetAddress host : hosts) {
+			natsByHost.put(host, nat);
+		}
+	}
+
+	/**
+	 * Makes a Server answer UDP at address and two ports up, and TCP at the port after
+	 * address. With an alternate address it also answers UDP on the same two ports
+	 * there, for NAT behavior discovery. The Server doesn't have to be started, the
+	 * datagrams go through its UDPListeners like on a started Server in direct mode.
+	 * @throws SocketException If one of the addresses is taken
+	 */
+	public synchronized void attach(Server server, InetSocketAddress address) throws SocketException {
+		InetSocketAddress streamAddress = new InetSocketAddress(address.getAddress(), address.getPort() + 1);
+		InetAddress alternateAddress = server.getAlternateAddress();
+		InetSocketAddress[] addresses = new InetSocketAddress[(alternateAddress != null) ? 4 : 2];
+
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = new InetSocketAddress((i < 2) ? address.getAddress() : alternateAddress,
+					address.getPort() + 2 * (i % 2));
+			checkFree(addresses[i]);
+		}
+		checkFree(streamAddress);
+
+		ServerDatagrams[] datagrams = new ServerDatagrams[addresses.length];
+		DatagramSocket[] sockets = new DatagramSocket[2];
+		DatagramSocket[] alternateSockets = (alternateAddress != null) ? new DatagramSocket[2] : null;
+
+		for (int i = 0; i < addresses.length; i++) {
+			datagrams[i] = new ServerDatagrams(addresses[i]);
+			((i < 2) ? sockets : alternateSockets)[i % 2] = new SimulatedSocket(datagrams[i]);
+		}
+		Server.UDPListener[] listeners = server.simulatedListeners(sockets, alternateSockets);
+
+		for (int i = 0; i < addresses.length; i++) {
+			datagrams[i].listener = listeners[i];
+			endpoints.put(addresses[i], datagrams[i]);
+		}
+		endpoints.put(streamAddress, new ServerStreams(streamAddress, server));
+	}
+
+	/**
+	 * Binds a UDP endpoint
+	 * @param local Its address, port 0 for the next free ephemeral port
+	 */
+	public synchronized PacketTransport open(InetSocketAddress local) throws SocketException {
+		Datagrams datagrams = new Datagrams(bind(local));
+		endpoints.put(datagrams.address, datagrams);
+
+		return datagrams;
+	}
+
+	/**
+	 * Opens a TCP connection to a Server attached to this network
+	 * @param local The client address, port 0 for the next free ephemeral port
+	 * @param server The TCP address of the Server, the port after its UDP port
+	 * @throws ConnectException If no Server listens there
+	 */
+	public synchronized StreamTransport connect(InetSocketAddress local, InetSocketAddress server) throws IOException {
+		if (!(endpoints.get(server) instanceof ServerStreams)) {
+			throw new ConnectException("Connection refused: " + server);
+		}
+		Stream stream = new Stream(bind(local), server);
+		endpoints.put(stream.address, stream);
+
+		return stream;
+	}
+
+	/**
+	 * @return The simulated clock in nanoseconds, it starts at 0
+	 */
+	public synchronized long nanoTime() {
+		return now;
+	}
+
+	/**
+	 * Delivers the packets due within micros and moves the clock that far
+	 */
+	public synchronized void advance(long micros) {
+		long until = now + micros * 1000;
+		Packet next;
+
+		while ((next = inFlight.peek()) != null && next.time <= until) {
+			inFlight.poll();
+			now = next.time;
+			deliver(next);
+		}
+		now = until;
+	}
+
+	public synchronized long getSentPackets() {
+		return sent;
+	}
+
+	public synchronized long getDeliveredPackets() {
+		return delivered;
+	}
+
+	public synchronized long getLostPackets() {
+		return lost;
+	}
+
+	/**
+	 * @return Packets a NAT didn't let in
+	 */
+	public synchronized long getFilteredPackets() {
+		return filtered;
+	}
+
+	/**
+	 * @return Packets to an address without an endpoint
+	 */
+	public synchronized long getUnreachablePackets() {
+		return unreachable;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "sent " + sent + ", delivered " + delivered + ", lost " + lost + ", filtered " + filtered + ", unreachable "
+				+ unreachable + " in " + (now / 1000000) + "ms";
+	}
+
+	private void checkBehavior(NatBehaviorDiscovery.Behavior behavior) {
+		if (behavior != NatBehaviorDiscovery.Behavior.ENDPOINT_INDEPENDENT
+				&& behavior != NatBehaviorDiscovery.Behavior.ADDRESS_DEPENDENT
+				&& behavior != NatBehaviorDiscovery.Behavior.ADDRESS_AND_PORT_DEPENDENT) {
+			throw new IllegalArgumentException("A NAT can't be " + behavior);
+		}
+	}
+
+	private void checkFree(InetSocketAddress address) throws SocketException {
+		if (endpoints.containsKey(address)) {
+			throw new SocketException("Address already in use: " + address);
+		}
+	}
+
+	private InetSocketAddress bind(InetSocketAddress local) throws SocketException {
+		if (local.getPort() != 0) {
+			checkFree(local);
+			return local;
+		}
+		InetSocketAddress address;
+		do {
+			address = new InetSocketAddress(local.getAddress(), nextEphemeralPort);
+			nextEphemeralPort = (nextEphemeralPort == 65535) ? FIRST_EPHEMERAL_PORT : nextEphemeralPort + 1;
+		} while (endpoints.containsKey(address));
+
+		return address;
+	}
+
+	/**
+	 * Puts a packet in flight, through the NAT of the sender
+	 */
+	private void send(InetSocketAddress from, InetSocketAddress to, byte[] data, int offset, int length, boolean stream) {
+		sent++;
+		Nat nat = natsByHost.get(from.getAddress());
+
+		if (nat != null && natsByHost.get(to.getAddress()) != nat) {
+			from = nat.outbound(from, to);
+		}
+		long delay = latencyNanos;
+
+		if (!stream) {
+			if (loss > 0 && random.nextDouble() < loss) {
+				lost++;
+				if (logger.isLoggable(Level.FINE))
+					logger.log(Level.FINE, "Lost packet from " + from + " to " + to);
+				return;
+			}
+			if (jitterNanos > 0) {
+				delay += (long) (random.nextDouble() * jitterNanos);
+			}
+			if (reorderProbability > 0 && random.nextDouble() < reorderProbability) {
+				delay += reorderDelayNanos;
+			}
+		}
+		// at least a header, Server checks the magic cookie before the length
+		byte[] copy = new byte[Math.max(length, Header.LENGTH)];
+		System.arraycopy(data, offset, copy, 0, length);
+
+		inFlight.add(new Packet(now + delay, sequence++, from, to, copy, length));
+	}
+
+	/**
+	 * Hands a packet that arrived to its endpoint, through the NAT in front of it
+	 */
+	private void deliver(Packet packet) {
+		InetSocketAddress to = packet.to;
+		Nat nat = nats.get(to.getAddress());
+
+		if (nat != null) {
+			to = nat.inbound(packet.from, to);
+
+			if (to == null) {
+				filtered++;
+				if (logger.isLoggable(Level.FINE))
+					logger.log(Level.FINE, "NAT " + nat.publicAddress + " filtered packet from " + packet.from);
+				return;
+			}
+		}
+		Endpoint endpoint = endpoints.get(to);
+
+		if (endpoint == null) {
+			unreachable++;
+			return;
+		}
+		delivered++;
+		endpoint.deliver(packet);
+	}
+
+	/**
+	 * Delivers packets until endpoint has one or timeout has passed on the clock
+	 * @param timeout Milliseconds, 0 waits until nothing is in flight
+	 */
+	private void await(Endpoint endpoint, int timeout) throws IOException {
+		long deadline = (timeout > 0) ? now + timeout * 1000000L : Long.MAX_VALUE;
+
+		while (!endpoint.hasPacket()) {
+			if (endpoint.closed) {
+				throw new SocketException("Socket is closed");
+			}
+			Packet next = inFlight.peek();
+
+			if (next == null || next.time > deadline) {
+				if (timeout == 0) {
+					throw new SocketTimeoutException("Nothing in flight to " + endpoint.address);
+				}
+				now = deadline;
+				throw new SocketTimeoutException("Receive timed out");
+			}
+			inFlight.poll();
+			now = next.time;
+			deliver(next);
+		}
+	}
+
+	private static class Packet implements Comparable<Packet> {
+		final long time;
+		final long sequence;
+		final InetSocketAddress from;
+		final InetSocketAddress to;
+		final byte[] data;
+		final int length;
+
+		Packet(long time, long sequence, InetSocketAddress from, InetSocketAddress to, byte[] data, int length) {
+			this.time = time;
+			this.sequence = sequence;
+			this.from = from;
+			this.to = to;
+			this.data = data;
+			this.length = length;
+		}
+
+		public int compareTo(Packet other) {
+			if (time != other.time) {
+				return (time < other.time) ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private abstract class Endpoint {
+		final InetSocketAddress address;
+		final ArrayDeque<Packet> inbox = new ArrayDeque<Packet>();
+		int timeout;
+		boolean closed;
+
+		Endpoint(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		void deliver(Packet packet) {
+			inbox.add(packet);
+		}
+
+		boolean hasPacket() {
+			return !inbox.isEmpty();
+		}
+
+		void close() {
+			synchronized (SimulatedNetwork.this) {
+				closed = true;
+				endpoints.remove(address);
+			}
+		}
+	}
+
+	/**
+	 * The UDP endpoint of a Server, its listener answers on the delivering thread
+	 */
+	private class ServerDatagrams extends Datagrams {
+		Server.UDPListener listener;
+
+		ServerDatagrams(InetSocketAddress address) {
+			super(address);
+		}
+
+		@Override
+		void deliver(Packet packet) {
+			listener.handle(packet.data, packet.length, packet.from);
+		}
+	}
+
+	private class ServerStreams extends Endpoint {
+		final Server server;
+
+		ServerStreams(InetSocketAddress address, Server server) {
+			super(address);
+			this.server = server;
+		}
+
+		@Override
+		void deliver(Packet packet) {
+			byte[] response = server.handleSegment(address.getAddress(), address.getPort(), packet.from, packet.data,
+					packet.length, now);
+
+			if (response != null) {
+				send(address, packet.from, response, 0, response.length, true);
+			}
+		}
+	}
+
+	private class Datagrams extends Endpoint implements PacketTransport {
+
+		Datagrams(InetSocketAddress address) {
+			super(address);
+		}
+
+		public void send(DatagramPacket packet) throws IOException {
+			synchronized (SimulatedNetwork.this) {
+				if (closed) {
+					throw new SocketException("Socket is closed");
+				}
+				SimulatedNetwork.this.send(address, (InetSocketAddress) packet.getSocketAddress(), packet.getData(),
+						packet.getOffset(), packet.getLength(), false);
+			}
+		}
+
+		public void receive(DatagramPacket packet) throws IOException {
+			synchronized (SimulatedNetwork.this) {
+				await(this, timeout);
+				Packet received = inbox.poll();
+				int length = Math.min(received.length, packet.getData().length - packet.getOffset());
+
+				System.arraycopy(received.data, 0, packet.getData(), packet.getOffset(), length);
+				packet.setLength(length);
+				packet.setSocketAddress(received.from);
+			}
+		}
+
+		public void setSoTimeout(int timeout) {
+			this.timeout = timeout;
+		}
+
+		public InetAddress getLocalAddress() {
+			return address.getAddress();
+		}
+
+		public int getLocalPort() {
+			return address.getPort();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+		}
+	}
+
+	/**
+	 * A DatagramSocket for the listeners of a Server that sends through a Datagrams
+	 * endpoint. The socket it extends is closed right away, it only sends, receives
+	 * and tells its address.
+	 */
+	private class SimulatedSocket extends DatagramSocket {
+		final Datagrams datagrams;
+
+		SimulatedSocket(Datagrams datagrams) throws SocketException {
+			super((SocketAddress) null);
+			super.close();
+			this.datagrams = datagrams;
+		}
+
+		@Override
+		public void send(DatagramPacket packet) throws IOException {
+			datagrams.send(packet);
+		}
+
+		@Override
+		public void receive(DatagramPacket packet) throws IOException {
+			datagrams.receive(packet);
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) {
+			datagrams.setSoTimeout(timeout);
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return datagrams.getLocalAddress();
+		}
+
+		@Override
+		public int getLocalPort() {
+			return datagrams.getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getLocalSocketAddress() {
+			return datagrams.address;
+		}
+
+		@Override
+		public boolean isBound() {
+			return true;
+		}
+
+		@Override
+		public boolean isClosed() {
+			// DatagramSocket.close asks too, before datagrams is set
+			return (datagrams != null) ? datagrams.closed : super.isClosed();
+		}
+
+		@Override
+		public void close() {
+			datagrams.close();
+		}
+	}
+
+	private class Stream extends Endpoint implements StreamTransport {
+		final InetSocketAddress server;
+
+		/*
+		 * Bytes of the first packet in the inbox that were read already
+		 */
+		int read;
+
+		Stream(InetSocketAddress address, InetSocketAddress server) {
+			super(address);
+			this.server = server;
+		}
+
+		public InputStream getInputStream() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] one = new byte[1];
+					return (read(one, 0, 1) == -1) ? -1 : one[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					synchronized (SimulatedNetwork.this) {
+						await(Stream.this, timeout);
+						Packet packet = inbox.peek();
+						int copied = Math.min(length, packet.length - read);
+
+						System.arraycopy(packet.data, read, buffer, offset, copied);
+						read += copied;
+
+						if (read == packet.length) {
+							inbox.poll();
+							read = 0;
+						}
+						return copied;
+					}
+				}
+			};
+		}
+
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] data, int offset, int length) throws IOException {
+					synchronized (SimulatedNetwork.this) {
+						if (closed) {
+							throw new SocketException("Socket is closed");
+						}
+						send(address, server, data, offset, length, true);
+					}
+				}
+			};
+		}
+
+		public void setSoTimeout(int timeout) {
+			this.timeout = timeout;
+		}
+
+		public InetAddress getLocalAddress() {
+			return address.getAddress();
+		}
+
+		public int getLocalPort() {
+			return address.getPort();
+		}
+
+		public InetSocketAddress getRemoteSocketAddress() {
+			return server;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+		}
+	}
+
+	private static class Nat {
+		final InetAddress publicAddress;
+		final NatBehaviorDiscovery.Behavior mapping;
+		final NatBehaviorDiscovery.Behavior filtering;
+
+		final HashMap<String, Mapping> mappings = new HashMap<String, Mapping>();
+		final HashMap<Integer, Mapping> ports = new HashMap<Integer, Mapping>();
+		int nextPort = FIRST_NAT_PORT;
+
+		Nat(InetAddress publicAddress, NatBehaviorDiscovery.Behavior mapping, NatBehaviorDiscovery.Behavior filtering) {
+			this.publicAddress = publicAddress;
+			this.mapping = mapping;
+			this.filtering = filtering;
+		}
+
+		/**
+		 * @return The outside address of a packet from internal to remote
+		 */
+		InetSocketAddress outbound(InetSocketAddress internal, InetSocketAddress remote) {
+			String key = internal.toString();
+
+			if (mapping == NatBehaviorDiscovery.Behavior.ADDRESS_DEPENDENT) {
+				key += "|" + remote.getAddress();
+			} else if (mapping == NatBehaviorDiscovery.Behavior.ADDRESS_AND_PORT_DEPENDENT) {
+				key += "|" + remote;
+			}
+			Mapping m = mappings.get(key);
+
+			if (m == null) {
+				m = new Mapping(internal, nextPort++);
+				mappings.put(key, m);
+				ports.put(m.port, m);
+			}
+			if (filtering == NatBehaviorDiscovery.Behavior.ADDRESS_DEPENDENT) {
+				m.permitted.add(remote.getAddress());
+			} else if (filtering == NatBehaviorDiscovery.Behavior.ADDRESS_AND_PORT_DEPENDENT) {
+				m.permitted.add(remote);
+			}
+
+			return new InetSocketAddress(publicAddress, m.port);
+		}
+
+		/**
+		 * @return The inside address of a packet from remote to external, or null if
+		 * it is filtered
+		 */
+		InetSocketAddress inbound(InetSocketAddress remote, InetSocketAddress external) {
+			Mapping m = ports.get(external.getPort());
+
+			if (m == null) {
+				return null;
+			}
+			if (filtering == NatBehaviorDiscovery.Behavior.ADDRESS_DEPENDENT && !m.permitted.contains(remote.getAddress())
+					|| filtering == NatBehaviorDiscovery.Behavior.ADDRESS_AND_PORT_DEPENDENT && !m.permitted.contains(remote)) {
+				return null;
+			}
+			return m.internal;
+		}
+	}
+
+	private static class Mapping {
+		final InetSocketAddress internal;
+		final int port;
+		final HashSet<Object> permitted = new HashSet<Object>();
+
+		Mapping(InetSocketAddress internal, int port) {
+			this.internal = internal;
+			this.port = port;
+		}
+	}
+}
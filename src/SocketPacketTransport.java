@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * A PacketTransport on a DatagramSocket
+ * @author Frans
+ *
+ */
+public class SocketPacketTransport implements PacketTransport {
+
+	private final DatagramSocket socket;
+
+	public SocketPacketTransport(DatagramSocket socket) {
+		this.socket = socket;
+	}
+
+	public DatagramSocket getSocket() {
+		return socket;
+	}
+
+	public void send(DatagramPacket packet) throws IOException {
+		socket.send(packet);
+	}
+
+	public void receive(DatagramPacket packet) throws IOException {
+		socket.receive(packet);
+	}
+
+	public void setSoTimeout(int timeout) throws SocketException {
+		socket.setSoTimeout(timeout);
+	}
+
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	public void close() {
+		socket.close();
+	}
+}
@@ -0,0 +1,72 @@
+import java.net.InetAddress;
+
+/**
+ * The kernel side of one UDP listener of a Server: the socket buffer sizes the
+ * kernel granted and, on Linux, what is queued in the receive buffer and how many
+ * packets it dropped because the buffer was full. Drops that grow while the
+ * Server's own counters don't mean the listener can't keep up with the socket.
+ * @author Frans
+ *
+ */
+public class SocketStatistics {
+
+	private final InetAddress localAddress;
+	private final int localPort;
+	private final int receiveBufferSize;
+	private final int sendBufferSize;
+	private final long queuedBytes;
+	private final long drops;
+
+	SocketStatistics(InetAddress localAddress, int localPort, int receiveBufferSize, int sendBufferSize, long queuedBytes,
+			long drops) {
+		this.localAddress = localAddress;
+		this.localPort = localPort;
+		this.receiveBufferSize = receiveBufferSize;
+		this.sendBufferSize = sendBufferSize;
+		this.queuedBytes = queuedBytes;
+		this.drops = drops;
+	}
+
+	public InetAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	/**
+	 * @return SO_RCVBUF as the kernel reports it, Linux caps it at net.core.rmem_max
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @return SO_SNDBUF as the kernel reports it
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @return Bytes waiting in the receive buffer, -1 if the kernel doesn't tell
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return Packets the kernel dropped for this socket since it was created, -1 if
+	 * the kernel doesn't tell
+	 */
+	public long getDrops() {
+		return drops;
+	}
+
+	@Override
+	public String toString() {
+		return localAddress.getHostAddress() + ":" + localPort + " rcvbuf " + receiveBufferSize + ", sndbuf " + sendBufferSize
+				+ ", queued " + queuedBytes + ", drops " + drops;
+	}
+}
@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * A StreamTransport on a connected Socket
+ * @author Frans
+ *
+ */
+public class SocketStreamTransport implements StreamTransport {
+
+	private final Socket socket;
+
+	public SocketStreamTransport(Socket socket) {
+		this.socket = socket;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	public void setSoTimeout(int timeout) throws SocketException {
+		socket.setSoTimeout(timeout);
+	}
+
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	public InetSocketAddress getRemoteSocketAddress() {
+		return new InetSocketAddress(socket.getInetAddress(), socket.getPort());
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+}
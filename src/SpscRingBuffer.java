@@ -0,0 +1,83 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * The capacity is rounded up to a power of two so a slot is found with a mask.
+ * 
+ * The producer may also take the oldest element with poll, which is how the
+ * drop-oldest backpressure policy makes room. That is why poll advances the head
+ * with a compare-and-set instead of a plain ordered store.
+ * @author Frans
+ *
+ */
+class SpscRingBuffer<E> {
+
+	private final Object[] buffer;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/*
+	 * Producer side cache of head, so offer only reads the shared head when the
+	 * queue looks full
+	 */
+	private long headCache;
+
+	SpscRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		buffer = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Producer only
+	 * @param element
+	 * @return false if the queue is full
+	 */
+	boolean offer(E element) {
+		long currentTail = tail.get();
+
+		if (currentTail - headCache >= buffer.length) {
+			headCache = head.get();
+
+			if (currentTail - headCache >= buffer.length) {
+				return false;
+			}
+		}
+		buffer[(int) (currentTail & mask)] = element;
+		tail.lazySet(currentTail + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer, or producer when evicting the oldest element
+	 * @return The oldest element or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		while (true) {
+			long currentHead = head.get();
+
+			if (currentHead >= tail.get()) {
+				return null;
+			}
+			E element = (E) buffer[(int) (currentHead & mask)];
+
+			if (head.compareAndSet(currentHead, currentHead + 1)) {
+				return element;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of queued elements, may be stale when read from a third thread
+	 */
+	int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	int capacity() {
+		return buffer.length;
+	}
+}
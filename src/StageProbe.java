@@ -0,0 +1,46 @@
+/**
+ * Told by the Server when a UDP request moves on from one stage of being answered
+ * to the next, see AllocationProbe and LatencyTracer. mark(stage) is called at the
+ * end of each stage by the thread that did the work.
+ * @author Frans
+ *
+ */
+interface StageProbe {
+
+	/*
+	 * DatagramSocket.receive
+	 */
+	static final int RECEIVE = 0;
+
+	/*
+	 * Pipeline mode only, from the receiver to a worker and the batch validation there
+	 */
+	static final int QUEUE = 1;
+
+	/*
+	 * Capture, TURN relay check, magic cookie, rate limit and CHANGE-REQUEST
+	 */
+	static final int VALIDATE = 2;
+
+	/*
+	 * Writing the response
+	 */
+	static final int BUILD = 3;
+
+	/*
+	 * DatagramSocket.send
+	 */
+	static final int SEND = 4;
+
+	/*
+	 * Access log and top talkers
+	 */
+	static final int ACCOUNT = 5;
+
+	static final String[] STAGE_NAMES = { "receive", "queue", "validate", "build", "send", "account" };
+
+	/**
+	 * The current stage of the request ends here
+	 */
+	void mark(int stage);
+}
@@ -0,0 +1,124 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time from launching a JVM until the Server has answered its first
+ * binding request. Every run is a new JVM so class loading and JIT warmup are part
+ * of the number, which makes it the tool for comparing runs with and without a
+ * class data sharing archive (see README).
+ * 
+ * Usage: StartupBenchmark [runs] [JVM options for the measured JVMs...]
+ * StartupBenchmark --probe [port] runs one measurement in this JVM and is also the
+ * training workload for the archive.
+ * @author Frans
+ *
+ */
+public class StartupBenchmark {
+
+	private static final String RESULT_PREFIX = "STARTUP ";
+
+	/**
+	 * One measurement: bind the Server on loopback, get a mapped address through it
+	 * and print the times relative to JVM start
+	 * @param port The server port
+	 */
+	static void probe(int port) throws IOException {
+		long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+		long mainStart = System.currentTimeMillis();
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+
+		Server server = new Server(loopback, port);
+		server.startServer();
+		long bound = System.currentTimeMillis();
+
+		DatagramSocket socket = new DatagramSocket(0, loopback);
+		UDPClient client = new UDPClient(new InetSocketAddress(loopback, port), socket);
+		client.run();
+		client.getMappedAddress();
+		long firstResponse = System.currentTimeMillis();
+
+		socket.close();
+		server.shutdown();
+
+		System.out.println(RESULT_PREFIX + (mainStart - jvmStart) + " " + (bound - jvmStart) + " " + (firstResponse - jvmStart));
+	}
+
+	/**
+	 * Launches the probe in new JVMs and prints the median of each phase
+	 * @param runs Number of JVMs to launch
+	 * @param jvmOptions Extra options for them, e.g. -XX:SharedArchiveFile=stun.jsa
+	 */
+	static void launch(int runs, List<String> jvmOptions) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Long> toMain = new ArrayList<Long>();
+		List<Long> toBound = new ArrayList<Long>();
+		List<Long> toResponse = new ArrayList<Long>();
+		List<Long> wall = new ArrayList<Long>();
+
+		for (int i = 0; i < runs; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(StartupBenchmark.class.getName());
+			command.add("--probe");
+			command.add(Integer.toString(3478 + 100 + 10 * (i % 10)));
+
+			long start = System.nanoTime();
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line;
+
+			while ((line = output.readLine()) != null) {
+				if (line.startsWith(RESULT_PREFIX)) {
+					String[] times = line.substring(RESULT_PREFIX.length()).split(" ");
+					toMain.add(Long.parseLong(times[0]));
+					toBound.add(Long.parseLong(times[1]));
+					toResponse.add(Long.parseLong(times[2]));
+				}
+			}
+			if (process.waitFor() != 0) {
+				throw new IOException("Probe JVM failed with exit code " + process.exitValue());
+			}
+			wall.add((System.nanoTime() - start) / 1000000);
+		}
+		System.out.println("JVM options: " + jvmOptions);
+		System.out.println("median ms from JVM start to main:           " + median(toMain));
+		System.out.println("median ms from JVM start to listeners bound: " + median(toBound));
+		System.out.println("median ms from JVM start to first response:  " + median(toResponse));
+		System.out.println("median ms wall clock per JVM:                " + median(wall));
+	}
+
+	private static long median(List<Long> values) {
+		if (values.isEmpty()) {
+			return -1;
+		}
+		Collections.sort(values);
+		return values.get(values.size() / 2);
+	}
+
+	public static void main(String[] args) {
+		try {
+			if (args.length > 0 && args[0].equals("--probe")) {
+				probe((args.length > 1) ? Integer.parseInt(args[1]) : 3478);
+			} else {
+				int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+				launch(runs, (args.length > 1) ? Arrays.asList(args).subList(1, args.length) : new ArrayList<String>());
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * What TCPClient talks to the server over: a connected Socket, see
+ * SocketStreamTransport, or a connection in a SimulatedNetwork. The methods behave
+ * like the ones of Socket with the same names.
+ * @author Frans
+ *
+ */
+public interface StreamTransport {
+
+	/**
+	 * @return A stream whose reads throw java.net.SocketTimeoutException when nothing
+	 * arrived within the timeout
+	 */
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * @param timeout Milliseconds a read waits, 0 for ever
+	 */
+	void setSoTimeout(int timeout) throws SocketException;
+
+	InetAddress getLocalAddress();
+
+	int getLocalPort();
+
+	/**
+	 * @return The server
+	 */
+	InetSocketAddress getRemoteSocketAddress();
+
+	void close() throws IOException;
+}
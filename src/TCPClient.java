@@ -23,7 +23,7 @@ public class TCPClient implements Runnable {
 	private static final int TIMEOUT = 500;
 
 	private InetSocketAddress serverAddress;
-	private Socket socket;
+	private StreamTransport socket;
 	private DataInputStream input;
 
 	private InetSocketAddress mappedAddress;
@@ -31,11 +31,20 @@ public class TCPClient implements Runnable {
 	private boolean done;
 
 	public TCPClient(Socket socket) {
+		this(new SocketStreamTransport(socket));
+	}
+
+	/**
+	 * Constructor for a client on another transport than a Socket, such as a
+	 * connection in a SimulatedNetwork
+	 * @param socket A connected transport
+	 */
+	public TCPClient(StreamTransport socket) {
 		this.socket = socket;
 		
-		logger.log(Level.FINE, "Starting STUN TCP client on " + serverAddress);
+		serverAddress = socket.getRemoteSocketAddress();
 
-		serverAddress = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
+		logger.log(Level.FINE, "Starting STUN TCP client on " + serverAddress);
 		
 		try {
 			input = new DataInputStream(socket.getInputStream());
@@ -187,7 +196,7 @@ public class TCPClient implements Runnable {
 		DataOutputStream output = new DataOutputStream(socket.getOutputStream());
 		
 		output.write(request);
-		logger.log(Level.FINE, "Request sent to " + socket.getInetAddress() + ":" + socket.getPort() +  " ! Length: " + request.length);
+		logger.log(Level.FINE, "Request sent to " + serverAddress + " ! Length: " + request.length);
 	}
 
 	private byte[] getResponse() throws IOException {
@@ -209,7 +218,7 @@ public class TCPClient implements Runnable {
 		
 		if (type == Header.BINDING_RESPONSE) {
 			logger.log(Level.FINE, "Setting mappedAddress.");
-			mappedAddress = Header.getAddress(response, Header.MAPPED_ADDRESS);
+			mappedAddress = Header.getMappedAddress(response, response.length);
 			return;
 		}
 		
@@ -1,13 +1,22 @@
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 import java.util.logging.Level;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 
 public class TestServer {
 	//Public STUN server available through the STUNTMAN project on stun.stunprotocol.org: 3478
@@ -109,8 +118,522 @@ public class TestServer {
 		}
 	}
 
+	/**
+	 * Starts three Servers on loopback that share a rate limit of 30 requests per source
+	 * and minute by gossip, then sends 90 requests spread over all of them, 10ms apart.
+	 * At most 30 may be answered plus what the other nodes let through before their
+	 * gossip arrives, one gossip interval of requests for each of them. Every node
+	 * must deny some.
+	 */
+	public void testClusterRateLimit() {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		int nodes = 3;
+		int limit = 30;
+		int gossipInterval = 50;
+		int requestInterval = 10;
+		int tolerance = (nodes - 1) * gossipInterval / requestInterval;
+		Server[] servers = new Server[nodes];
+		ClusterRateLimiter[] limiters = new ClusterRateLimiter[nodes];
+		byte[] clusterSecret = "fleet secret".getBytes();
+
+		try {
+			for (int i = 0; i < nodes; i++) {
+				limiters[i] = new ClusterRateLimiter(new InetSocketAddress(loopback, 3600 + i), clusterSecret, limit, 60000);
+				limiters[i].setGossipInterval(gossipInterval);
+			}
+			for (int i = 0; i < nodes; i++) {
+				for (int j = 0; j < nodes; j++) {
+					if (i != j)
+						limiters[i].addPeer(limiters[j].getGossipAddress());
+				}
+				limiters[i].start();
+				servers[i] = new Server(loopback, 3500 + 10 * i);
+				servers[i].setRateLimiter(limiters[i]);
+				servers[i].startServer();
+			}
+
+			DatagramSocket socket = new DatagramSocket(0, loopback);
+			socket.setSoTimeout(100);
+			int answered = 0;
+
+			for (int i = 0; i < 3 * limit; i++) {
+				byte[] request = new byte[Header.LENGTH];
+				Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+				Header.addMagicCookieTo(request);
+				Header.addTransactionIDTo(request);
+				socket.send(new DatagramPacket(request, request.length, loopback, 3500 + 10 * (i % nodes)));
+				try {
+					socket.receive(new DatagramPacket(new byte[512], 512));
+					answered++;
+				} catch (SocketTimeoutException e) {
+					// denied
+				}
+				Thread.sleep(requestInterval);
+			}
+			socket.close();
+			System.out.println(answered + " of " + (3 * limit) + " requests answered with a fleet limit of " + limit
+					+ " and a gossip tolerance of " + tolerance);
+			long[] denied = new long[nodes];
+
+			for (int i = 0; i < nodes; i++) {
+				denied[i] = limiters[i].getDeniedRequests();
+				System.out.println("Node " + i + " denied " + denied[i]
+						+ ", received " + limiters[i].getGossipReceived() + " gossip packets");
+				servers[i].shutdown();
+				limiters[i].close();
+			}
+			if (answered > limit + tolerance) {
+				throw new IllegalStateException(answered + " requests answered, the fleet limit is " + limit
+						+ " plus a tolerance of " + tolerance);
+			}
+			for (int i = 0; i < nodes; i++) {
+				if (denied[i] == 0) {
+					throw new IllegalStateException("Node " + i + " denied nothing");
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Cluster rate limit failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Cluster rate limit interrupted", e);
+		}
+	}
+
+	/**
+	 * Traces one in ten of 20000 requests to a Server on loopback, once with the
+	 * listeners answering and once in pipeline mode, and prints the breakdowns. One in
+	 * ten of the requests the Server processed must be sampled, every stage they go
+	 * through must have samples and no sample's stages may add up to more than its total.
+	 */
+	public void testLatencyTracer() {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		int interval = 10;
+
+		try {
+			for (int workers = 0; workers <= 2; workers += 2) {
+				LatencyTracer tracer = new LatencyTracer(interval, 4096);
+				Server server = new Server(loopback, 3540);
+				if (workers > 0) {
+					server.enablePipeline(workers, 256, BackpressurePolicy.DROP_NEW);
+				}
+				server.setLatencyTracer(tracer);
+				server.startServer();
+
+				DatagramSocket socket = new DatagramSocket(0, loopback);
+				socket.setSoTimeout(100);
+				byte[] request = new byte[Header.LENGTH];
+				Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+				Header.addMagicCookieTo(request);
+				Header.addTransactionIDTo(request);
+				DatagramPacket requestPacket = new DatagramPacket(request, request.length, loopback, 3540);
+				DatagramPacket response = new DatagramPacket(new byte[512], 512);
+
+				for (int i = 0; i < 20000; i++) {
+					socket.send(requestPacket);
+					try {
+						socket.receive(response);
+					} catch (SocketTimeoutException e) {
+						// lost
+					}
+				}
+				socket.close();
+				server.shutdown();
+
+				String name = (workers > 0) ? "Pipeline" : "Listener";
+				System.out.println(name + ", " + tracer.getSamplesRecorded() + " samples");
+				System.out.print(tracer.dump());
+
+				// every listener thread counts its own requests to the next sample
+				long expected = server.getProcessedRequests() / interval;
+				if (Math.abs(tracer.getSamplesRecorded() - expected) > expected / 20 + 4) {
+					throw new IllegalStateException(name + " recorded " + tracer.getSamplesRecorded() + " samples of "
+							+ server.getProcessedRequests() + " requests, expected about " + expected);
+				}
+				checkStages(name, tracer.getSamples(), (workers > 0) ? new int[] {StageProbe.QUEUE, StageProbe.VALIDATE,
+						StageProbe.BUILD, StageProbe.SEND, StageProbe.ACCOUNT} : new int[] {StageProbe.VALIDATE,
+						StageProbe.BUILD, StageProbe.SEND, StageProbe.ACCOUNT});
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Latency tracer failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Stops the test if one of the stages has no samples or the stages of a sample add up
+	 * to more than its total
+	 */
+	private static void checkStages(String name, long[][] samples, int[] stages) {
+		int total = StageProbe.STAGE_NAMES.length;
+		int[] counts = new int[total];
+
+		for (long[] sample : samples) {
+			long sum = 0;
+
+			for (int stage = 0; stage < total; stage++) {
+				if (sample[stage] >= 0) {
+					counts[stage]++;
+					sum += sample[stage];
+				}
+			}
+			if (sum > sample[total]) {
+				throw new IllegalStateException(name + " sample stages add up to " + sum + "ns, its total is "
+						+ sample[total] + "ns");
+			}
+		}
+		for (int stage : stages) {
+			if (counts[stage] == 0) {
+				throw new IllegalStateException(name + " has no samples of " + StageProbe.STAGE_NAMES[stage]);
+			}
+		}
+	}
+
+	/**
+	 * Runs clients against a Server on a SimulatedNetwork: a UDPClient behind a NAT
+	 * over a link that loses a third of the packets, a TCPClient, and a million
+	 * binding requests to see how fast the simulation goes. Needs no network.
+	 */
+	public void testSimulatedNetwork() {
+		try {
+			SimulatedNetwork network = new SimulatedNetwork(3);
+			network.setLatency(20000, 5000);
+			network.setLoss(0.33);
+			network.setReordering(0.1, 30000);
+
+			InetAddress serverAddress = InetAddress.getByName("203.0.113.1");
+			InetAddress clientAddress = InetAddress.getByName("192.168.1.2");
+			InetAddress natAddress = InetAddress.getByName("198.51.100.1");
+			network.addNat(natAddress, NatBehaviorDiscovery.Behavior.ENDPOINT_INDEPENDENT,
+					NatBehaviorDiscovery.Behavior.ADDRESS_AND_PORT_DEPENDENT, clientAddress);
+
+			Server server = new Server(serverAddress, 3478);
+			network.attach(server, new InetSocketAddress(serverAddress, 3478));
+
+			UDPClient udpClient = new UDPClient(new InetSocketAddress(serverAddress, 3478),
+					network.open(new InetSocketAddress(clientAddress, 4200)));
+			udpClient.run();
+			InetSocketAddress udpMapped = udpClient.getMappedAddress();
+			System.out.println("Simulated UDP mapped address " + udpMapped + ", " + network);
+			checkMappedAddress("UDP", udpMapped, natAddress);
+
+			TCPClient tcpClient = new TCPClient(network.connect(new InetSocketAddress(clientAddress, 0),
+					new InetSocketAddress(serverAddress, 3479)));
+			tcpClient.run();
+			InetSocketAddress tcpMapped = tcpClient.getMappedAddress();
+			System.out.println("Simulated TCP mapped address " + tcpMapped);
+			checkMappedAddress("TCP", tcpMapped, natAddress);
+
+			network.setLoss(0);
+			network.setReordering(0, 0);
+			PacketTransport client = network.open(new InetSocketAddress(clientAddress, 0));
+			byte[] request = new byte[Header.LENGTH + Header.TYPE_LENGTH_VALUE + Header.MAPPED_IPV4_ADDRESS_LENGTH];
+			Header.addTypeAndLengthTo(request);
+			Header.addMagicCookieTo(request);
+			Header.addTransactionIDTo(request);
+			DatagramPacket requestPacket = new DatagramPacket(request, request.length, serverAddress, 3478);
+			DatagramPacket response = new DatagramPacket(new byte[512], 512);
+			int requests = 1000000;
+			int batch = 1000;
+			long start = System.nanoTime();
+
+			for (int i = 0; i < requests; i += batch) {
+				for (int j = 0; j < batch; j++) {
+					client.send(requestPacket);
+				}
+				for (int j = 0; j < batch; j++) {
+					client.receive(response);
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println(requests + " simulated binding requests in " + (elapsed / 1000000) + "ms, "
+					+ (2L * requests * 1000000000L / elapsed) + " packets/s");
+			checkMappedAddress("Last UDP", Header.getMappedAddress(response.getData(), response.getLength()), natAddress);
+		} catch (IOException e) {
+			throw new IllegalStateException("Simulated network failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Stops the test if a client behind the NAT didn't get the public address of the NAT
+	 */
+	private static void checkMappedAddress(String name, InetSocketAddress mapped, InetAddress natAddress) {
+		if (mapped == null || !natAddress.equals(mapped.getAddress())) {
+			throw new IllegalStateException(name + " mapped address " + mapped + ", expected the NAT address " + natAddress);
+		}
+	}
+
+	/**
+	 * Feeds NatPortSurvey.Result the mappings of a port preserving, a sequential and a
+	 * random NAT and checks the allocation and the predicted port of each
+	 */
+	public void testNatPortSurvey() {
+		InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), 3478);
+		InetAddress natAddress = InetAddress.getLoopbackAddress();
+		int probes = 50;
+		SplittableRandom random = new SplittableRandom(7);
+
+		NatPortSurvey.Result preserving = new NatPortSurvey.Result(probes);
+		NatPortSurvey.Result sequential = new NatPortSurvey.Result(probes);
+		NatPortSurvey.Result wrapping = new NatPortSurvey.Result(probes);
+		NatPortSurvey.Result randomized = new NatPortSurvey.Result(probes);
+
+		for (int i = 0; i < probes; i++) {
+			int localPort = 40000 + 3 * i;
+			preserving.setProbe(i, localPort, server, new InetSocketAddress(natAddress, localPort));
+
+			// every fifth port is taken by another host behind the NAT
+			sequential.setProbe(i, localPort, server, new InetSocketAddress(natAddress, 20000 + 2 * i + 2 * (i / 5)));
+			wrapping.setProbe(i, localPort, server, new InetSocketAddress(natAddress, 65536 - probes + i));
+			randomized.setProbe(i, localPort, server, new InetSocketAddress(natAddress, 1024 + random.nextInt(64512)));
+		}
+		// the last one wasn't answered
+		sequential.setProbe(probes - 1, 40000 + 3 * (probes - 1), server, null);
+
+		checkSurvey("Preserving", preserving, NatPortSurvey.Allocation.PRESERVING, 41000, 41000);
+		checkSurvey("Sequential", sequential, NatPortSurvey.Allocation.SEQUENTIAL, 41000,
+				20000 + 2 * (probes - 2) + 2 * ((probes - 2) / 5) + 2);
+		checkSurvey("Wrapping", wrapping, NatPortSurvey.Allocation.SEQUENTIAL, 41000, 1024);
+		checkSurvey("Random", randomized, NatPortSurvey.Allocation.RANDOM, 41000, -1);
+	}
+
+	/**
+	 * Analyzes a survey and stops the test if it isn't classified as expected
+	 */
+	private static void checkSurvey(String name, NatPortSurvey.Result result, NatPortSurvey.Allocation allocation,
+			int localPort, int nextPort) {
+		result.analyze();
+		System.out.println(name + " survey: " + result + ", next port " + result.predictNextPort(localPort));
+
+		if (result.getAllocation() != allocation || result.predictNextPort(localPort) != nextPort) {
+			throw new IllegalStateException(name + " survey is " + result.getAllocation() + " predicting "
+					+ result.predictNextPort(localPort) + ", expected " + allocation + " predicting " + nextPort);
+		}
+	}
+
+	/**
+	 * Puts a Server on loopback behind long-term credentials with nonces that last half
+	 * a second. A request without MESSAGE-INTEGRITY must get 401 with REALM and NONCE,
+	 * one signed with that nonce a signed 200, the same after the nonce expired 438
+	 * with a new nonce, and one with the wrong password 401.
+	 */
+	public void testLongTermCredentials() {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		String realm = "example.org";
+		LongTermCredentials credentials = new LongTermCredentials(realm, new NonceIssuer(500));
+		credentials.addUser("alice", "secret");
+
+		try {
+			Server server = new Server(loopback, 3560);
+			server.setLongTermCredentials(credentials);
+			server.startServer();
+
+			DatagramSocket socket = new DatagramSocket(0, loopback);
+			socket.setSoTimeout(1000);
+			InetSocketAddress serverAddress = new InetSocketAddress(loopback, 3560);
+
+			try {
+				byte[] request = new byte[Header.LENGTH];
+				Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+				Header.addMagicCookieTo(request);
+				Header.addTransactionIDTo(request);
+				byte[] response = exchange(socket, serverAddress, request);
+				checkErrorCode("Unauthenticated request", response, Header.UNAUTHORIZED);
+
+				int nonceOffset = Header.findAttribute(response, response.length, Header.NONCE);
+				int realmOffset = Header.findAttribute(response, response.length, Header.REALM);
+				if (nonceOffset == -1 || realmOffset == -1
+						|| !realm.equals(new String(Header.getBytesAttribute(response, realmOffset), StandardCharsets.UTF_8))) {
+					throw new IllegalStateException("401 without REALM " + realm + " and a NONCE");
+				}
+				byte[] nonce = Header.getBytesAttribute(response, nonceOffset);
+
+				response = exchange(socket, serverAddress, signedRequest("alice", realm, nonce, "secret"));
+				Mac mac = Mac.getInstance("HmacSHA1");
+				mac.init(new SecretKeySpec(LongTermCredentials.key("alice", realm, "secret"), "HmacSHA1"));
+				if (Header.getMessageType(response) != Header.BINDING_RESPONSE
+						|| !Header.checkMessageIntegrity(response, response.length, mac)) {
+					throw new IllegalStateException("Valid credentials got 0x" + Integer.toHexString(Header.getMessageType(response))
+							+ " instead of a signed binding response");
+				}
+
+				response = exchange(socket, serverAddress, signedRequest("alice", realm, nonce, "wrong"));
+				checkErrorCode("Wrong password", response, Header.UNAUTHORIZED);
+
+				Thread.sleep(600);
+				response = exchange(socket, serverAddress, signedRequest("alice", realm, nonce, "secret"));
+				checkErrorCode("Expired nonce", response, Header.STALE_NONCE);
+				if (Header.findAttribute(response, response.length, Header.NONCE) == -1) {
+					throw new IllegalStateException("438 without a new NONCE");
+				}
+				System.out.println("Long-term credentials: 401, signed 200, 401, 438");
+			} finally {
+				socket.close();
+				server.shutdown();
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException("Long-term credentials failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return A binding request with USERNAME, REALM, NONCE and MESSAGE-INTEGRITY
+	 */
+	private static byte[] signedRequest(String username, String realm, byte[] nonce, String password)
+			throws GeneralSecurityException {
+		byte[] request = new byte[Server.RESPONSE_BUFFER_SIZE];
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+		int offset = Header.putBytesAttribute(request, Header.LENGTH, Header.USERNAME, username.getBytes(StandardCharsets.UTF_8));
+		offset = Header.putBytesAttribute(request, offset, Header.REALM, realm.getBytes(StandardCharsets.UTF_8));
+		offset = Header.putBytesAttribute(request, offset, Header.NONCE, nonce);
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, offset - Header.LENGTH);
+
+		Mac mac = Mac.getInstance("HmacSHA1");
+		mac.init(new SecretKeySpec(LongTermCredentials.key(username, realm, password), "HmacSHA1"));
+
+		return Arrays.copyOf(request, Header.putMessageIntegrity(request, offset, mac));
+	}
+
+	private static byte[] exchange(DatagramSocket socket, InetSocketAddress server, byte[] request) throws IOException {
+		socket.send(new DatagramPacket(request, request.length, server));
+		DatagramPacket response = new DatagramPacket(new byte[512], 512);
+		socket.receive(response);
+
+		return Arrays.copyOf(response.getData(), response.getLength());
+	}
+
+	private static void checkErrorCode(String name, byte[] response, int errorCode) {
+		int offset = Header.findAttribute(response, response.length, Header.ERROR_CODE);
+		int received = (offset == -1) ? 0 : Header.getErrorCode(response, offset);
+
+		if (received != errorCode) {
+			throw new IllegalStateException(name + " got error " + received + " instead of " + errorCode);
+		}
+	}
+
+	/**
+	 * Relays through a TURN Server on loopback: allocates, sends from a peer that has
+	 * no permission yet, which must be dropped, then creates a permission, binds a
+	 * channel and sends ChannelData from the client to the peer and back.
+	 */
+	public void testTurnRelay() {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		InetSocketAddress serverAddress = new InetSocketAddress(loopback, 3570);
+		int channel = Header.MIN_CHANNEL_NUMBER;
+
+		try {
+			Server server = new Server(loopback, 3570);
+			server.enableTurn(loopback, 4);
+			server.startServer();
+
+			DatagramSocket client = new DatagramSocket(0, loopback);
+			DatagramSocket peer = new DatagramSocket(0, loopback);
+			client.setSoTimeout(1000);
+			peer.setSoTimeout(1000);
+			InetSocketAddress peerAddress = (InetSocketAddress) peer.getLocalSocketAddress();
+
+			try {
+				byte[] request = turnRequest(Header.ALLOCATE_REQUEST);
+				int offset = Header.putIntAttribute(request, Header.LENGTH, Header.REQUESTED_TRANSPORT, Header.TRANSPORT_UDP << 24);
+				byte[] response = turnTransaction(client, serverAddress, request, offset);
+				InetSocketAddress relayed = Header.getXorAddress(response,
+						Header.findAttribute(response, response.length, Header.XOR_RELAYED_ADDRESS));
+
+				byte[] early = "before permission".getBytes(StandardCharsets.UTF_8);
+				peer.send(new DatagramPacket(early, early.length, relayed));
+				client.setSoTimeout(300);
+				try {
+					client.receive(new DatagramPacket(new byte[512], 512));
+					throw new IllegalStateException("Data from a peer without permission was relayed");
+				} catch (SocketTimeoutException e) {
+					// dropped
+				}
+				client.setSoTimeout(1000);
+
+				request = turnRequest(Header.CREATE_PERMISSION_REQUEST);
+				offset = Header.putXorAddress(request, Header.LENGTH, Header.XOR_PEER_ADDRESS, peerAddress.getAddress(),
+						peerAddress.getPort());
+				turnTransaction(client, serverAddress, request, offset);
+
+				request = turnRequest(Header.CHANNEL_BIND_REQUEST);
+				offset = Header.putIntAttribute(request, Header.LENGTH, Header.CHANNEL_NUMBER, channel << 16);
+				offset = Header.putXorAddress(request, offset, Header.XOR_PEER_ADDRESS, peerAddress.getAddress(),
+						peerAddress.getPort());
+				turnTransaction(client, serverAddress, request, offset);
+
+				byte[] toPeer = "to peer".getBytes(StandardCharsets.UTF_8);
+				byte[] channelData = new byte[Header.CHANNEL_DATA_HEADER_LENGTH + toPeer.length];
+				channelData[0] = (byte) (channel >> 8);
+				channelData[1] = (byte) channel;
+				channelData[2] = (byte) (toPeer.length >> 8);
+				channelData[3] = (byte) toPeer.length;
+				System.arraycopy(toPeer, 0, channelData, Header.CHANNEL_DATA_HEADER_LENGTH, toPeer.length);
+				client.send(new DatagramPacket(channelData, channelData.length, serverAddress));
+
+				DatagramPacket received = new DatagramPacket(new byte[512], 512);
+				peer.receive(received);
+				if (!relayed.equals(received.getSocketAddress())
+						|| !Arrays.equals(toPeer, Arrays.copyOf(received.getData(), received.getLength()))) {
+					throw new IllegalStateException("Peer got " + received.getLength() + " bytes from "
+							+ received.getSocketAddress() + " instead of the payload from " + relayed);
+				}
+
+				byte[] toClient = "to client".getBytes(StandardCharsets.UTF_8);
+				peer.send(new DatagramPacket(toClient, toClient.length, relayed));
+				received = new DatagramPacket(new byte[512], 512);
+				client.receive(received);
+				byte[] message = Arrays.copyOf(received.getData(), received.getLength());
+				int receivedChannel = ((message[0] << 8) & 0xff00) | (message[1] & 0xff);
+
+				if (!Header.isChannelData(message, message.length) || receivedChannel != channel || !Arrays.equals(toClient,
+						Arrays.copyOfRange(message, Header.CHANNEL_DATA_HEADER_LENGTH, message.length))) {
+					throw new IllegalStateException("Client got " + message.length + " bytes that aren't the ChannelData of "
+							+ "the peer on channel 0x" + Integer.toHexString(channel));
+				}
+				System.out.println("TURN relay: allocate, dropped without permission, ChannelData both ways");
+			} finally {
+				client.close();
+				peer.close();
+				server.shutdown();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("TURN relay failed: " + e.getMessage(), e);
+		}
+	}
+
+	private static byte[] turnRequest(int messageType) {
+		byte[] request = new byte[Server.RESPONSE_BUFFER_SIZE];
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+		Header.setMessageTypeAndLength(request, messageType, 0);
+
+		return request;
+	}
+
+	/**
+	 * @return The success response to request
+	 */
+	private static byte[] turnTransaction(DatagramSocket client, InetSocketAddress server, byte[] request, int length)
+			throws IOException {
+		Header.setMessageTypeAndLength(request, Header.getMessageType(request), length - Header.LENGTH);
+		byte[] response = exchange(client, server, Arrays.copyOf(request, length));
+
+		if ((Header.getMessageType(response) & Header.ERROR_RESPONSE_CLASS) != Header.SUCCESS_RESPONSE_CLASS) {
+			int errorOffset = Header.findAttribute(response, response.length, Header.ERROR_CODE);
+			throw new IllegalStateException("TURN request 0x" + Integer.toHexString(Header.getMessageType(request))
+					+ " failed with " + ((errorOffset != -1) ? Header.getErrorCode(response, errorOffset) : "?"));
+		}
+		return response;
+	}
+
 	public static void main(String[]args) {
 		TestServer test = new TestServer();
+		test.testSimulatedNetwork();
 		test.testServer();
+		test.testClusterRateLimit();
+		test.testLatencyTracer();
+		test.testNatPortSurvey();
+		test.testLongTermCredentials();
+		test.testTurnRelay();
 	}
 }
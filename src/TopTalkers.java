@@ -0,0 +1,308 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the sources (address and port) that send a Server the most requests or cause
+ * the most error responses, with a fixed amount of memory outside the Java heap.
+ *
+ * The table is an open addressing hash table in a direct ByteBuffer with one 64 byte
+ * slot per source. Every listener thread updates it with compare-and-set and atomic adds
+ * through a VarHandle, there are no locks. A new source takes an empty slot within
+ * PROBE_LENGTH slots of its hash, and when there is none it replaces the source with the
+ * fewest packets there. Like in the Space-Saving algorithm the newcomer starts from the
+ * count of the source it replaces, so counts are never too low and the overestimate is
+ * kept in the slot. Sources that send a lot are never the ones replaced.
+ *
+ * A thread takes a slot by setting its tag to BUSY, writes the source and the counts
+ * and then publishes the tag of the source. Threads that find a BUSY slot wait for the
+ * tag, so no packet is counted before the slot is ready, and top lists skip it.
+ *
+ * Slot layout, in longs: tag (hash of the key, 0 when empty), address high, address low,
+ * port, packets, errors, overestimate and padding. IPv4 addresses are stored as
+ * IPv4-mapped IPv6 addresses.
+ * @author Frans
+ *
+ */
+public class TopTalkers {
+
+	public static final int PROBE_LENGTH = 8;
+
+	private static final int SLOT_BYTES = 64;
+	private static final int TAG = 0;
+	private static final int ADDRESS_HIGH = 8;
+	private static final int ADDRESS_LOW = 16;
+	private static final int PORT = 24;
+	private static final int PACKETS = 32;
+	private static final int ERRORS = 40;
+	private static final int OVERESTIMATE = 48;
+
+	private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+
+	/*
+	 * The tag of a slot while a thread writes a new source into it, never a real tag
+	 */
+	private static final long BUSY = -1;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final ByteBuffer table;
+	private final int mask;
+
+	/**
+	 * @param capacity Number of sources tracked, rounded up to a power of two. Uses
+	 * 64 bytes of off-heap memory per source.
+	 */
+	public TopTalkers(int capacity) {
+		int slots = Integer.highestOneBit(Math.max(capacity - 1, PROBE_LENGTH)) << 1;
+		this.mask = slots - 1;
+		this.table = ByteBuffer.allocateDirect(slots * SLOT_BYTES).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @return Number of sources the table can hold
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Counts a request. Lock-free, and allocation free for IPv4 sources.
+	 * @param source
+	 * @param port
+	 * @param error true if the request was answered with an error response
+	 */
+	public void add(InetAddress source, int port, boolean error) {
+		if (source instanceof Inet4Address) {
+			// hashCode of an Inet4Address is the address itself, getAddress would allocate
+			add(0, IPV4_MAPPED_PREFIX | (source.hashCode() & 0xFFFFFFFFL), port, error);
+		} else {
+			byte[] address = source.getAddress();
+			add(ByteBuffer.wrap(address).getLong(0), ByteBuffer.wrap(address).getLong(8), port, error);
+		}
+	}
+
+	/**
+	 * Counts a request from a source given as a packed IPv6 or IPv4-mapped address
+	 */
+	public void add(long addressHigh, long addressLow, int port, boolean error) {
+		long tag = tag(addressHigh, addressLow, port);
+		int home = (int) tag & mask;
+		int victim = -1;
+		long victimPackets = Long.MAX_VALUE;
+
+		for (int i = 0; i < PROBE_LENGTH; i++) {
+			int slot = ((home + i) & mask) * SLOT_BYTES;
+			long current = published(slot);
+
+			if (current == 0) {
+				if (LONGS.compareAndSet(table, slot + TAG, 0L, BUSY)) {
+					claim(slot, tag, addressHigh, addressLow, port, 0);
+					current = tag;
+				} else {
+					current = published(slot);
+				}
+			}
+			if (current == tag) {
+				count(slot, error);
+				return;
+			}
+			long packets = (long) LONGS.getVolatile(table, slot + PACKETS);
+
+			if (packets < victimPackets) {
+				victim = slot;
+				victimPackets = packets;
+			}
+		}
+
+		long old = (long) LONGS.getVolatile(table, victim + TAG);
+		if (old != 0 && old != BUSY && LONGS.compareAndSet(table, victim + TAG, old, BUSY)) {
+			claim(victim, tag, addressHigh, addressLow, port, victimPackets);
+			count(victim, error);
+		}
+		// else another thread replaced the victim at the same moment, this packet isn't counted
+	}
+
+	/**
+	 * @return The tag of a slot, after waiting for a thread that is writing a new
+	 * source into it
+	 */
+	private long published(int slot) {
+		long tag;
+
+		while ((tag = (long) LONGS.getVolatile(table, slot + TAG)) == BUSY) {
+			Thread.onSpinWait();
+		}
+		return tag;
+	}
+
+	/**
+	 * Writes a source into a slot whose tag this thread set to BUSY, then publishes its tag
+	 */
+	private void claim(int slot, long tag, long addressHigh, long addressLow, int port, long overestimate) {
+		LONGS.setOpaque(table, slot + ERRORS, 0L);
+		LONGS.setOpaque(table, slot + PACKETS, overestimate);
+		LONGS.setOpaque(table, slot + OVERESTIMATE, overestimate);
+		LONGS.setOpaque(table, slot + ADDRESS_HIGH, addressHigh);
+		LONGS.setOpaque(table, slot + ADDRESS_LOW, addressLow);
+		LONGS.setOpaque(table, slot + PORT, (long) port);
+		LONGS.setRelease(table, slot + TAG, tag);
+	}
+
+	private void count(int slot, boolean error) {
+		LONGS.getAndAdd(table, slot + PACKETS, 1L);
+
+		if (error) {
+			LONGS.getAndAdd(table, slot + ERRORS, 1L);
+		}
+	}
+
+	private static long tag(long addressHigh, long addressLow, int port) {
+		long h = addressHigh * 0x9E3779B97F4A7C15L + addressLow;
+		h = (h ^ (h >>> 32)) * 0xD6E8FEB86659FD93L + port;
+		h ^= h >>> 29;
+		return (h != 0 && h != BUSY) ? h : 1;
+	}
+
+	/**
+	 * @param n
+	 * @return The n sources with the most requests, most first
+	 */
+	public List<Talker> getTopByPackets(int n) {
+		return top(n, PACKETS);
+	}
+
+	/**
+	 * @param n
+	 * @return The n sources with the most error responses, most first
+	 */
+	public List<Talker> getTopByErrors(int n) {
+		return top(n, ERRORS);
+	}
+
+	/**
+	 * Scans the table while it is being updated. A slot that is being taken or that
+	 * changes owner during the read is skipped.
+	 */
+	private List<Talker> top(int n, final int field) {
+		Comparator<long[]> order = new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[field / 8], b[field / 8]);
+			}
+		};
+		PriorityQueue<long[]> best = new PriorityQueue<long[]>(Math.max(n, 1), order);
+
+		for (int slot = 0; slot <= mask * SLOT_BYTES; slot += SLOT_BYTES) {
+			long tag = (long) LONGS.getVolatile(table, slot + TAG);
+
+			if (tag == 0 || tag == BUSY) {
+				continue;
+			}
+			long[] values = new long[SLOT_BYTES / 8];
+			for (int i = 1; i < values.length; i++) {
+				values[i] = (long) LONGS.getVolatile(table, slot + 8 * i);
+			}
+			if ((long) LONGS.getVolatile(table, slot + TAG) != tag || values[field / 8] == 0) {
+				continue;
+			}
+			best.add(values);
+			if (best.size() > n) {
+				best.poll();
+			}
+		}
+
+		ArrayList<Talker> talkers = new ArrayList<Talker>(best.size());
+		for (long[] values : best) {
+			talkers.add(new Talker(values));
+		}
+		Collections.sort(talkers, new Comparator<Talker>() {
+			public int compare(Talker a, Talker b) {
+				return (field == ERRORS) ? Long.compare(b.errors, a.errors) : Long.compare(b.packets, a.packets);
+			}
+		});
+		return talkers;
+	}
+
+	/**
+	 * Empties the table. Updates that happen at the same time may be lost.
+	 */
+	public void clear() {
+		for (int slot = 0; slot <= mask * SLOT_BYTES; slot += SLOT_BYTES) {
+			LONGS.setVolatile(table, slot + TAG, 0L);
+			LONGS.setVolatile(table, slot + PACKETS, 0L);
+			LONGS.setVolatile(table, slot + ERRORS, 0L);
+		}
+	}
+
+	/**
+	 * One source in a top list
+	 */
+	public static class Talker {
+		private final InetAddress address;
+		private final int port;
+		private final long packets;
+		private final long errors;
+		private final long overestimate;
+
+		Talker(long[] values) {
+			byte[] bytes = ByteBuffer.allocate(16).putLong(values[ADDRESS_HIGH / 8]).putLong(values[ADDRESS_LOW / 8]).array();
+			InetAddress address;
+			try {
+				// IPv4-mapped addresses come back as Inet4Address
+				address = InetAddress.getByAddress(bytes);
+			} catch (UnknownHostException e) {
+				address = null;
+			}
+			this.address = address;
+			this.port = (int) values[PORT / 8];
+			this.packets = values[PACKETS / 8];
+			this.errors = values[ERRORS / 8];
+			this.overestimate = values[OVERESTIMATE / 8];
+		}
+
+		public InetAddress getAddress() {
+			return address;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * @return Requests counted, at most getOverestimate() too many
+		 */
+		public long getPackets() {
+			return packets;
+		}
+
+		/**
+		 * @return Error responses, counted since the source got its slot
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return How much getPackets() can be too high, the count inherited from the
+		 * source this one replaced in the table
+		 */
+		public long getOverestimate() {
+			return overestimate;
+		}
+
+		@Override
+		public String toString() {
+			return ((address != null) ? address.getHostAddress() : "?") + ":" + port + " packets " + packets
+					+ " (overestimate " + overestimate + ") errors " + errors;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Callback for a STUN transaction run by a TransactionLoop.
+ * Both methods are called on the loop thread and should return quickly.
+ * @author Frans
+ *
+ */
+public interface TransactionListener {
+
+	/**
+	 * A response with the transaction ID of the request has arrived. The response
+	 * bytes are only valid during the call, copy them if they are needed later.
+	 * @param response The receive buffer holding the response
+	 * @param length The number of valid bytes in response
+	 * @param from Where the response came from
+	 */
+	void onResponse(byte[] response, int length, InetSocketAddress from);
+
+	/**
+	 * All retransmissions were sent and no response arrived
+	 */
+	void onTimeout();
+}
@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread event loop that runs STUN client transactions for any number of
+ * local sockets. It owns one Selector and one timer queue, retransmits requests
+ * over UDP as RFC5389 describes (RTO doubling, Rc sends, Rm * RTO after the last one)
+ * and matches responses to requests by transaction ID.
+ * 
+ * All methods are thread safe. Work from other threads is queued and runs on the loop thread.
+ * @author Frans
+ *
+ */
+public class TransactionLoop implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(TransactionLoop.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	public static final int DEFAULT_RTO = 500;
+	public static final int DEFAULT_MAX_SENDS = 7;
+	private static final int LAST_WAIT_FACTOR = 16;
+
+	private static final int BUFFER_SIZE = 2048;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Task> timers = new PriorityQueue<Task>();
+	private final HashMap<TransactionKey, Transaction> transactions = new HashMap<TransactionKey, Transaction>();
+	private final TransactionKey probe = new TransactionKey();
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer view = ByteBuffer.wrap(buffer);
+
+	private volatile int rto = DEFAULT_RTO;
+	private volatile int maxSends = DEFAULT_MAX_SENDS;
+
+	private Thread thread;
+	private volatile boolean running;
+	private long taskSequence;
+
+	public TransactionLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons 
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	/**
+	 * Starts the loop thread
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "STUN transactions");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the loop thread and closes all channels. Outstanding transactions are dropped
+	 * without calling their listeners.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Changes the retransmission timing of transactions started after the call
+	 * @param rto Initial retransmission timeout in milliseconds
+	 * @param maxSends How many times a request is sent before the transaction times out
+	 */
+	public void setRetransmission(int rto, int maxSends) {
+		this.rto = rto;
+		this.maxSends = maxSends;
+	}
+
+	/**
+	 * @return true if the calling thread is the loop thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs task on the loop thread
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs task on the loop thread after a delay
+	 * @param task
+	 * @param delayMillis
+	 * @return A handle that can be used to cancel the task
+	 */
+	public Task schedule(Runnable task, long delayMillis) {
+		final Task timer = new Task(task, now() + delayMillis);
+
+		if (inLoop()) {
+			addTimer(timer);
+		} else {
+			execute(new Runnable() {
+				public void run() {
+					addTimer(timer);
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Opens a non-blocking UDP socket and registers it with the loop so that
+	 * responses to requests sent from it are received.
+	 * @param localAddress Address to bind to, port 0 for any port
+	 * @return The bound channel
+	 * @throws IOException If the socket can't be bound
+	 */
+	public DatagramChannel openChannel(InetSocketAddress localAddress) throws IOException {
+		final DatagramChannel channel = DatagramChannel.open();
+
+		try {
+			channel.configureBlocking(false);
+			channel.socket().bind(localAddress);
+		} catch (IOException e) {
+			channel.close();
+			throw new IOException("Can't bind " + localAddress + ": " + e.getMessage());
+		}
+
+		/*
+		 * Registering from another thread would block while the loop is in select
+		 */
+		Runnable register = new Runnable() {
+			public void run() {
+				try {
+					channel.register(selector, SelectionKey.OP_READ);
+				} catch (ClosedChannelException e) {
+					logger.log(Level.FINE, "Channel closed before it was registered");
+				}
+			}
+		};
+		if (inLoop()) {
+			register.run();
+		} else {
+			execute(register);
+		}
+		return channel;
+	}
+
+	/**
+	 * Sends a request and retransmits it until a response arrives or the transaction times out.
+	 * The request array is kept for retransmissions and must not be changed afterwards.
+	 * @param channel A channel from openChannel
+	 * @param server Where to send the request
+	 * @param request A complete STUN request with a unique transaction ID
+	 * @param length The length of the request
+	 * @param listener Gets the response or the timeout
+	 */
+	public void sendRequest(DatagramChannel channel, InetSocketAddress server, byte[] request, int length, TransactionListener listener) {
+		sendRequest(channel, server, request, length, rto, maxSends, listener);
+	}
+
+	/**
+	 * Like sendRequest but with retransmission timing for this transaction only,
+	 * for tests where an unanswered request is an expected result.
+	 * @param channel A channel from openChannel
+	 * @param server Where to send the request
+	 * @param request A complete STUN request with a unique transaction ID
+	 * @param length The length of the request
+	 * @param rto Initial retransmission timeout in milliseconds
+	 * @param maxSends How many times the request is sent before the transaction times out
+	 * @param listener Gets the response or the timeout
+	 */
+	public void sendRequest(DatagramChannel channel, InetSocketAddress server, byte[] request, int length, int rto,
+			int maxSends, TransactionListener listener) {
+		final Transaction transaction = new Transaction(channel, server, request, length, rto, maxSends, listener);
+
+		if (inLoop()) {
+			begin(transaction);
+		} else {
+			execute(new Runnable() {
+				public void run() {
+					begin(transaction);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return Number of transactions waiting for a response, only exact on the loop thread
+	 */
+	public int getPendingTransactions() {
+		return transactions.size();
+	}
+
+	static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				long delay = nextTimerDelay();
+
+				if (delay < 0) {
+					selector.select();
+				} else if (delay == 0) {
+					selector.selectNow();
+				} else {
+					selector.select(delay);
+				}
+				runTasks();
+				receive();
+				runTimers();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "IOException in transaction loop - " + e.getMessage());
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Exception in transaction loop task", e);
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		logger.log(Level.FINE, "Transaction loop out of running");
+	}
+
+	private long nextTimerDelay() {
+		if (!tasks.isEmpty()) {
+			return 0;
+		}
+		Task next = timers.peek();
+
+		if (next == null) {
+			return -1;
+		}
+		return Math.max(0, next.deadline - now());
+	}
+
+	private void runTasks() {
+		Runnable task;
+
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void runTimers() {
+		long now = now();
+		Task next;
+
+		while ((next = timers.peek()) != null && next.deadline <= now) {
+			timers.poll();
+
+			if (!next.cancelled) {
+				next.task.run();
+			}
+		}
+	}
+
+	private void addTimer(Task timer) {
+		timer.sequence = taskSequence++;
+		timers.add(timer);
+	}
+
+	private void receive() throws IOException {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			if (!key.isValid() || !key.isReadable()) {
+				continue;
+			}
+			DatagramChannel channel = (DatagramChannel) key.channel();
+
+			while (true) {
+				view.clear();
+				InetSocketAddress from;
+
+				try {
+					from = (InetSocketAddress) channel.receive(view);
+				} catch (IOException e) {
+					/*
+					 * ICMP port unreachable from an earlier send shows up here on some platforms
+					 */
+					logger.log(Level.FINE, "Receive failed on " + channel.socket().getLocalSocketAddress() + " - " + e.getMessage());
+					break;
+				}
+				if (from == null) {
+					break;
+				}
+				dispatch(view.position(), from);
+			}
+		}
+	}
+
+	private void dispatch(int length, InetSocketAddress from) {
+		if (length < Header.LENGTH || !Header.compareMagicCookieIn(buffer)
+				|| (Header.getMessageType(buffer) & Header.SUCCESS_RESPONSE_CLASS) == 0) {
+			logger.log(Level.FINE, "Ignoring message that is not a STUN response from " + from);
+			return;
+		}
+		Transaction transaction = transactions.remove(probe.set(buffer));
+
+		if (transaction == null) {
+			logger.log(Level.FINE, "Response for unknown transaction from " + from);
+			return;
+		}
+		transaction.retransmission.cancel();
+		transaction.listener.onResponse(buffer, length, from);
+	}
+
+	private void begin(Transaction transaction) {
+		transactions.put(new TransactionKey().set(transaction.request), transaction);
+		transmit(transaction);
+	}
+
+	private void transmit(final Transaction transaction) {
+		if (transaction.sendsLeft == 0) {
+			transactions.remove(probe.set(transaction.request));
+			transaction.listener.onTimeout();
+			return;
+		}
+		transaction.bytes.clear().limit(transaction.length);
+
+		try {
+			transaction.channel.send(transaction.bytes, transaction.server);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Send to " + transaction.server + " failed - " + e.getMessage());
+		}
+		transaction.sendsLeft--;
+		long wait = (transaction.sendsLeft == 0) ? transaction.rto * LAST_WAIT_FACTOR : transaction.nextTimeout;
+		transaction.nextTimeout *= 2;
+
+		transaction.retransmission = new Task(new Runnable() {
+			public void run() {
+				transmit(transaction);
+			}
+		}, now() + wait);
+		addTimer(transaction.retransmission);
+	}
+
+	/**
+	 * A task on the timer queue
+	 */
+	public static class Task implements Comparable<Task> {
+		private final Runnable task;
+		private final long deadline;
+		private long sequence;
+		private volatile boolean cancelled;
+
+		Task(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * The task will not run if it hasn't already
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public int compareTo(Task other) {
+			if (deadline != other.deadline) {
+				return (deadline < other.deadline) ? -1 : 1;
+			}
+			return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+		}
+	}
+
+	private static class Transaction {
+		private final DatagramChannel channel;
+		private final InetSocketAddress server;
+		private final byte[] request;
+		private final int length;
+		private final ByteBuffer bytes;
+		private final TransactionListener listener;
+		private final int rto;
+
+		private int sendsLeft;
+		private long nextTimeout;
+		private Task retransmission;
+
+		Transaction(DatagramChannel channel, InetSocketAddress server, byte[] request, int length, int rto, int maxSends,
+				TransactionListener listener) {
+			this.channel = channel;
+			this.server = server;
+			this.request = request;
+			this.length = length;
+			this.bytes = ByteBuffer.wrap(request);
+			this.listener = listener;
+			this.rto = rto;
+			this.sendsLeft = maxSends;
+			this.nextTimeout = rto;
+		}
+	}
+
+	/**
+	 * The 96 bit transaction ID as a map key. The loop keeps one instance as a
+	 * probe so looking up a response doesn't allocate.
+	 */
+	private static class TransactionKey {
+		private long high;
+		private int low;
+
+		TransactionKey set(byte[] message) {
+			high = 0;
+			for (int i = 8; i < 16; i++) {
+				high = (high << 8) | (message[i] & 0xff);
+			}
+			low = ((message[16] & 0xff) << 24) | ((message[17] & 0xff) << 16) | ((message[18] & 0xff) << 8) | (message[19] & 0xff);
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (high ^ (high >>> 32)) * 31 + low;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TransactionKey)) {
+				return false;
+			}
+			TransactionKey other = (TransactionKey) o;
+			return high == other.high && low == other.low;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the DatagramSocket listeners of Server with the io_uring listeners over
+ * loopback. For each transport an in-process Server is started and a number of client
+ * threads send binding requests to its first UDP port for a fixed time. Each client
+ * keeps a window of requests outstanding and sends the next window when it has the
+ * responses or has waited too long. Reported are answered requests per second and
+ * the mean round trip of a window.
+ *
+ * The io_uring listeners need the classes from src-uring and a JVM that can run them,
+ * otherwise the Server falls back and both runs measure DatagramSocket.
+ *
+ * Usage: TransportBenchmark [seconds] [clients] [window] [port]
+ * @author Frans
+ *
+ */
+public class TransportBenchmark {
+
+	private static final int RECEIVE_TIMEOUT = 200;
+
+	private final InetAddress loopback = InetAddress.getLoopbackAddress();
+	private final long duration;
+	private final int clients;
+	private final int window;
+	private final int port;
+
+	public TransportBenchmark(long duration, int clients, int window, int port) {
+		this.duration = duration;
+		this.clients = clients;
+		this.window = window;
+		this.port = port;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		measure(false);
+		measure(true);
+	}
+
+	private void measure(boolean ioUring) throws IOException, InterruptedException {
+		Server server = new Server(loopback, port);
+		if (ioUring) {
+			server.enableIoUring(256);
+		}
+		server.startServer();
+		String name = (server.getIoUringListenerCount() > 0) ? "io_uring" : "DatagramSocket";
+
+		try {
+			// warm up the JIT before measuring
+			blast(duration / 4);
+			long[] result = blast(duration);
+
+			System.out.println(String.format("%-15s %10.0f requests/s, %7.1f us per window of %d, %d lost", name,
+					result[0] * 1000.0 / duration, result[1] / 1000.0 / Math.max(result[2], 1), window, result[3]));
+		} finally {
+			server.shutdown();
+		}
+	}
+
+	/**
+	 * @return {answered, nanoseconds spent in windows, windows, lost}
+	 */
+	private long[] blast(final long millis) throws InterruptedException {
+		final AtomicLong answered = new AtomicLong();
+		final AtomicLong windowNanos = new AtomicLong();
+		final AtomicLong windows = new AtomicLong();
+		final AtomicLong lost = new AtomicLong();
+		final InetSocketAddress server = new InetSocketAddress(loopback, port);
+
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						client(server, millis, answered, windowNanos, windows, lost);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return new long[] { answered.get(), windowNanos.get(), windows.get(), lost.get() };
+	}
+
+	private void client(InetSocketAddress server, long millis, AtomicLong answered, AtomicLong windowNanos, AtomicLong windows,
+			AtomicLong lost) throws IOException {
+		DatagramSocket socket = new DatagramSocket(0, loopback);
+		socket.setSoTimeout(RECEIVE_TIMEOUT);
+
+		byte[] request = new byte[Header.LENGTH];
+		Header.setMessageTypeAndLength(request, Header.BINDING_REQUEST, 0);
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+		DatagramPacket requestPacket = new DatagramPacket(request, request.length, server);
+		DatagramPacket response = new DatagramPacket(new byte[512], 512);
+
+		long end = System.currentTimeMillis() + millis;
+		try {
+			while (System.currentTimeMillis() < end) {
+				long start = System.nanoTime();
+
+				for (int i = 0; i < window; i++) {
+					socket.send(requestPacket);
+				}
+				int received = 0;
+				try {
+					while (received < window) {
+						socket.receive(response);
+						received++;
+					}
+				} catch (SocketTimeoutException e) {
+					lost.addAndGet(window - received);
+				}
+				windowNanos.addAndGet(System.nanoTime() - start);
+				windows.incrementAndGet();
+				answered.addAndGet(received);
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 5;
+		int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		int window = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+		int port = (args.length > 3) ? Integer.parseInt(args[3]) : 3478;
+
+		try {
+			new TransportBenchmark(seconds * 1000, clients, window, port).run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
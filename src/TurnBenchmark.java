@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures TURN relay throughput over loopback. A client allocates a relayed
+ * address on an in-process Server and binds a channel to a peer. Then ChannelData
+ * is sent from the client to the peer and plain UDP from the peer back to the client
+ * for a fixed time, and what arrives is reported in Mbit/s and packets/s.
+ * 
+ * Usage: TurnBenchmark [payload size] [seconds per direction] [port]
+ * @author Frans
+ *
+ */
+public class TurnBenchmark {
+
+	private static final int CHANNEL = 0x4000;
+
+	private final InetAddress loopback = InetAddress.getLoopbackAddress();
+	private final int payloadSize;
+	private final long duration;
+	private final int port;
+
+	public TurnBenchmark(int payloadSize, long duration, int port) {
+		this.payloadSize = payloadSize;
+		this.duration = duration;
+		this.port = port;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		Server server = new Server(loopback, port);
+		server.enableTurn(loopback, 16);
+		server.startServer();
+
+		DatagramSocket client = new DatagramSocket(0, loopback);
+		DatagramSocket peer = new DatagramSocket(0, loopback);
+		client.setSoTimeout(1000);
+		peer.setSoTimeout(200);
+
+		try {
+			InetSocketAddress serverAddress = new InetSocketAddress(loopback, port);
+			InetSocketAddress relayed = allocate(client, serverAddress);
+			bindChannel(client, serverAddress, (InetSocketAddress) peer.getLocalSocketAddress());
+
+			System.out.println("Relayed address " + relayed + ", payload " + payloadSize + " bytes");
+
+			byte[] channelData = new byte[Header.CHANNEL_DATA_HEADER_LENGTH + payloadSize];
+			channelData[0] = (byte) (CHANNEL >> 8);
+			channelData[1] = (byte) CHANNEL;
+			channelData[2] = (byte) (payloadSize >> 8);
+			channelData[3] = (byte) payloadSize;
+
+			report("client -> peer (ChannelData)", blast(client, new DatagramPacket(channelData, channelData.length, serverAddress), peer));
+			report("peer -> client (ChannelData)", blast(peer, new DatagramPacket(new byte[payloadSize], payloadSize, relayed), client));
+		} finally {
+			client.close();
+			peer.close();
+			server.shutdown();
+		}
+	}
+
+	/**
+	 * Sends packet from sender as fast as possible for the configured time while another
+	 * thread counts what arrives at receiver.
+	 * @return {packets, bytes, nanoseconds}
+	 */
+	private long[] blast(DatagramSocket sender, DatagramPacket packet, final DatagramSocket receiver) throws InterruptedException {
+		final AtomicLong packets = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final long[] lastArrival = new long[1];
+
+		Thread counter = new Thread(new Runnable() {
+			public void run() {
+				DatagramPacket received = new DatagramPacket(new byte[65536], 65536);
+
+				while (true) {
+					try {
+						receiver.receive(received);
+						packets.incrementAndGet();
+						bytes.addAndGet(received.getLength());
+						lastArrival[0] = System.nanoTime();
+					} catch (SocketTimeoutException e) {
+						return;
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		});
+		counter.start();
+
+		long start = System.nanoTime();
+		long end = start + duration * 1000000L;
+
+		while (System.nanoTime() < end) {
+			try {
+				sender.send(packet);
+			} catch (IOException e) {
+				break;
+			}
+		}
+		counter.join();
+
+		return new long[] {packets.get(), bytes.get(), Math.max(1, lastArrival[0] - start)};
+	}
+
+	private void report(String direction, long[] result) {
+		double seconds = result[2] / 1e9;
+		System.out.printf("%-30s %10.1f Mbit/s %12.0f packets/s (%d packets)%n", direction, 
+				result[1] * 8 / seconds / 1e6, result[0] / seconds, result[0]);
+	}
+
+	private InetSocketAddress allocate(DatagramSocket client, InetSocketAddress serverAddress) throws IOException {
+		byte[] request = newRequest(Header.ALLOCATE_REQUEST);
+		int offset = Header.putIntAttribute(request, Header.LENGTH, Header.REQUESTED_TRANSPORT, Header.TRANSPORT_UDP << 24);
+		byte[] response = transaction(client, serverAddress, request, offset);
+
+		return Header.getXorAddress(response, Header.findAttribute(response, response.length, Header.XOR_RELAYED_ADDRESS));
+	}
+
+	private void bindChannel(DatagramSocket client, InetSocketAddress serverAddress, InetSocketAddress peer) throws IOException {
+		byte[] request = newRequest(Header.CHANNEL_BIND_REQUEST);
+		int offset = Header.putIntAttribute(request, Header.LENGTH, Header.CHANNEL_NUMBER, CHANNEL << 16);
+		offset = Header.putXorAddress(request, offset, Header.XOR_PEER_ADDRESS, peer.getAddress(), peer.getPort());
+
+		transaction(client, serverAddress, request, offset);
+	}
+
+	private byte[] newRequest(int messageType) {
+		byte[] request = new byte[256];
+
+		Header.addMagicCookieTo(request);
+		Header.addTransactionIDTo(request);
+		Header.setMessageTypeAndLength(request, messageType, 0);
+		return request;
+	}
+
+	private byte[] transaction(DatagramSocket client, InetSocketAddress serverAddress, byte[] request, int length) throws IOException {
+		Header.setMessageTypeAndLength(request, Header.getMessageType(request), length - Header.LENGTH);
+		client.send(new DatagramPacket(request, length, serverAddress));
+
+		DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+		client.receive(packet);
+		byte[] response = Arrays.copyOf(packet.getData(), packet.getLength());
+
+		if ((Header.getMessageType(response) & Header.ERROR_RESPONSE_CLASS) != Header.SUCCESS_RESPONSE_CLASS) {
+			int errorOffset = Header.findAttribute(response, response.length, Header.ERROR_CODE);
+			throw new IOException("TURN request failed with " + ((errorOffset != -1) ? Header.getErrorCode(response, errorOffset) : "?"));
+		}
+		return response;
+	}
+
+	public static void main(String[] args) {
+		int payloadSize = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 5;
+		int port = (args.length > 2) ? Integer.parseInt(args[2]) : 3478;
+
+		try {
+			new TurnBenchmark(payloadSize, seconds * 1000, port).run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,398 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements the TURN methods from RFC5766/RFC8656 on top of the UDP listeners
+ * of the Server: Allocate, Refresh, CreatePermission, ChannelBind and the
+ * Send indication and ChannelData messages from clients.
+ * Data from peers is relayed back by the RelayLoop.
+ * 
+ * Only UDP relaying over UDP listeners is implemented and requests are not
+ * authenticated.
+ * @author Frans
+ *
+ */
+class TurnHandler {
+	private static final Logger logger = Logger.getLogger(TurnHandler.class.getName());
+	private static ConsoleHandler consoleHandler = new ConsoleHandler();
+
+	static final int DEFAULT_LIFETIME = 600;
+	static final int MAX_LIFETIME = 3600;
+
+	private static final int MAX_RESPONSE_LENGTH = 256;
+
+	private final InetAddress relayAddress;
+	private final AllocationTable allocationTable;
+	private final RelayLoop relayLoop;
+	private Thread relayThread;
+
+	private final AtomicLong relayedPackets = new AtomicLong();
+	private final AtomicLong relayedBytes = new AtomicLong();
+	private final AtomicLong droppedPackets = new AtomicLong();
+
+	/**
+	 * @param relayAddress The address that relayed transport addresses are bound to
+	 * @param maxAllocations Allocations above this are answered with 508
+	 * @throws IOException If the relay Selector can't be opened
+	 */
+	TurnHandler(InetAddress relayAddress, int maxAllocations) throws IOException {
+		this.relayAddress = relayAddress;
+		this.allocationTable = new AllocationTable(maxAllocations);
+		this.relayLoop = new RelayLoop(this, allocationTable);
+	}
+
+	/**
+	 * For debugging reasons.
+	 * Connect Handler to Logger in order to see Level.FINE messages
+	 */
+	public static void connectConsoleHandler() {
+		logger.addHandler(consoleHandler);
+	}
+
+	/**
+	 * For debugging reasons
+	 * Setting the Level on the Logger
+	 * @param newLevel
+	 */
+	public static void setLogLevel(Level newLevel) {
+		logger.setLevel(newLevel);
+	}
+
+	/**
+	 * For debugging reasons 
+	 * Setting the Level on the ConsoleHandler
+	 * @param newLevel
+	 */
+	public static void setConsoleHandlerLevel(Level newLevel) {
+		consoleHandler.setLevel(newLevel);
+	}
+
+	void start() {
+		relayThread = new Thread(relayLoop, "TURN relay");
+		relayThread.setDaemon(true);
+		relayThread.start();
+	}
+
+	void stop() {
+		relayLoop.stop();
+		allocationTable.clear();
+	}
+
+	/**
+	 * @param messageType A STUN message type
+	 * @return true if it's a TURN request that handleRequest answers
+	 */
+	static boolean isTurnRequest(int messageType) {
+		return messageType == Header.ALLOCATE_REQUEST || messageType == Header.REFRESH_REQUEST
+				|| messageType == Header.CREATE_PERMISSION_REQUEST || messageType == Header.CHANNEL_BIND_REQUEST;
+	}
+
+	/**
+	 * Data plane entry point for the UDP listeners. Relays ChannelData and Send
+	 * indications to peers.
+	 * @param socket The server socket the packet arrived on
+	 * @param localAddress The local address of socket
+	 * @param packet The received packet
+	 * @param view A ByteBuffer wrapping the packet buffer
+	 * @param probe A FiveTuple owned by the calling thread
+	 * @return true if the packet was a TURN data message and has been taken care of
+	 */
+	boolean relay(DatagramSocket socket, InetAddress localAddress, DatagramPacket packet, ByteBuffer view, FiveTuple probe) {
+		byte[] message = packet.getData();
+		int length = packet.getLength();
+
+		if (Header.isChannelData(message, length)) {
+			probe.set(packet.getAddress(), packet.getPort(), localAddress, socket.getLocalPort(), Header.TRANSPORT_UDP);
+			relayChannelData(message, length, view, probe);
+			return true;
+		}
+		if (length >= Header.LENGTH && Header.getMessageType(message) == Header.SEND_INDICATION
+				&& Header.compareMagicCookieIn(message)) {
+			probe.set(packet.getAddress(), packet.getPort(), localAddress, socket.getLocalPort(), Header.TRANSPORT_UDP);
+			relaySendIndication(message, length, view, probe);
+			return true;
+		}
+		return false;
+	}
+
+	private void relayChannelData(byte[] message, int length, ByteBuffer view, FiveTuple probe) {
+		Allocation allocation = allocationTable.get(probe);
+
+		if (allocation == null) {
+			droppedPackets.incrementAndGet();
+			return;
+		}
+		int channelNumber = ((message[0] << 8) & 0xff00) | (message[1] & 0xff);
+		int dataLength = ((message[2] << 8) & 0xff00) | (message[3] & 0xff);
+		long now = System.currentTimeMillis();
+		InetSocketAddress peer = allocation.getChannelPeer(channelNumber, now);
+
+		// the channel binding outlives the permission unless it is refreshed
+		if (peer == null || !allocation.hasPermission(peer.getAddress(), now)
+				|| Header.CHANNEL_DATA_HEADER_LENGTH + dataLength > length) {
+			droppedPackets.incrementAndGet();
+			return;
+		}
+		send(allocation, view, Header.CHANNEL_DATA_HEADER_LENGTH, dataLength, peer);
+	}
+
+	private void relaySendIndication(byte[] message, int length, ByteBuffer view, FiveTuple probe) {
+		Allocation allocation = allocationTable.get(probe);
+		int peerOffset = Header.findAttribute(message, length, Header.XOR_PEER_ADDRESS);
+		int dataOffset = Header.findAttribute(message, length, Header.DATA);
+
+		if (allocation == null || peerOffset == -1 || dataOffset == -1) {
+			droppedPackets.incrementAndGet();
+			return;
+		}
+		InetSocketAddress peer = Header.getXorAddress(message, peerOffset);
+
+		if (peer == null || !allocation.hasPermission(peer.getAddress(), System.currentTimeMillis())) {
+			droppedPackets.incrementAndGet();
+			return;
+		}
+		send(allocation, view, dataOffset + Header.TYPE_LENGTH_VALUE, Header.getAttributeLength(message, dataOffset), peer);
+	}
+
+	private void send(Allocation allocation, ByteBuffer view, int offset, int length, InetSocketAddress peer) {
+		view.limit(offset + length);
+		view.position(offset);
+
+		try {
+			allocation.getRelayChannel().send(view, peer);
+			countRelayed(length);
+		} catch (IOException e) {
+			droppedPackets.incrementAndGet();
+			logger.log(Level.FINE, "Could not relay to peer " + peer + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Answers the TURN requests.
+	 * @param socket The server socket the request arrived on
+	 * @param client The source of the request
+	 * @param request The request
+	 * @param length The number of valid bytes in request
+	 * @return The response
+	 */
+	byte[] handleRequest(DatagramSocket socket, InetSocketAddress client, byte[] request, int length) {
+		FiveTuple fiveTuple = new FiveTuple(client.getAddress(), client.getPort(), socket.getLocalAddress(),
+				socket.getLocalPort(), Header.TRANSPORT_UDP);
+		int messageType = Header.getMessageType(request);
+
+		logger.log(Level.FINE, "TURN request " + Integer.toHexString(messageType) + " from " + fiveTuple);
+
+		switch (messageType) {
+		case Header.ALLOCATE_REQUEST:
+			return allocate(socket, fiveTuple, client, request, length);
+		case Header.REFRESH_REQUEST:
+			return refresh(fiveTuple, request, length);
+		case Header.CREATE_PERMISSION_REQUEST:
+			return createPermission(fiveTuple, request, length);
+		case Header.CHANNEL_BIND_REQUEST:
+			return channelBind(fiveTuple, request, length);
+		default:
+			return errorResponse(request, Header.BAD_REQUEST, "Bad Request");
+		}
+	}
+
+	private byte[] allocate(DatagramSocket socket, FiveTuple fiveTuple, InetSocketAddress client, byte[] request, int length) {
+		if (allocationTable.get(fiveTuple) != null) {
+			return errorResponse(request, Header.ALLOCATION_MISMATCH, "Allocation Mismatch");
+		}
+		int transportOffset = Header.findAttribute(request, length, Header.REQUESTED_TRANSPORT);
+
+		if (transportOffset == -1) {
+			return errorResponse(request, Header.BAD_REQUEST, "Missing REQUESTED-TRANSPORT");
+		}
+		if ((request[transportOffset + Header.TYPE_LENGTH_VALUE] & 0xff) != Header.TRANSPORT_UDP) {
+			return errorResponse(request, Header.UNSUPPORTED_TRANSPORT_PROTOCOL, "Unsupported Transport Protocol");
+		}
+		if (!allocationTable.reserve()) {
+			return errorResponse(request, Header.INSUFFICIENT_CAPACITY, "Insufficient Capacity");
+		}
+		int lifetime = requestedLifetime(request, length);
+		Allocation allocation;
+
+		try {
+			DatagramChannel relayChannel = DatagramChannel.open();
+			relayChannel.configureBlocking(false);
+			relayChannel.socket().bind(new InetSocketAddress(relayAddress, 0));
+
+			allocation = new Allocation(fiveTuple, socket, relayChannel, lifetime * 1000L);
+		} catch (IOException e) {
+			allocationTable.release();
+			logger.log(Level.WARNING, "Can't open relayed transport address: " + e.getMessage());
+			return errorResponse(request, Header.INSUFFICIENT_CAPACITY, "Insufficient Capacity");
+		}
+		if (!allocationTable.add(allocation)) {
+			allocation.close();
+			return errorResponse(request, Header.ALLOCATION_MISMATCH, "Allocation Mismatch");
+		}
+		relayLoop.register(allocation);
+		logger.log(Level.FINE, "Allocated " + allocation.getRelayAddress() + " for " + fiveTuple);
+
+		byte[] response = newResponse(request, Header.ALLOCATE_REQUEST | Header.SUCCESS_RESPONSE_CLASS);
+		InetSocketAddress relayed = allocation.getRelayAddress();
+		int offset = Header.putXorAddress(response, Header.LENGTH, Header.XOR_RELAYED_ADDRESS, relayed.getAddress(), relayed.getPort());
+		offset = Header.putIntAttribute(response, offset, Header.LIFETIME, lifetime);
+		offset = Header.putXorAddress(response, offset, Header.XOR_MAPPED_ADDRESS, client.getAddress(), client.getPort());
+
+		return finish(response, offset);
+	}
+
+	private byte[] refresh(FiveTuple fiveTuple, byte[] request, int length) {
+		Allocation allocation = allocationTable.get(fiveTuple);
+
+		if (allocation == null) {
+			return errorResponse(request, Header.ALLOCATION_MISMATCH, "Allocation Mismatch");
+		}
+		int lifetime = requestedLifetime(request, length);
+
+		if (lifetime == 0) {
+			allocationTable.remove(allocation);
+			logger.log(Level.FINE, "Deleted allocation for " + fiveTuple);
+		} else {
+			allocation.refresh(lifetime * 1000L);
+		}
+		byte[] response = newResponse(request, Header.REFRESH_REQUEST | Header.SUCCESS_RESPONSE_CLASS);
+		int offset = Header.putIntAttribute(response, Header.LENGTH, Header.LIFETIME, lifetime);
+
+		return finish(response, offset);
+	}
+
+	private byte[] createPermission(FiveTuple fiveTuple, byte[] request, int length) {
+		Allocation allocation = allocationTable.get(fiveTuple);
+
+		if (allocation == null) {
+			return errorResponse(request, Header.ALLOCATION_MISMATCH, "Allocation Mismatch");
+		}
+		int peerOffset = Header.findAttribute(request, length, Header.XOR_PEER_ADDRESS);
+
+		if (peerOffset == -1) {
+			return errorResponse(request, Header.BAD_REQUEST, "Missing XOR-PEER-ADDRESS");
+		}
+
+		/*
+		 * A CreatePermission request may carry several XOR-PEER-ADDRESS attributes
+		 */
+		int end = Header.LENGTH + Header.getMessageLength(request);
+		int offset = peerOffset;
+
+		while (offset + Header.TYPE_LENGTH_VALUE <= end) {
+			int type = ((request[offset] << 8) & 0xff00) | (request[offset + 1] & 0xff);
+
+			if (type == Header.XOR_PEER_ADDRESS) {
+				InetSocketAddress peer = Header.getXorAddress(request, offset);
+
+				if (peer == null) {
+					return errorResponse(request, Header.BAD_REQUEST, "Bad XOR-PEER-ADDRESS");
+				}
+				allocation.addPermission(peer.getAddress());
+				logger.log(Level.FINE, "Permission for " + peer.getAddress() + " on " + fiveTuple);
+			}
+			offset += Header.TYPE_LENGTH_VALUE + Header.padded(Header.getAttributeLength(request, offset));
+		}
+		byte[] response = newResponse(request, Header.CREATE_PERMISSION_REQUEST | Header.SUCCESS_RESPONSE_CLASS);
+
+		return finish(response, Header.LENGTH);
+	}
+
+	private byte[] channelBind(FiveTuple fiveTuple, byte[] request, int length) {
+		Allocation allocation = allocationTable.get(fiveTuple);
+
+		if (allocation == null) {
+			return errorResponse(request, Header.ALLOCATION_MISMATCH, "Allocation Mismatch");
+		}
+		int channelOffset = Header.findAttribute(request, length, Header.CHANNEL_NUMBER);
+		int peerOffset = Header.findAttribute(request, length, Header.XOR_PEER_ADDRESS);
+
+		if (channelOffset == -1 || peerOffset == -1) {
+			return errorResponse(request, Header.BAD_REQUEST, "Missing CHANNEL-NUMBER or XOR-PEER-ADDRESS");
+		}
+		int channelNumber = Header.getIntAttribute(request, channelOffset) >>> 16;
+		InetSocketAddress peer = Header.getXorAddress(request, peerOffset);
+
+		if (channelNumber < Header.MIN_CHANNEL_NUMBER || channelNumber > Header.MAX_CHANNEL_NUMBER || peer == null
+				|| !allocation.bindChannel(channelNumber, peer)) {
+			return errorResponse(request, Header.BAD_REQUEST, "Bad Channel Binding");
+		}
+		logger.log(Level.FINE, "Channel " + Integer.toHexString(channelNumber) + " bound to " + peer + " on " + fiveTuple);
+
+		byte[] response = newResponse(request, Header.CHANNEL_BIND_REQUEST | Header.SUCCESS_RESPONSE_CLASS);
+
+		return finish(response, Header.LENGTH);
+	}
+
+	private int requestedLifetime(byte[] request, int length) {
+		int lifetimeOffset = Header.findAttribute(request, length, Header.LIFETIME);
+
+		if (lifetimeOffset == -1) {
+			return DEFAULT_LIFETIME;
+		}
+		int lifetime = Header.getIntAttribute(request, lifetimeOffset);
+
+		if (lifetime == 0) {
+			return 0;
+		}
+		return Math.min(Math.max(lifetime, DEFAULT_LIFETIME), MAX_LIFETIME);
+	}
+
+	private byte[] newResponse(byte[] request, int messageType) {
+		byte[] response = new byte[MAX_RESPONSE_LENGTH];
+
+		System.arraycopy(request, 0, response, 0, Header.LENGTH);
+		Header.setMessageTypeAndLength(response, messageType, 0);
+		return response;
+	}
+
+	private byte[] finish(byte[] response, int end) {
+		Header.setMessageTypeAndLength(response, Header.getMessageType(response), end - Header.LENGTH);
+		return Arrays.copyOf(response, end);
+	}
+
+	private byte[] errorResponse(byte[] request, int errorCode, String reason) {
+		logger.log(Level.FINE, "TURN error " + errorCode + " " + reason);
+
+		int method = Header.getMessageType(request) & ~Header.ERROR_RESPONSE_CLASS;
+		byte[] response = newResponse(request, method | Header.ERROR_RESPONSE_CLASS);
+		int offset = Header.putErrorCode(response, Header.LENGTH, errorCode, reason);
+
+		return finish(response, offset);
+	}
+
+	void countRelayed(int length) {
+		relayedPackets.incrementAndGet();
+		relayedBytes.addAndGet(length);
+	}
+
+	void countDropped() {
+		droppedPackets.incrementAndGet();
+	}
+
+	int getAllocationCount() {
+		return allocationTable.size();
+	}
+
+	long getRelayedPackets() {
+		return relayedPackets.get();
+	}
+
+	long getRelayedBytes() {
+		return relayedBytes.get();
+	}
+
+	long getDroppedPackets() {
+		return droppedPackets.get();
+	}
+}
@@ -4,6 +4,7 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,17 +22,33 @@ public class UDPClient implements Runnable {
 
 	private static final int TIMEOUT = 500;
 
+	/*
+	 * How many 300 (Try Alternate) redirects are followed, so two servers that point
+	 * at each other can't keep the client busy
+	 */
+	private static final int MAX_REDIRECTS = 2;
+
 	private InetSocketAddress serverAddress;
-	private DatagramSocket datagramSocket;
+	private PacketTransport transport;
 
 	private InetSocketAddress mappedAddress;
 
 	private boolean done;
 
 	public UDPClient(InetSocketAddress serverAddress, DatagramSocket datagramSocket) {
+		this(serverAddress, (datagramSocket != null) ? new SocketPacketTransport(datagramSocket) : null);
+	}
+
+	/**
+	 * Constructor for a client on another transport than a DatagramSocket, such as
+	 * an endpoint of a SimulatedNetwork
+	 * @param serverAddress
+	 * @param transport
+	 */
+	public UDPClient(InetSocketAddress serverAddress, PacketTransport transport) {
 
 		this.serverAddress = serverAddress;
-		this.datagramSocket = datagramSocket;
+		this.transport = transport;
 		logger.log(Level.FINE, "Starting STUN UDP client on " + serverAddress);
 
 	}
@@ -62,6 +79,14 @@ public class UDPClient implements Runnable {
 		consoleHandler.setLevel(newLevel);
 	}
 
+	/**
+	 * @return The server that was asked last, another one than in the constructor if
+	 * the client was redirected
+	 */
+	public synchronized InetSocketAddress getServerAddress() {
+		return serverAddress;
+	}
+
 	/**
 	 * Method that put the asking thread to sleep until a response has been accepted
 	 * it then tries to deliver the Global IP address and Global port.
@@ -84,7 +109,7 @@ public class UDPClient implements Runnable {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Failed to retrieve mapped address");
 
-			sb.append(" for " + datagramSocket.getLocalAddress() + ":" + datagramSocket.getLocalPort());
+			sb.append(" for " + transport.getLocalAddress() + ":" + transport.getLocalPort());
 
 			throw new IOException(sb.toString());
 		}
@@ -102,17 +127,19 @@ public class UDPClient implements Runnable {
 	/**
 	 * Method that tries to send 5 requests with a increasing wait time after each in 
 	 * order to follow the guidelines in RFC 5389. If it succeeds it will notify threads 
-	 * waiting in getMappedAddress and then exit.
+	 * waiting in getMappedAddress and then exit. A 300 (Try Alternate) response makes it
+	 * start over with the ALTERNATE-SERVER.
 	 */
 	public void run() {
 		int socketTimeout = TIMEOUT;
 		int retries = 5;
+		int redirects = 0;
 		
 		logger.log(Level.FINE, "using STUN server " + serverAddress);
 
 		try {
-			if (datagramSocket != null) {
-				datagramSocket.setSoTimeout(socketTimeout);
+			if (transport != null) {
+				transport.setSoTimeout(socketTimeout);
 			} 
 
 			for (int i = 0; i < retries; i++) {
@@ -128,6 +155,17 @@ public class UDPClient implements Runnable {
 
 				try {
 					byte[] response = getResponse();
+					InetSocketAddress alternateServer = Header.getAlternateServer(response, response.length);
+
+					if (alternateServer != null && redirects < MAX_REDIRECTS) {
+						logger.log(Level.FINE, "Redirected from " + serverAddress + " to " + alternateServer);
+						redirect(alternateServer);
+						redirects++;
+						i = -1;
+						socketTimeout = TIMEOUT;
+						transport.setSoTimeout(socketTimeout);
+						continue;
+					}
 					setMappedAddress(response);
 					retries = 0;
 				} catch (SocketTimeoutException e) {
@@ -138,7 +176,7 @@ public class UDPClient implements Runnable {
 
 				//If time out just try again after t*2
 				socketTimeout = socketTimeout*2;
-				datagramSocket.setSoTimeout(socketTimeout);
+				transport.setSoTimeout(socketTimeout);
 			} 
 		} catch (SocketException e) {
 			e.printStackTrace();
@@ -154,7 +192,7 @@ public class UDPClient implements Runnable {
 		byte[] request = new byte[Header.LENGTH + Header.TYPE_LENGTH_VALUE + Header.MAPPED_IPV4_ADDRESS_LENGTH];
 
 		logger.log(Level.FINE, "StunClient: asking STUN server " + serverAddress.getAddress() + ":" + serverAddress.getPort() 
-				+ " to get mapping for " + datagramSocket.getLocalAddress() +":" + datagramSocket.getLocalPort());
+				+ " to get mapping for " + transport.getLocalAddress() +":" + transport.getLocalPort());
 
 		Header.addTypeAndLengthTo(request);
 		Header.addMagicCookieTo(request);
@@ -176,23 +214,27 @@ public class UDPClient implements Runnable {
 
 		DatagramPacket packet = new DatagramPacket(request, request.length, serverAddress.getAddress(), serverAddress.getPort());
 
-		logger.log(Level.FINER, "local addr " + datagramSocket.getLocalAddress() + " local port: " + datagramSocket.getLocalPort());
-		datagramSocket.send(packet);
+		logger.log(Level.FINER, "local addr " + transport.getLocalAddress() + " local port: " + transport.getLocalPort());
+		transport.send(packet);
 
 		logger.log(Level.FINE, "Packet sent! Length: " + packet.getLength());
 	}
 
+	private synchronized void redirect(InetSocketAddress alternateServer) {
+		serverAddress = alternateServer;
+	}
+
 	private byte[] getResponse() throws IOException, SocketTimeoutException {
 		logger.log(Level.FINE, "Waiting for response");
 		byte[] response = new byte[1024];
 
 		DatagramPacket packet = new DatagramPacket(response, response.length);
-		datagramSocket.receive(packet);
+		transport.receive(packet);
 		logger.log(Level.FINE, "Packet recieved.");
 
-		logger.log(Level.FINE, "Got response to local address:" + datagramSocket.getLocalAddress()
-				+ ":"+ datagramSocket.getLocalPort() + " Length: " + packet.getLength());
-		return response;
+		logger.log(Level.FINE, "Got response to local address:" + transport.getLocalAddress()
+				+ ":"+ transport.getLocalPort() + " Length: " + packet.getLength());
+		return Arrays.copyOf(response, packet.getLength());
 	
 	}
 	
@@ -202,7 +244,7 @@ public class UDPClient implements Runnable {
 		
 		if (type == Header.BINDING_RESPONSE) {
 			logger.log(Level.FINE, "Setting mappedAddress.");
-			mappedAddress = Header.getAddress(response, Header.MAPPED_ADDRESS);
+			mappedAddress = Header.getMappedAddress(response, response.length);
 			return;
 		}
 		
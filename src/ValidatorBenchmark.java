@@ -0,0 +1,166 @@
+import java.util.Random;
+
+/**
+ * Compares the scalar PacketValidator with the one from PacketValidator.create() on
+ * batches of 32 and 64 packets. The packets are mostly binding requests with some
+ * ChannelData, other STUN methods and broken headers mixed in. Before timing, both
+ * validators must give the same verdicts for a large set of random headers.
+ *
+ * The vector validator is only used when it was compiled and the JVM runs with
+ * --add-modules jdk.incubator.vector, otherwise both columns show the scalar code.
+ *
+ * Usage: ValidatorBenchmark [seconds per measurement]
+ * @author Frans
+ *
+ */
+public class ValidatorBenchmark {
+
+	private static final int[] BATCH_SIZES = { 32, 64 };
+	private static final int PACKETS = 512;
+	private static final int WARMUP_ROUNDS = 3;
+
+	private final byte[][] packets = new byte[PACKETS][];
+	private final int[] lengths = new int[PACKETS];
+	private final long duration;
+
+	/*
+	 * Written so the JIT can't remove the validation
+	 */
+	private volatile long sink;
+
+	public ValidatorBenchmark(long duration) {
+		this.duration = duration;
+		Random random = new Random(3478);
+
+		for (int i = 0; i < PACKETS; i++) {
+			packets[i] = new byte[1500];
+			lengths[i] = fill(packets[i], random);
+		}
+	}
+
+	/**
+	 * Writes a typical packet
+	 * @return Its length
+	 */
+	private static int fill(byte[] packet, Random random) {
+		int kind = random.nextInt(100);
+
+		if (kind < 10) {
+			// ChannelData
+			int length = 4 + random.nextInt(200);
+			packet[0] = 0x40;
+			packet[2] = (byte) ((length - 4) >> 8);
+			packet[3] = (byte) (length - 4);
+			return length;
+		}
+		Header.addTypeAndLengthTo(packet);
+		Header.addMagicCookieTo(packet);
+
+		if (kind < 15) {
+			// Allocate
+			packet[1] = 3;
+		} else if (kind < 18) {
+			// length field too large
+			packet[3] = 8;
+		}
+		return Header.LENGTH;
+	}
+
+	public void run() {
+		PacketValidator scalar = PacketValidator.scalar();
+		PacketValidator candidate = PacketValidator.create();
+
+		if (!sameVerdicts(scalar, candidate)) {
+			System.out.println("Validators disagree, not measuring");
+			return;
+		}
+		System.out.println("Comparing " + scalar.getName() + " with " + candidate.getName());
+
+		for (int batch : BATCH_SIZES) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				measure(scalar, batch, duration / 4);
+				measure(candidate, batch, duration / 4);
+			}
+			double scalarNanos = measure(scalar, batch, duration);
+			double candidateNanos = measure(candidate, batch, duration);
+
+			System.out.println(String.format("batch %2d: %-12s %6.2f ns/packet, %-12s %6.2f ns/packet, speedup %.2fx", batch,
+					scalar.getName(), scalarNanos, candidate.getName(), candidateNanos, scalarNanos / candidateNanos));
+		}
+	}
+
+	/**
+	 * @return Nanoseconds per packet
+	 */
+	private double measure(PacketValidator validator, int batch, long millis) {
+		byte[][] batchPackets = new byte[batch][];
+		int[] batchLengths = new int[batch];
+		byte[] verdicts = new byte[batch];
+
+		long validated = 0;
+		int next = 0;
+		long start = System.nanoTime();
+		long end = start + millis * 1000000;
+		long now;
+
+		do {
+			for (int round = 0; round < 1024; round++) {
+				for (int i = 0; i < batch; i++) {
+					batchPackets[i] = packets[next];
+					batchLengths[i] = lengths[next];
+					next = (next + 1) & (PACKETS - 1);
+				}
+				validator.validate(batchPackets, batchLengths, batch, verdicts);
+				sink += verdicts[round & (batch - 1)];
+			}
+			validated += 1024 * batch;
+			now = System.nanoTime();
+		} while (now < end);
+
+		return (double) (now - start) / validated;
+	}
+
+	/**
+	 * Random headers, biased towards the magic cookie so every verdict comes up
+	 */
+	private static boolean sameVerdicts(PacketValidator a, PacketValidator b) {
+		Random random = new Random(5780);
+		int batch = 61;
+		byte[][] packets = new byte[batch][];
+		int[] lengths = new int[batch];
+		byte[] verdictsA = new byte[batch];
+		byte[] verdictsB = new byte[batch];
+
+		for (int round = 0; round < 20000; round++) {
+			for (int i = 0; i < batch; i++) {
+				packets[i] = new byte[8];
+				random.nextBytes(packets[i]);
+
+				if (random.nextBoolean()) {
+					Header.addMagicCookieTo(packets[i]);
+					packets[i][0] &= (byte) (random.nextBoolean() ? 0x3f : 0);
+					packets[i][1] = (byte) random.nextInt(3);
+					packets[i][2] = 0;
+					packets[i][3] &= (byte) (0x3c | random.nextInt(2));
+				}
+				lengths[i] = random.nextInt(100);
+			}
+			a.validate(packets, lengths, batch, verdictsA);
+			b.validate(packets, lengths, batch, verdictsB);
+
+			for (int i = 0; i < batch; i++) {
+				if (verdictsA[i] != verdictsB[i]) {
+					System.out.println("Packet " + i + " of round " + round + ": " + verdictsA[i] + " != " + verdictsB[i]);
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public static void main(String[] args) {
+		long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 2;
+
+		new ValidatorBenchmark(seconds * 1000).run();
+	}
+}